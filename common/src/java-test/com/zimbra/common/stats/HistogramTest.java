@@ -0,0 +1,63 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.stats;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void buckets() {
+        for (long v : new long[] {0, 1, 7, 8, 9, 15, 16, 17, 100, 1000, 123456789L, Long.MAX_VALUE}) {
+            int index = Histogram.bucketIndex(v);
+            Assert.assertTrue("upper bound of " + v, Histogram.bucketUpperBound(index) >= v);
+            if (index > 0) {
+                Assert.assertTrue("lower bound of " + v, Histogram.bucketUpperBound(index - 1) < v);
+            }
+        }
+    }
+
+    @Test
+    public void percentiles() {
+        Histogram histogram = new Histogram();
+        Assert.assertEquals(0, histogram.getPercentile(50));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(100, histogram.getMax());
+        long p50 = histogram.getPercentile(50);
+        Assert.assertTrue("p50=" + p50, p50 >= 50 && p50 <= 50 * 9 / 8);
+        long p99 = histogram.getPercentile(99);
+        Assert.assertTrue("p99=" + p99, p99 >= 99 && p99 <= 100);
+
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void accumulator() {
+        Histogram histogram = new Histogram().setCountName("count").setPercentileName(50, "p50");
+        histogram.record(3);
+        Assert.assertEquals(Arrays.asList("count", "p50"), histogram.getNames());
+        Assert.assertEquals(Arrays.<Object>asList(1L, 3L), histogram.getData());
+    }
+}
@@ -151,6 +151,7 @@ public final class LC {
     public static final KnownKey zimbra_store_copy_buffer_size_kb = KnownKey.newKey(16); // KB
     public static final KnownKey zimbra_nio_file_copy_chunk_size_kb = KnownKey.newKey(512); // KB
     public static final KnownKey zimbra_blob_input_stream_buffer_size_kb = KnownKey.newKey(1); // KB
+    public static final KnownKey zimbra_blob_fd_cache_volume_max_size = KnownKey.newKey(0);
 
     @Supported
     public static final KnownKey zimbra_mailbox_manager_hardref_cache = KnownKey.newKey(2500);
@@ -174,12 +175,29 @@ public final class LC {
     public static final KnownKey zimbra_mailbox_lock_timeout = KnownKey.newKey(60); // seconds
 
     public static final KnownKey zimbra_mailbox_lock_readwrite = KnownKey.newKey(true);
+    public static final KnownKey zimbra_mailbox_lock_slow_wait_ms = KnownKey.newKey(1000);
+    public static final KnownKey zimbra_mailbox_dlock_readwrite = KnownKey.newKey(false);
+    public static final KnownKey zimbra_mailbox_dlock_max_readers = KnownKey.newKey(16);
+    public static final KnownKey zimbra_mailbox_dlock_lease_ms = KnownKey.newKey(200);
+    public static final KnownKey zimbra_mailbox_add_messages_batch_size = KnownKey.newKey(100);
+
+    public static final KnownKey zimbra_message_cache_stripes = KnownKey.newKey(16);
+    public static final KnownKey zimbra_message_cache_max_bytes = KnownKey.newKey(512L * 1024 * 1024);
+
+    public static final KnownKey zimbra_redolog_group_commit = KnownKey.newKey(false);
+    public static final KnownKey zimbra_redolog_group_commit_latency_target_us = KnownKey.newKey(2000);
+    public static final KnownKey zimbra_redolog_group_commit_batch_size = KnownKey.newKey(64);
+    public static final KnownKey zimbra_redolog_writer = KnownKey.newKey("file");
+    public static final KnownKey zimbra_redolog_segment_size_kb = KnownKey.newKey(131072);
+    public static final KnownKey zimbra_redolog_replay_threads = KnownKey.newKey(1);
+    public static final KnownKey zimbra_redolog_replay_queue_capacity = KnownKey.newKey(100);
 
     @Supported
     public static final KnownKey zimbra_index_threads = KnownKey.newKey(10);
 
     @Supported
     public static final KnownKey zimbra_reindex_threads = KnownKey.newKey(10);
+    public static final KnownKey zimbra_index_queue_batch_items = KnownKey.newKey(1000);
 
     @Supported
     public static final KnownKey zimbra_index_max_readers = KnownKey.newKey(35);
@@ -196,6 +214,10 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_index_reader_cache_ttl = KnownKey.newKey(300);
 
+    public static final KnownKey zimbra_index_reader_max_staleness_ms = KnownKey.newKey(1000);
+    public static final KnownKey zimbra_index_shard_count = KnownKey.newKey(64);
+    public static final KnownKey zimbra_index_shard_max_docs = KnownKey.newKey(20000);
+
     @Supported
     public static final KnownKey zimbra_index_deferred_items_failure_delay = KnownKey.newKey(300);
 
@@ -678,6 +700,11 @@ public final class LC {
     public static final KnownKey nio_pop3_enabled = KnownKey.newKey(true);
 
     public static final KnownKey nio_max_write_queue_size = KnownKey.newKey(10000);
+    public static final KnownKey nio_imap_zero_copy_enabled = KnownKey.newKey(true);
+    public static final KnownKey nio_fair_scheduler_enabled = KnownKey.newKey(true);
+    public static final KnownKey nio_fair_scheduler_quantum_ms = KnownKey.newKey(10);
+    public static final KnownKey nio_fair_scheduler_max_queued_per_account = KnownKey.newKey(100);
+    public static final KnownKey nio_fair_scheduler_max_threads_per_account = KnownKey.newKey(4);
 
     public static final KnownKey imap_max_request_size = KnownKey.newKey(10 * 1024);
     public static final KnownKey imap_max_nesting_in_search_request = KnownKey.newKey(100);
@@ -692,12 +719,19 @@ public final class LC {
     public static final KnownKey imap_write_timeout = KnownKey.newKey(10);
     public static final KnownKey imap_write_chunk_size = KnownKey.newKey(8 * 1024);
     public static final KnownKey imap_thread_keep_alive_time = KnownKey.newKey(60);
+    public static final KnownKey imap_virtual_threads_enabled = KnownKey.newKey(false);
     public static final KnownKey imap_max_idle_time = KnownKey.newKey(60);
     public static final KnownKey imap_authenticated_max_idle_time = KnownKey.newKey(1800);
     public static final KnownKey imap_throttle_ip_limit = KnownKey.newKey(5000);
     public static final KnownKey imap_throttle_acct_limit = KnownKey.newKey(5000);
     public static final KnownKey imap_throttle_command_limit = KnownKey.newKey(25);
     public static final KnownKey imap_throttle_fetch = KnownKey.newKey(true);
+    public static final KnownKey imap_fetch_prefetch_size = KnownKey.newKey(100);
+    public static final KnownKey imap_structure_cache_enabled = KnownKey.newKey(true);
+    public static final KnownKey imap_structure_cache_heap_entries = KnownKey.newKey(10000);
+    public static final KnownKey imap_structure_cache_max_disk_size = KnownKey.newKey("1GB");
+    public static final KnownKey imap_session_cache_max_delta_chain = KnownKey.newKey(8);
+    public static final KnownKey imap_notification_hub_enabled = KnownKey.newKey(true);
     public static final KnownKey data_source_imap_reuse_connections = KnownKey.newKey(false);
 
     @Supported
@@ -717,6 +751,7 @@ public final class LC {
 
     public static final KnownKey pop3_write_timeout = KnownKey.newKey(10);
     public static final KnownKey pop3_thread_keep_alive_time = KnownKey.newKey(60);
+    public static final KnownKey pop3_virtual_threads_enabled = KnownKey.newKey(false);
     public static final KnownKey pop3_max_idle_time = KnownKey.newKey(60);
     public static final KnownKey pop3_throttle_ip_limit = KnownKey.newKey(5000);
     public static final KnownKey pop3_throttle_acct_limit = KnownKey.newKey(5000);
@@ -811,6 +846,11 @@ public final class LC {
     public static final KnownKey search_disable_database_hints = KnownKey.newKey(false);
     public static final KnownKey search_dbfirst_term_percentage_cutoff = KnownKey.newKey(0.8F);
     public static final KnownKey search_tagged_item_count_join_query_cutoff = KnownKey.newKey(1000); //beyond this limit server will not use join in the query while fetching unread items
+    public static final KnownKey search_parallel_threads = KnownKey.newKey(8);
+    public static final KnownKey search_parallel_budget_ms = KnownKey.newKey(30000);
+    public static final KnownKey search_bitmap_join_max_rows = KnownKey.newKey(100000);
+    public static final KnownKey search_bitmap_join_round_trip_cost = KnownKey.newKey(500);
+    public static final KnownKey search_bitmap_join_doc_cost = KnownKey.newKey(10);
 
     public static final KnownKey zmstat_interval = KnownKey.newKey(30);
     public static final KnownKey zmstat_disk_interval = KnownKey.newKey(600);
@@ -1067,6 +1107,11 @@ public final class LC {
 
     public static final KnownKey zimbra_lmtp_validate_messages = KnownKey.newKey(true);
     public static final KnownKey zimbra_lmtp_max_line_length = KnownKey.newKey(10240);
+    public static final KnownKey zimbra_lmtp_delivery_threads = KnownKey.newKey(8);
+    public static final KnownKey lmtp_virtual_threads_enabled = KnownKey.newKey(false);
+    public static final KnownKey virtual_thread_pinned_threshold_ms = KnownKey.newKey(20);
+    public static final KnownKey zimbra_lmtp_delivery_queue_size = KnownKey.newKey(256);
+    public static final KnownKey zimbra_lmtp_delivery_recipients_per_lane = KnownKey.newKey(8);
 
     public static final KnownKey data_source_scheduling_enabled = KnownKey.newKey(true);
     public static final KnownKey data_source_eas_sync_email = KnownKey.newKey(true);
@@ -0,0 +1,199 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.stats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the distribution of non-negative <tt>long</tt> values between calls to
+ * {@link #reset} and reports the count, maximum and arbitrary percentiles.
+ * <p>
+ * Values are bucketed log-linearly: each power of two is split into
+ * {@link #SUB_BUCKETS} equal buckets, so the reported percentiles are accurate to
+ * within 12.5% of the recorded value.  Recording is lock-free and cheap enough to be
+ * called on hot paths.
+ */
+public class Histogram implements Accumulator {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    // names are set up after construction and read by the stats threads
+    private volatile String mCountName;
+    private volatile String mMaxName;
+    private final List<String> mPercentileNames = new ArrayList<String>();
+    private final List<Double> mPercentiles = new ArrayList<Double>();
+
+    private volatile List<String> mNames = Collections.emptyList();
+
+    /**
+     * Records a single value.  Negative values are recorded as <tt>0</tt>.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mBuckets.incrementAndGet(bucketIndex(value));
+        mCount.incrementAndGet();
+        long max;
+        while (value > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Returns the value below which the given percentage of recorded values fall,
+     * or <tt>0</tt> if nothing has been recorded since the last call to {@link #reset}.
+     *
+     * @param percentile a number between 0 and 100
+     */
+    public long getPercentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(count * Math.min(Math.max(percentile, 0.0), 100.0) / 100.0);
+        threshold = Math.max(threshold, 1);
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= threshold) {
+                return Math.min(bucketUpperBound(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * If non-null, the given name will be returned by {@link #getNames()}
+     * and the number of recorded values will be returned by {@link #getData()}.
+     */
+    public Histogram setCountName(String name) {
+        mCountName = name;
+        updateNames();
+        return this;
+    }
+
+    /**
+     * If non-null, the given name will be returned by {@link #getNames()}
+     * and the maximum recorded value will be returned by {@link #getData()}.
+     */
+    public Histogram setMaxName(String name) {
+        mMaxName = name;
+        updateNames();
+        return this;
+    }
+
+    /**
+     * Adds a percentile to the values returned by {@link #getData()}.
+     *
+     * @param percentile a number between 0 and 100, e.g. <tt>99</tt>
+     */
+    public Histogram setPercentileName(double percentile, String name) {
+        synchronized (mPercentileNames) {
+            mPercentiles.add(percentile);
+            mPercentileNames.add(name);
+        }
+        updateNames();
+        return this;
+    }
+
+    private void updateNames() {
+        List<String> names = new ArrayList<String>();
+        if (mCountName != null) {
+            names.add(mCountName);
+        }
+        if (mMaxName != null) {
+            names.add(mMaxName);
+        }
+        synchronized (mPercentileNames) {
+            names.addAll(mPercentileNames);
+        }
+        mNames = Collections.unmodifiableList(names);
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int mantissa = (int) (value >>> shift);
+        return (shift + 1) * SUB_BUCKETS + (mantissa - SUB_BUCKETS);
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+        long upper = ((mantissa + 1) << shift) - 1;
+        return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+
+    ////////////// Accumulator implementation ///////////////////
+
+    @Override
+    public List<String> getNames() {
+        return mNames;
+    }
+
+    @Override
+    public List<Object> getData() {
+        List<Object> data = new ArrayList<Object>(mNames.size());
+        if (mCountName != null) {
+            data.add(getCount());
+        }
+        if (mMaxName != null) {
+            data.add(getMax());
+        }
+        synchronized (mPercentileNames) {
+            for (Double percentile : mPercentiles) {
+                data.add(getPercentile(percentile));
+            }
+        }
+        return data;
+    }
+
+    @Override
+    public synchronized void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mMax.set(0);
+    }
+}
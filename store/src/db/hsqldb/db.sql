@@ -87,7 +87,7 @@ CREATE TABLE mailbox (
    comment             VARCHAR(255),
    last_soap_access    INTEGER DEFAULT 0 NOT NULL,
    new_messages        INTEGER DEFAULT 0 NOT NULL,
-   idx_deferred_count  INTEGER DEFAULT 0 NOT NULL, -- deprecated
+   idx_deferred_count  INTEGER DEFAULT 0 NOT NULL, -- index backlog, kept across restarts for IndexQueue.recover()
    highest_indexed     VARCHAR(21), -- deprecated
    version             VARCHAR(16),
    last_purge_at       INTEGER DEFAULT 0 NOT NULL,
@@ -0,0 +1,88 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.soap;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxBenchmarkUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.service.mail.ToXML;
+import com.zimbra.cs.service.util.ItemIdFormatter;
+
+/**
+ * Serializing and parsing a <tt>GetMsgResponse</tt> for a typical message as
+ * XML and as JSON.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ElementBenchmark {
+
+    @Param({ "xml", "json" })
+    public String format;
+
+    private Element response;
+    private String serialized;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Mailbox mbox = MailboxBenchmarkUtil.initMailbox();
+        Message msg = mbox.addMessage(null,
+                MailboxBenchmarkUtil.generateMessage("serialize", "<serialize@example.com>", null),
+                new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX), null);
+        response = "json".equals(format) ? new Element.JSONElement(MailConstants.GET_MSG_RESPONSE) :
+            new Element.XMLElement(MailConstants.GET_MSG_RESPONSE);
+        ToXML.encodeMessageAsMP(response, new ItemIdFormatter(mbox.getAccount(), mbox, false),
+                new OperationContext(mbox), msg, null, -1, true, true, null, false, false, false);
+        serialized = response.toString();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        MailboxBenchmarkUtil.tearDown();
+    }
+
+    @Benchmark
+    public String serialize() {
+        return response.toString();
+    }
+
+    @Benchmark
+    public Element parse() throws Exception {
+        return "json".equals(format) ? Element.parseJSON(serialized) : Element.parseXML(serialized);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.zmime;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Session;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zimbra.cs.mailbox.MailboxBenchmarkUtil;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.util.JMSession;
+
+/**
+ * Parsing a multipart message: the raw MIME structure alone, and the full
+ * analysis done by {@link ParsedMessage} on delivery.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ZMimeParserBenchmark {
+
+    private Session session;
+    private byte[] raw;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        MailboxBenchmarkUtil.initMailbox();
+        session = JMSession.getSession();
+        raw = MailboxBenchmarkUtil.generateMessage("parse", "<parse@example.com>", null).getRawData();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        MailboxBenchmarkUtil.tearDown();
+    }
+
+    @Benchmark
+    public ZMimeMessage parse() throws Exception {
+        return ZMimeParser.parse(session, new SharedByteArrayInputStream(raw));
+    }
+
+    @Benchmark
+    public ParsedMessage parsedMessage() throws Exception {
+        ParsedMessage pm = new ParsedMessage(raw, false);
+        pm.analyzeFully();
+        return pm;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxBenchmarkUtil;
+
+/**
+ * Message lookups in a large selected IMAP folder: by sequence number, by
+ * UID, by item ID and by sequence-set string.  UIDs have gaps, as they do
+ * after messages have been expunged.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ImapFolderBenchmark {
+
+    private static final int LOOKUPS = 4096;
+
+    @Param({ "1000", "100000" })
+    public int size;
+
+    private ImapFolder folder;
+    private int[] sequences = new int[LOOKUPS];
+    private int[] uids = new int[LOOKUPS];
+    private int[] ids = new int[LOOKUPS];
+    private String[] ranges = new String[LOOKUPS];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Mailbox mbox = MailboxBenchmarkUtil.initMailbox();
+        ImapCredentials creds = new ImapCredentials(mbox.getAccount());
+        folder = new ImapFolder(new ImapPath("INBOX", creds), (byte) 0, null);
+
+        Random random = new Random(size);
+        int uid = 1000;
+        for (int i = 0; i < size; i++) {
+            uid += 1 + random.nextInt(3);
+            folder.cache(new ImapMessage(uid + 50000, MailItem.Type.MESSAGE, uid, 0, null), false);
+        }
+        for (int i = 0; i < LOOKUPS; i++) {
+            int seq = 1 + random.nextInt(size);
+            ImapMessage i4msg = folder.getBySequence(seq);
+            sequences[i] = seq;
+            uids[i] = i4msg.imapUid;
+            ids[i] = i4msg.msgId;
+            int end = Math.min(size, seq + random.nextInt(50));
+            ranges[i] = seq + ":" + end + "," + (1 + random.nextInt(size));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        MailboxBenchmarkUtil.tearDown();
+    }
+
+    private int next() {
+        int i = next;
+        next = (i + 1) % LOOKUPS;
+        return i;
+    }
+
+    @Benchmark
+    public ImapMessage getBySequence() {
+        return folder.getBySequence(sequences[next()]);
+    }
+
+    @Benchmark
+    public ImapMessage getByImapId() {
+        return folder.getByImapId(uids[next()]);
+    }
+
+    @Benchmark
+    public ImapMessage getById() {
+        return folder.getById(ids[next()]);
+    }
+
+    @Benchmark
+    public Set<ImapMessage> getSubsequence() throws Exception {
+        return folder.getSubsequence(null, ranges[next()], false);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import com.zimbra.common.zmime.ZMimeBodyPart;
+import com.zimbra.common.zmime.ZMimeMultipart;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mime.Mime;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.util.JMSession;
+
+/**
+ * Shared setup for the JMH benchmarks.  Benchmarks run against the same
+ * in-memory server (HSQLDB, mock provisioning and store) as the unit tests.
+ */
+public final class MailboxBenchmarkUtil {
+
+    public static final String ACCOUNT = "bench@zimbra.com";
+
+    private MailboxBenchmarkUtil() {
+    }
+
+    /**
+     * Initializes the server and returns the empty mailbox of a new account.
+     */
+    public static Mailbox initMailbox() throws Exception {
+        MailboxTestUtil.initServer();
+        MailboxTestUtil.clearData();
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraId, "bbbbbbbb-1111-2222-3333-444444444444");
+        Account acct = Provisioning.getInstance().createAccount(ACCOUNT, "secret", attrs);
+        return MailboxManager.getInstance().getMailboxByAccount(acct);
+    }
+
+    public static void tearDown() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    /**
+     * Returns a typical multipart/alternative message with an attachment and
+     * a few recipients, threaded as a reply to <tt>inReplyTo</tt> if it's
+     * non-null.
+     */
+    public static ParsedMessage generateMessage(String subject, String messageId, String inReplyTo)
+    throws Exception {
+        MimeMessage mm = new Mime.FixedMimeMessage(JMSession.getSession());
+        mm.setHeader("From", "Bob Evans <bob@example.com>");
+        mm.setHeader("To", "Jimmy Dean <jdean@example.com>, Vera Oliphant <oli@example.com>");
+        mm.setHeader("Cc", "Team <team@example.com>");
+        mm.setHeader("Subject", subject);
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            text.append("Line ").append(i).append(" of the message body, long enough to wrap a little.\r\n");
+        }
+        MimeMultipart alt = new ZMimeMultipart("alternative");
+        ZMimeBodyPart plain = new ZMimeBodyPart();
+        plain.setText(text.toString());
+        alt.addBodyPart(plain);
+        ZMimeBodyPart html = new ZMimeBodyPart();
+        html.setContent("<html><body><pre>" + text + "</pre></body></html>", "text/html; charset=utf-8");
+        alt.addBodyPart(html);
+
+        MimeMultipart mixed = new ZMimeMultipart("mixed");
+        ZMimeBodyPart body = new ZMimeBodyPart();
+        body.setContent(alt);
+        mixed.addBodyPart(body);
+        ZMimeBodyPart attachment = new ZMimeBodyPart();
+        attachment.setText(text.toString());
+        attachment.setFileName("notes.txt");
+        mixed.addBodyPart(attachment);
+
+        mm.setContent(mixed);
+        mm.saveChanges();
+        // set after saveChanges(), which would otherwise assign a new Message-ID
+        mm.setHeader("Message-ID", messageId);
+        if (inReplyTo != null) {
+            mm.setHeader("In-Reply-To", inReplyTo);
+            mm.setHeader("References", inReplyTo);
+        }
+        return new ParsedMessage(mm, false);
+    }
+}
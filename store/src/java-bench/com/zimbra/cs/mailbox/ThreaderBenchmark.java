@@ -0,0 +1,89 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zimbra.common.account.ZAttrProvisioning.MailThreadingAlgorithm;
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * Looking up the conversation for an incoming reply in a mailbox that already
+ * holds a number of threads, with each threading algorithm.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ThreaderBenchmark {
+
+    @Param({ "references", "subjrefs", "subject" })
+    public String algorithm;
+
+    @Param({ "200" })
+    public int threads;
+
+    private Mailbox mbox;
+    private ParsedMessage[] replies;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mbox = MailboxBenchmarkUtil.initMailbox();
+        mbox.getAccount().setMailThreadingAlgorithm(MailThreadingAlgorithm.fromString(algorithm));
+
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        replies = new ParsedMessage[threads];
+        for (int i = 0; i < threads; i++) {
+            String subject = "thread " + i;
+            String root = "<root-" + i + "@example.com>";
+            mbox.addMessage(null, MailboxBenchmarkUtil.generateMessage(subject, root, null), dopt, null);
+            mbox.addMessage(null, MailboxBenchmarkUtil.generateMessage("Re: " + subject, "<reply-" + i + "@example.com>",
+                    root), dopt, null);
+            replies[i] = MailboxBenchmarkUtil.generateMessage("Re: " + subject, "<new-" + i + "@example.com>", root);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        MailboxBenchmarkUtil.tearDown();
+    }
+
+    @Benchmark
+    public List<Conversation> lookupConversation() throws Exception {
+        ParsedMessage pm = replies[next];
+        next = (next + 1) % replies.length;
+        return mbox.lookupConversation(pm);
+    }
+}
@@ -1,5 +1,11 @@
 package com.zimbra.cs.imap;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Set;
 
@@ -12,6 +18,14 @@ import org.junit.Test;
 
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.imap.ImapMessage.ImapMessageSet;
+import com.zimbra.cs.imap.ImapSearch.AndOperation;
+import com.zimbra.cs.imap.ImapSearch.ContentSearch;
+import com.zimbra.cs.imap.ImapSearch.FlagSearch;
+import com.zimbra.cs.imap.ImapSearch.NotOperation;
+import com.zimbra.cs.imap.ImapSearch.OrOperation;
+import com.zimbra.cs.imap.ImapSearch.SequenceSearch;
+import com.zimbra.cs.mailbox.Flag;
 import com.zimbra.cs.mailbox.MailItem.Type;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxManager;
@@ -61,4 +75,156 @@ public class ImapFolderTest {
         Assert.assertNotNull(i4set);
         Assert.assertEquals(3, i4set.size());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void serialize() throws Exception {
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        ImapFolder i4folder = new ImapFolder(new ImapPath("INBOX", creds), (byte) 0, null);
+        i4folder.cache(new ImapMessage(300, Type.MESSAGE, 100, Flag.BITMASK_UNREAD, null), true);
+        i4folder.cache(new ImapMessage(257, Type.MESSAGE, 105, Flag.BITMASK_FLAGGED, new String[] { "a", "b" }), false);
+        i4folder.cache(new ImapMessage(1000, Type.CONTACT, 70000, 0, new String[] { "a", "b" }), false);
+        i4folder.cache(new ImapMessage(1001, Type.MESSAGE, 70001, 0, new String[] { "c" }), false);
+        i4folder.getBySequence(4).setExpunged(true);
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bout);
+        out.writeObject(i4folder);
+        out.close();
+        ImapFolder copy = (ImapFolder) new ObjectInputStream(new ByteArrayInputStream(bout.toByteArray())).readObject();
+
+        Assert.assertEquals(4, copy.getSize());
+        for (int seq = 1; seq <= 4; seq++) {
+            ImapMessage expected = i4folder.getBySequence(seq, true), actual = copy.getBySequence(seq, true);
+            Assert.assertEquals(seq, actual.sequence);
+            Assert.assertEquals(expected.msgId, actual.msgId);
+            Assert.assertEquals(expected.imapUid, actual.imapUid);
+            Assert.assertEquals(expected.flags, actual.flags);
+            Assert.assertEquals(expected.sflags, actual.sflags);
+            Assert.assertTrue(Arrays.equals(expected.tags, actual.tags));
+        }
+        Assert.assertEquals(Type.CONTACT, copy.getBySequence(3).getType());
+        Assert.assertTrue(copy.getBySequence(4, true).isExpunged());
+        Assert.assertSame(copy.getBySequence(2).tags, copy.getBySequence(3).tags);
+        Assert.assertEquals(1001, copy.getByImapId(70001).msgId);
+        Assert.assertEquals(105, copy.getById(257).imapUid);
+    }
+
+    @Test
+    public void sharedTagSets() throws Exception {
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        ImapFolder i4folder = new ImapFolder(new ImapPath("INBOX", creds), (byte) 0, null);
+        i4folder.cache(new ImapMessage(300, Type.MESSAGE, 100, 0, new String[] { "a", "b" }), false);
+        i4folder.cache(new ImapMessage(301, Type.MESSAGE, 101, 0, new String[] { "a", "b" }), false);
+        i4folder.cache(new ImapMessage(302, Type.MESSAGE, 102, 0, new String[] { "a" }), false);
+        Assert.assertSame(i4folder.getBySequence(1).tags, i4folder.getBySequence(2).tags);
+        Assert.assertArrayEquals(new String[] { "a" }, i4folder.getBySequence(3).tags);
+
+        i4folder.getBySequence(3).setPermanentFlags(0, new String[] { "a", "b" }, 0, i4folder);
+        Assert.assertSame(i4folder.getBySequence(1).tags, i4folder.getBySequence(3).tags);
+    }
+
+    @Test
+    public void prunedTagSets() throws Exception {
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        ImapFolder i4folder = new ImapFolder(new ImapPath("INBOX", creds), (byte) 0, null);
+        String[] retagged = new String[] { "a" };
+        String[] expunged = new String[] { "b" };
+        i4folder.cache(new ImapMessage(300, Type.MESSAGE, 100, 0, retagged), false);
+        i4folder.cache(new ImapMessage(301, Type.MESSAGE, 101, 0, expunged), false);
+        i4folder.getBySequence(1).setPermanentFlags(0, new String[] { "c" }, 0, i4folder);
+        i4folder.getBySequence(2).setExpunged(true);
+        i4folder.collapseExpunged(false);
+
+        // neither set is in use any more, so new messages with those tags don't get the old arrays
+        i4folder.cache(new ImapMessage(302, Type.MESSAGE, 102, 0, new String[] { "a" }), false);
+        i4folder.cache(new ImapMessage(303, Type.MESSAGE, 103, 0, new String[] { "b" }), false);
+        Assert.assertNotSame(retagged, i4folder.getBySequence(2).tags);
+        Assert.assertNotSame(expunged, i4folder.getBySequence(3).tags);
+    }
+
+    @Test
+    public void cacheDelta() throws Exception {
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        ImapFolder i4folder = new ImapFolder(new ImapPath("INBOX", creds), (byte) 0, null);
+        for (int i = 1; i <= 20; i++) {
+            i4folder.cache(new ImapMessage(300 + i, Type.MESSAGE, 100 + i, 0, null), false);
+        }
+        Assert.assertNull("no snapshot yet", i4folder.createCacheDelta(20));
+        i4folder.setCacheSnapshot("base", 0);
+        ImapFolder base = i4folder.applyCacheDelta(i4folder.createCacheDelta(0));
+        Assert.assertEquals(20, base.getSize());
+
+        i4folder.getByImapId(105).setPermanentFlags(Flag.BITMASK_FLAGGED, new String[] { "x" }, 0, null);
+        i4folder.markMessageExpunged(i4folder.getByImapId(110));
+        i4folder.collapseExpunged(false);
+        i4folder.cache(new ImapMessage(400, Type.MESSAGE, 200, 0, null), false);
+
+        Assert.assertNull("too many changes", i4folder.createCacheDelta(2));
+        ImapFolder delta = i4folder.createCacheDelta(3);
+        Assert.assertTrue(delta.isDelta());
+        Assert.assertEquals("base", delta.getDeltaBase());
+        Assert.assertEquals(2, delta.getSize());
+
+        ImapFolder copy = base.applyCacheDelta(delta);
+        Assert.assertEquals(i4folder.getSize(), copy.getSize());
+        for (int seq = 1; seq <= copy.getSize(); seq++) {
+            ImapMessage expected = i4folder.getBySequence(seq, true), actual = copy.getBySequence(seq, true);
+            Assert.assertEquals(seq, actual.sequence);
+            Assert.assertEquals(expected.imapUid, actual.imapUid);
+            Assert.assertEquals(expected.msgId, actual.msgId);
+            Assert.assertEquals(expected.flags, actual.flags);
+            Assert.assertTrue(Arrays.equals(expected.tags, actual.tags));
+        }
+        Assert.assertNull(copy.getByImapId(110));
+        Assert.assertEquals(20, base.getSize());
+    }
+
+    @Test
+    public void searchBitmaps() throws Exception {
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        ImapFolder i4folder = new ImapFolder(new ImapPath("INBOX", creds), (byte) 0, null);
+        i4folder.cache(new ImapMessage(301, Type.MESSAGE, 101, Flag.BITMASK_UNREAD, null), false);
+        i4folder.cache(new ImapMessage(302, Type.MESSAGE, 102, Flag.BITMASK_FLAGGED, null), false);
+        i4folder.cache(new ImapMessage(303, Type.MESSAGE, 103, Flag.BITMASK_UNREAD, null), false);
+        i4folder.cache(new ImapMessage(304, Type.MESSAGE, 104, 0, null), false);
+
+        Assert.assertEquals(bits(1, 3), new FlagSearch("\\Seen").evaluate(i4folder));
+        ImapSearch unseen = new NotOperation(new FlagSearch("\\Seen"));
+        Assert.assertEquals(bits(0, 2), unseen.evaluate(i4folder));
+        Assert.assertEquals(bits(2),
+                new AndOperation(unseen, new SequenceSearch(null, "102:104", true)).evaluate(i4folder));
+        Assert.assertEquals(bits(0, 1, 2), new OrOperation(new FlagSearch("\\Flagged"), unseen).evaluate(i4folder));
+        Assert.assertNull(unseen.getIndexedPart());
+
+        ImapSearch content = new ContentSearch("hello");
+        ImapSearch mixed = new AndOperation(new FlagSearch("\\Flagged"), content);
+        Assert.assertFalse(mixed.canBeRunLocally());
+        Assert.assertEquals(bits(1), mixed.evaluateLocalPart(i4folder));
+        Assert.assertSame(content, mixed.getIndexedPart());
+        Assert.assertNull(content.evaluateLocalPart(i4folder));
+
+        Set<ImapMessage> hits = i4folder.getMessages(bits(0, 2, 10));
+        Assert.assertEquals(2, hits.size());
+        Assert.assertEquals(103, ((ImapMessageSet) hits).last().imapUid);
+    }
+
+    private static BitSet bits(int... positions) {
+        BitSet bits = new BitSet();
+        for (int pos : positions) {
+            bits.set(pos);
+        }
+        return bits;
+    }
+
+    @Test
+    public void timeRelativeQueries() {
+        Assert.assertTrue(ImapFolder.isTimeRelative("after:-1day"));
+        Assert.assertTrue(ImapFolder.isTimeRelative("in:inbox DATE:>=-2w"));
+        Assert.assertTrue(ImapFolder.isTimeRelative("is:unread (date:today OR appt-start:+1d)"));
+        Assert.assertTrue(ImapFolder.isTimeRelative("before:\"yesterday\""));
+        Assert.assertFalse(ImapFolder.isTimeRelative("in:inbox is:unread"));
+        Assert.assertFalse(ImapFolder.isTimeRelative("after:1/1/2020 before:>1577836800000"));
+        Assert.assertFalse(ImapFolder.isTimeRelative("subject:-1day"));
+        Assert.assertFalse(ImapFolder.isTimeRelative(null));
+    }
+}
@@ -21,6 +21,7 @@ import com.zimbra.common.mailbox.FolderStore;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.Folder;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxManager;
@@ -243,6 +244,30 @@ public class ImapHandlerTest {
         Assert.assertEquals("Output of SEARCH", "* SEARCH 2\r\nsearchtag OK SEARCH completed\r\n", baos.toString());
     }
 
+    @Test
+    public void notificationHub() throws Exception {
+        Account acct = Provisioning.getInstance().getAccount("12aa345b-2b47-44e6-8cb8-7fdfa18c1a9f");
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        Folder other = mbox.createFolder(null, "other", new Folder.FolderOptions().setDefaultView(MailItem.Type.MESSAGE));
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+
+        ImapHandler[] handlers = new ImapHandler[3];
+        for (int i = 0; i < handlers.length; i++) {
+            handlers[i] = new MockImapHandler();
+            handlers[i].setCredentials(creds);
+            FolderStore folder = i < 2 ? mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX) : other;
+            handlers[i].setSelectedFolder(new MockImapPath(null, folder, creds), (byte) 0);
+        }
+        ImapNotificationHub hub = ImapNotificationHub.getHub(acct.getId());
+        Assert.assertNotNull(hub);
+        Assert.assertEquals(3, hub.getSubscriberCount());
+
+        TestUtil.addMessage(mbox, "Message 1 hub");
+        Assert.assertEquals(1, handlers[0].getSelectedFolder().getSize());
+        Assert.assertEquals(1, handlers[1].getSelectedFolder().getSize());
+        Assert.assertEquals(0, handlers[2].getSelectedFolder().getSize());
+    }
+
 
     class MockImapPath extends ImapPath {
 
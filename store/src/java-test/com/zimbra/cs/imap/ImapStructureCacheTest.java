@@ -0,0 +1,125 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+public class ImapStructureCacheTest {
+    private static boolean useEhcache;
+    private Mailbox mbox;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        useEhcache = LC.imap_use_ehcache.booleanValue();
+        LC.imap_use_ehcache.setDefault(false);
+        MailboxTestUtil.initServer();
+    }
+
+    @AfterClass
+    public static void destroy() {
+        LC.imap_use_ehcache.setDefault(useEhcache);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        HashMap<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraId, "12aa345b-2b47-44e6-8cb8-7fdfa18c1a9f");
+        mbox = MailboxManager.getInstance().getMailboxByAccount(
+                Provisioning.getInstance().createAccount("structure@zimbra.com", "secret", attrs));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void cachedByDigest() throws Exception {
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        Message msg = mbox.addMessage(null, MailboxTestUtil.generateMessage("structure"), dopt, null);
+        ImapStructureCache.Structure expected = ImapStructureCache.serialize(msg.getMimeMessage(false));
+
+        long hits = ZimbraPerf.COUNTER_IMAP_STRUCTURE_CACHE.getTotal();
+        ImapStructureCache.Structure first = ImapStructureCache.getInstance().get(msg, null);
+        Assert.assertArrayEquals(expected.envelope, first.envelope);
+        Assert.assertArrayEquals(expected.body, first.body);
+        Assert.assertArrayEquals(expected.bodystructure, first.bodystructure);
+        Assert.assertEquals("first lookup misses", hits, ZimbraPerf.COUNTER_IMAP_STRUCTURE_CACHE.getTotal());
+
+        // a copy of the message has the same blob digest and shares the entry
+        Message copy = (Message) mbox.copy(null, msg.getId(), msg.getType(), Mailbox.ID_FOLDER_SENT);
+        ImapStructureCache.Structure second = ImapStructureCache.getInstance().get(copy, null);
+        Assert.assertArrayEquals(expected.bodystructure, second.bodystructure);
+        Assert.assertEquals("second lookup hits", hits + 100, ZimbraPerf.COUNTER_IMAP_STRUCTURE_CACHE.getTotal());
+    }
+
+    @Test
+    public void keyedByCharset() throws Exception {
+        HashMap<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraId, "b7c3f1d2-5e8a-4c69-9d0f-2a4e6b8c0d13");
+        attrs.put(Provisioning.A_zimbraPrefMailDefaultCharset, "ISO-2022-JP");
+        Mailbox jp = MailboxManager.getInstance().getMailboxByAccount(
+                Provisioning.getInstance().createAccount("structure-jp@zimbra.com", "secret", attrs));
+
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        byte[] raw = MailboxTestUtil.generateMessage("charset").getRawData();
+        Message msg = mbox.addMessage(null, new ParsedMessage(raw, false), dopt, null);
+        Message other = jp.addMessage(null, new ParsedMessage(raw, false), dopt, null);
+        Assert.assertEquals(msg.getDigest(), other.getDigest());
+        Assert.assertFalse("key includes the default charset",
+                ImapStructureCache.getKey(msg).equals(ImapStructureCache.getKey(other)));
+
+        ImapStructureCache.getInstance().get(msg, null);
+        long hits = ZimbraPerf.COUNTER_IMAP_STRUCTURE_CACHE.getTotal();
+        ImapStructureCache.getInstance().get(other, null);
+        Assert.assertEquals("not shared across charsets", hits, ZimbraPerf.COUNTER_IMAP_STRUCTURE_CACHE.getTotal());
+    }
+
+    @Test
+    public void encoding() throws Exception {
+        ImapStructureCache.Structure structure = new ImapStructureCache.Structure(
+                "(NIL \"subject\")".getBytes("utf-8"), new byte[0], "(\"TEXT\" \"PLAIN\")".getBytes("utf-8"));
+        byte[] data = ImapStructureCache.encode(structure);
+        ImapStructureCache.Structure decoded = ImapStructureCache.decode(data);
+        Assert.assertArrayEquals(structure.envelope, decoded.envelope);
+        Assert.assertArrayEquals(structure.body, decoded.body);
+        Assert.assertArrayEquals(structure.bodystructure, decoded.bodystructure);
+
+        // entries written in some other format are treated as misses
+        data[0]++;
+        Assert.assertNull(ImapStructureCache.decode(data));
+        Assert.assertNull(ImapStructureCache.decode(null));
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link DBQueryOperation}.
+ */
+public final class DBQueryOperationTest {
+
+    @Test
+    public void preferBitmapJoin() throws Exception {
+        // few of the Lucene hits match in the DB: the chunked join needs 8 round trips to go through them all
+        Assert.assertTrue(DBQueryOperation.preferBitmapJoin(5000, 1000, 1000000, 104, 1000, 52));
+        // most of them match: the first chunk is enough
+        Assert.assertFalse(DBQueryOperation.preferBitmapJoin(5000, 50000, 100000, 104, 1000, 52));
+        // all the Lucene hits fit in the first chunk
+        Assert.assertFalse(DBQueryOperation.preferBitmapJoin(100, 10, 1000000, 104, 1000, 52));
+        // too many to hold in memory
+        Assert.assertFalse(DBQueryOperation.preferBitmapJoin(200000, 10, 1000000, 104, 1000, 52));
+        Assert.assertFalse(DBQueryOperation.preferBitmapJoin(5000, 200000, 1000000, 104, 1000, 52));
+    }
+}
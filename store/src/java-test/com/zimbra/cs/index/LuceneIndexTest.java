@@ -16,6 +16,21 @@
  */
 package com.zimbra.cs.index;
 
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mailbox.ContactConstants;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.mailbox.Contact;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mime.ParsedContact;
+
 /**
  * Unit test for {@link LuceneIndex}.
  */
@@ -27,4 +42,45 @@ public final class LuceneIndexTest extends AbstractIndexStoreTest {
         // Default for LC.zimbra_class_index_store_factory.value() is USUALLY this
         return "com.zimbra.cs.index.LuceneIndex$Factory";
     }
+
+    @Test
+    public void nearRealTimeSearcher() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Folder folder = mbox.getFolderById(null, Mailbox.ID_FOLDER_CONTACTS);
+        Contact contact1 = createContact(mbox, "nrt1@zimbra.com");
+        Contact contact2 = createContact(mbox, "nrt2@zimbra.com");
+        mbox.index.indexDeferredItems();
+
+        IndexStore index = mbox.index.getIndexStore();
+        index.deleteIndex();
+        LC.zimbra_index_reader_max_staleness_ms.setDefault(0);
+        Indexer indexer = index.openIndexer();
+        try {
+            indexer.addDocument(folder, contact1, contact1.generateIndexData());
+            ZimbraIndexSearcher first = index.openSearcher();
+            Assert.assertEquals("uncommitted document is searchable", 1, first.getIndexReader().numDocs());
+
+            indexer.addDocument(folder, contact2, contact2.generateIndexData());
+            ZimbraIndexSearcher second = index.openSearcher();
+            Assert.assertNotSame("reopened", first, second);
+            Assert.assertEquals(2, second.getIndexReader().numDocs());
+            Assert.assertEquals("in-flight searcher is unchanged", 1, first.getIndexReader().numDocs());
+            first.close();
+            second.close();
+        } finally {
+            indexer.close();
+            LC.zimbra_index_reader_max_staleness_ms.setDefault(1000);
+        }
+
+        // once the writer is gone the cached searcher still sees everything it committed
+        ZimbraIndexSearcher searcher = index.openSearcher();
+        Assert.assertEquals(2, searcher.getIndexReader().numDocs());
+        searcher.close();
+    }
+
+    private Contact createContact(Mailbox mbox, String email) throws ServiceException {
+        Folder folder = mbox.getFolderById(null, Mailbox.ID_FOLDER_CONTACTS);
+        return mbox.createContact(null, new ParsedContact(
+                Collections.singletonMap(ContactConstants.A_email, email)), folder.getId(), null);
+    }
 }
@@ -0,0 +1,167 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TotalHitCountCollector;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.index.ZimbraIndexReader.TermFieldEnumeration;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.volume.Volume;
+import com.zimbra.cs.volume.VolumeManager;
+
+/**
+ * Unit test for {@link ShardedLuceneIndex}.
+ */
+public final class ShardedLuceneIndexTest extends AbstractIndexStoreTest {
+
+    @Override
+    protected String getIndexStoreFactory() {
+        return "com.zimbra.cs.index.ShardedLuceneIndex$Factory";
+    }
+
+    @Test
+    public void mailboxesInOneShard() throws Exception {
+        int shardCount = LC.zimbra_index_shard_count.intValue();
+        LC.zimbra_index_shard_count.setDefault(1);
+        try {
+            Mailbox mbox1 = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+            Mailbox mbox2 = MailboxManager.getInstance().getMailboxByAccount(testAcct);
+            Assert.assertTrue(mbox1.index.getIndexStore() instanceof ShardedLuceneIndex);
+            createContact(mbox1, "shard1@zimbra.com");
+            createContact(mbox2, "shard2@zimbra.com");
+            createContact(mbox2, "shard3@zimbra.com");
+            mbox1.index.indexDeferredItems();
+            mbox2.index.indexDeferredItems();
+
+            ZimbraIndexSearcher searcher1 = mbox1.index.getIndexStore().openSearcher();
+            ZimbraIndexSearcher searcher2 = mbox2.index.getIndexStore().openSearcher();
+            try {
+                Assert.assertEquals(1, searcher1.getIndexReader().numDocs());
+                Assert.assertEquals(2, searcher2.getIndexReader().numDocs());
+                Term term = new Term(LuceneFields.L_CONTACT_DATA, "shard2@zimbra.com");
+                Assert.assertEquals(0, searcher1.docFreq(term));
+                Assert.assertEquals(1, searcher2.docFreq(term));
+                Assert.assertEquals(0, searcher1.search(new TermQuery(term), 100).getTotalHits());
+                Assert.assertEquals(1, searcher2.search(new TermQuery(term), 100).getTotalHits());
+                Assert.assertEquals(1, searcher1.docFreq(new Term(LuceneFields.L_CONTACT_DATA, "@zimbra.com")));
+
+                List<String> terms = new ArrayList<String>();
+                TermFieldEnumeration values = searcher1.getIndexReader().getTermsForField(
+                        LuceneFields.L_CONTACT_DATA, "shard");
+                while (values.hasMoreElements()) {
+                    terms.add(values.nextElement().getText());
+                }
+                values.close();
+                Assert.assertTrue(terms.contains("shard1@zimbra.com"));
+                Assert.assertFalse(terms.contains("shard2@zimbra.com"));
+            } finally {
+                searcher1.close();
+                searcher2.close();
+            }
+
+            mbox2.index.deleteIndex();
+            searcher1 = mbox1.index.getIndexStore().openSearcher();
+            searcher2 = mbox2.index.getIndexStore().openSearcher();
+            Assert.assertEquals("other mailbox untouched", 1, searcher1.getIndexReader().numDocs());
+            Assert.assertEquals(0, searcher2.getIndexReader().numDocs());
+            searcher1.close();
+            searcher2.close();
+        } finally {
+            LC.zimbra_index_shard_count.setDefault(shardCount);
+        }
+    }
+
+    @Test
+    public void moveToDedicatedIndex() throws Exception {
+        int shardCount = LC.zimbra_index_shard_count.intValue();
+        int maxDocs = LC.zimbra_index_shard_max_docs.intValue();
+        LC.zimbra_index_shard_count.setDefault(1);
+        LC.zimbra_index_shard_max_docs.setDefault(2);
+        try {
+            Mailbox mbox1 = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+            Mailbox mbox2 = MailboxManager.getInstance().getMailboxByAccount(testAcct);
+            createContact(mbox2, "stay@zimbra.com");
+            mbox2.index.indexDeferredItems();
+            createContact(mbox1, "move1@zimbra.com");
+            createContact(mbox1, "move2@zimbra.com");
+            createContact(mbox1, "move3@zimbra.com");
+            // closing the indexer finds 3 documents in the shard, which starts the re-index
+            mbox1.index.indexDeferredItems();
+            long deadline = System.currentTimeMillis() + 30000;
+            while (mbox1.index.isReIndexInProgress()) {
+                Assert.assertTrue("re-index timed out", System.currentTimeMillis() < deadline);
+                Thread.sleep(50);
+            }
+
+            ZimbraIndexSearcher searcher1 = mbox1.index.getIndexStore().openSearcher();
+            ZimbraIndexSearcher searcher2 = mbox2.index.getIndexStore().openSearcher();
+            try {
+                Assert.assertEquals(3, searcher1.getIndexReader().numDocs());
+                Assert.assertEquals(1, searcher1.docFreq(new Term(LuceneFields.L_CONTACT_DATA, "move3@zimbra.com")));
+                Assert.assertEquals("other mailbox untouched", 1, searcher2.getIndexReader().numDocs());
+            } finally {
+                searcher1.close();
+                searcher2.close();
+            }
+
+            // the documents are gone from the shard
+            Volume vol = VolumeManager.getInstance().getVolume(mbox1.getIndexVolume());
+            LuceneDirectory dir = LuceneDirectory.open(
+                    new File(vol.getRootPath() + File.separator + "shards" + File.separator + "0"));
+            IndexReader reader = IndexReader.open(dir);
+            IndexSearcher searcher = new IndexSearcher(reader);
+            try {
+                TotalHitCountCollector collector = new TotalHitCountCollector();
+                searcher.search(new TermQuery(
+                        new Term(LuceneFields.L_MAILBOX_ID, String.valueOf(mbox1.getId()))), collector);
+                Assert.assertEquals(0, collector.getTotalHits());
+            } finally {
+                searcher.close();
+                reader.close();
+                dir.close();
+            }
+
+            // after a restart the mailbox goes straight to its dedicated index
+            IndexStore.getFactory().destroy();
+            IndexStore index1 = IndexStore.getFactory().getIndexStore(mbox1);
+            Assert.assertTrue(index1 instanceof LuceneIndex);
+            Assert.assertTrue(IndexStore.getFactory().getIndexStore(mbox2) instanceof ShardedLuceneIndex);
+            searcher1 = index1.openSearcher();
+            try {
+                Assert.assertEquals(3, searcher1.getIndexReader().numDocs());
+            } finally {
+                searcher1.close();
+            }
+        } finally {
+            LC.zimbra_index_shard_count.setDefault(shardCount);
+            LC.zimbra_index_shard_max_docs.setDefault(maxDocs);
+        }
+    }
+}
@@ -16,17 +16,25 @@
  */
 package com.zimbra.cs.index;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Closeables;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mailbox.ContactConstants;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.SoapProtocol;
@@ -37,6 +45,8 @@ import com.zimbra.cs.db.DbPool.DbConnection;
 import com.zimbra.cs.db.DbUtil;
 import com.zimbra.cs.mailbox.Contact;
 import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.Folder;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxManager;
@@ -235,6 +245,153 @@ public final class ZimbraQueryTest {
         Closeables.closeQuietly(result);
     }
 
+    @Test
+    public void unionIntersection() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions inbox = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        DeliveryOptions unread = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX)
+                .setFlags(Flag.BITMASK_UNREAD);
+        DeliveryOptions sent = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_SENT)
+                .setFlags(Flag.BITMASK_UNREAD);
+        Message from = mbox.addMessage(null, new ParsedMessage("From: x@zimbra.com".getBytes(), false), inbox, null);
+        Message flagged = mbox.addMessage(null, new ParsedMessage("From: y@zimbra.com".getBytes(), false), unread,
+                null);
+        mbox.addMessage(null, new ParsedMessage("From: x@zimbra.com".getBytes(), false), sent, null);
+        mbox.addMessage(null, new ParsedMessage("From: y@zimbra.com".getBytes(), false), inbox, null);
+        MailboxTestUtil.index(mbox);
+
+        SearchParams params = new SearchParams();
+        // a DB and a Lucene operation, which can't be merged into one
+        params.setQueryString("(is:unread OR from:x@zimbra.com) in:inbox");
+        params.setSortBy(SortBy.DATE_DESC);
+        params.setTypes(EnumSet.of(MailItem.Type.MESSAGE));
+
+        ZimbraQuery query = new ZimbraQuery(new OperationContext(mbox), SoapProtocol.Soap12, mbox, params);
+        ZimbraQueryResults result = query.execute();
+        Assert.assertTrue(query.countNontrivialCombiningOperations() > 0);
+        Set<Integer> ids = new HashSet<Integer>();
+        while (result.hasNext()) {
+            ids.add(result.getNext().getItemId());
+        }
+        Closeables.closeQuietly(result);
+        Assert.assertEquals(ImmutableSet.of(from.getId(), flagged.getId()), ids);
+    }
+
+    @Test
+    public void parallelBudget() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions inbox = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        mbox.addMessage(null, new ParsedMessage("From: x@zimbra.com".getBytes(), false), inbox, null);
+
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        Folder folder = mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX);
+        DBQueryOperation fast = new DBQueryOperation();
+        fast.addInFolder(folder, true);
+        UnionQueryOperation union = new UnionQueryOperation();
+        union.add(fast); // the requesting thread takes this one
+        DBQueryOperation slow = new DBQueryOperation() {
+            @Override
+            protected void begin(QueryContext ctx) throws ServiceException {
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    throw ServiceException.INTERRUPTED("begin");
+                }
+                super.begin(ctx);
+            }
+
+            @Override
+            public void close() {
+                super.close();
+                closed.countDown();
+            }
+        };
+        slow.addInFolder(folder, true);
+        union.add(slow);
+
+        SearchParams params = new SearchParams();
+        params.setSortBy(SortBy.DATE_DESC);
+        params.setTypes(EnumSet.of(MailItem.Type.MESSAGE));
+        long budget = LC.search_parallel_budget_ms.longValue();
+        LC.search_parallel_budget_ms.setDefault(100);
+        try {
+            union.run(mbox, params, 10);
+            Assert.fail();
+        } catch (ServiceException e) {
+            Assert.assertEquals(ServiceException.FAILURE, e.getCode());
+        } finally {
+            LC.search_parallel_budget_ms.setDefault(budget);
+        }
+        // the slow operation was dropped, and closes itself once it finishes
+        Assert.assertEquals(1, union.getNumSubOps());
+        Assert.assertFalse(union.operations.contains(slow));
+        Assert.assertEquals(1, closed.getCount());
+        proceed.countDown();
+        Assert.assertTrue(closed.await(10, TimeUnit.SECONDS));
+        Closeables.closeQuietly(union);
+    }
+
+    @Test
+    public void bitmapJoin() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions inbox = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        DeliveryOptions sent = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_SENT);
+        // more Lucene hits than the first chunk of a LUCENE-FIRST join, but not so many that it runs DB-FIRST
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 60; i++) {
+            expected.add(mbox.addMessage(null, new ParsedMessage(String.format("Subject: apple %02d", i).getBytes(),
+                    false), inbox, null).getId());
+        }
+        for (int i = 0; i < 10; i++) {
+            mbox.addMessage(null, new ParsedMessage(String.format("Subject: apple sent %02d", i).getBytes(), false),
+                    sent, null);
+        }
+        for (int i = 0; i < 30; i++) {
+            mbox.addMessage(null, new ParsedMessage(String.format("Subject: pear %02d", i).getBytes(), false),
+                    inbox, null);
+        }
+        MailboxTestUtil.index(mbox);
+
+        long roundTrip = LC.search_bitmap_join_round_trip_cost.longValue();
+        LC.search_bitmap_join_round_trip_cost.setDefault(1000000);
+        try {
+            // the whole result set, which the join hands out in more than one chunk
+            Assert.assertEquals(expected, bitmapJoinPage(mbox, 0, 13, Integer.MAX_VALUE));
+            // a later page
+            Assert.assertEquals(expected.subList(13, 26), bitmapJoinPage(mbox, 13, 13, 13));
+        } finally {
+            LC.search_bitmap_join_round_trip_cost.setDefault(roundTrip);
+        }
+    }
+
+    private List<Integer> bitmapJoinPage(Mailbox mbox, int offset, int limit, int max) throws Exception {
+        SearchParams params = new SearchParams();
+        params.setQueryString("subject:apple in:inbox");
+        params.setSortBy(SortBy.SUBJ_ASC);
+        params.setTypes(EnumSet.of(MailItem.Type.MESSAGE));
+        params.setOffset(offset);
+        params.setLimit(limit);
+
+        ZimbraQuery query = new ZimbraQuery(new OperationContext(mbox), SoapProtocol.Soap12, mbox, params);
+        ZimbraQueryResults result = query.execute();
+        try {
+            List<Integer> ids = new ArrayList<Integer>();
+            ResultsPager pager = ResultsPager.create(result, params);
+            while (pager.hasNext() && ids.size() < max) {
+                ZimbraHit hit = pager.getNextHit();
+                // fetched as IDs by the join, then loaded a page at a time
+                Assert.assertTrue(hit.itemIsLoaded());
+                Assert.assertEquals(Mailbox.ID_FOLDER_INBOX, hit.getMailItem().getFolderId());
+                ids.add(hit.getItemId());
+            }
+            Assert.assertTrue(query.hasBitmapJoin());
+            return ids;
+        } finally {
+            Closeables.closeQuietly(result);
+        }
+    }
+
     @Test
     public void suggest() throws Exception {
         Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
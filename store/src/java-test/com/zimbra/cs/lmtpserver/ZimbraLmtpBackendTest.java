@@ -0,0 +1,104 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.lmtpserver;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Unit test for {@link ZimbraLmtpBackend}.
+ */
+public class ZimbraLmtpBackendTest {
+
+    private static final int NUM_RECIPIENTS = 12;
+    private static final String MESSAGE = "From: sender@example.com\r\n" +
+            "To: dl@zimbra.com\r\n" +
+            "Subject: pipelined delivery\r\n" +
+            "Message-ID: <pipelined-delivery@example.com>\r\n" +
+            "\r\n" +
+            "hello\r\n";
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        Provisioning prov = Provisioning.getInstance();
+        for (int i = 0; i < NUM_RECIPIENTS; i++) {
+            Map<String, Object> attrs = new HashMap<String, Object>();
+            attrs.put(Provisioning.A_zimbraId, "11111111-1111-1111-1111-1111111111" + (10 + i));
+            prov.createAccount(recipient(i), "secret", attrs);
+        }
+        LC.zimbra_lmtp_delivery_threads.setDefault(3);
+        LC.zimbra_lmtp_delivery_recipients_per_lane.setDefault(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        LC.zimbra_lmtp_delivery_threads.setDefault(8);
+        LC.zimbra_lmtp_delivery_recipients_per_lane.setDefault(8);
+        MailboxTestUtil.clearData();
+    }
+
+    private static String recipient(int i) {
+        return "rcpt" + i + "@zimbra.com";
+    }
+
+    @Test
+    public void deliverToManyRecipients() throws Exception {
+        LmtpEnvelope env = new LmtpEnvelope();
+        env.setSender(new LmtpAddress("<sender@example.com>", null, null));
+        for (int i = 0; i < NUM_RECIPIENTS; i++) {
+            env.addLocalRecipient(new LmtpAddress("<" + recipient(i) + ">", null, null));
+        }
+        LmtpAddress unknown = new LmtpAddress("<nobody@zimbra.com>", null, null);
+        env.addLocalRecipient(unknown);
+
+        byte[] data = MESSAGE.getBytes();
+        new ZimbraLmtpBackend(LmtpConfig.getInstance()).deliver(env, new ByteArrayInputStream(data), data.length);
+
+        for (int i = 0; i < NUM_RECIPIENTS; i++) {
+            LmtpAddress addr = env.getLocalRecipients().get(i);
+            Assert.assertEquals(addr.getEmailAddress(), LmtpReply.DELIVERY_OK, addr.getDeliveryStatus());
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(
+                    Provisioning.getInstance().getAccountByName(recipient(i)).getId());
+            List<Integer> ids = mbox.getItemIds(null, Mailbox.ID_FOLDER_INBOX).getIds(MailItem.Type.MESSAGE);
+            Assert.assertEquals(recipient(i), 1, ids.size());
+            Assert.assertEquals("pipelined delivery", mbox.getMessageById(null, ids.get(0)).getSubject());
+        }
+        Assert.assertEquals(LmtpReply.PERMANENT_FAILURE, unknown.getDeliveryStatus());
+        Assert.assertEquals(0, ZimbraLmtpBackend.getPendingRecipients());
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.db.DbMailbox;
+import com.zimbra.cs.db.DbPool;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * Unit test for {@link IndexQueue}.
+ */
+public final class IndexQueueTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void weightedRoundRobin() throws Exception {
+        IndexQueue queue = new IndexQueue(1, 10);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(12);
+        try {
+            // hold the only index thread while the queue fills up
+            queue.submit(100, IndexQueue.Priority.DELIVERY, new Runnable() {
+                @Override
+                public void run() {
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            });
+            Assert.assertTrue(blocked.await(10, TimeUnit.SECONDS));
+            for (int i = 1; i <= 12; i++) {
+                final int id = i;
+                queue.submit(id, i <= 10 ? IndexQueue.Priority.DELIVERY : IndexQueue.Priority.BACKLOG,
+                        new Runnable() {
+                    @Override
+                    public void run() {
+                        order.add(id);
+                        done.countDown();
+                    }
+                });
+            }
+            queue.submit(1, IndexQueue.Priority.DELIVERY, new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            Assert.assertEquals(10, queue.getQueuedCount(IndexQueue.Priority.DELIVERY)); // coalesced
+            Assert.assertEquals(2, queue.getQueuedCount(IndexQueue.Priority.BACKLOG));
+            release.countDown();
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            queue.shutdown();
+        }
+        // delivery goes first, but the backlog gets its share before the delivery queue is empty
+        Assert.assertEquals(Integer.valueOf(1), order.get(0));
+        Assert.assertTrue(order.toString(), order.indexOf(11) < order.indexOf(10));
+        Assert.assertTrue(order.toString(), order.indexOf(12) < order.indexOf(10));
+    }
+
+    @Test
+    public void shutdownCancelsQueuedTasks() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        IndexQueue queue = new IndexQueue(1, 10);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean ran = new AtomicBoolean(false);
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        try {
+            queue.submit(100, IndexQueue.Priority.DELIVERY, new Runnable() {
+                @Override
+                public void run() {
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            });
+            Assert.assertTrue(blocked.await(10, TimeUnit.SECONDS));
+            queue.submit(mbox.getId(), IndexQueue.Priority.BACKLOG, new MailboxIndex.IndexTask(mbox) {
+                @Override
+                protected void exec() {
+                    ran.set(true);
+                }
+
+                @Override
+                protected void cancel() {
+                    cancelled.set(true);
+                }
+            });
+            queue.shutdown();
+            Assert.assertTrue(cancelled.get());
+        } finally {
+            release.countDown();
+        }
+        Assert.assertFalse(ran.get());
+    }
+
+    @Test
+    public void batchTurns() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        for (int i = 0; i < 3; i++) {
+            mbox.addMessage(null, new ParsedMessage(("Subject: turn " + i).getBytes(), false), dopt, null);
+        }
+
+        DbConnection conn = DbPool.getConnection(mbox);
+        try {
+            DbMailbox.updateIndexDeferredCount(conn, mbox, 3);
+            conn.commit();
+            Assert.assertTrue(DbMailbox.listIndexDeferredMailboxes(conn).contains(mbox.getId()));
+        } finally {
+            conn.closeQuietly();
+        }
+        mbox.index.markBacklogRecorded();
+
+        Assert.assertTrue(mbox.index.indexQueuedItems(2));
+        Assert.assertFalse(mbox.index.indexQueuedItems(2));
+
+        conn = DbPool.getConnection(mbox);
+        try {
+            Assert.assertFalse(DbMailbox.listIndexDeferredMailboxes(conn).contains(mbox.getId()));
+        } finally {
+            conn.closeQuietly();
+        }
+    }
+}
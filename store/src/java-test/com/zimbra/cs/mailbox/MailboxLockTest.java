@@ -17,11 +17,14 @@
 package com.zimbra.cs.mailbox;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -36,7 +39,10 @@ import com.zimbra.cs.account.MockProvisioning;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.mailbox.Mailbox.FolderNode;
 import com.zimbra.cs.mailbox.MailboxLock.LockFailedException;
+import com.zimbra.cs.mailbox.lock.LocalLockBackend;
 import com.zimbra.cs.service.util.ItemId;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.util.Zimbra;
 
 public class MailboxLockTest {
     @BeforeClass
@@ -607,6 +613,224 @@ public class MailboxLockTest {
         mbox.lock.release();
     }
 
+    @Test
+    public void optimisticStamp() throws ServiceException {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        long stamp = mbox.lock.tryOptimisticRead();
+        Assert.assertTrue(stamp != 0);
+        Assert.assertTrue(mbox.lock.validate(stamp));
+
+        mbox.lock.lock(false);
+        mbox.lock.release();
+        Assert.assertTrue("read lock should not invalidate stamp", mbox.lock.validate(stamp));
+
+        mbox.lock.lock(true);
+        Assert.assertEquals(0, mbox.lock.tryOptimisticRead());
+        mbox.lock.lock(true);
+        mbox.lock.release();
+        Assert.assertEquals(0, mbox.lock.tryOptimisticRead());
+        mbox.lock.release();
+        Assert.assertFalse(mbox.lock.validate(stamp));
+
+        long newStamp = mbox.lock.tryOptimisticRead();
+        Assert.assertTrue(newStamp != 0 && newStamp != stamp);
+        Assert.assertTrue(mbox.lock.validate(newStamp));
+    }
+
+    @Test
+    public void optimisticReadRetry() throws ServiceException {
+        final Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        final AtomicInteger attempts = new AtomicInteger();
+        String result = mbox.lock.optimisticRead(new MailboxLock.OptimisticRead<String>() {
+            @Override
+            public String read() throws ServiceException {
+                if (attempts.incrementAndGet() == 1) {
+                    // a writer gets in while the first attempt is running
+                    Thread writer = new Thread("MailboxLockTest-Writer") {
+                        @Override
+                        public void run() {
+                            mbox.lock.lock(true);
+                            mbox.lock.release();
+                        }
+                    };
+                    writer.start();
+                    try {
+                        writer.join();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    throw new IllegalStateException("inconsistent read");
+                }
+                return "ok";
+            }
+        });
+        Assert.assertEquals("ok", result);
+        Assert.assertEquals(2, attempts.get());
+        Assert.assertTrue(mbox.lock.isUnlocked());
+    }
+
+    @Test
+    public void optimisticReadUnderWriteLock() throws Exception {
+        final Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        final AtomicBoolean released = new AtomicBoolean(false);
+        Thread writer = new Thread("MailboxLockTest-Writer") {
+            @Override
+            public void run() {
+                mbox.lock.lock(true);
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                } finally {
+                    released.set(true);
+                    mbox.lock.release();
+                }
+            }
+        };
+        writer.start();
+        Thread.sleep(50);
+        long contended = mbox.lock.getContendedCount();
+        boolean sawRelease = mbox.lock.optimisticRead(new MailboxLock.OptimisticRead<Boolean>() {
+            @Override
+            public Boolean read() {
+                return released.get();
+            }
+        });
+        // the write lock was held, so the read waited for it
+        Assert.assertTrue(sawRelease);
+        Assert.assertEquals(contended + 1, mbox.lock.getContendedCount());
+        Assert.assertTrue(mbox.lock.getWaitTimeMillis() > 0);
+        joinWithTimeout(writer, 5000);
+    }
+
+    @Test
+    public void optimisticFolderReads() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Folder foo = mbox.createFolder(null, "foo", new Folder.FolderOptions());
+        ZimbraPerf.COUNTER_MBOX_LOCK_OPTIMISTIC.reset();
+
+        Folder folder = mbox.getFolderById(null, foo.getId());
+        Assert.assertEquals("foo", folder.getName());
+        Assert.assertFalse("returns the cached folder", folder.isTagged(Flag.FlagInfo.UNCACHED));
+        Assert.assertSame(folder, mbox.getFolderByPath(null, "/foo/"));
+        FolderNode root = mbox.getFolderTree(null, null, false);
+        Assert.assertEquals(Mailbox.ID_FOLDER_USER_ROOT, root.mId);
+        boolean found = false;
+        for (FolderNode child : root.mSubfolders) {
+            found |= child.mId == foo.getId();
+        }
+        Assert.assertTrue(found);
+        mbox.getTagList(null);
+        Assert.assertEquals(0, mbox.getImapRecent(null, foo.getId()));
+        // none of these took the lock
+        Assert.assertEquals(5, ZimbraPerf.COUNTER_MBOX_LOCK_OPTIMISTIC.getCount());
+        Assert.assertEquals(500, ZimbraPerf.COUNTER_MBOX_LOCK_OPTIMISTIC.getTotal());
+        Assert.assertTrue(mbox.lock.isUnlocked());
+
+        try {
+            mbox.getFolderByPath(null, "/foo/bar");
+            Assert.fail();
+        } catch (MailServiceException.NoSuchItemException e) {
+        }
+
+        // a new folder is published when its transaction commits
+        Folder bar = mbox.createFolder(null, "/foo/bar", new Folder.FolderOptions());
+        ZimbraPerf.COUNTER_MBOX_LOCK_OPTIMISTIC.reset();
+        Assert.assertEquals("bar", mbox.getFolderById(null, bar.getId()).getName());
+        Assert.assertEquals(bar.getId(), mbox.getFolderByPath(null, "/foo/bar").getId());
+        Assert.assertEquals(200, ZimbraPerf.COUNTER_MBOX_LOCK_OPTIMISTIC.getTotal());
+    }
+
+    @Test
+    public void contentionStats() throws Exception {
+        final Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        MailboxLockStats stats = new MailboxLockStats();
+        stats.getStatData();
+
+        Thread writer = new Thread("MailboxLockTest-Writer") {
+            @Override
+            public void run() {
+                mbox.lock.lock(true);
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                } finally {
+                    mbox.lock.release();
+                }
+            }
+        };
+        writer.start();
+        Thread.sleep(50);
+        mbox.lock.lock(false);
+        mbox.lock.release();
+        joinWithTimeout(writer, 5000);
+
+        Map<String, Object> data = stats.getStatData();
+        Assert.assertEquals(1, data.get(ZimbraPerf.RTS_MBOX_LOCK_CONTENDED_MBOXES));
+        Assert.assertTrue((Long) data.get(ZimbraPerf.RTS_MBOX_LOCK_MAX_WAIT_MS) > 0);
+        // only the contention since the last sample is reported
+        data = stats.getStatData();
+        Assert.assertEquals(0, data.get(ZimbraPerf.RTS_MBOX_LOCK_CONTENDED_MBOXES));
+        Assert.assertEquals(0L, data.get(ZimbraPerf.RTS_MBOX_LOCK_MAX_WAIT_MS));
+    }
+
+    @Test
+    public void alwaysOnReadTransactions() throws Exception {
+        boolean readwrite = LC.zimbra_mailbox_dlock_readwrite.booleanValue();
+        long leaseMillis = LC.zimbra_mailbox_dlock_lease_ms.longValue();
+        LocalLockBackend backend = new LocalLockBackend();
+        LC.zimbra_mailbox_dlock_readwrite.setDefault(true);
+        LC.zimbra_mailbox_dlock_lease_ms.setDefault(60000);
+        MailboxLock.setDistributedLockBackend(backend);
+        Zimbra.setAlwaysOnClusterId("test");
+        try {
+            MailboxManager.getInstance().clearCache();
+            final Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+            // the first transaction loads the folder and tag caches under a new lease, with the write lock
+            mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX);
+            Assert.assertFalse(mbox.requiresWriteLock());
+
+            // while the lease is held, read transactions share the read lock and don't reload the caches
+            final List<Throwable> errors = new ArrayList<Throwable>();
+            List<Thread> readers = new ArrayList<Thread>();
+            mbox.lock.lock(false);
+            try {
+                Assert.assertFalse(mbox.lock.isWriteLockedByCurrentThread());
+                for (int i = 0; i < 4; i++) {
+                    Thread reader = new Thread("MailboxLockTest-Reader-" + i) {
+                        @Override
+                        public void run() {
+                            try {
+                                for (int j = 0; j < 50; j++) {
+                                    mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX);
+                                    mbox.getTagList(null);
+                                }
+                            } catch (Throwable t) {
+                                synchronized (errors) {
+                                    errors.add(t);
+                                }
+                            }
+                        }
+                    };
+                    readers.add(reader);
+                    reader.start();
+                }
+                for (Thread reader : readers) {
+                    joinWithTimeout(reader, 10000);
+                }
+            } finally {
+                mbox.lock.release();
+            }
+            Assert.assertEquals(Collections.emptyList(), errors);
+            Assert.assertEquals(1, backend.getAcquireCount());
+        } finally {
+            Zimbra.setAlwaysOnClusterId(null);
+            MailboxLock.setDistributedLockBackend(null);
+            LC.zimbra_mailbox_dlock_readwrite.setDefault(readwrite);
+            LC.zimbra_mailbox_dlock_lease_ms.setDefault(leaseMillis);
+            MailboxManager.getInstance().clearCache();
+        }
+    }
+
     @Test
     public void testZMailboxReenter() throws Exception {
         ZMailboxLock lock = new ZMailboxLock(1, 1);
@@ -49,6 +49,8 @@ import com.zimbra.cs.mime.ParsedMessage;
 import com.zimbra.cs.session.PendingLocalModifications;
 import com.zimbra.cs.session.PendingModifications;
 import com.zimbra.cs.session.PendingModifications.ModificationKey;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.store.Blob;
 import com.zimbra.cs.store.MockStoreManager;
 import com.zimbra.cs.store.StoreManager;
 
@@ -121,6 +123,122 @@ public final class MailboxTest {
         Assert.assertEquals("recent message count should be 0 after the second reset", 0, mbox.getRecentMessageCount());
     }
 
+    @Test
+    public void addMessages() throws Exception {
+        Account acct = Provisioning.getInstance().getAccount("test@zimbra.com");
+        acct.setMailThreadingAlgorithm(MailThreadingAlgorithm.subject);
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        Tag tag = mbox.createTag(null, "batched", (byte) 0);
+
+        List<ParsedMessage> pms = new ArrayList<ParsedMessage>();
+        List<DeliveryOptions> dopts = new ArrayList<DeliveryOptions>();
+        pms.add(MailboxTestUtil.generateMessage("batch thread"));
+        dopts.add(new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX).setFlags(Flag.BITMASK_UNREAD));
+        pms.add(MailboxTestUtil.generateMessage("re: batch thread"));
+        dopts.add(new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX).setFlags(Flag.BITMASK_UNREAD)
+                .setTags(new String[] { tag.getName() }));
+        pms.add(MailboxTestUtil.generateMessage("batch other"));
+        dopts.add(new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX).setFlags(Flag.BITMASK_FLAGGED));
+        pms.add(MailboxTestUtil.generateMessage("batch sent"));
+        dopts.add(new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_SENT).setFlags(Flag.BITMASK_FROM_ME));
+
+        List<Message> msgs = mbox.addMessages(null, pms, dopts);
+        Assert.assertEquals(4, msgs.size());
+        Assert.assertEquals("batch other", msgs.get(2).getSubject());
+        Assert.assertEquals("same conversation", msgs.get(0).getConversationId(), msgs.get(1).getConversationId());
+        Assert.assertTrue("real conversation", msgs.get(0).getConversationId() > 0);
+
+        // everything written in the batch is visible after a fresh load
+        mbox.purge(MailItem.Type.UNKNOWN);
+        Folder inbox = mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX);
+        Assert.assertEquals(3, inbox.getItemCount());
+        Assert.assertEquals(2, inbox.getUnreadCount());
+        Assert.assertEquals(1, mbox.getFolderById(null, Mailbox.ID_FOLDER_SENT).getItemCount());
+        Assert.assertEquals(1, mbox.getTagByName(null, tag.getName()).getUnreadCount());
+        Assert.assertEquals("recent count skips sent mail", 3, mbox.getRecentMessageCount());
+        Message flagged = mbox.getMessageById(null, msgs.get(2).getId());
+        Assert.assertTrue(flagged.isTagged(Flag.FlagInfo.FLAGGED));
+        Assert.assertFalse(flagged.isUnread());
+        Assert.assertEquals(2, mbox.getConversationById(null, msgs.get(1).getConversationId()).getSize());
+    }
+
+    @Test
+    public void addMessagesRollback() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+
+        List<ParsedMessage> pms = new ArrayList<ParsedMessage>();
+        List<DeliveryOptions> dopts = new ArrayList<DeliveryOptions>();
+        pms.add(MailboxTestUtil.generateMessage("batch rollback 1"));
+        dopts.add(new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX).setFlags(Flag.BITMASK_UNREAD));
+        pms.add(MailboxTestUtil.generateMessage("batch rollback 2"));
+        dopts.add(new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX).setFlags(Flag.BITMASK_UNREAD));
+        pms.add(MailboxTestUtil.generateMessage("batch rollback 3"));
+        dopts.add(new DeliveryOptions().setFolderId(9999));
+
+        try {
+            mbox.addMessages(null, pms, dopts);
+            Assert.fail("expected NO_SUCH_FOLDER");
+        } catch (MailServiceException e) {
+            Assert.assertEquals(MailServiceException.NO_SUCH_FOLDER, e.getCode());
+        }
+        Folder inbox = mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX);
+        Assert.assertEquals(0, inbox.getItemCount());
+        Assert.assertEquals(0, inbox.getUnreadCount());
+        Assert.assertEquals(0, mbox.getRecentMessageCount());
+
+        // the mailbox is still usable after the rollback
+        pms.remove(2);
+        dopts.remove(2);
+        Assert.assertEquals(2, mbox.addMessages(null, pms, dopts).size());
+        Assert.assertEquals(2, mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX).getUnreadCount());
+    }
+
+    @Test
+    public void addMessagesCallerBlob() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+
+        List<ParsedMessage> pms = new ArrayList<ParsedMessage>();
+        List<DeliveryOptions> dopts = new ArrayList<DeliveryOptions>();
+        List<DeliveryContext> dctxts = new ArrayList<DeliveryContext>();
+        ParsedMessage pm = MailboxTestUtil.generateMessage("caller blob");
+        Blob blob = StoreManager.getInstance().storeIncoming(pm.getRawInputStream());
+        pms.add(pm);
+        dopts.add(new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX));
+        dctxts.add(new DeliveryContext().setIncomingBlob(blob));
+        pms.add(MailboxTestUtil.generateMessage("own blob"));
+        dopts.add(new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX));
+        dctxts.add(null);
+
+        List<Message> msgs = mbox.addMessages(null, pms, dopts, dctxts);
+        Assert.assertEquals(2, msgs.size());
+        Assert.assertArrayEquals(pm.getRawData(), msgs.get(0).getContent());
+        Assert.assertEquals("own blob", msgs.get(1).getSubject());
+        Assert.assertSame("caller's context is left intact", blob, dctxts.get(0).getIncomingBlob());
+        StoreManager.getInstance().quietDelete(blob);
+    }
+
+    @Test
+    public void prefetchItems() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < 3; i++) {
+            ids.add(mbox.addMessage(null, MailboxTestUtil.generateMessage("prefetch " + i), dopt, null).getId());
+        }
+        mbox.purge(MailItem.Type.UNKNOWN);
+
+        // ids that have gone away are skipped rather than failing the whole prefetch
+        ids.add(9999);
+        long queries = ZimbraPerf.HISTOGRAM_MBOX_PREFETCH_ROWS.getCount();
+        mbox.prefetchItems(null, ids);
+        Assert.assertEquals(queries + 1, ZimbraPerf.HISTOGRAM_MBOX_PREFETCH_ROWS.getCount());
+
+        // everything that exists is now cached, so a second pass doesn't touch the database
+        mbox.prefetchItems(null, ids);
+        Assert.assertEquals(queries + 1, ZimbraPerf.HISTOGRAM_MBOX_PREFETCH_ROWS.getCount());
+        Assert.assertEquals("prefetch 1", mbox.getMessageById(null, ids.get(1)).getSubject());
+    }
+
     @Test
     public void threadDraft() throws Exception {
         Account acct = Provisioning.getInstance().getAccount("test@zimbra.com");
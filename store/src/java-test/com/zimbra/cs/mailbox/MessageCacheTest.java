@@ -0,0 +1,128 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mime.Mime;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.util.JMSession;
+
+/**
+ * Unit test for {@link MessageCache}.
+ */
+public final class MessageCacheTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        Provisioning.getInstance().getLocalServer().setMessageCacheSize(2000);
+        LC.zimbra_message_cache_max_bytes.setDefault(512L * 1024 * 1024);
+        MessageCache.loadSettings();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            MessageCache.purge(digest(i));
+        }
+    }
+
+    private static String digest(int i) {
+        return "digest-" + i;
+    }
+
+    private static MimeMessage mime(int bodySize) throws Exception {
+        StringBuilder sb = new StringBuilder("Subject: test\r\n\r\n");
+        for (int i = 0; i < bodySize; i++) {
+            sb.append('x');
+        }
+        return new Mime.FixedMimeMessage(JMSession.getSession(), new ByteArrayInputStream(sb.toString().getBytes()));
+    }
+
+    @Test
+    public void hitAndPurge() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Message msg = mbox.addMessage(null, new ParsedMessage("Subject: cached\r\n\r\nbody".getBytes(), false),
+                new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX), null);
+        MessageCache.purge(msg);
+        Assert.assertFalse(MessageCache.contains(msg.getDigest()));
+
+        long hits = ZimbraPerf.COUNTER_MBOX_MSG_CACHE_HIT.getCount();
+        long misses = ZimbraPerf.COUNTER_MBOX_MSG_CACHE_MISS.getCount();
+        MimeMessage first = MessageCache.getMimeMessage(msg, false);
+        Assert.assertTrue(MessageCache.contains(msg.getDigest()));
+        Assert.assertSame(first, MessageCache.getMimeMessage(msg, false));
+        Assert.assertEquals(misses + 1, ZimbraPerf.COUNTER_MBOX_MSG_CACHE_MISS.getCount());
+        Assert.assertEquals(hits + 1, ZimbraPerf.COUNTER_MBOX_MSG_CACHE_HIT.getCount());
+        Assert.assertTrue(MessageCache.getDataSize() > 0);
+
+        MessageCache.purge(msg);
+        Assert.assertFalse(MessageCache.contains(msg.getDigest()));
+        Assert.assertEquals(0, MessageCache.getDataSize());
+    }
+
+    @Test
+    public void countLimit() throws Exception {
+        Provisioning.getInstance().getLocalServer().setMessageCacheSize(32);
+        MessageCache.loadSettings();
+        long evictions = ZimbraPerf.COUNTER_MBOX_MSG_CACHE_EVICTION.getCount();
+        int sizeBefore = MessageCache.getSize();
+        MimeMessage mm = mime(10);
+        for (int i = 0; i < 500; i++) {
+            MessageCache.cacheMessage(digest(i), mm, mm);
+        }
+        // each stripe holds its share of the limit, rounded up
+        int max = 32 + LC.zimbra_message_cache_stripes.intValue();
+        Assert.assertTrue("cache size " + MessageCache.getSize(), MessageCache.getSize() <= max);
+        Assert.assertEquals(500 + sizeBefore - MessageCache.getSize(), ZimbraPerf.COUNTER_MBOX_MSG_CACHE_EVICTION.getCount() - evictions);
+        Assert.assertTrue(MessageCache.contains(digest(499)));
+    }
+
+    @Test
+    public void byteLimit() throws Exception {
+        LC.zimbra_message_cache_max_bytes.setDefault(LC.zimbra_message_cache_stripes.intValue() * 10000L);
+        MessageCache.loadSettings();
+        MimeMessage mm = mime(4000);
+        for (int i = 0; i < 100; i++) {
+            MessageCache.cacheMessage(digest(i), mm, mm);
+        }
+        // no more than two 4000-byte messages fit in a 10000-byte stripe
+        Assert.assertTrue("cache size " + MessageCache.getSize(),
+                MessageCache.getSize() <= 2 * LC.zimbra_message_cache_stripes.intValue());
+        Assert.assertTrue(MessageCache.contains(digest(99)));
+    }
+}
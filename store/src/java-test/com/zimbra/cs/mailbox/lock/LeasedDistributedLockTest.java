@@ -0,0 +1,181 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.lock;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.mailbox.lock.DistributedLockBackend.DistributedReadWriteLock;
+
+/**
+ * Unit test for {@link LeasedDistributedLock}, using {@link LocalLockBackend} to stand in for ZooKeeper.  Each
+ * {@link LeasedDistributedLock} on the same lock id plays the part of a different node.
+ */
+public final class LeasedDistributedLockTest {
+    private static final String ID = "mailbox-1";
+
+    private LocalLockBackend backend;
+
+    @Before
+    public void setUp() {
+        backend = new LocalLockBackend();
+    }
+
+    private LeasedDistributedLock node(long leaseMillis) throws ServiceException {
+        return new LeasedDistributedLock(ID, backend.getLock(ID), leaseMillis);
+    }
+
+    @Test
+    public void localReentry() throws Exception {
+        LeasedDistributedLock lock = node(0);
+        lock.acquire(false, 1, TimeUnit.SECONDS);
+        lock.acquire(false, 1, TimeUnit.SECONDS);
+        Assert.assertEquals(1, backend.getAcquireCount());
+        lock.release();
+        Assert.assertTrue(lock.isLeaseHeld());
+        lock.release();
+        Assert.assertFalse(lock.isLeaseHeld());
+    }
+
+    @Test
+    public void cachedLease() throws Exception {
+        LeasedDistributedLock lock = node(TimeUnit.MINUTES.toMillis(1));
+        lock.acquire(true, 1, TimeUnit.SECONDS);
+        lock.release();
+        Assert.assertTrue(lock.isLeaseHeld());
+        lock.acquire(false, 1, TimeUnit.SECONDS);
+        lock.release();
+        lock.acquire(true, 1, TimeUnit.SECONDS);
+        lock.release();
+        Assert.assertEquals(1, backend.getAcquireCount());
+
+        lock.releaseIdleLease();
+        Assert.assertFalse(lock.isLeaseHeld());
+    }
+
+    @Test
+    public void upgrade() throws Exception {
+        LeasedDistributedLock lock = node(TimeUnit.MINUTES.toMillis(1));
+        lock.acquire(false, 1, TimeUnit.SECONDS);
+        lock.release();
+        lock.acquire(true, 1, TimeUnit.SECONDS);
+        Assert.assertEquals(2, backend.getAcquireCount());
+
+        LeasedDistributedLock other = node(0);
+        try {
+            other.acquire(false, 100, TimeUnit.MILLISECONDS);
+            Assert.fail("read lock acquired while another node holds the write lease");
+        } catch (ServiceException expected) {
+        }
+        lock.release();
+        lock.releaseIdleLease();
+    }
+
+    @Test
+    public void sharedReaders() throws Exception {
+        LeasedDistributedLock node1 = node(0);
+        LeasedDistributedLock node2 = node(0);
+        node1.acquire(false, 1, TimeUnit.SECONDS);
+        node2.acquire(false, 1, TimeUnit.SECONDS);
+        try {
+            node(0).acquire(true, 100, TimeUnit.MILLISECONDS);
+            Assert.fail("write lock acquired while other nodes hold read leases");
+        } catch (ServiceException expected) {
+        }
+        node1.release();
+        node2.release();
+
+        LeasedDistributedLock writer = node(0);
+        writer.acquire(true, 1, TimeUnit.SECONDS);
+        writer.release();
+    }
+
+    @Test
+    public void leaseExpires() throws Exception {
+        LeasedDistributedLock node1 = node(50);
+        node1.acquire(true, 1, TimeUnit.SECONDS);
+        node1.release();
+        Assert.assertTrue(node1.isLeaseHeld());
+
+        // the other node waits until the idle lease expires
+        LeasedDistributedLock node2 = node(0);
+        node2.acquire(true, 5, TimeUnit.SECONDS);
+        Assert.assertFalse(node1.isLeaseHeld());
+        node2.release();
+    }
+
+    @Test(timeout = 10000)
+    public void slowAcquireDoesNotBlockMonitor() throws Exception {
+        final DistributedReadWriteLock real = backend.getLock(ID);
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final LeasedDistributedLock lock = new LeasedDistributedLock(ID, new DistributedReadWriteLock() {
+            @Override
+            public boolean acquire(boolean write, long timeout, TimeUnit unit) throws Exception {
+                entered.countDown();
+                proceed.await();
+                return real.acquire(write, timeout, unit);
+            }
+
+            @Override
+            public void release(boolean write) throws Exception {
+                real.release(write);
+            }
+        }, 0);
+
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        Thread acquirer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    lock.acquire(true, 5, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    error.set(e);
+                }
+            }
+        };
+        acquirer.start();
+        Assert.assertTrue(entered.await(5, TimeUnit.SECONDS));
+        try {
+            // none of these may wait for the coordination service
+            Assert.assertFalse(lock.isLeaseHeld());
+            Assert.assertEquals(0, lock.getLeaseEpoch());
+            lock.releaseIdleLease();
+            try {
+                lock.acquire(false, 50, TimeUnit.MILLISECONDS);
+                Assert.fail("acquired while another thread is still taking the lease");
+            } catch (ServiceException expected) {
+            }
+        } finally {
+            proceed.countDown();
+        }
+        acquirer.join(5000);
+        Assert.assertNull(error.get());
+        Assert.assertTrue(lock.isLeaseHeld());
+        lock.acquire(false, 1, TimeUnit.SECONDS);
+        Assert.assertEquals(1, backend.getAcquireCount());
+        lock.release();
+        lock.release();
+        Assert.assertFalse(lock.isLeaseHeld());
+    }
+}
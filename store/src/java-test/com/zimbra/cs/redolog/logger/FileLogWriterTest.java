@@ -14,6 +14,9 @@ import org.junit.rules.TemporaryFolder;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public class  FileLogWriterTest {
     @Rule public TemporaryFolder folder = new TemporaryFolder();
@@ -67,6 +70,48 @@ public class  FileLogWriterTest {
         Assert.assertEquals(sequence, logWriter.getSequence());
     }
 
+    @Test
+    public void groupCommit() throws Exception {
+        final FileLogWriter groupWriter =
+            new FileLogWriter(mockRedoLogManager, folder.newFile("grouplog"),
+                              10 /* fsync interval in ms */,
+                              1000 /* group commit latency target in us */,
+                              4 /* group commit batch size */);
+        groupWriter.open();
+
+        final RedoableOp op = EasyMock.createMockBuilder(RedoableOp.class)
+                            .withConstructor(MailboxOperation.Preview)
+                            .createMock();
+        final int numThreads = 8;
+        final int opsPerThread = 20;
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < opsPerThread; j++) {
+                            groupWriter.log(op, new ByteArrayInputStream("some bytes".getBytes()),
+                                            true /* synchronous */);
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join(30000);
+            Assert.assertFalse("logger thread still waiting for commit", t.isAlive());
+        }
+        Assert.assertTrue("errors: " + errors, errors.isEmpty());
+        Assert.assertEquals("file size incorrect.",
+                            FileHeader.HEADER_LEN + 10 * numThreads * opsPerThread, groupWriter.getSize());
+        groupWriter.close();
+    }
+
     @Test(expected = IOException.class)
     public void logBeforeOpen() throws Exception {
         logWriter.log(null, null, false);
@@ -0,0 +1,152 @@
+package com.zimbra.cs.redolog.logger;
+
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.redolog.RedoLogManager;
+import com.zimbra.cs.redolog.TransactionId;
+import com.zimbra.cs.redolog.op.CopyItem;
+import com.zimbra.cs.redolog.op.RedoableOp;
+import junit.framework.Assert;
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+public class MappedLogWriterTest {
+    private static final long SEGMENT_SIZE = 64 * 1024;
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private RedoLogManager mockRedoLogManager;
+    private File logfile;
+    private MappedLogWriter logWriter;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mockRedoLogManager = EasyMock.createNiceMock(RedoLogManager.class);
+        logfile = new File(folder.getRoot(), "redo.log");
+        logWriter = new MappedLogWriter(mockRedoLogManager, logfile, 0 /* no fsync thread */, SEGMENT_SIZE);
+    }
+
+    private void writeOp(TransactionId id) throws IOException {
+        RedoableOp op = EasyMock.createMockBuilder(CopyItem.class)
+                            .withConstructor()
+                            .addMockedMethod("getTransactionId")
+                            .createMock();
+        EasyMock.expect(op.getTransactionId()).andStubReturn(id);
+        EasyMock.replay(op);
+        logWriter.log(op, op.getInputStream(), true /* synchronous */);
+    }
+
+    private void assertOps(TransactionId... ids) throws IOException {
+        FileLogReader logReader = new FileLogReader(logfile);
+        logReader.open();
+        for (TransactionId id : ids) {
+            RedoableOp op = logReader.getNextOp();
+            Assert.assertNotNull("missing op " + id, op);
+            Assert.assertEquals("TransactionId mismatch", id, op.getTransactionId());
+        }
+        Assert.assertNull("More ops in file.", logReader.getNextOp());
+        logReader.close();
+    }
+
+    @Test
+    public void preallocated() throws Exception {
+        logWriter.open();
+        Assert.assertEquals("file not preallocated", SEGMENT_SIZE, logfile.length());
+        writeOp(new TransactionId(7, 3));
+        writeOp(new TransactionId(8, 4));
+        long size = logWriter.getSize();
+        logWriter.close();
+        Assert.assertEquals("file length changed", SEGMENT_SIZE, logfile.length());
+
+        FileHeader hdr = new FileLogReader(logfile).getHeader();
+        Assert.assertTrue(hdr.getPreallocated());
+        Assert.assertEquals(size, hdr.getFileSize());
+        assertOps(new TransactionId(7, 3), new TransactionId(8, 4));
+
+        // reopen and append after existing data
+        logWriter = new MappedLogWriter(mockRedoLogManager, logfile, 0, SEGMENT_SIZE);
+        logWriter.open();
+        Assert.assertEquals(size, logWriter.getSize());
+        writeOp(new TransactionId(9, 5));
+        logWriter.close();
+        assertOps(new TransactionId(7, 3), new TransactionId(8, 4), new TransactionId(9, 5));
+    }
+
+    @Test
+    public void readWhileOpen() throws Exception {
+        // header says file is open, as it would after a crash
+        logWriter.open();
+        writeOp(new TransactionId(7, 3));
+        assertOps(new TransactionId(7, 3));
+
+        MappedLogWriter recovered = new MappedLogWriter(mockRedoLogManager, logfile, 0, SEGMENT_SIZE);
+        recovered.open();
+        Assert.assertEquals(logWriter.getSize(), recovered.getSize());
+        recovered.close();
+    }
+
+    @Test
+    public void extendsFullSegment() throws Exception {
+        logWriter.open();
+        int numOps = 0;
+        while (logWriter.getSize() <= SEGMENT_SIZE) {
+            writeOp(new TransactionId(numOps++, 1));
+        }
+        logWriter.close();
+        Assert.assertEquals("segment not extended", 2 * SEGMENT_SIZE, logfile.length());
+
+        FileLogReader logReader = new FileLogReader(logfile);
+        logReader.open();
+        int numRead = 0;
+        while (logReader.getNextOp() != null) {
+            numRead++;
+        }
+        logReader.close();
+        Assert.assertEquals(numOps, numRead);
+    }
+
+    @Test
+    public void recycle() throws Exception {
+        logWriter.open();
+        writeOp(new TransactionId(7, 3));
+        logWriter.close();
+
+        logWriter.disposeRolledLog(logfile, new File(folder.getRoot(), "archived.log"), true);
+        File spare = new File(folder.getRoot(), "redo.log.spare");
+        Assert.assertFalse(logfile.exists());
+        Assert.assertTrue("segment not recycled", spare.exists());
+        Assert.assertEquals(SEGMENT_SIZE, spare.length());
+
+        File next = new File(folder.getRoot(), "next.log");
+        logWriter = (MappedLogWriter) logWriter.createTempLogWriter(logfile, next);
+        Assert.assertFalse(spare.exists());
+        logWriter.open();
+        Assert.assertEquals("recycled segment not empty", FileHeader.HEADER_LEN, logWriter.getSize());
+        logWriter.close();
+    }
+
+    @Test
+    public void archiveTruncates() throws Exception {
+        logWriter.open();
+        writeOp(new TransactionId(7, 3));
+        long size = logWriter.getSize();
+        logWriter.close();
+
+        File archived = new File(folder.getRoot(), "archived.log");
+        logWriter.disposeRolledLog(logfile, archived, false);
+        Assert.assertEquals(size, archived.length());
+        logfile = archived;
+        assertOps(new TransactionId(7, 3));
+    }
+}
@@ -0,0 +1,211 @@
+package com.zimbra.cs.redolog.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.mailbox.MailboxOperation;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.redolog.RedoLogInput;
+import com.zimbra.cs.redolog.RedoLogManager;
+import com.zimbra.cs.redolog.RedoLogOutput;
+import com.zimbra.cs.redolog.op.AbortTxn;
+import com.zimbra.cs.redolog.op.CommitTxn;
+import com.zimbra.cs.redolog.op.RedoableOp;
+
+public class ParallelRedoPlayerTest {
+    private static final int NUM_MAILBOXES = 10;
+    private static final int OPS_PER_MAILBOX = 50;
+
+    private ParallelRedoPlayer player;
+    private List<RecordingOp> played;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() {
+        player = new ParallelRedoPlayer(false, true, false, false, 4, 10, false);
+        played = Collections.synchronizedList(new ArrayList<RecordingOp>());
+    }
+
+    @After
+    public void tearDown() {
+        player.shutdown();
+    }
+
+    private class RecordingOp extends RedoableOp {
+        private final int seq;
+        private final boolean fail;
+        private int numPlayedBefore;
+
+        RecordingOp(int mailboxId, int seq) {
+            this(mailboxId, seq, false);
+        }
+
+        RecordingOp(int mailboxId, int seq, boolean fail) {
+            super(MailboxOperation.Preview, null);
+            setMailboxId(mailboxId);
+            this.seq = seq;
+            this.fail = fail;
+        }
+
+        @Override
+        public void redo() throws Exception {
+            numPlayedBefore = played.size();
+            played.add(this);
+            if (fail) {
+                throw new Exception("redo failed");
+            }
+        }
+
+        @Override
+        protected String getPrintableData() {
+            return "seq=" + seq;
+        }
+
+        @Override
+        protected void serializeData(RedoLogOutput out) throws IOException {
+        }
+
+        @Override
+        protected void deserializeData(RedoLogInput in) throws IOException {
+        }
+    }
+
+    @Test
+    public void orderWithinMailbox() throws Exception {
+        for (int i = 0; i < OPS_PER_MAILBOX; i++) {
+            for (int mboxId = 1; mboxId <= NUM_MAILBOXES; mboxId++) {
+                player.playOp(new RecordingOp(mboxId, i));
+            }
+        }
+        player.waitForPendingOps();
+        Assert.assertEquals(NUM_MAILBOXES * OPS_PER_MAILBOX, played.size());
+        Assert.assertEquals(NUM_MAILBOXES * OPS_PER_MAILBOX, player.getNumOpsPlayed());
+
+        int[] lastSeq = new int[NUM_MAILBOXES + 1];
+        java.util.Arrays.fill(lastSeq, -1);
+        for (RecordingOp op : played) {
+            Assert.assertEquals("ops for mailbox " + op.getMailboxId() + " out of order",
+                                lastSeq[op.getMailboxId()] + 1, op.seq);
+            lastSeq[op.getMailboxId()] = op.seq;
+        }
+    }
+
+    @Test
+    public void multiMailboxOpIsBarrier() throws Exception {
+        for (int mboxId = 1; mboxId <= NUM_MAILBOXES; mboxId++) {
+            player.playOp(new RecordingOp(mboxId, 0));
+        }
+        RecordingOp barrier = new RecordingOp(RedoableOp.MAILBOX_ID_ALL, 1);
+        player.playOp(barrier);
+        Assert.assertEquals("earlier ops not done before multi-mailbox op",
+                            NUM_MAILBOXES, barrier.numPlayedBefore);
+        for (int mboxId = 1; mboxId <= NUM_MAILBOXES; mboxId++) {
+            player.playOp(new RecordingOp(mboxId, 2));
+        }
+        player.waitForPendingOps();
+        Assert.assertEquals(2 * NUM_MAILBOXES + 1, played.size());
+        for (RecordingOp op : played) {
+            if (op.seq == 2) {
+                Assert.assertTrue("later op ran before multi-mailbox op", op.numPlayedBefore > NUM_MAILBOXES);
+            }
+        }
+    }
+
+    @Test
+    public void interruptedWait() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        player.playOp(new RecordingOp(1, 0) {
+            @Override
+            public void redo() throws Exception {
+                release.await();
+                super.redo();
+            }
+        });
+        Thread.currentThread().interrupt();
+        try {
+            player.waitForPendingOps();
+            Assert.fail("waited for pending ops while interrupted");
+        } catch (ServiceException expected) {
+            Assert.assertTrue("interrupt status kept", Thread.interrupted());
+        } finally {
+            release.countDown();
+        }
+        player.waitForPendingOps();
+        Assert.assertEquals(1, played.size());
+    }
+
+    @Test
+    public void recoverUncommittedOps() throws Exception {
+        final List<RedoableOp> logged = Collections.synchronizedList(new ArrayList<RedoableOp>());
+        RedoLogManager redoLogMgr = new RedoLogManager(new File("build/test/redo/redo.log"),
+                new File("build/test/redo"), false) {
+            @Override
+            protected void logOnly(RedoableOp op, boolean synchronous) {
+                logged.add(op);
+            }
+        };
+
+        // uncommitted ops of several mailboxes, interleaved as in the log; one op of mailbox 1 fails
+        for (int i = 0; i < OPS_PER_MAILBOX; i++) {
+            for (int mboxId = 1; mboxId <= NUM_MAILBOXES; mboxId++) {
+                player.recoverOp(redoLogMgr, new RecordingOp(mboxId, i, mboxId == 1 && i == 10));
+            }
+        }
+        RecordingOp barrier = new RecordingOp(RedoableOp.MAILBOX_ID_ALL, OPS_PER_MAILBOX);
+        player.recoverOp(redoLogMgr, barrier);
+        Assert.assertEquals("earlier ops not recovered before multi-mailbox op",
+                            NUM_MAILBOXES * OPS_PER_MAILBOX, barrier.numPlayedBefore);
+        for (int mboxId = 1; mboxId <= NUM_MAILBOXES; mboxId++) {
+            player.recoverOp(redoLogMgr, new RecordingOp(mboxId, OPS_PER_MAILBOX + 1));
+        }
+        player.waitForPendingOps();
+
+        int total = NUM_MAILBOXES * (OPS_PER_MAILBOX + 1) + 1;
+        Assert.assertEquals(total, played.size());
+        // a failed op doesn't stop recovery of the ops after it, and ops of a mailbox run in logged order
+        int[] lastSeq = new int[NUM_MAILBOXES + 1];
+        java.util.Arrays.fill(lastSeq, -1);
+        for (RecordingOp op : played) {
+            if (op == barrier) {
+                continue;
+            }
+            int expected = lastSeq[op.getMailboxId()] + 1;
+            if (expected == OPS_PER_MAILBOX) {
+                expected++; // the barrier's seq
+            }
+            Assert.assertEquals("ops for mailbox " + op.getMailboxId() + " out of order", expected, op.seq);
+            lastSeq[op.getMailboxId()] = op.seq;
+            if (op.seq > OPS_PER_MAILBOX) {
+                Assert.assertTrue("later op ran before multi-mailbox op", op.numPlayedBefore > barrier.numPlayedBefore);
+            }
+        }
+
+        // each op was marked committed or, if it failed, aborted
+        Assert.assertEquals(total, logged.size());
+        int aborted = 0;
+        for (RedoableOp op : logged) {
+            if (op instanceof AbortTxn) {
+                Assert.assertEquals(1, op.getMailboxId());
+                aborted++;
+            } else {
+                Assert.assertTrue(op instanceof CommitTxn);
+            }
+        }
+        Assert.assertEquals(1, aborted);
+    }
+}
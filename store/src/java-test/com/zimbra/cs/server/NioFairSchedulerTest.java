@@ -0,0 +1,232 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.server;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoEvent;
+import org.apache.mina.core.session.IoEventType;
+import org.apache.mina.core.session.IoSession;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link NioFairScheduler}.
+ */
+public final class NioFairSchedulerTest {
+    private NioFairScheduler scheduler;
+
+    @After
+    public void tearDown() throws Exception {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static IoSession session(final String accountId) {
+        DummySession session = new DummySession();
+        session.setAttribute(NioHandler.class, new NioHandler() {
+            @Override
+            public void connectionOpened() {
+            }
+
+            @Override
+            public void connectionClosed() {
+            }
+
+            @Override
+            public void connectionIdle() {
+            }
+
+            @Override
+            public void messageReceived(Object msg) {
+            }
+
+            @Override
+            public void exceptionCaught(Throwable e) {
+            }
+
+            @Override
+            public void dropConnection() {
+            }
+
+            @Override
+            public void setLoggingContext() {
+            }
+
+            @Override
+            public String getAccountId() {
+                return accountId;
+            }
+        });
+        return session;
+    }
+
+    private static IoEvent event(IoSession session, final Runnable action) {
+        return new IoEvent(IoEventType.MESSAGE_RECEIVED, session, null) {
+            @Override
+            public void fire() {
+                action.run();
+            }
+        };
+    }
+
+    private static Runnable await(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    @Test
+    public void sessionOrder() throws Exception {
+        scheduler = new NioFairScheduler(4, 60, Executors.defaultThreadFactory(), 10, 1000, 4);
+        IoSession session = session("acct");
+        final List<Integer> order = new CopyOnWriteArrayList<Integer>();
+        final CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            final int n = i;
+            scheduler.execute(event(session, new Runnable() {
+                @Override
+                public void run() {
+                    order.add(n);
+                    done.countDown();
+                }
+            }));
+        }
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(i, order.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void accountThreadLimit() throws Exception {
+        scheduler = new NioFairScheduler(4, 60, Executors.defaultThreadFactory(), 10, 1000, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        // a busy account may only hold one thread, even with several connections
+        for (int i = 0; i < 3; i++) {
+            scheduler.execute(event(session("busy"), await(release)));
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        scheduler.execute(event(session("idle"), new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        }));
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(2, scheduler.getMaxAccountQueueDepth());
+        Assert.assertEquals(Integer.valueOf(2), scheduler.getAccountQueueDepths().get("busy"));
+        release.countDown();
+    }
+
+    @Test
+    public void suspendRead() throws Exception {
+        scheduler = new NioFairScheduler(2, 60, Executors.defaultThreadFactory(), 10, 2, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        IoSession session = session("acct");
+        scheduler.execute(event(session, await(release)));
+        final CountDownLatch done = new CountDownLatch(3);
+        Runnable count = new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        };
+        for (int i = 0; i < 3; i++) {
+            scheduler.execute(event(session, count));
+        }
+        Assert.assertTrue(session.isReadSuspended());
+        Assert.assertEquals(1, scheduler.getSuspendedSessions());
+        release.countDown();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertFalse(session.isReadSuspended());
+        Assert.assertEquals(1, scheduler.getReadSuspensions());
+    }
+
+    @Test
+    public void droppedTurnsGivenBack() throws Exception {
+        scheduler = new NioFairScheduler(6, 60, Executors.defaultThreadFactory(), 10, 1000, 4);
+        CountDownLatch first = new CountDownLatch(1);
+        CountDownLatch rest = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++) {
+            final Runnable wait = await(i < 2 ? first : rest);
+            scheduler.execute(event(session("acct"), new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    wait.run();
+                }
+            }));
+        }
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        // the account is at its limit, so the turns for these two sessions find nothing to run and are dropped
+        final CountDownLatch done = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            scheduler.execute(event(session("acct"), new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            }));
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (scheduler.getCompletedTaskCount() < 2) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        // occupy the two idle threads, and queue tasks ahead of any turn that is given back, so that the two
+        // sessions released next both finish before either given-back turn runs
+        CountDownLatch hold = new CountDownLatch(1);
+        final CountDownLatch held = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++) {
+            final Runnable wait = await(hold);
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    held.countDown();
+                    wait.run();
+                }
+            });
+        }
+        first.countDown();
+        Assert.assertTrue(held.await(10, TimeUnit.SECONDS));
+        hold.countDown();
+        try {
+            Assert.assertTrue("both waiting sessions run", done.await(10, TimeUnit.SECONDS));
+        } finally {
+            rest.countDown();
+        }
+    }
+}
@@ -16,9 +16,15 @@
  */
 package com.zimbra.cs.server;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
 import junit.framework.Assert;
 
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.file.FileRegion;
 import org.apache.mina.core.service.IoHandlerAdapter;
 import org.apache.mina.core.session.DummySession;
 import org.apache.mina.core.session.IoSession;
@@ -82,6 +88,37 @@ public final class NioOutputStreamTest {
         out.close();
     }
 
+    @Test
+    public void writeFileRegion() throws Exception {
+        DummySession session = new DummySession();
+        TestIoHandler handler = new TestIoHandler();
+        session.setHandler(handler);
+        NioOutputStream out = new NioOutputStream(session, 10, Integer.MAX_VALUE, Integer.MAX_VALUE, true);
+        Assert.assertTrue(out.isZeroCopyCapable());
+
+        File file = File.createTempFile("nio", ".msg");
+        file.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write("0123456789abcdef".getBytes());
+        fos.close();
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+
+        out.write("{6}");
+        out.write(channel, 4, 6);
+        out.write(")");
+        out.close();
+        // buffered bytes go out before the region, which is handed to the session without being read into the heap
+        Assert.assertEquals(3, handler.getWriteCount());
+        Assert.assertEquals("{6}<4+6>)", handler.toString());
+        Assert.assertFalse("channel closed once written", channel.isOpen());
+    }
+
+    @Test
+    public void zeroCopyDisabled() throws Exception {
+        NioOutputStream out = new NioOutputStream(new DummySession(), 10, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        Assert.assertFalse(out.isZeroCopyCapable());
+    }
+
     private static final class TestIoHandler extends IoHandlerAdapter {
         private int writes = 0;
         private StringBuilder out = new StringBuilder();
@@ -89,6 +126,13 @@ public final class NioOutputStreamTest {
         @Override
         public void messageSent(IoSession session, Object message) {
             writes++;
+            if (message instanceof FileRegion) {
+                FileRegion region = (FileRegion) message;
+                long written = region.getWrittenBytes();
+                out.append('<').append(region.getPosition() - written).append('+')
+                        .append(written + region.getRemainingBytes()).append('>');
+                return;
+            }
             IoBuffer buf = (IoBuffer) message;
             while (buf.hasRemaining()) {
                 out.append((char) buf.get());
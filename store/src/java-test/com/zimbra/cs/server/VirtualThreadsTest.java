@@ -0,0 +1,48 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.server;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.Assert;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link VirtualThreads}.
+ */
+public final class VirtualThreadsTest {
+
+    @Test
+    public void newThreadFactory() throws Exception {
+        ThreadFactory factory = VirtualThreads.newThreadFactory("test");
+        Assume.assumeNotNull(factory); // JVM without virtual threads
+        final AtomicReference<String> name = new AtomicReference<String>();
+        Thread thread = factory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                name.set(Thread.currentThread().getName());
+            }
+        });
+        thread.start();
+        thread.join(10000);
+        Assert.assertEquals("test-1", name.get());
+        Assert.assertTrue(thread.getClass().getName().contains("Virtual"));
+    }
+}
@@ -25,7 +25,9 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.zip.GZIPOutputStream;
 
 import org.junit.After;
@@ -34,9 +36,11 @@ import org.junit.Test;
 
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.FileCache;
 import com.zimbra.common.util.FileUtil;
+import com.zimbra.cs.stats.ZimbraPerf;
 
 public class FileDescriptorCacheTest {
 
@@ -64,7 +68,7 @@ public class FileDescriptorCacheTest {
     public void testUncompressedCache()
     throws Exception {
         FileCache<String> uc = FileCache.Builder.createWithStringKey(uncompressedDir, false).build();
-        FileDescriptorCache fdc = new FileDescriptorCache(uc);
+        FileDescriptorCache fdc = new FileDescriptorCache(uc, MoreExecutors.sameThreadExecutor());
         fdc.setMaxSize(2);
 
         File file1 = File.createTempFile(NAME_PREFIX, ".tmp.gz");
@@ -122,6 +126,103 @@ public class FileDescriptorCacheTest {
         assertEquals(2, fdc.getSize());
     }
 
+    @Test
+    public void closeOnReaper()
+    throws Exception {
+        FileCache<String> uc = FileCache.Builder.createWithStringKey(uncompressedDir, false).build();
+        final List<Runnable> pending = Lists.newArrayList();
+        FileDescriptorCache fdc = new FileDescriptorCache(uc, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                pending.add(command);
+            }
+        });
+        fdc.setMaxSize(1);
+
+        File file1 = File.createTempFile(NAME_PREFIX, ".tmp.gz");
+        tempFiles.add(file1);
+        File file2 = File.createTempFile(NAME_PREFIX, ".tmp.gz");
+        tempFiles.add(file2);
+        String content1 = "Goodbye Girl";
+        String content2 = "Cool For Cats";
+        write(file1, content1);
+        write(file2, content2);
+        String digest1 = ByteUtil.getDigest(content1.getBytes());
+
+        byte[] buf = new byte[10];
+        fdc.read(file1.getPath(), content1.length(), 0, buf, 0, buf.length);
+        fdc.read(file2.getPath(), content2.length(), 0, buf, 0, buf.length);
+        assertEquals(1, fdc.getSize());
+        assertFalse(fdc.contains(file1.getPath()));
+
+        // the evicted descriptor is closed by the reaper, not the reader
+        assertEquals(1, pending.size());
+        assertTrue(uc.containsDigest(digest1));
+        pending.remove(0).run();
+        assertFalse(uc.containsDigest(digest1));
+    }
+
+    @Test
+    public void volumeLimit()
+    throws Exception {
+        File vol1 = Files.createTempDir();
+        tempFiles.add(vol1);
+        File vol2 = Files.createTempDir();
+        tempFiles.add(vol2);
+        FileDescriptorCache fdc = new FileDescriptorCache(null, MoreExecutors.sameThreadExecutor());
+        fdc.setVolumeRoots(Arrays.asList(vol1.getPath(), vol2.getPath()));
+        fdc.setMaxVolumeSize(1);
+        fdc.setMaxSize(10);
+
+        File file1 = writePlain(vol1, "1", "Another Nail In My Heart");
+        File file2 = writePlain(vol1, "2", "If I Didn't Love You");
+        File file3 = writePlain(vol2, "3", "Labelled With Love");
+
+        byte[] buf = new byte[10];
+        fdc.read(file1.getPath(), file1.length(), 0, buf, 0, buf.length);
+        fdc.read(file3.getPath(), file3.length(), 0, buf, 0, buf.length);
+        fdc.read(file2.getPath(), file2.length(), 0, buf, 0, buf.length);
+
+        assertEquals(2, fdc.getSize());
+        assertEquals(1, fdc.getVolumeSize(vol1.getPath()));
+        assertEquals(1, fdc.getVolumeSize(vol2.getPath()));
+        assertFalse(fdc.contains(file1.getPath()));
+        assertTrue(fdc.contains(file2.getPath()));
+        assertTrue(fdc.contains(file3.getPath()));
+    }
+
+    @Test
+    public void reopenCounted()
+    throws Exception {
+        File dir = Files.createTempDir();
+        tempFiles.add(dir);
+        FileDescriptorCache fdc = new FileDescriptorCache(null, MoreExecutors.sameThreadExecutor());
+        fdc.setMaxSize(1);
+
+        File file1 = writePlain(dir, "1", "Up The Junction");
+        File file2 = writePlain(dir, "2", "Hourglass");
+        long opens = ZimbraPerf.COUNTER_FD_CACHE_OPEN.getCount();
+        long evictions = ZimbraPerf.COUNTER_FD_CACHE_EVICTION.getCount();
+        long reopens = ZimbraPerf.COUNTER_FD_CACHE_REOPEN.getCount();
+
+        byte[] buf = new byte[10];
+        fdc.read(file1.getPath(), file1.length(), 0, buf, 0, buf.length);
+        fdc.read(file2.getPath(), file2.length(), 0, buf, 0, buf.length);
+        fdc.read(file1.getPath(), file1.length(), 0, buf, 0, buf.length);
+
+        assertEquals(3, ZimbraPerf.COUNTER_FD_CACHE_OPEN.getCount() - opens);
+        assertEquals(2, ZimbraPerf.COUNTER_FD_CACHE_EVICTION.getCount() - evictions);
+        assertEquals(1, ZimbraPerf.COUNTER_FD_CACHE_REOPEN.getCount() - reopens);
+    }
+
+    private File writePlain(File dir, String name, String content)
+    throws IOException {
+        File file = new File(dir, name);
+        tempFiles.add(0, file);
+        Files.write(content.getBytes(), file);
+        return file;
+    }
+
     private void write(File file, String content)
     throws IOException {
         OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
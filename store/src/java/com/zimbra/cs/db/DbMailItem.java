@@ -22,6 +22,7 @@ import java.io.UnsupportedEncodingException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.ArrayList;
@@ -135,66 +136,19 @@ public class DbMailItem {
         assert mailbox.isNewItemIdValid(data.id) : "[bug 46549] illegal id for mail item";   //temporarily for bug 46549
         checkNamingConstraint(mailbox, data.folderId, data.name, data.id);
 
+        InsertBatch batch = mailbox.getInsertBatch();
+        if (batch != null) {
+            batch.add(data, sender, recipients);
+            return;
+        }
+
         DbConnection conn = mailbox.getOperationConnection();
         PreparedStatement stmt = null;
         try {
             MailItem.Type type = MailItem.Type.of(data.type);
 
-            stmt = conn.prepareStatement("INSERT INTO " + getMailItemTableName(mailbox) + "(" + MAILBOX_ID +
-                    " id, type, parent_id, folder_id, index_id, imap_id, date, size, locator, blob_digest, unread," +
-                    " flags, tag_names, sender, recipients, subject, name, metadata, mod_metadata, change_date," +
-                    " mod_content, uuid) VALUES (" + MAILBOX_ID_VALUE +
-                    "?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
-            int pos = 1;
-            pos = setMailboxId(stmt, mailbox, pos);
-            stmt.setInt(pos++, data.id);
-            stmt.setByte(pos++, data.type);
-            if (data.parentId <= 0) {
-                // Messages in virtual conversations are stored with a null parent_id
-                stmt.setNull(pos++, Types.INTEGER);
-            } else {
-                stmt.setInt(pos++, data.parentId);
-            }
-            stmt.setInt(pos++, data.folderId);
-            if (data.indexId == MailItem.IndexStatus.NO.id()) {
-                stmt.setNull(pos++, Types.INTEGER);
-            } else {
-                stmt.setInt(pos++, data.indexId);
-            }
-            if (data.imapId <= 0) {
-                stmt.setNull(pos++, Types.INTEGER);
-            } else {
-                stmt.setInt(pos++, data.imapId);
-            }
-            stmt.setInt(pos++, data.date);
-            stmt.setLong(pos++, data.size);
-            stmt.setString(pos++, data.locator);
-            stmt.setString(pos++, data.getBlobDigest());
-            switch (type) {
-                case MESSAGE:
-                case CHAT:
-                case FOLDER:
-                    stmt.setInt(pos++, data.unreadCount);
-                    break;
-                default:
-                    stmt.setNull(pos++, Types.INTEGER);
-                    break;
-            }
-            stmt.setInt(pos++, data.getFlags());
-            stmt.setString(pos++, DbTag.serializeTags(data.getTags()));
-            stmt.setString(pos++, sender);
-            stmt.setString(pos++, recipients);
-            stmt.setString(pos++, data.getSubject());
-            stmt.setString(pos++, data.name);
-            stmt.setString(pos++, checkMetadataLength(data.metadata));
-            stmt.setInt(pos++, data.modMetadata);
-            if (data.dateChanged > 0) {
-                stmt.setInt(pos++, data.dateChanged);
-            } else {
-                stmt.setNull(pos++, Types.INTEGER);
-            }
-            stmt.setInt(pos++, data.modContent);
-            stmt.setString(pos++, data.uuid);
+            stmt = conn.prepareStatement(getInsertSql(mailbox));
+            bindInsert(stmt, mailbox, data, sender, recipients);
             int num = stmt.executeUpdate();
             if (num != 1) {
                 throw ServiceException.FAILURE("failed to create object", null);
@@ -214,6 +168,179 @@ public class DbMailItem {
         }
     }
 
+    private static String getInsertSql(Mailbox mbox) {
+        return "INSERT INTO " + getMailItemTableName(mbox) + "(" + MAILBOX_ID +
+                " id, type, parent_id, folder_id, index_id, imap_id, date, size, locator, blob_digest, unread," +
+                " flags, tag_names, sender, recipients, subject, name, metadata, mod_metadata, change_date," +
+                " mod_content, uuid) VALUES (" + MAILBOX_ID_VALUE +
+                "?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    }
+
+    private static void bindInsert(PreparedStatement stmt, Mailbox mbox, UnderlyingData data, String sender,
+            String recipients) throws SQLException, ServiceException {
+        int pos = 1;
+        pos = setMailboxId(stmt, mbox, pos);
+        stmt.setInt(pos++, data.id);
+        stmt.setByte(pos++, data.type);
+        if (data.parentId <= 0) {
+            // Messages in virtual conversations are stored with a null parent_id
+            stmt.setNull(pos++, Types.INTEGER);
+        } else {
+            stmt.setInt(pos++, data.parentId);
+        }
+        stmt.setInt(pos++, data.folderId);
+        if (data.indexId == MailItem.IndexStatus.NO.id()) {
+            stmt.setNull(pos++, Types.INTEGER);
+        } else {
+            stmt.setInt(pos++, data.indexId);
+        }
+        if (data.imapId <= 0) {
+            stmt.setNull(pos++, Types.INTEGER);
+        } else {
+            stmt.setInt(pos++, data.imapId);
+        }
+        stmt.setInt(pos++, data.date);
+        stmt.setLong(pos++, data.size);
+        stmt.setString(pos++, data.locator);
+        stmt.setString(pos++, data.getBlobDigest());
+        switch (MailItem.Type.of(data.type)) {
+            case MESSAGE:
+            case CHAT:
+            case FOLDER:
+                stmt.setInt(pos++, data.unreadCount);
+                break;
+            default:
+                stmt.setNull(pos++, Types.INTEGER);
+                break;
+        }
+        stmt.setInt(pos++, data.getFlags());
+        stmt.setString(pos++, DbTag.serializeTags(data.getTags()));
+        stmt.setString(pos++, sender);
+        stmt.setString(pos++, recipients);
+        stmt.setString(pos++, data.getSubject());
+        stmt.setString(pos++, data.name);
+        stmt.setString(pos++, checkMetadataLength(data.metadata));
+        stmt.setInt(pos++, data.modMetadata);
+        if (data.dateChanged > 0) {
+            stmt.setInt(pos++, data.dateChanged);
+        } else {
+            stmt.setNull(pos++, Types.INTEGER);
+        }
+        stmt.setInt(pos++, data.modContent);
+        stmt.setString(pos++, data.uuid);
+    }
+
+    /**
+     * Collects the rows for newly-created items and writes them with JDBC
+     * batch updates, so a bulk operation costs one round trip per table
+     * instead of one per item.  Rows are bound as they're added and nothing
+     * is written until {@link #flush()}.  The {@link Mailbox} that owns the
+     * batch flushes it before anything else is run on the transaction's
+     * connection, so later statements always see the new rows.
+     */
+    public static final class InsertBatch {
+        private final Mailbox mbox;
+        private final DbConnection conn;
+        private PreparedStatement itemStmt;
+        private PreparedStatement flagStmt;
+        private PreparedStatement tagStmt;
+        private final List<Integer> ids = new ArrayList<Integer>();
+
+        public InsertBatch(Mailbox mbox, DbConnection conn) {
+            this.mbox = mbox;
+            this.conn = conn;
+        }
+
+        public boolean isEmpty() {
+            return ids.isEmpty();
+        }
+
+        public int size() {
+            return ids.size();
+        }
+
+        void add(UnderlyingData data, String sender, String recipients) throws ServiceException {
+            MailItem.Type type = MailItem.Type.of(data.type);
+            try {
+                if (itemStmt == null) {
+                    itemStmt = conn.prepareStatement(getInsertSql(mbox));
+                }
+                bindInsert(itemStmt, mbox, data, sender, recipients);
+                itemStmt.addBatch();
+
+                for (int flagId : DbTag.getReifiedFlagIds(type, data.getFlags(), data.unreadCount > 0)) {
+                    if (flagStmt == null) {
+                        flagStmt = conn.prepareStatement(DbTag.taggedItemInsertSql(mbox, "id", 1));
+                    }
+                    int pos = 1;
+                    flagStmt.setInt(pos++, data.id);
+                    pos = setMailboxId(flagStmt, mbox, pos);
+                    flagStmt.setInt(pos++, flagId);
+                    flagStmt.addBatch();
+                }
+                String[] tags = data.getTags();
+                if (type.isLeafNode() && tags != null) {
+                    for (String tag : tags) {
+                        if (tagStmt == null) {
+                            tagStmt = conn.prepareStatement(DbTag.taggedItemInsertSql(mbox, "name", 1));
+                        }
+                        int pos = 1;
+                        tagStmt.setInt(pos++, data.id);
+                        pos = setMailboxId(tagStmt, mbox, pos);
+                        tagStmt.setString(pos++, tag);
+                        tagStmt.addBatch();
+                    }
+                }
+            } catch (SQLException e) {
+                throw ServiceException.FAILURE("Failed to queue create id=" + data.id + ",type=" + data.type, e);
+            }
+            ids.add(data.id);
+        }
+
+        /**
+         * Writes all the queued rows.  Items are inserted before their tag
+         * references, which refer to them.
+         */
+        public void flush() throws ServiceException {
+            if (ids.isEmpty()) {
+                return;
+            }
+            try {
+                if (itemStmt != null) {
+                    int[] results = itemStmt.executeBatch();
+                    for (int num : results) {
+                        if (num != 1 && num != Statement.SUCCESS_NO_INFO) {
+                            throw ServiceException.FAILURE("failed to create objects " + ids, null);
+                        }
+                    }
+                }
+                if (flagStmt != null) {
+                    flagStmt.executeBatch();
+                }
+                if (tagStmt != null) {
+                    tagStmt.executeBatch();
+                }
+            } catch (SQLException e) {
+                // catch item_id uniqueness constraint violation and return failure
+                if (Db.errorMatches(e, Db.Error.DUPLICATE_ROW)) {
+                    throw MailServiceException.ALREADY_EXISTS(ids.toString(), e);
+                } else {
+                    throw ServiceException.FAILURE("Failed to create ids=" + ids, e);
+                }
+            } finally {
+                ids.clear();
+            }
+        }
+
+        public void close() {
+            DbPool.closeStatement(itemStmt);
+            DbPool.closeStatement(flagStmt);
+            DbPool.closeStatement(tagStmt);
+            itemStmt = flagStmt = tagStmt = null;
+            ids.clear();
+        }
+    }
+
     private static void checkNamingConstraint(Mailbox mbox, int folderId, String name, int modifiedItemId) throws ServiceException {
         if (name == null || name.equals("")) {
             return;
@@ -524,6 +524,48 @@ public final class DbMailbox {
         }
     }
 
+    /**
+     * Records how many items of the mailbox are waiting to be indexed, so that the index queue can pick the mailbox
+     * up again after a restart. Zero clears the mark.
+     */
+    public static void updateIndexDeferredCount(DbConnection conn, Mailbox mbox, int count) throws ServiceException {
+        PreparedStatement stmt = null;
+        try {
+            stmt = conn.prepareStatement("UPDATE " + qualifyZimbraTableName(mbox, TABLE_MAILBOX) +
+                    " SET idx_deferred_count = ? WHERE id = ?");
+            stmt.setInt(1, count);
+            stmt.setInt(2, mbox.getId());
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("updating index deferred count for mailbox " + mbox.getId(), e);
+        } finally {
+            DbPool.closeStatement(stmt);
+        }
+    }
+
+    /**
+     * Returns the IDs of mailboxes recorded by {@link #updateIndexDeferredCount} as having items waiting to be
+     * indexed.
+     */
+    public static Set<Integer> listIndexDeferredMailboxes(DbConnection conn) throws ServiceException {
+        Set<Integer> result = new HashSet<Integer>();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.prepareStatement("SELECT id FROM mailbox WHERE idx_deferred_count > 0");
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                result.add(rs.getInt(1));
+            }
+            return result;
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("fetching index deferred mailboxes", e);
+        } finally {
+            DbPool.closeResults(rs);
+            DbPool.closeStatement(stmt);
+        }
+    }
+
     public static void startTrackingSync(Mailbox mbox) throws ServiceException {
         setSyncCutoff(mbox, mbox.getLastChangeID());
     }
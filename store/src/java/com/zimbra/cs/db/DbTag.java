@@ -325,14 +325,18 @@ public final class DbTag {
         storeTagReferences(mbox, itemId, type, tags);
     }
 
-    static void storeTagReferences(Mailbox mbox, int itemId, MailItem.Type type, int flags, boolean unread) throws ServiceException {
+    /**
+     * Returns the IDs of the flags in the bitmask that are stored as rows in
+     * the <tt>tagged_item</tt> table, or an empty list if there are none.
+     */
+    static List<Integer> getReifiedFlagIds(MailItem.Type type, int flags, boolean unread) {
         if (!type.isLeafNode())
-            return;
+            return Collections.emptyList();
 
         if (unread) {
             flags |= Flag.BITMASK_UNREAD;
         } else if (flags == 0) {
-            return;
+            return Collections.emptyList();
         }
 
         List<Integer> flagIds = Lists.newArrayList();
@@ -341,16 +345,29 @@ public final class DbTag {
                 flagIds.add(tagId);
             }
         }
+        return flagIds;
+    }
+
+    /**
+     * Returns the SQL that adds <tt>tagged_item</tt> rows for one item, with
+     * the tags selected by <tt>count</tt> values of <tt>column</tt>.
+     */
+    static String taggedItemInsertSql(Mailbox mbox, String column, int count) {
+        return "INSERT INTO " + getTaggedItemTableName(mbox) +
+                "(" + DbMailItem.MAILBOX_ID + "tag_id, item_id)" +
+                " SELECT " + DbMailItem.MAILBOX_ID + "id, ? FROM " + getTagTableName(mbox) +
+                " WHERE " + DbMailItem.IN_THIS_MAILBOX_AND + DbUtil.whereIn(column, count);
+    }
+
+    static void storeTagReferences(Mailbox mbox, int itemId, MailItem.Type type, int flags, boolean unread) throws ServiceException {
+        List<Integer> flagIds = getReifiedFlagIds(type, flags, unread);
         if (flagIds.isEmpty())
             return;
 
         DbConnection conn = mbox.getOperationConnection();
         PreparedStatement stmt = null;
         try {
-            stmt = conn.prepareStatement("INSERT INTO " + getTaggedItemTableName(mbox) +
-                    "(" + DbMailItem.MAILBOX_ID + "tag_id, item_id)" +
-                    " SELECT " + DbMailItem.MAILBOX_ID + "id, ? FROM " + getTagTableName(mbox) +
-                    " WHERE " + DbMailItem.IN_THIS_MAILBOX_AND + DbUtil.whereIn("id", flagIds.size()));
+            stmt = conn.prepareStatement(taggedItemInsertSql(mbox, "id", flagIds.size()));
             int pos = 1;
             stmt.setInt(pos++, itemId);
             pos = DbMailItem.setMailboxId(stmt, mbox, pos);
@@ -372,10 +389,7 @@ public final class DbTag {
         DbConnection conn = mbox.getOperationConnection();
         PreparedStatement stmt = null;
         try {
-            stmt = conn.prepareStatement("INSERT INTO " + getTaggedItemTableName(mbox) +
-                    "(" + DbMailItem.MAILBOX_ID + "tag_id, item_id)" +
-                    " SELECT " + DbMailItem.MAILBOX_ID + "id, ? FROM " + getTagTableName(mbox) +
-                    " WHERE " + DbMailItem.IN_THIS_MAILBOX_AND + DbUtil.whereIn("name", tags.length));
+            stmt = conn.prepareStatement(taggedItemInsertSql(mbox, "name", tags.length));
             int pos = 1;
             stmt.setInt(pos++, itemId);
             pos = DbMailItem.setMailboxId(stmt, mbox, pos);
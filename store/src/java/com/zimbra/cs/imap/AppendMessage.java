@@ -35,6 +35,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.collect.Sets;
 import com.zimbra.client.ZMailbox.TagSpecifier;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mailbox.FolderStore;
 import com.zimbra.common.mime.shim.JavaMailInternetAddress;
 import com.zimbra.common.mime.shim.JavaMailInternetHeaders;
@@ -42,6 +43,7 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.imap.ImapParseException.ImapMaximumSizeExceededException;
+import com.zimbra.cs.mailbox.DeliveryContext;
 import com.zimbra.cs.mailbox.DeliveryOptions;
 import com.zimbra.cs.mailbox.Flag;
 import com.zimbra.cs.mailbox.Message;
@@ -185,36 +187,91 @@ final class AppendMessage {
         }
     }
 
-    private int store(ImapMailboxStore mboxStore, FolderStore folderStore)
-    throws ImapSessionClosedException, ServiceException, IOException {
-        if (mboxStore instanceof LocalImapMailboxStore) {
-            boolean idxAttach = ((LocalImapMailboxStore)mboxStore).attachmentsIndexingEnabled();
-            Long receivedDate = date != null ? date.getTime() : null;
-            ParsedMessage pm = new ParsedMessage(content, receivedDate, idxAttach);
-            try {
-                if (!pm.getSender().isEmpty()) {
-                    InternetAddress ia = new JavaMailInternetAddress(pm.getSender());
-                    if (mboxStore.addressMatchesAccountOrSendAs(ia.getAddress())) {
-                        flags |= Flag.BITMASK_FROM_ME;
-                    }
+    /**
+     * Stores the appends of a MULTIAPPEND to a local folder, committing up to
+     * <tt>zimbra_mailbox_add_messages_batch_size</tt> messages per mailbox
+     * transaction.  The IDs of the new messages are added to <tt>createdIds</tt>
+     * as each group commits, so that the caller can roll back if a later group
+     * fails.
+     */
+    protected static void storeContent(List<AppendMessage> appends, LocalImapMailboxStore mboxStore,
+            FolderStore folderStore, List<Integer> createdIds)
+            throws ImapSessionClosedException, IOException, ServiceException {
+        try {
+            int batchSize = Math.max(LC.zimbra_mailbox_add_messages_batch_size.intValue(), 1);
+            for (int i = 0; i < appends.size(); i += batchSize) {
+                List<AppendMessage> batch = appends.subList(i, Math.min(i + batchSize, appends.size()));
+                List<ParsedMessage> pms = new ArrayList<ParsedMessage>(batch.size());
+                List<DeliveryOptions> dopts = new ArrayList<DeliveryOptions>(batch.size());
+                List<DeliveryContext> dctxts = new ArrayList<DeliveryContext>(batch.size());
+                for (AppendMessage append : batch) {
+                    append.checkDate(append.content);
+                    pms.add(append.parse(mboxStore));
+                    dopts.add(append.getDeliveryOptions(folderStore));
+                    dctxts.add(new DeliveryContext().setIncomingBlob(append.content));
                 }
-            } catch (Exception e) { }
-
-            int folderId = Integer.parseInt(folderStore.getFolderIdAsString());
-            DeliveryOptions dopt =
-                    new DeliveryOptions().setFolderId(folderId).setNoICal(true).setFlags(flags).setTags(tags);
-            Message msg = ((LocalImapMailboxStore) mboxStore).getMailbox().addMessage(handler.getContext(), pm, dopt, null);
-            if (msg != null && sflags != 0 && handler.getState() == ImapHandler.State.SELECTED) {
-                ImapFolder selectedFolder = handler.getSelectedFolder();
-                // remember, selected folder may be on another host (i.e. mProxy != null)
-                //   (note that this leaves session flags unset on remote appended messages)
-                if (selectedFolder != null) {
-                    ImapMessage i4msg = selectedFolder.getById(msg.getId());
-                    if (i4msg != null) {
-                        i4msg.setSessionFlags(sflags, selectedFolder);
+                List<Message> msgs = mboxStore.getMailbox().addMessages(batch.get(0).handler.getContext(),
+                        pms, dopts, dctxts);
+                for (int j = 0; j < msgs.size(); j++) {
+                    Message msg = msgs.get(j);
+                    if (msg != null) {
+                        createdIds.add(msg.getId());
+                        batch.get(j).setSessionFlags(msg);
                     }
                 }
             }
+        } finally {
+            for (AppendMessage append : appends) {
+                append.cleanup();
+            }
+        }
+    }
+
+    private ParsedMessage parse(ImapMailboxStore mboxStore) throws IOException, ServiceException {
+        boolean idxAttach = ((LocalImapMailboxStore) mboxStore).attachmentsIndexingEnabled();
+        Long receivedDate = date != null ? date.getTime() : null;
+        ParsedMessage pm = new ParsedMessage(content, receivedDate, idxAttach);
+        try {
+            if (!pm.getSender().isEmpty()) {
+                InternetAddress ia = new JavaMailInternetAddress(pm.getSender());
+                if (mboxStore.addressMatchesAccountOrSendAs(ia.getAddress())) {
+                    flags |= Flag.BITMASK_FROM_ME;
+                }
+            }
+        } catch (Exception e) { }
+        return pm;
+    }
+
+    private DeliveryOptions getDeliveryOptions(FolderStore folderStore) {
+        int folderId = Integer.parseInt(folderStore.getFolderIdAsString());
+        return new DeliveryOptions().setFolderId(folderId).setNoICal(true).setFlags(flags).setTags(tags);
+    }
+
+    private void setSessionFlags(Message msg) throws ImapSessionClosedException {
+        if (sflags != 0 && handler.getState() == ImapHandler.State.SELECTED) {
+            ImapFolder selectedFolder = handler.getSelectedFolder();
+            // remember, selected folder may be on another host (i.e. mProxy != null)
+            //   (note that this leaves session flags unset on remote appended messages)
+            if (selectedFolder != null) {
+                ImapMessage i4msg = selectedFolder.getById(msg.getId());
+                if (i4msg != null) {
+                    i4msg.setSessionFlags(sflags, selectedFolder);
+                }
+            }
+        }
+    }
+
+    private int store(ImapMailboxStore mboxStore, FolderStore folderStore)
+    throws ImapSessionClosedException, ServiceException, IOException {
+        if (mboxStore instanceof LocalImapMailboxStore) {
+            ParsedMessage pm = parse(mboxStore);
+            // the literal was streamed into a blob, so hand that to the mailbox rather than having it copied
+            DeliveryContext dctxt = new DeliveryContext().setIncomingBlob(content);
+            Message msg = ((LocalImapMailboxStore) mboxStore).getMailbox().addMessage(handler.getContext(), pm,
+                    getDeliveryOptions(folderStore), dctxt);
+            if (msg != null) {
+                setSessionFlags(msg);
+            }
             return msg == null ? -1 : msg.getId();
         }
         if (mboxStore instanceof RemoteImapMailboxStore) {
@@ -70,6 +70,16 @@ public class ImapConfig extends ServerConfig {
         return LC.imap_write_chunk_size.intValue();
     }
 
+    @Override
+    public boolean isNioZeroCopyEnabled() {
+        return LC.nio_imap_zero_copy_enabled.booleanValue();
+    }
+
+    @Override
+    public boolean isVirtualThreadsEnabled() {
+        return LC.imap_virtual_threads_enabled.booleanValue();
+    }
+
     /**
      * Returns the max idle timeout for unauthenticated connections.
      *
@@ -16,8 +16,12 @@
  */
 package com.zimbra.cs.imap;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
@@ -29,6 +33,7 @@ import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
 
 import com.google.common.base.Function;
 import com.google.common.base.Strings;
@@ -60,10 +65,15 @@ import com.zimbra.cs.session.PendingModifications.Change;
  */
 public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Serializable {
     // Update serialVersionUID when changing any instance members. Otherwise serialization won't work correctly.
-    private static final long serialVersionUID = 3845968507901145794L;
+    private static final long serialVersionUID = 7119570813356249045L;
     public static final byte SELECT_READONLY  = 0x01;
     public static final byte SELECT_CONDSTORE = 0x02;
 
+    // a date field whose value is relative to now, e.g. "after:-1day", "date:>=today" (see DateQuery)
+    private static final Pattern RELATIVE_DATE_TERM = Pattern.compile(
+            "\\b(?:date|mdate|day|week|month|year|after|before|conv-start|conv-end|appt-start|appt-end):" +
+            "[\\s(\"]*(?:[<>]=?)?\\s*(?:[+-]|today|yesterday)", Pattern.CASE_INSENSITIVE);
+
     // attributes of the folder itself, irrespective of the session state
     private transient ImapMailboxStore mailboxStore;
     private transient ImapListener session;
@@ -75,8 +85,15 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
     private final int uidValidity;
     private String query;
     private Set<MailItem.Type> typeConstraint = ImapHandler.ITEM_TYPES;
-    private final List<ImapMessage> sequence = new ArrayList<ImapMessage>();
+    private transient List<ImapMessage> sequence = new ArrayList<ImapMessage>();  // see writeObject()
     private final ImapFlagCache tags;   // operationally could be "transient", but that makes deserialization replay depend on magic
+    // distinct tag sets of the messages in the sequence; messages with the same tags share one array
+    private transient Map<List<String>, String[]> tagSets = new HashMap<List<String>, String[]>();
+
+    // set when this instance is only the changes since another cached copy; see createCacheDelta()
+    private String deltaBase;
+    private int[] deltaRemoved;
+    private transient CacheSnapshot cacheSnapshot;
 
     // below this point are session-specific attributes of the folder SELECT state
     protected static class SessionData {
@@ -224,6 +241,18 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         return Strings.nullToEmpty(query);
     }
 
+    /** Returns whether this is a search folder whose contents depend on the current time as well as on the
+     *  mailbox, because its query uses a relative date such as {@code after:-1day}. */
+    protected boolean isTimeRelative() {
+        return isTimeRelative(query);
+    }
+
+    /** Returns whether the search folder query uses a relative date.  The check is purely textual, so it may
+     *  also match inside a quoted phrase; that only costs the caller a cache it could have used. */
+    protected static boolean isTimeRelative(String query) {
+        return query != null && RELATIVE_DATE_TERM.matcher(query).find();
+    }
+
     /** Constrain the search to the actually-requested types. */
     protected static Set<MailItem.Type> getTypeConstraint(SearchFolderStore search) {
         String typestr = search.getReturnTypes().toLowerCase();
@@ -487,6 +516,7 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
     }
 
     protected void updateTagCache(ImapMessage i4msg) {
+        i4msg.tags = internTags(i4msg.tags);
         if (!ArrayUtil.isEmpty(i4msg.tags)) {
             for (String tag : i4msg.tags) {
                 if (tags.getByZimbraName(tag) == null) {
@@ -571,9 +601,43 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
                 if (newName != null) {
                     tags.add(newName);
                 }
-                i4msg.tags = tags.isEmpty() ? null : tags.toArray(new String[tags.size()]);
+                i4msg.tags = tags.isEmpty() ? null : internTags(tags.toArray(new String[tags.size()]));
+            }
+        }
+        pruneTagSets();
+    }
+
+    /** Returns the shared array for the given tag set.  Tag arrays held by {@link ImapMessage}s are replaced, never
+     *  modified in place, so messages with the same tags can share one. */
+    private synchronized String[] internTags(String[] t) {
+        if (ArrayUtil.isEmpty(t)) {
+            return t;
+        }
+        List<String> key = Arrays.asList(t);
+        String[] shared = tagSets.get(key);
+        if (shared == null) {
+            tagSets.put(key, shared = t);
+        }
+        return shared;
+    }
+
+    /** Rebuilds {@link #tagSets} from the messages in the sequence.  Sets stay in the map after the last message
+     *  using them is expunged or retagged, so this is done after expunges and tag renames and deletes, and whenever
+     *  the folder is serialized. */
+    private synchronized void pruneTagSets() {
+        Map<List<String>, String[]> live = new HashMap<List<String>, String[]>();
+        for (ImapMessage i4msg : sequence) {
+            if (i4msg == null || ArrayUtil.isEmpty(i4msg.tags)) {
+                continue;
+            }
+            List<String> key = Arrays.asList(i4msg.tags);
+            String[] shared = live.get(key);
+            if (shared == null) {
+                live.put(key, shared = i4msg.tags);
             }
+            i4msg.tags = shared;
         }
+        tagSets = live;
     }
 
     protected ImapFlag getFlagByName(String name) {
@@ -733,6 +797,50 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         return result;
     }
 
+    /** Returns the positions in the {@link #sequence} list holding a
+     *  message, as a bitmap indexed by sequence number minus one. */
+    protected synchronized BitSet getAllMessageBits() {
+        int size = getSize();
+        BitSet result = new BitSet(size);
+        for (int i = 0; i < size; i++) {
+            if (sequence.get(i) != null) {
+                result.set(i);
+            }
+        }
+        return result;
+    }
+
+    /** Returns the positions in the {@link #sequence} list holding a message
+     *  that has the given flag or tag, as a bitmap indexed by sequence number
+     *  minus one. */
+    protected synchronized BitSet getFlaggedMessageBits(ImapFlag i4flag) {
+        int size = getSize();
+        BitSet result = new BitSet(size);
+        if (i4flag != null) {
+            for (int i = 0; i < size; i++) {
+                ImapMessage i4msg = sequence.get(i);
+                if (i4msg != null && i4flag.matches(i4msg)) {
+                    result.set(i);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Returns the messages whose sequence numbers are set in the given
+     *  bitmap.  Bit <tt>n</tt> corresponds to sequence number <tt>n+1</tt>. */
+    protected synchronized ImapMessageSet getMessages(BitSet bits) {
+        ImapMessageSet result = new ImapMessageSet();
+        int size = getSize();
+        for (int i = bits.nextSetBit(0); i >= 0 && i < size; i = bits.nextSetBit(i + 1)) {
+            ImapMessage i4msg = sequence.get(i);
+            if (i4msg != null) {
+                result.add(i4msg);
+            }
+        }
+        return result;
+    }
+
     private static int parseId(String id) {
         // valid values will always be positive ints, so force it there...
         try {
@@ -1102,9 +1210,176 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
                 setIndex(i4msg, seq);
             }
         }
+        if (trimmed) {
+            pruneTagSets();
+        }
         return removed;
     }
 
+    /** What the IMAP session cache holds for this folder under {@code key}: the UID and a fingerprint of the
+     *  cached state of each message, in sequence order.  A later page-out only has to write the differences. */
+    static final class CacheSnapshot {
+        final String key;
+        final int depth;
+        private final int[] uids;
+        private final long[] fingerprints;
+
+        private CacheSnapshot(String key, int depth, List<ImapMessage> sequence) {
+            this.key = key;
+            this.depth = depth;
+            this.uids = new int[sequence.size()];
+            this.fingerprints = new long[sequence.size()];
+            for (int i = 0; i < uids.length; i++) {
+                ImapMessage i4msg = sequence.get(i);
+                uids[i] = i4msg.imapUid;
+                fingerprints[i] = fingerprint(i4msg);
+            }
+        }
+    }
+
+    /** 64-bit FNV-1a over everything the cache stores for a message other than its UID. */
+    private static long fingerprint(ImapMessage i4msg) {
+        long hash = 0xcbf29ce484222325L;
+        hash = (hash ^ i4msg.msgId) * 0x100000001b3L;
+        hash = (hash ^ i4msg.flags) * 0x100000001b3L;
+        hash = (hash ^ i4msg.sflags) * 0x100000001b3L;
+        if (i4msg.tags != null) {
+            for (String tag : i4msg.tags) {
+                for (int i = 0; i < tag.length(); i++) {
+                    hash = (hash ^ tag.charAt(i)) * 0x100000001b3L;
+                }
+                hash = (hash ^ 0xFFFF) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    private ImapFolder(ImapFolder other, List<ImapMessage> messages) {
+        this.folderIdentifier = other.folderIdentifier;
+        this.uidValidity = other.uidValidity;
+        this.query = other.query;
+        this.typeConstraint = other.typeConstraint;
+        this.tags = other.tags;
+        this.sequence = messages;
+    }
+
+    private static ImapMessage copy(ImapMessage i4msg) {
+        ImapMessage dup = new ImapMessage(i4msg);
+        dup.sflags = i4msg.sflags;
+        return dup;
+    }
+
+    /** Returns true if this instance only holds the changes since the cached folder {@link #getDeltaBase()}. */
+    boolean isDelta() {
+        return deltaBase != null;
+    }
+
+    String getDeltaBase() {
+        return deltaBase;
+    }
+
+    CacheSnapshot getCacheSnapshot() {
+        return cacheSnapshot;
+    }
+
+    /** Records that the cache now holds the current state of this folder under {@code key}, {@code depth}
+     *  deltas away from a full copy. */
+    void setCacheSnapshot(String key, int depth) {
+        cacheSnapshot = new CacheSnapshot(key, depth, sequence);
+    }
+
+    /** Adopts another folder's snapshot, for a folder whose messages were copied out of that cached folder. */
+    void setCacheSnapshot(CacheSnapshot snapshot) {
+        cacheSnapshot = snapshot;
+    }
+
+    /** Returns the changes to this folder since its {@link CacheSnapshot} as a folder that can be cached under a new
+     *  key and later applied to the snapshot with {@link #applyCacheDelta}, or {@code null} if there is no snapshot
+     *  or more than {@code maxChanges} messages have changed. */
+    ImapFolder createCacheDelta(int maxChanges) {
+        CacheSnapshot base = cacheSnapshot;
+        if (base == null) {
+            return null;
+        }
+        List<ImapMessage> changed = new ArrayList<ImapMessage>();
+        int[] removed = new int[base.uids.length];
+        int removedCount = 0;
+        int i = 0, j = 0, lastUid = 0;
+        while (i < sequence.size() || j < base.uids.length) {
+            ImapMessage i4msg = i < sequence.size() ? sequence.get(i) : null;
+            if (i4msg != null && i4msg.imapUid <= lastUid) {
+                return null; // out-of-order or duplicate UIDs can't be merged by UID
+            }
+            if (i4msg != null && (j >= base.uids.length || i4msg.imapUid < base.uids[j])) {
+                changed.add(copy(i4msg));
+                lastUid = i4msg.imapUid;
+                i++;
+            } else if (i4msg == null || i4msg.imapUid > base.uids[j]) {
+                removed[removedCount++] = base.uids[j++];
+            } else {
+                if (fingerprint(i4msg) != base.fingerprints[j]) {
+                    changed.add(copy(i4msg));
+                }
+                lastUid = i4msg.imapUid;
+                i++;
+                j++;
+            }
+            if (changed.size() + removedCount > maxChanges) {
+                return null;
+            }
+        }
+        ImapFolder delta = new ImapFolder(this, changed);
+        delta.deltaBase = base.key;
+        delta.deltaRemoved = Arrays.copyOf(removed, removedCount);
+        return delta;
+    }
+
+    /** Returns a new folder with the changes in {@code delta} applied to this folder's messages.  This folder is
+     *  left as it was, since it may still be the cached copy that other deltas are based on. */
+    ImapFolder applyCacheDelta(ImapFolder delta) {
+        List<ImapMessage> changed = delta.sequence;
+        int[] removed = delta.deltaRemoved == null ? new int[0] : delta.deltaRemoved;
+        List<ImapMessage> merged = new ArrayList<ImapMessage>(sequence.size() + changed.size());
+        int c = 0, r = 0;
+        for (ImapMessage i4msg : sequence) {
+            while (c < changed.size() && changed.get(c).imapUid < i4msg.imapUid) {
+                merged.add(changed.get(c++));
+            }
+            if (c < changed.size() && changed.get(c).imapUid == i4msg.imapUid) {
+                merged.add(changed.get(c++));
+                continue;
+            }
+            while (r < removed.length && removed[r] < i4msg.imapUid) {
+                r++;
+            }
+            if (r < removed.length && removed[r] == i4msg.imapUid) {
+                continue;
+            }
+            merged.add(copy(i4msg));
+        }
+        while (c < changed.size()) {
+            merged.add(changed.get(c++));
+        }
+        for (int i = 0; i < merged.size(); i++) {
+            merged.get(i).sequence = i + 1;
+        }
+        return new ImapFolder(delta, merged);
+    }
+
+    /** The message sequence is written by {@link ImapSequenceSerializer} rather than as a list of
+     *  {@link ImapMessage} objects, which keeps large folders small and fast to page out. */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        pruneTagSets();
+        out.defaultWriteObject();
+        ImapSequenceSerializer.write(sequence, out);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        sequence = ImapSequenceSerializer.read(in);
+        pruneTagSets();
+    }
+
     protected void restore(ImapListener sess, SessionData sdata) throws ImapSessionClosedException, ServiceException {
         session = sess;
         MailboxStore sessMbox = session.getMailbox();
@@ -1114,7 +1389,6 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         }
         mailboxStore = ImapMailboxStore.get(sessMbox, sessMbox.getAccountId());
         path = session.getPath();
-        // FIXME: NOT RESTORING sequence.msg.sflags PROPERLY -- need to serialize it!!!
         sessionData = sdata;
     }
 
@@ -24,6 +24,7 @@ import java.net.URLEncoder;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
@@ -2775,10 +2776,15 @@ public abstract class ImapHandler {
             for (AppendMessage append : appends) {
                 append.checkContent();
             }
-            for (AppendMessage append : appends) {
-                int id = append.storeContent(mboxStore, folderStore);
-                if (id > 0) {
-                    createdIds.add(id);
+            if (appends.size() > 1 && mboxStore instanceof LocalImapMailboxStore) {
+                // MULTIAPPEND: commit the messages together rather than one transaction apiece
+                AppendMessage.storeContent(appends, (LocalImapMailboxStore) mboxStore, folderStore, createdIds);
+            } else {
+                for (AppendMessage append : appends) {
+                    int id = append.storeContent(mboxStore, folderStore);
+                    if (id > 0) {
+                        createdIds.add(id);
+                    }
                 }
             }
 
@@ -3514,22 +3520,34 @@ public abstract class ImapHandler {
 
         boolean saveResults = (options != null && (options & RETURN_SAVE) != 0);
         boolean unsorted = sort == SortBy.NONE;
-        Collection<ImapMessage> hits;
+        Collection<ImapMessage> hits = null;
         int modseq = 0;
 
         try {
             MailboxStore mboxStore = i4folder.getMailbox();
+            // flag, keyword and sequence-set criteria are answered from bitmaps over the folder's
+            //   in-memory sequence; only the remaining criteria (if any) are sent to the index
+            BitSet matched = null;
+            ImapSearch indexed = i4search;
             // TODO any way this can be optimized for non-Mailbox MailboxStore?
-            if (unsorted && (mboxStore instanceof Mailbox) && i4search.canBeRunLocally()) {
+            if (mboxStore instanceof Mailbox) {
                 mboxStore.lock(false);
                 try {
-                    hits = i4search.evaluate(i4folder);
-                    hits.remove(null);
+                    matched = i4search.evaluateLocalPart(i4folder);
+                    if (matched != null) {
+                        indexed = i4search.getIndexedPart();
+                        if (matched.isEmpty()) {
+                            hits = unsorted ? new ImapMessageSet() : new ArrayList<ImapMessage>();
+                        } else if (unsorted && indexed == null) {
+                            hits = i4folder.getMessages(matched);
+                        }
+                    }
                 } finally {
                     mboxStore.unlock();
                 }
-            } else {
-                ZimbraQueryHitResults zqr = runSearch(i4search, i4folder, sort,
+            }
+            if (hits == null) {
+                ZimbraQueryHitResults zqr = runSearch(indexed == null ? i4search : indexed, i4folder, sort,
                         requiresMODSEQ ? SearchParams.Fetch.MODSEQ : SearchParams.Fetch.IDS);
                 hits = unsorted ? new ImapMessageSet() : new ArrayList<ImapMessage>();
                 try {
@@ -3537,6 +3555,8 @@ public abstract class ImapHandler {
                         ImapMessage i4msg = i4folder.getById(hit.getItemId());
                         if (i4msg == null || i4msg.isExpunged()) {
                             continue;
+                        } else if (matched != null && !matched.get(i4msg.sequence - 1)) {
+                            continue;
                         }
                         hits.add(i4msg);
                         if (requiresMODSEQ)
@@ -3888,9 +3908,18 @@ public abstract class ImapHandler {
         } finally {
             mbox.unlock();
         }
+        boolean needItem = !fullMessage.isEmpty() || (parts != null && !parts.isEmpty()) ||
+                (attributes & ~FETCH_FROM_CACHE) != 0;
+        // load the items in batches just ahead of the responses that need them, rather than one query per message
+        int prefetchSize = needItem ? LC.imap_fetch_prefetch_size.intValue() : 0;
+        Iterator<ImapMessage> prefetchIterator = i4set.iterator();
+        int position = 0;
         ReentrantLock lock = null;
         try {
             for (ImapMessage i4msg : i4set) {
+                if (prefetchSize > 0 && position++ % prefetchSize == 0) {
+                    prefetch(i4folder, prefetchIterator, prefetchSize);
+                }
                 PrintStream result = new PrintStream(output, false, Charsets.UTF_8.name());
                 try {
                     result.print("* " + i4msg.sequence + " FETCH (");
@@ -3904,7 +3933,7 @@ public abstract class ImapHandler {
                     boolean empty = true;
                     ZimbraMailItem item = null;
                     MimeMessage mm;
-                    if (!fullMessage.isEmpty() || (parts != null && !parts.isEmpty()) || (attributes & ~FETCH_FROM_CACHE) != 0) {
+                    if (needItem) {
                         if (lock == null && LC.imap_throttle_fetch.booleanValue()) {
                             lock = commandThrottle.lock(credentials.getAccountId());
                         }
@@ -3948,24 +3977,28 @@ public abstract class ImapHandler {
                     }
 
                     if ((parts != null && !parts.isEmpty()) || (attributes & FETCH_FROM_MIME) != 0) {
-                        mm = ImapMessage.getMimeMessage(item);
-                        if ((attributes & FETCH_BODY) != 0) {
-                            result.print(empty ? "" : " ");
-                            result.print("BODY ");
-                            ImapMessage.serializeStructure(result, mm, false);
-                            empty = false;
-                        }
-                        if ((attributes & FETCH_BODYSTRUCTURE) != 0) {
-                            result.print(empty ? "" : " ");
-                            result.print("BODYSTRUCTURE ");
-                            ImapMessage.serializeStructure(result, mm, true);
-                            empty = false;
-                        }
-                        if ((attributes & FETCH_ENVELOPE) != 0) {
-                            result.print(empty ? "" : " ");
-                            result.print("ENVELOPE ");
-                            ImapMessage.serializeEnvelope(result, mm);
-                            empty = false;
+                        // only parse the message if a body part was requested or the structure isn't cached yet
+                        mm = parts != null && !parts.isEmpty() ? ImapMessage.getMimeMessage(item) : null;
+                        if ((attributes & FETCH_FROM_MIME) != 0) {
+                            ImapStructureCache.Structure structure = ImapStructureCache.getInstance().get(item, mm);
+                            if ((attributes & FETCH_BODY) != 0) {
+                                result.print(empty ? "" : " ");
+                                result.print("BODY ");
+                                result.write(structure.body, 0, structure.body.length);
+                                empty = false;
+                            }
+                            if ((attributes & FETCH_BODYSTRUCTURE) != 0) {
+                                result.print(empty ? "" : " ");
+                                result.print("BODYSTRUCTURE ");
+                                result.write(structure.bodystructure, 0, structure.bodystructure.length);
+                                empty = false;
+                            }
+                            if ((attributes & FETCH_ENVELOPE) != 0) {
+                                result.print(empty ? "" : " ");
+                                result.print("ENVELOPE ");
+                                result.write(structure.envelope, 0, structure.envelope.length);
+                                empty = false;
+                            }
                         }
                         if (parts != null) {
                             for (ImapPartSpecifier pspec : parts) {
@@ -4039,6 +4072,25 @@ public abstract class ImapHandler {
         return true;
     }
 
+    /**
+     * Warms the item cache with the next {@code count} messages from {@code it}, which the FETCH loop is about to
+     * walk.  A failure here isn't fatal; the loop just falls back to loading each item as it goes.
+     */
+    private void prefetch(ImapFolder i4folder, Iterator<ImapMessage> it, int count) {
+        List<Integer> ids = new ArrayList<Integer>(count);
+        for (int i = 0; i < count && it.hasNext(); i++) {
+            ImapMessage i4msg = it.next();
+            if (!i4msg.isExpunged()) {
+                ids.add(i4msg.msgId);
+            }
+        }
+        try {
+            i4folder.getImapMailboxStore().prefetchItems(getContext(), ids);
+        } catch (ServiceException e) {
+            ZimbraLog.imap.debug("unable to prefetch %d items; loading them individually", ids.size(), e);
+        }
+    }
+
     private void fetchException(Throwable cause) throws ImapIOException {
         final String msg = "IOException fetching IMAP message (" +
                 (cause != null ? cause.getMessage() : "null") + "), closing connection";
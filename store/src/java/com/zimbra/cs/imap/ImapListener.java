@@ -242,7 +242,7 @@ public abstract class ImapListener extends Session {
             SortedSet<Integer> changeIds = new TreeSet<Integer>(queuedChanges.keySet());
             for(Integer changeId : changeIds) {
                 PendingModifications mods = queuedChanges.get(changeId);
-                notifyPendingChanges(mods, changeId, null);
+                applyPendingChanges(mods, changeId);
             }
         }
 
@@ -639,6 +639,13 @@ public abstract class ImapListener extends Session {
     @SuppressWarnings("rawtypes")
     @Override
     public void notifyPendingChanges(PendingModifications pnsIn, int changeId, Session source) {
+        applyPendingChanges(pnsIn, changeId);
+    }
+
+    /** Applies a set of changes to this session's folder.  Unlike
+     *  {@link #notifyPendingChanges}, never routes them anywhere else. */
+    @SuppressWarnings("rawtypes")
+    protected void applyPendingChanges(PendingModifications pnsIn, int changeId) {
         if (!pnsIn.hasNotifications()) {
             return;
         }
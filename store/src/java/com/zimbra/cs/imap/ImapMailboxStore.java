@@ -84,6 +84,8 @@ public abstract class ImapMailboxStore {
     public abstract void resetImapUid(List<Integer> renumber) throws ServiceException;
     public abstract void beginTrackingImap() throws ServiceException;
     public abstract void deleteMessages(OperationContext octxt, List<Integer> ids);
+    /** Warms whatever item cache backs this store with the given items ahead of a FETCH that walks them. */
+    public abstract void prefetchItems(OperationContext octxt, Collection<Integer> ids) throws ServiceException;
     /**
      * MUST only be called when the source items and target folder are in the same mailbox
      * @return List of IMAP UIDs
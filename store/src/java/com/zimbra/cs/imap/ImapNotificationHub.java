@@ -0,0 +1,308 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mailbox.BaseFolderInfo;
+import com.zimbra.common.mailbox.BaseItemInfo;
+import com.zimbra.common.mailbox.MailItemType;
+import com.zimbra.common.mailbox.ZimbraTag;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.session.PendingLocalModifications;
+import com.zimbra.cs.session.PendingModifications;
+import com.zimbra.cs.session.PendingModifications.Change;
+import com.zimbra.cs.session.PendingModifications.ModificationKey;
+
+/**
+ * Shares the work of processing a mailbox commit between all the local
+ * {@link ImapSession}s selected on folders in that mailbox.
+ * <p>
+ * Each session is still a listener on its {@code Mailbox}, but the first
+ * one to be notified of a commit hands it to the hub.  The hub splits the
+ * IMAP-relevant changes by folder once, using the set of folders that have
+ * subscribed sessions, and delivers each folder's share to the sessions on
+ * that folder.  Sessions on folders the commit didn't touch are never
+ * called, and later notifications of the same commit are ignored.  Tag
+ * deletes and renames, and changes whose folder is unknown, are delivered
+ * to every subscribed session.
+ * <p>
+ * The per-folder {@link PendingModifications} are shared by all sessions
+ * on that folder and must be treated as read-only.  Sessions on virtual
+ * folders need every change and don't subscribe.
+ */
+final class ImapNotificationHub {
+    private static final ConcurrentMap<String, ImapNotificationHub> HUBS =
+            new ConcurrentHashMap<String, ImapNotificationHub>();
+
+    private final String accountId;
+    /** Subscribed sessions, indexed by the ID of their selected folder. */
+    private final Map<Integer, Set<ImapSession>> subscribers = new HashMap<Integer, Set<ImapSession>>();
+    /** The last commit dispatched, so that later notifications of it are ignored. */
+    private WeakReference<PendingModifications<?>> lastMods = new WeakReference<PendingModifications<?>>(null);
+    private boolean retired;
+
+    private ImapNotificationHub(String accountId) {
+        this.accountId = accountId;
+    }
+
+    static boolean isEnabled() {
+        return LC.imap_notification_hub_enabled.booleanValue();
+    }
+
+    /** Subscribes the session to the hub for its target mailbox, creating
+     *  the hub if needed, and returns the hub. */
+    static ImapNotificationHub subscribe(ImapSession session) {
+        String acctId = session.getTargetAccountId();
+        while (true) {
+            ImapNotificationHub hub = HUBS.get(acctId);
+            if (hub == null) {
+                ImapNotificationHub created = new ImapNotificationHub(acctId);
+                hub = HUBS.putIfAbsent(acctId, created);
+                if (hub == null) {
+                    hub = created;
+                }
+            }
+            synchronized (hub) {
+                // lost a race with the last session unsubscribing; start over with a fresh hub
+                if (hub.retired) {
+                    continue;
+                }
+                Set<ImapSession> sessions = hub.subscribers.get(session.getFolderId());
+                if (sessions == null) {
+                    hub.subscribers.put(session.getFolderId(), sessions = new LinkedHashSet<ImapSession>());
+                }
+                sessions.add(session);
+                ZimbraLog.imap.debug("subscribed to notification hub acct=%s folderId=%d %s",
+                        acctId, session.getFolderId(), session);
+                return hub;
+            }
+        }
+    }
+
+    synchronized void unsubscribe(ImapSession session) {
+        Set<ImapSession> sessions = subscribers.get(session.getFolderId());
+        if (sessions == null || !sessions.remove(session)) {
+            return;
+        }
+        ZimbraLog.imap.debug("unsubscribed from notification hub acct=%s folderId=%d %s",
+                accountId, session.getFolderId(), session);
+        if (sessions.isEmpty()) {
+            subscribers.remove(session.getFolderId());
+            if (subscribers.isEmpty()) {
+                retired = true;
+                HUBS.remove(accountId, this);
+            }
+        }
+    }
+
+    static ImapNotificationHub getHub(String accountId) {
+        return HUBS.get(accountId);
+    }
+
+    synchronized int getSubscriberCount() {
+        int count = 0;
+        for (Set<ImapSession> sessions : subscribers.values()) {
+            count += sessions.size();
+        }
+        return count;
+    }
+
+    /** Delivers the commit to the subscribed sessions it affects, unless it
+     *  has already been dispatched.  Called from the committing thread. */
+    void notifyPendingChanges(PendingModifications<?> pns, int changeId) {
+        Map<ImapSession, PendingModifications<?>> targets;
+        synchronized (this) {
+            if (lastMods.get() == pns) {
+                return;
+            }
+            lastMods = new WeakReference<PendingModifications<?>>(pns);
+            targets = route(pns);
+        }
+        // deliver outside the hub's monitor: sessions may unsubscribe while holding their own
+        for (Map.Entry<ImapSession, PendingModifications<?>> target : targets.entrySet()) {
+            try {
+                target.getKey().deliver(target.getValue(), changeId);
+            } catch (RuntimeException e) {
+                ZimbraLog.imap.warn("error delivering change %d to %s", changeId, target.getKey(), e);
+            }
+        }
+    }
+
+    private Map<ImapSession, PendingModifications<?>> route(PendingModifications<?> pns) {
+        Map<Integer, PendingLocalModifications> byFolder = split(pns);
+        if (byFolder.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        PendingLocalModifications global = byFolder.remove(null);
+        Map<ImapSession, PendingModifications<?>> targets = new LinkedHashMap<ImapSession, PendingModifications<?>>();
+        if (global == null) {
+            // only visit the folders the commit touched
+            for (Map.Entry<Integer, PendingLocalModifications> entry : byFolder.entrySet()) {
+                for (ImapSession session : subscribers.get(entry.getKey())) {
+                    targets.put(session, entry.getValue());
+                }
+            }
+        } else {
+            for (Map.Entry<Integer, Set<ImapSession>> entry : subscribers.entrySet()) {
+                PendingLocalModifications mods = byFolder.get(entry.getKey());
+                mods = mods == null ? global : merge(mods, global);
+                for (ImapSession session : entry.getValue()) {
+                    targets.put(session, mods);
+                }
+            }
+        }
+        return targets;
+    }
+
+    /** Splits the IMAP-relevant changes in the commit by the subscribed
+     *  folder they affect.  Changes for every folder are under the
+     *  <tt>null</tt> key; changes for unsubscribed folders are dropped. */
+    private Map<Integer, PendingLocalModifications> split(PendingModifications<?> pns) {
+        Map<Integer, PendingLocalModifications> byFolder = new HashMap<Integer, PendingLocalModifications>();
+        if (pns.deleted != null) {
+            for (Map.Entry<ModificationKey, Change> entry : pns.deleted.entrySet()) {
+                Change chg = entry.getValue();
+                Object type = chg.what;
+                if (type == MailItem.Type.TAG) {
+                    deleted(byFolder, null, entry);
+                } else if (type == MailItem.Type.FOLDER) {
+                    deleted(byFolder, entry.getKey().getItemId(), entry);
+                } else if (ImapMessage.SUPPORTED_TYPES.contains(type)) {
+                    int folderId = chg.getFolderId();
+                    deleted(byFolder, folderId > 0 ? folderId : null, entry);
+                }
+            }
+        }
+        if (pns.created != null) {
+            for (Map.Entry<ModificationKey, BaseItemInfo> entry : pns.created.entrySet()) {
+                BaseItemInfo item = entry.getValue();
+                MailItemType type = item == null ? null : item.getMailItemType();
+                if (type != MailItemType.MESSAGE && type != MailItemType.CONTACT) {
+                    continue;
+                }
+                try {
+                    PendingLocalModifications mods = modsFor(byFolder, item.getFolderIdInMailbox());
+                    if (mods != null) {
+                        if (mods.created == null) {
+                            mods.created = new LinkedHashMap<ModificationKey, BaseItemInfo>();
+                        }
+                        mods.created.put(entry.getKey(), item);
+                    }
+                } catch (ServiceException e) {
+                    ZimbraLog.imap.warn("error routing creation of item %s", entry.getKey(), e);
+                }
+            }
+        }
+        if (pns.modified != null) {
+            for (Map.Entry<ModificationKey, Change> entry : pns.modified.entrySet()) {
+                Change chg = entry.getValue();
+                if (chg.what instanceof ZimbraTag) {
+                    if ((chg.why & Change.NAME) != 0) {
+                        modified(byFolder, null, entry);
+                    }
+                    continue;
+                } else if (!(chg.what instanceof BaseItemInfo)) {
+                    continue;
+                }
+                BaseItemInfo item = (BaseItemInfo) chg.what;
+                MailItemType type = item.getMailItemType();
+                try {
+                    if (type == MailItemType.FOLDER) {
+                        modified(byFolder, ((BaseFolderInfo) item).getFolderIdInOwnerMailbox(), entry);
+                    } else if (type == MailItemType.MESSAGE || type == MailItemType.CONTACT) {
+                        int folderId = item.getFolderIdInMailbox();
+                        modified(byFolder, folderId, entry);
+                        if ((chg.why & Change.FOLDER) != 0) {
+                            // a move also has to reach sessions on the folder the item left
+                            int previous = chg.getFolderId();
+                            if (previous <= 0) {
+                                modified(byFolder, null, entry);
+                            } else if (previous != folderId) {
+                                modified(byFolder, previous, entry);
+                            }
+                        }
+                    }
+                } catch (ServiceException e) {
+                    ZimbraLog.imap.warn("error routing modification of item %s", entry.getKey(), e);
+                }
+            }
+        }
+        return byFolder;
+    }
+
+    private PendingLocalModifications modsFor(Map<Integer, PendingLocalModifications> byFolder, Integer folderId) {
+        if (folderId != null && !subscribers.containsKey(folderId)) {
+            return null;
+        }
+        PendingLocalModifications mods = byFolder.get(folderId);
+        if (mods == null) {
+            byFolder.put(folderId, mods = new PendingLocalModifications());
+        }
+        return mods;
+    }
+
+    private void deleted(Map<Integer, PendingLocalModifications> byFolder, Integer folderId,
+            Map.Entry<ModificationKey, Change> entry) {
+        PendingLocalModifications mods = modsFor(byFolder, folderId);
+        if (mods != null) {
+            if (mods.deleted == null) {
+                mods.deleted = new LinkedHashMap<ModificationKey, Change>();
+            }
+            mods.deleted.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void modified(Map<Integer, PendingLocalModifications> byFolder, Integer folderId,
+            Map.Entry<ModificationKey, Change> entry) {
+        PendingLocalModifications mods = modsFor(byFolder, folderId);
+        if (mods != null) {
+            if (mods.modified == null) {
+                mods.modified = new LinkedHashMap<ModificationKey, Change>();
+            }
+            mods.modified.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static PendingLocalModifications merge(PendingLocalModifications folder, PendingLocalModifications global) {
+        PendingLocalModifications merged = new PendingLocalModifications();
+        merged.created = folder.created;
+        merged.deleted = union(folder.deleted, global.deleted);
+        merged.modified = union(folder.modified, global.modified);
+        return merged;
+    }
+
+    private static Map<ModificationKey, Change> union(Map<ModificationKey, Change> a, Map<ModificationKey, Change> b) {
+        if (a == null || b == null) {
+            return a == null ? b : a;
+        }
+        Map<ModificationKey, Change> result = new LinkedHashMap<ModificationKey, Change>(a);
+        result.putAll(b);
+        return result;
+    }
+}
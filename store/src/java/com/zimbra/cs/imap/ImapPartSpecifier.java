@@ -18,10 +18,13 @@ package com.zimbra.cs.imap;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.channels.FileChannel;
 import java.util.Enumeration;
 import java.util.List;
 
@@ -37,7 +40,13 @@ import com.zimbra.common.util.InputStreamWithSize;
 import com.zimbra.common.util.StartOutOfBoundsException;
 import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Message;
 import com.zimbra.cs.mime.Mime;
+import com.zimbra.cs.server.NioOutputStream;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.MailboxBlob;
+import com.zimbra.cs.store.file.VolumeMailboxBlob;
 
 class ImapPartSpecifier {
     static class BinaryDecodingException extends Exception {
@@ -172,6 +181,7 @@ class ImapPartSpecifier {
                 if (os != null) {
                     os.write(ImapHandler.LINE_SEPARATOR_BYTES);
                     long written = ByteUtil.copy(is, false, os, false);
+                    ZimbraPerf.COUNTER_IMAP_BUFFERED_BYTES.increment(written);
                     assert written == length;
                 }
             }
@@ -182,7 +192,78 @@ class ImapPartSpecifier {
 
     void write(PrintStream ps, OutputStream os, ZimbraMailItem zmi)
     throws IOException, BinaryDecodingException, ServiceException {
-        write(ps, os, new ZimbraMailItemGettableInputStreamWithSize(zmi));
+        if (!writeZeroCopy(ps, os, zmi)) {
+            write(ps, os, new ZimbraMailItemGettableInputStreamWithSize(zmi));
+        }
+    }
+
+    /**
+     * Sends the whole message (or a partial range of it) as a literal straight from its blob file, without copying
+     * the bytes through the heap.  Only possible for an uncompressed blob on a local volume written to a NIO
+     * connection that has no TLS or SASL layer; returns false without writing anything in every other case.
+     */
+    private boolean writeZeroCopy(PrintStream ps, OutputStream os, ZimbraMailItem zmi) throws IOException {
+        if (!(os instanceof NioOutputStream) || !((NioOutputStream) os).isZeroCopyCapable() ||
+                !isEntireMessage() || command.startsWith("BINARY")) {
+            return false;
+        }
+        File file = getUncompressedBlobFile(zmi);
+        if (file == null) {
+            return false;
+        }
+        FileChannel channel;
+        try {
+            channel = new FileInputStream(file).getChannel();
+        } catch (IOException e) {
+            ZimbraLog.imap.debug("unable to open %s for zero-copy transfer; streaming instead", file, e);
+            return false;
+        }
+
+        long size = zmi.getSize();
+        long start = 0, length = size;
+        if (octetStart >= 0) {
+            // a start past the end of the message returns an empty literal, as in the streaming case
+            start = Math.min(octetStart, size);
+            length = Math.max(0, Math.min(size, octetEnd) - octetStart);
+        }
+        ps.print(this);
+        ps.print(" {");
+        ps.print(length);
+        ps.write('}');   /* } added to fix vim buggy brace matching code */
+        os.write(ImapHandler.LINE_SEPARATOR_BYTES);
+        if (length > 0) {
+            ((NioOutputStream) os).write(channel, start, length);
+            ZimbraPerf.COUNTER_IMAP_ZERO_COPY_BYTES.increment(length);
+        } else {
+            channel.close();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the file backing the message's blob if its bytes are exactly the message as stored, or null for
+     * compressed blobs, blobs in an external store, and items that aren't messages.
+     */
+    private static File getUncompressedBlobFile(ZimbraMailItem zmi) {
+        if (!(zmi instanceof Message)) {
+            return null;
+        }
+        Message msg = (Message) zmi;
+        try {
+            MailboxBlob mblob = msg.getBlob();
+            if (!(mblob instanceof VolumeMailboxBlob)) {
+                return null;
+            }
+            Blob blob = mblob.getLocalBlob();
+            if (blob == null || blob.isCompressed()) {
+                return null;
+            }
+            File file = blob.getFile();
+            return file != null && file.length() == msg.getSize() ? file : null;
+        } catch (ServiceException | IOException e) {
+            ZimbraLog.imap.debug("unable to locate blob for message %d; streaming instead", msg.getId(), e);
+            return null;
+        }
     }
 
     void write(PrintStream ps, OutputStream os, MimeMessage mimeMsg)
@@ -18,6 +18,7 @@ package com.zimbra.cs.imap;
 
 import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
@@ -26,14 +27,40 @@ import java.util.TreeSet;
 import com.google.common.base.Joiner;
 import com.zimbra.common.util.Constants;
 import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
-import com.zimbra.cs.imap.ImapMessage.ImapMessageSet;
 
 abstract class ImapSearch {
     protected abstract boolean canBeRunLocally();
     protected abstract String toZimbraSearch(ImapFolder i4folder) throws ImapParseException;
-    protected abstract ImapMessageSet evaluate(ImapFolder i4folder) throws ImapParseException;
+    /** Evaluates the search against the folder's in-memory message sequence.
+     *  Bit <tt>n</tt> of the result is set if the message with sequence number
+     *  <tt>n+1</tt> matches.  Only valid when {@link #canBeRunLocally()}. */
+    protected abstract BitSet evaluate(ImapFolder i4folder) throws ImapParseException;
     protected boolean requiresMODSEQ()  { return false; }
 
+    /** Returns the matches for the criteria in this search that can be
+     *  answered from the in-memory sequence, or <tt>null</tt> if there are
+     *  none.  The full result is this set intersected with the results of
+     *  {@link #getIndexedPart()}. */
+    protected BitSet evaluateLocalPart(ImapFolder i4folder) throws ImapParseException {
+        return canBeRunLocally() ? evaluate(i4folder) : null;
+    }
+
+    /** Returns the criteria in this search that need the index to be
+     *  answered, or <tt>null</tt> if the search can be run entirely locally. */
+    protected ImapSearch getIndexedPart() {
+        return canBeRunLocally() ? null : this;
+    }
+
+    protected static BitSet sequenceAsBits(Set<ImapMessage> i4set) {
+        BitSet bits = new BitSet();
+        for (ImapMessage i4msg : i4set) {
+            if (i4msg != null) {
+                bits.set(i4msg.sequence - 1);
+            }
+        }
+        return bits;
+    }
+
     protected static boolean isAllMessages(ImapFolder i4folder, Set<ImapMessage> i4set) {
         int size = i4set.size() - (i4set.contains(null) ? 1 : 0);
         return size == i4folder.getSize();
@@ -174,13 +201,32 @@ abstract class ImapSearch {
         }
 
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder) throws ImapParseException {
-            ImapMessageSet matched = null;
+        protected BitSet evaluate(ImapFolder i4folder) throws ImapParseException {
+            BitSet matched = null;
             for (ImapSearch i4search : mChildren) {
                 if (matched == null) {
                     matched = i4search.evaluate(i4folder);
                 } else {
-                    matched.retainAll(i4search.evaluate(i4folder));
+                    matched.and(i4search.evaluate(i4folder));
+                }
+
+                if (matched.isEmpty())
+                    break;
+            }
+            return matched;
+        }
+
+        @Override
+        protected BitSet evaluateLocalPart(ImapFolder i4folder) throws ImapParseException {
+            BitSet matched = null;
+            for (ImapSearch i4search : mChildren) {
+                BitSet local = i4search.evaluateLocalPart(i4folder);
+                if (local == null) {
+                    continue;
+                } else if (matched == null) {
+                    matched = local;
+                } else {
+                    matched.and(local);
                 }
 
                 if (matched.isEmpty())
@@ -188,6 +234,24 @@ abstract class ImapSearch {
             }
             return matched;
         }
+
+        @Override
+        protected ImapSearch getIndexedPart() {
+            List<ImapSearch> indexed = new ArrayList<ImapSearch>(mChildren.size());
+            for (ImapSearch i4search : mChildren) {
+                ImapSearch child = i4search.getIndexedPart();
+                if (child != null) {
+                    indexed.add(child);
+                }
+            }
+            if (indexed.isEmpty()) {
+                return null;
+            } else if (indexed.size() == 1) {
+                return indexed.get(0);
+            } else {
+                return new AndOperation(indexed.toArray(new ImapSearch[indexed.size()]));
+            }
+        }
     }
 
     static class OrOperation extends LogicalOperation {
@@ -203,16 +267,16 @@ abstract class ImapSearch {
         }
 
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder) throws ImapParseException {
-            ImapMessageSet matched = null;
+        protected BitSet evaluate(ImapFolder i4folder) throws ImapParseException {
+            BitSet matched = null;
             for (ImapSearch i4search : mChildren) {
                 if (matched == null) {
                     matched = i4search.evaluate(i4folder);
                 } else {
-                    matched.addAll(i4search.evaluate(i4folder));
+                    matched.or(i4search.evaluate(i4folder));
                 }
 
-                if (isAllMessages(i4folder, matched))
+                if (matched.cardinality() >= i4folder.getSize())
                     break;
             }
             return matched;
@@ -229,9 +293,9 @@ abstract class ImapSearch {
         }
 
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder) throws ImapParseException {
-            ImapMessageSet matches = i4folder.getAllMessages();
-            matches.removeAll(mChildren.get(0).evaluate(i4folder));
+        protected BitSet evaluate(ImapFolder i4folder) throws ImapParseException {
+            BitSet matches = i4folder.getAllMessageBits();
+            matches.andNot(mChildren.get(0).evaluate(i4folder));
             return matches;
         }
     }
@@ -242,7 +306,7 @@ abstract class ImapSearch {
         @Override
         protected String toZimbraSearch(ImapFolder i4folder)    { return "item:all"; }
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder)  { return i4folder.getAllMessages(); }
+        protected BitSet evaluate(ImapFolder i4folder)  { return i4folder.getAllMessageBits(); }
 
         @Override
         public boolean equals(Object obj) {
@@ -261,7 +325,7 @@ abstract class ImapSearch {
         @Override
         protected String toZimbraSearch(ImapFolder i4folder)    { return "item:none"; }
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder)  { return new ImapMessageSet(); }
+        protected BitSet evaluate(ImapFolder i4folder)  { return new BitSet(); }
 
         @Override
         public boolean equals(Object obj) {
@@ -285,12 +349,12 @@ abstract class ImapSearch {
 
         @Override
         protected String toZimbraSearch(ImapFolder i4folder) throws ImapParseException {
-            return sequenceAsSearchTerm(i4folder, evaluate(i4folder), true);
+            return sequenceAsSearchTerm(i4folder, i4folder.getSubsequence(mTag, mSubSequence, mIsUidSearch, true), true);
         }
 
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder) throws ImapParseException {
-            return i4folder.getSubsequence(mTag, mSubSequence, mIsUidSearch, true);
+        protected BitSet evaluate(ImapFolder i4folder) throws ImapParseException {
+            return sequenceAsBits(i4folder.getSubsequence(mTag, mSubSequence, mIsUidSearch, true));
         }
 
         @Override
@@ -350,15 +414,15 @@ abstract class ImapSearch {
         }
 
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder) {
+        protected BitSet evaluate(ImapFolder i4folder) {
             ImapFlag i4flag = i4folder.getFlagByName(mFlagName);
             if (i4flag == null) {
-                return new ImapMessageSet();
+                return new BitSet();
             } else if (i4flag.mPositive) {
-                return i4folder.getFlaggedMessages(i4flag);
+                return i4folder.getFlaggedMessageBits(i4flag);
             } else {
-                ImapMessageSet matched = i4folder.getAllMessages();
-                matched.removeAll(i4folder.getFlaggedMessages(i4flag));
+                BitSet matched = i4folder.getAllMessageBits();
+                matched.andNot(i4folder.getFlaggedMessageBits(i4flag));
                 return matched;
             }
         }
@@ -424,11 +488,11 @@ abstract class ImapSearch {
         }
 
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder) {
+        protected BitSet evaluate(ImapFolder i4folder) {
             if (mTimestamp < 0) {
-                return (mRelation == Relation.after ? i4folder.getAllMessages() : new ImapMessageSet());
+                return (mRelation == Relation.after ? i4folder.getAllMessageBits() : new BitSet());
             } else if (mTimestamp > System.currentTimeMillis() + 36 * Constants.MILLIS_PER_MONTH) {
-                return (mRelation == Relation.before ? i4folder.getAllMessages() : new ImapMessageSet());
+                return (mRelation == Relation.before ? i4folder.getAllMessageBits() : new BitSet());
             } else {
                 throw new UnsupportedOperationException("evaluate of " + toZimbraSearch(i4folder));
             }
@@ -487,7 +551,7 @@ abstract class ImapSearch {
         }
 
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder) {
+        protected BitSet evaluate(ImapFolder i4folder) {
             throw new UnsupportedOperationException("evaluate of " + toZimbraSearch(i4folder));
         }
 
@@ -537,7 +601,7 @@ abstract class ImapSearch {
         @Override
         protected String toZimbraSearch(ImapFolder i4folder)  { return "(modseq:>" + mChangedSince + ")"; }
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder) {
+        protected BitSet evaluate(ImapFolder i4folder) {
             throw new UnsupportedOperationException("evaluate of " + toZimbraSearch(i4folder));
         }
 
@@ -576,7 +640,7 @@ abstract class ImapSearch {
         @Override
         protected String toZimbraSearch(ImapFolder i4folder)  { return mRelation + ":" + mSize; }
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder) {
+        protected BitSet evaluate(ImapFolder i4folder) {
             throw new UnsupportedOperationException("evaluate of " + toZimbraSearch(i4folder));
         }
 
@@ -621,9 +685,9 @@ abstract class ImapSearch {
         @Override
         protected String toZimbraSearch(ImapFolder i4folder)  { return stringAsSearchTerm(mValue); }
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder) {
+        protected BitSet evaluate(ImapFolder i4folder) {
             if (canBeRunLocally())
-                return i4folder.getAllMessages();
+                return i4folder.getAllMessageBits();
             throw new UnsupportedOperationException("evaluate of " + toZimbraSearch(i4folder));
         }
 
@@ -759,7 +823,7 @@ abstract class ImapSearch {
         }
 
         @Override
-        protected ImapMessageSet evaluate(ImapFolder i4folder) {
+        protected BitSet evaluate(ImapFolder i4folder) {
             throw new UnsupportedOperationException("evaluate of " + toZimbraSearch(i4folder));
         }
 
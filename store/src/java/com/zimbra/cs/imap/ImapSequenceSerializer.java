@@ -0,0 +1,202 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.zimbra.common.util.ArrayUtil;
+import com.zimbra.cs.mailbox.MailItem;
+
+/**
+ * Compact binary form of an {@link ImapFolder}'s message sequence, used in place of default Java serialization of
+ * the {@code ImapMessage} list when a folder is paged out to the IMAP session cache.
+ * <p>
+ * The sequence is written column by column rather than message by message: UIDs and item IDs as zigzag varint
+ * deltas, flags as varints, each distinct tag set once in a table with a varint index per message, and each session
+ * flag as a {@link BitSet} over sequence positions.  Sequence numbers are not written; they are the 1-based
+ * positions in the list.  On read, messages with the same tags share a single {@code String[]}.
+ */
+final class ImapSequenceSerializer {
+    private static final byte VERSION = 1;
+
+    private ImapSequenceSerializer() {
+    }
+
+    static void write(List<ImapMessage> sequence, DataOutput out) throws IOException {
+        int size = sequence.size();
+        out.writeByte(VERSION);
+        writeVarint(out, size);
+
+        int last = 0;
+        for (ImapMessage i4msg : sequence) {
+            writeVarint(out, zigzag(i4msg.imapUid - last));
+            last = i4msg.imapUid;
+        }
+        last = 0;
+        for (ImapMessage i4msg : sequence) {
+            writeVarint(out, zigzag(i4msg.msgId - last));
+            last = i4msg.msgId;
+        }
+        for (ImapMessage i4msg : sequence) {
+            writeVarint(out, i4msg.flags);
+        }
+
+        // tag set 0 is "no tags"
+        Map<List<String>, Integer> tagsets = new HashMap<List<String>, Integer>();
+        List<String[]> table = new ArrayList<String[]>();
+        int[] indexes = new int[size];
+        for (int i = 0; i < size; i++) {
+            String[] tags = sequence.get(i).tags;
+            if (ArrayUtil.isEmpty(tags)) {
+                continue;
+            }
+            List<String> key = Arrays.asList(tags);
+            Integer index = tagsets.get(key);
+            if (index == null) {
+                table.add(tags);
+                tagsets.put(key, index = table.size());
+            }
+            indexes[i] = index;
+        }
+        writeVarint(out, table.size());
+        for (String[] tags : table) {
+            writeVarint(out, tags.length);
+            for (String tag : tags) {
+                out.writeUTF(tag);
+            }
+        }
+        for (int index : indexes) {
+            writeVarint(out, index);
+        }
+
+        short present = 0;
+        for (ImapMessage i4msg : sequence) {
+            present |= i4msg.sflags;
+        }
+        out.writeShort(present);
+        for (int bit = 0; bit < Short.SIZE; bit++) {
+            short mask = (short) (1 << bit);
+            if ((present & mask) == 0) {
+                continue;
+            }
+            BitSet positions = new BitSet(size);
+            for (int i = 0; i < size; i++) {
+                if ((sequence.get(i).sflags & mask) != 0) {
+                    positions.set(i);
+                }
+            }
+            byte[] bits = positions.toByteArray();
+            writeVarint(out, bits.length);
+            out.write(bits);
+        }
+    }
+
+    static List<ImapMessage> read(DataInput in) throws IOException {
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new InvalidObjectException("unsupported IMAP sequence version " + version);
+        }
+        int size = readVarint(in);
+        int[] uids = new int[size];
+        int[] ids = new int[size];
+        int[] flags = new int[size];
+        int last = 0;
+        for (int i = 0; i < size; i++) {
+            uids[i] = last += unzigzag(readVarint(in));
+        }
+        last = 0;
+        for (int i = 0; i < size; i++) {
+            ids[i] = last += unzigzag(readVarint(in));
+        }
+        for (int i = 0; i < size; i++) {
+            flags[i] = readVarint(in);
+        }
+
+        String[][] table = new String[readVarint(in) + 1][];
+        for (int t = 1; t < table.length; t++) {
+            String[] tags = new String[readVarint(in)];
+            for (int j = 0; j < tags.length; j++) {
+                tags[j] = in.readUTF();
+            }
+            table[t] = tags;
+        }
+
+        List<ImapMessage> sequence = new ArrayList<ImapMessage>(size);
+        for (int i = 0; i < size; i++) {
+            int index = readVarint(in);
+            if (index >= table.length) {
+                throw new InvalidObjectException("tag set index out of range: " + index);
+            }
+            // the contact bit, like every other session flag, is restored from the bitsets below
+            ImapMessage i4msg = new ImapMessage(ids[i], MailItem.Type.MESSAGE, uids[i], flags[i], table[index]);
+            i4msg.sequence = i + 1;
+            sequence.add(i4msg);
+        }
+
+        short present = in.readShort();
+        for (int bit = 0; bit < Short.SIZE; bit++) {
+            short mask = (short) (1 << bit);
+            if ((present & mask) == 0) {
+                continue;
+            }
+            byte[] bits = new byte[readVarint(in)];
+            in.readFully(bits);
+            BitSet positions = BitSet.valueOf(bits);
+            for (int i = positions.nextSetBit(0); i >= 0 && i < size; i = positions.nextSetBit(i + 1)) {
+                sequence.get(i).sflags |= mask;
+            }
+        }
+        return sequence;
+    }
+
+    private static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    private static int unzigzag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    static void writeVarint(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarint(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new InvalidObjectException("malformed varint");
+    }
+}
@@ -30,6 +30,7 @@ import com.zimbra.cs.mailbox.Message;
 import com.zimbra.cs.session.PendingLocalModifications;
 import com.zimbra.cs.session.PendingModifications;
 import com.zimbra.cs.session.PendingModifications.Change;
+import com.zimbra.cs.session.Session;
 
 public class ImapSession extends ImapListener {
 
@@ -71,6 +72,42 @@ public class ImapSession extends ImapListener {
         super(imapStore, i4folder, handler);
     }
 
+    /** The hub sharing notifications between sessions on this mailbox, or
+     *  <tt>null</tt> if this session processes every commit itself. */
+    private volatile ImapNotificationHub hub;
+
+    void subscribe() {
+        if (hub == null) {
+            hub = ImapNotificationHub.subscribe(this);
+        }
+    }
+
+    void unsubscribe() {
+        ImapNotificationHub i4hub = hub;
+        if (i4hub != null) {
+            i4hub.unsubscribe(this);
+            hub = null;
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void notifyPendingChanges(PendingModifications pns, int changeId, Session source) {
+        ImapNotificationHub i4hub = hub;
+        if (i4hub != null) {
+            // the hub calls deliver() on just the sessions whose folders the commit touched
+            i4hub.notifyPendingChanges(pns, changeId);
+        } else {
+            super.notifyPendingChanges(pns, changeId, source);
+        }
+    }
+
+    /** Applies this folder's share of a commit, as routed by the
+     *  {@link ImapNotificationHub}. */
+    void deliver(PendingModifications<?> folderMods, int changeId) {
+        applyPendingChanges(folderMods, changeId);
+    }
+
     @Override
     public boolean hasNotifications() {
         return mFolder.hasNotifications();
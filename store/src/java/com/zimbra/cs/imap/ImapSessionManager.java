@@ -16,8 +16,10 @@
  */
 package com.zimbra.cs.imap;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -54,6 +56,7 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.Constants;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.imap.ImapHandler.ImapExtension;
+import com.zimbra.cs.imap.ImapListener.ImapFolderData;
 import com.zimbra.cs.mailbox.Flag;
 import com.zimbra.cs.mailbox.MailServiceException;
 import com.zimbra.cs.mailbox.MailServiceException.MailboxInMaintenanceException;
@@ -74,6 +77,7 @@ final class ImapSessionManager {
 
     private static final boolean TERMINATE_ON_CLOSE = DebugConfig.imapTerminateSessionOnClose;
     private static final boolean SERIALIZE_ON_CLOSE = DebugConfig.imapSerializeSessionOnClose;
+    private static final int MAX_DELTA_CHAIN = LC.imap_session_cache_max_delta_chain.intValue();
 
     /**
      * ConcurrentLinkedHashMap is used because it has good concurrency attributes, offers fast access by key and
@@ -290,9 +294,17 @@ final class ImapSessionManager {
         OperationContext octxt = handler.getCredentials().getContext();
 
         List<ImapMessage> i4list = null;
-        // *always* recalculate the contents of search folders
+        ImapFolder cached = null;
+        // search folders are cached under the mailbox's last change ID, so a hit means nothing can have changed --
+        //   unless the query uses a relative date, whose matches also change as time passes
         if (folder instanceof SearchFolderStore) {
-            i4list = loadVirtualFolder(octxt, (SearchFolderStore) folder);
+            if (!ImapFolder.isTimeRelative(((SearchFolderStore) folder).getQuery())) {
+                cached = getCache(folder);
+                i4list = duplicateSerializedFolder(folder, cached);
+            }
+            if (i4list == null) {
+                i4list = loadVirtualFolder(octxt, (SearchFolderStore) folder);
+            }
         } else {
             waitForWaitSetNotifications(imapStore, folder);
         }
@@ -315,7 +327,8 @@ final class ImapSessionManager {
                 i4list = duplicateExistingSession(folderId, listners);
                 // no matching session means we next check for serialized folder data
                 if (i4list == null) {
-                    i4list = duplicateSerializedFolder(folder);
+                    cached = getCache(folder);
+                    i4list = duplicateSerializedFolder(folder, cached);
                 } else if (CONSISTENCY_CHECK) {
                     Collections.sort(i4list);
                     //sort only if using list from duplicated session which may be out of order
@@ -357,6 +370,10 @@ final class ImapSessionManager {
                 }
             }
             i4folder.setInitialSize();
+            if (cached != null) {
+                // the next page-out only has to write what changed since the cached copy
+                i4folder.setCacheSnapshot(cached.getCacheSnapshot());
+            }
             ZimbraLog.imap.debug("ImapSessionManager.openFolder.  Folder with id=%s added message list %s",
                     folderIdAsString, i4list);
 
@@ -548,8 +565,7 @@ final class ImapSessionManager {
         return listeners;
     }
 
-    private List<ImapMessage> duplicateSerializedFolder(FolderStore folder) {
-        ImapFolder i4folder = getCache(folder);
+    private List<ImapMessage> duplicateSerializedFolder(FolderStore folder, ImapFolder i4folder) {
         if (i4folder == null) { // cache miss
             return null;
         }
@@ -657,8 +673,18 @@ final class ImapSessionManager {
             session.inactivate();
         }
 
-        // no fancy stuff for search folders since they're always recalculated on load
+        // search folders are only kept for a reselect before the mailbox next changes
         if (session.isVirtual()) {
+            ImapFolderData fdata = session.mFolder;
+            boolean cacheable = fdata instanceof ImapFolder && !((ImapFolder) fdata).isTimeRelative();
+            if (SERIALIZE_ON_CLOSE && cacheable && !session.hasExpunges()) {
+                try {
+                    session.serialize(false);
+                } catch (Exception e) {
+                    ZimbraLog.imap.debug("Skipping error while trying to serialize search folder during close %s",
+                            session, e);
+                }
+            }
             session.detach();
             return;
         }
@@ -721,11 +747,11 @@ final class ImapSessionManager {
      * Try to retrieve from inactive session cache, then fall back to active session cache.
      */
     private ImapFolder getCache(FolderStore folder) {
-        ImapFolder i4folder = inactiveSessionCache.get(cacheKey(folder, false));
+        ImapFolder i4folder = deserialize(cacheKey(folder, false));
         if (i4folder != null) {
             return i4folder;
         }
-        return activeSessionCache.get(cacheKey(folder, true));
+        return deserialize(cacheKey(folder, true));
     }
 
     /**
@@ -786,21 +812,68 @@ final class ImapSessionManager {
         }
     }
 
+    private Cache<String, ImapFolder> cacheFor(String key) {
+        return isActiveKey(key) ? activeSessionCache : inactiveSessionCache;
+    }
+
+    /**
+     * Stores the folder under {@code key}.  If an earlier copy of the folder is still cached and not too many
+     * messages have changed since, only the changes are stored, as a delta against that copy.
+     */
     protected void serialize(String key, ImapFolder folder) {
-        if (!isActiveKey(key)) {
-            inactiveSessionCache.put(key, folder);
+        ImapFolder.CacheSnapshot snapshot = folder.getCacheSnapshot();
+        ImapFolder delta = null;
+        if (snapshot != null && !snapshot.key.equals(key) && snapshot.depth < MAX_DELTA_CHAIN) {
+            delta = folder.createCacheDelta(folder.getSize() / 4);
+        }
+        if (delta != null) {
+            ZimbraLog.imap.debug("caching %s as delta of %s (depth %d)", key, snapshot.key, snapshot.depth + 1);
+            cacheFor(key).put(key, delta);
+            folder.setCacheSnapshot(key, snapshot.depth + 1);
         } else {
-            activeSessionCache.put(key, folder);
+            cacheFor(key).put(key, folder);
+            // an existing entry under the same key is left alone, so what the cache holds is no longer known
+            if (snapshot != null && snapshot.key.equals(key)) {
+                folder.setCacheSnapshot(null);
+            } else {
+                folder.setCacheSnapshot(key, 0);
+            }
         }
     }
 
+    /**
+     * Loads the folder cached under {@code key}, applying any chain of deltas to the full copy it is based on.
+     */
     protected ImapFolder deserialize(String key) {
-        if (!isActiveKey(key)) {
-            return inactiveSessionCache.get(key);
-        } else {
-            ImapFolder folder = activeSessionCache.get(key);
-            return folder;
+        ImapFolder i4folder = cacheFor(key).get(key);
+        if (i4folder == null || !i4folder.isDelta()) {
+            if (i4folder != null) {
+                i4folder.setCacheSnapshot(key, 0);
+            }
+            return i4folder;
+        }
+        Deque<ImapFolder> deltas = new ArrayDeque<ImapFolder>();
+        while (i4folder != null && i4folder.isDelta()) {
+            if (deltas.size() >= MAX_DELTA_CHAIN) {
+                i4folder = null;
+                break;
+            }
+            deltas.push(i4folder);
+            String base = i4folder.getDeltaBase();
+            i4folder = cacheFor(base).get(base);
+        }
+        if (i4folder == null) {
+            // the delta is useless without its base, so make room for a full copy
+            ZimbraLog.imap.debug("dropping cached delta %s with missing base", key);
+            cacheFor(key).remove(key);
+            return null;
+        }
+        int depth = deltas.size();
+        while (!deltas.isEmpty()) {
+            i4folder = i4folder.applyCacheDelta(deltas.pop());
         }
+        i4folder.setCacheSnapshot(key, depth);
+        return i4folder;
     }
 
     protected void updateAccessTime(String key) {
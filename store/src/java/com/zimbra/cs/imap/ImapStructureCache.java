@@ -0,0 +1,189 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Map;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.ehcache.Cache;
+
+import com.google.common.base.Charsets;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mailbox.ZimbraMailItem;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.util.EhcacheManager;
+
+/**
+ * Precomputed IMAP ENVELOPE, BODY and BODYSTRUCTURE responses.
+ * <p>
+ * Entries are keyed by blob digest, so every copy of a message shares one entry and nothing ever needs to be
+ * invalidated.  The key also carries the account's default charset, which decides how unlabelled 8-bit headers
+ * are decoded, so accounts only share entries when they would build the same responses.  An entry is built the first time a client asks for any of the three attributes and is kept in a
+ * persistent Ehcache disk store (or, when Ehcache is disabled, an in-memory LRU), so later FETCHes of those
+ * attributes touch neither the blob nor the MIME parser.  Items without a digest, such as contacts and remote
+ * messages, are serialized directly every time.
+ */
+final class ImapStructureCache {
+
+    /** Bumped whenever the serialized form of any of the responses changes. */
+    private static final byte VERSION = 1;
+
+    private static ImapStructureCache instance;
+
+    private final Cache<String, byte[]> ehcache;
+    private final Map<String, byte[]> lru;
+
+    static final class Structure {
+        final byte[] envelope;
+        final byte[] body;
+        final byte[] bodystructure;
+
+        Structure(byte[] envelope, byte[] body, byte[] bodystructure) {
+            this.envelope = envelope;
+            this.body = body;
+            this.bodystructure = bodystructure;
+        }
+    }
+
+    private ImapStructureCache() {
+        Cache<String, byte[]> cache = null;
+        if (LC.imap_use_ehcache.booleanValue()) {
+            EhcacheManager.Service service = !ImapDaemon.isRunningImapInsideMailboxd()
+                    ? EhcacheManager.Service.IMAP
+                    : EhcacheManager.Service.MAILBOX;
+            cache = EhcacheManager.getInstance(service).getImapStructureEhcache();
+        }
+        ehcache = cache;
+        lru = cache != null ? null : new ConcurrentLinkedHashMap.Builder<String, byte[]>()
+                .maximumWeightedCapacity(LC.imap_structure_cache_heap_entries.intValue()).build();
+    }
+
+    static synchronized ImapStructureCache getInstance() {
+        if (instance == null) {
+            instance = new ImapStructureCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the IMAP structure of {@code item}, from the cache if possible.  {@code mm} may be passed in when the
+     * caller has already parsed the message for other reasons; otherwise it's only fetched on a cache miss.
+     */
+    Structure get(ZimbraMailItem item, MimeMessage mm) throws ServiceException, IOException, MessagingException {
+        String key = item instanceof Message && LC.imap_structure_cache_enabled.booleanValue() ?
+                getKey((Message) item) : null;
+        if (key == null) {
+            return serialize(mm != null ? mm : ImapMessage.getMimeMessage(item));
+        }
+
+        Structure structure = decode(lookup(key));
+        ZimbraPerf.COUNTER_IMAP_STRUCTURE_CACHE.increment(structure == null ? 0 : 100);
+        if (structure == null) {
+            structure = serialize(mm != null ? mm : ImapMessage.getMimeMessage(item));
+            store(key, encode(structure));
+        }
+        return structure;
+    }
+
+    /** Returns null if the message has no digest to key it by. */
+    static String getKey(Message msg) throws ServiceException {
+        String digest = msg.getDigest();
+        if (digest == null) {
+            return null;
+        }
+        String charset = msg.getAccount().getPrefMailDefaultCharset();
+        return charset == null ? digest : digest + '/' + charset.toLowerCase();
+    }
+
+    private byte[] lookup(String key) {
+        try {
+            return ehcache != null ? ehcache.get(key) : lru.get(key);
+        } catch (RuntimeException e) {
+            ZimbraLog.imap.warn("unable to read IMAP structure cache entry %s", key, e);
+            return null;
+        }
+    }
+
+    private void store(String key, byte[] data) {
+        try {
+            if (ehcache != null) {
+                ehcache.put(key, data);
+            } else {
+                lru.put(key, data);
+            }
+        } catch (RuntimeException e) {
+            ZimbraLog.imap.warn("unable to write IMAP structure cache entry %s", key, e);
+        }
+    }
+
+    static Structure serialize(MimeMessage mm) throws IOException, MessagingException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PrintStream ps = new PrintStream(baos, false, Charsets.UTF_8.name());
+        ImapMessage.serializeEnvelope(ps, mm);
+        ps.flush();
+        byte[] envelope = baos.toByteArray();
+
+        baos.reset();
+        ImapMessage.serializeStructure(ps, mm, false);
+        ps.flush();
+        byte[] body = baos.toByteArray();
+
+        baos.reset();
+        ImapMessage.serializeStructure(ps, mm, true);
+        ps.flush();
+        return new Structure(envelope, body, baos.toByteArray());
+    }
+
+    static byte[] encode(Structure structure) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(16 + structure.envelope.length +
+                structure.body.length + structure.bodystructure.length);
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeByte(VERSION);
+        for (byte[] field : new byte[][] { structure.envelope, structure.body, structure.bodystructure }) {
+            out.writeInt(field.length);
+            out.write(field);
+        }
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    /** Returns null for a missing entry or one written in an older format. */
+    static Structure decode(byte[] data) throws IOException {
+        if (data == null || data.length == 0 || data[0] != VERSION) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 1, data.length - 1));
+        byte[][] fields = new byte[3][];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = new byte[in.readInt()];
+            in.readFully(fields[i]);
+        }
+        return new Structure(fields[0], fields[1], fields[2]);
+    }
+}
@@ -122,7 +122,8 @@ abstract class Literal {
         BlobLiteral(int size) throws IOException {
             try {
                 this.size = size;
-                builder = StoreManager.getInstance().getBlobBuilder();
+                // digest and size are computed as the literal streams in
+                builder = StoreManager.getInstance().getBlobBuilder().setSizeHint(size);
                 builder.init();
             } catch (ServiceException e) {
                 throw error("Unable to initialize BlobBuilder", e);
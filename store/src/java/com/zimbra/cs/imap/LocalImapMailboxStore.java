@@ -123,6 +123,11 @@ public class LocalImapMailboxStore extends ImapMailboxStore {
         }
     }
 
+    @Override
+    public void prefetchItems(OperationContext octxt, Collection<Integer> ids) throws ServiceException {
+        mailbox.prefetchItems(octxt, ids);
+    }
+
     /**
      * MUST only be called when the source items and target folder are in the same mailbox
      * @return List of IMAP UIDs
@@ -242,12 +247,17 @@ public class LocalImapMailboxStore extends ImapMailboxStore {
 
     @Override
     public void registerWithImapServerListener(ImapListener listener) {
-        // Do nothing - use mailbox NOT ImapServerListener to monitor changes
+        // use mailbox NOT ImapServerListener to monitor changes, but share the per-commit work between sessions
+        if (listener instanceof ImapSession && !listener.isVirtual() && ImapNotificationHub.isEnabled()) {
+            ((ImapSession) listener).subscribe();
+        }
     }
 
     @Override
     public void unregisterWithImapServerListener(ImapListener listener) {
-        // Do nothing - use mailbox NOT ImapServerListener to monitor changes
+        if (listener instanceof ImapSession) {
+            ((ImapSession) listener).unsubscribe();
+        }
     }
 
     @Override
@@ -184,6 +184,12 @@ final class NioImapHandler extends ImapHandler implements NioHandler {
         ZimbraLog.addConnectionIdToContext(String.valueOf(connection.getId()));
     }
 
+    @Override
+    public String getAccountId() {
+        ImapCredentials creds = credentials;
+        return creds == null ? null : creds.getAccountId();
+    }
+
     @Override
     protected void sendLine(String line, boolean flush) throws IOException {
         NioOutputStream out = (NioOutputStream) output;
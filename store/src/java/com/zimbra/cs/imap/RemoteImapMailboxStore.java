@@ -123,6 +123,11 @@ public class RemoteImapMailboxStore extends ImapMailboxStore {
         }
     }
 
+    @Override
+    public void prefetchItems(OperationContext octxt, Collection<Integer> ids) {
+        // items are fetched from the remote server one by one; there is no local item cache to warm
+    }
+
     /**
      * MUST only be called when the source items and target folder are in the same mailbox
      * @return List of IMAP UIDs
@@ -18,16 +18,164 @@ package com.zimbra.cs.index;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
 
 /**
  * Base class for query operations that combine sets of sub-operations (e.g. Intersections or Unions).
  */
 abstract class CombiningQueryOperation extends QueryOperation {
 
+    // Search threads are created on demand, and the number of threads is capped. When they are all busy, the
+    // sub-operations run on the requesting thread as before.
+    private static final ExecutorService SEARCH_EXECUTOR = LC.search_parallel_threads.intValue() > 0 ?
+            new ThreadPoolExecutor(0, LC.search_parallel_threads.intValue(), 60L, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(),
+                    new ThreadFactoryBuilder().setNameFormat("Search-%d").setDaemon(true).build()) : null;
+
     protected List<QueryOperation> operations = new ArrayList<QueryOperation>();
 
     int getNumSubOps() {
         return operations.size();
     }
 
+    /**
+     * Begins all sub-operations and buffers their first chunk of hits, concurrently on the search threads. The
+     * sub-operations of a complex query are independent Lucene and DB lookups, so the slowest of them rather than
+     * their sum bounds the latency.
+     * <p>
+     * Sub-operations still running when the time budget runs out are dropped from {@link #operations} and closed by
+     * their search thread once they finish, and the search fails.
+     *
+     * @param ctx context to begin each sub-operation with
+     * @return false if the sub-operations were not begun, and the caller needs to begin them one after another
+     */
+    boolean beginParallel(QueryContext ctx) throws ServiceException {
+        // a sub-operation may need the mailbox lock, which the search threads can't get if the caller holds it
+        if (SEARCH_EXECUTOR == null || operations.size() < 2 || !ctx.getMailbox().lock.isUnlocked()) {
+            return false;
+        }
+        long budget = LC.search_parallel_budget_ms.longValue();
+        long deadline = System.currentTimeMillis() + budget;
+        List<Prefetch> submitted = new ArrayList<Prefetch>(operations.size());
+        List<Prefetch> inline = new ArrayList<Prefetch>(operations.size());
+        for (QueryOperation op : operations) {
+            if (inline.isEmpty()) {
+                inline.add(new Prefetch(op, ctx, false)); // the calling thread takes one, rather than sit idle
+                continue;
+            }
+            Prefetch task = new Prefetch(op, ctx, true);
+            try {
+                task.future = SEARCH_EXECUTOR.submit(task);
+                submitted.add(task);
+            } catch (RejectedExecutionException e) {
+                inline.add(new Prefetch(op, ctx, false));
+            }
+        }
+
+        ServiceException failure = null;
+        for (Prefetch task : inline) {
+            try {
+                task.call();
+            } catch (ServiceException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        for (Prefetch task : submitted) {
+            try {
+                task.future.get(Math.max(deadline - System.currentTimeMillis(), 0L), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (failure == null) {
+                    failure = ServiceException.FAILURE("Search exceeded its time budget of " + budget + "ms", null);
+                }
+                if (task.abandon()) {
+                    operations.remove(task.op);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) {
+                    failure = ServiceException.INTERRUPTED("search");
+                }
+                if (task.abandon()) {
+                    operations.remove(task.op);
+                }
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof ServiceException ? (ServiceException) e.getCause() :
+                        ServiceException.FAILURE("Failed to execute search", e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return true;
+    }
+
+    private static final class Prefetch implements Callable<Void> {
+        private final QueryOperation op;
+        private final QueryContext ctx;
+        private final boolean pooled;
+        private Future<Void> future;
+        private boolean done = false;
+        private boolean abandoned = false;
+
+        Prefetch(QueryOperation op, QueryContext ctx, boolean pooled) {
+            this.op = op;
+            this.ctx = ctx;
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Void call() throws ServiceException {
+            if (pooled) {
+                ZimbraLog.addMboxToContext(ctx.getMailbox().getId());
+            }
+            try {
+                ZimbraLog.search.debug("Executing: %s", op);
+                op.begin(ctx);
+                op.hasNext(); // buffer the first chunk
+                return null;
+            } finally {
+                synchronized (this) {
+                    done = true;
+                    if (abandoned) {
+                        Closeables.closeQuietly(op);
+                    }
+                }
+                if (pooled) {
+                    ZimbraLog.clearContext();
+                }
+            }
+        }
+
+        /**
+         * Leaves the sub-operation to close itself when it finishes.
+         *
+         * @return false if it has already finished, and the caller still owns it
+         */
+        synchronized boolean abandon() {
+            if (done) {
+                return false;
+            }
+            abandoned = true;
+            return true;
+        }
+    }
+
 }
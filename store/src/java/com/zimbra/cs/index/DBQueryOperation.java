@@ -17,6 +17,7 @@
 package com.zimbra.cs.index;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -33,6 +34,7 @@ import org.apache.lucene.index.Term;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Closeables;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.db.Db;
@@ -94,6 +96,13 @@ public class DBQueryOperation extends QueryOperation {
      */
     private LuceneQueryOperation.LuceneResultsChunk luceneChunk = null;
 
+    /**
+     * For a bitmap join, all the DB hits that are also Lucene hits, in sort order, and how many of them have been
+     * returned so far.
+     */
+    private List<DbSearch.Result> joinedHits = null;
+    private int joinedOffset = 0;
+
     /**
      * If set, then this is the AccountId of the owner of a folder we are searching. We track it at the toplevel here
      * b/c we need to make sure that we handle unions (don't combine) and intersections (always empty set) correctly.
@@ -108,7 +117,8 @@ public class DBQueryOperation extends QueryOperation {
         NO_RESULTS,
         NO_LUCENE,
         DB_FIRST,
-        LUCENE_FIRST;
+        LUCENE_FIRST,
+        BITMAP_JOIN;
     }
 
     /**
@@ -457,6 +467,7 @@ public class DBQueryOperation extends QueryOperation {
         mSeenHits.clear();
         if (!atStart) {
             dbOffset = 0;
+            joinedOffset = 0;
             dbHitsIter = null;
             hitsOffset = 0;
             endOfHits = false;
@@ -517,6 +528,13 @@ public class DBQueryOperation extends QueryOperation {
                         } else if (shouldExecuteDbFirst()) {
                             luceneOp.clearFilterClause();
                             executeMode = QueryExecuteMode.DB_FIRST;
+                        } else if (shouldBitmapJoin()) {
+                            executeMode = QueryExecuteMode.BITMAP_JOIN;
+                            if (fetch == DbSearch.FetchMode.MAIL_ITEM) {
+                                // only the items that survive the join are loaded, a page at a time, by the
+                                // ItemPreloadingGrouper
+                                fetch = DbSearch.FetchMode.ID;
+                            }
                         } else {
                             executeMode = QueryExecuteMode.LUCENE_FIRST;
                         }
@@ -683,6 +701,79 @@ public class DBQueryOperation extends QueryOperation {
         return constraints.tryDbFirst(context.getMailbox());
     }
 
+    private boolean shouldBitmapJoin() throws ServiceException {
+        long luceneHits = luceneOp.getTotalHitCount();
+        int firstBatch = Math.min(Db.getINClauseBatchSize(), hitsPerChunk);
+        if (luceneHits <= firstBatch) {
+            return false; // the chunked join gets everything in one round trip
+        }
+        long dbRows = estimateDbHitCount();
+        boolean result = preferBitmapJoin(luceneHits, dbRows, luceneOp.getIndexDocCount(), firstBatch,
+                Math.min(Db.getINClauseBatchSize(), MAX_HITS_PER_CHUNK), hitsPerChunk);
+        ZimbraLog.search.debug("JoinCost lucene=%d,db=%d,bitmap=%b", luceneHits, dbRows, result);
+        return result;
+    }
+
+    /**
+     * Estimates the DB hits from the item counts of the target folders, which are cached, or else counts them.
+     */
+    private long estimateDbHitCount() throws ServiceException {
+        Set<Folder> folders = getTargetFolders();
+        if (folders != null && !folders.isEmpty()) {
+            long total = 0;
+            for (Folder folder : folders) {
+                total += folder.getItemCount();
+            }
+            return total;
+        }
+        return getDbHitCount();
+    }
+
+    /**
+     * Chooses between the chunked LUCENE-FIRST join and the bitmap join by their estimated cost, in rows read. A DB
+     * round trip costs {@code search_bitmap_join_round_trip_cost} rows and loading the stored fields of a Lucene
+     * document costs {@code search_bitmap_join_doc_cost} rows.
+     * <p>
+     * The chunked join loads Lucene documents a batch at a time and asks the DB which of them match, until it has the
+     * results wanted. When only a few of the Lucene hits match the DB constraints it takes many round trips, and many
+     * document loads, to fill a single page. The bitmap join reads only the index ID of every Lucene hit and every DB
+     * row, in one round trip, intersects them in memory, and then loads the documents of the hits it returns. Both
+     * sides have to be under {@code search_bitmap_join_max_rows}.
+     *
+     * @param luceneHits total Lucene hits
+     * @param dbRows estimated DB hits
+     * @param indexDocs documents in the index, to estimate the fraction of Lucene hits that match in the DB
+     * @param firstBatch size of the first chunked join batch, which doubles each round up to {@code maxBatch}
+     * @param wanted number of results wanted
+     */
+    static boolean preferBitmapJoin(long luceneHits, long dbRows, long indexDocs, int firstBatch, int maxBatch,
+            int wanted) {
+        long maxRows = LC.search_bitmap_join_max_rows.longValue();
+        if (luceneHits <= firstBatch || luceneHits > maxRows || dbRows > maxRows) {
+            return false;
+        }
+        double selectivity = indexDocs > 0 ? Math.min(1.0, (double) dbRows / indexDocs) : 1.0;
+        long needed = selectivity > 0 ? Math.min(luceneHits, (long) Math.ceil(wanted / selectivity)) : luceneHits;
+        long roundTrip = LC.search_bitmap_join_round_trip_cost.longValue();
+        long docCost = LC.search_bitmap_join_doc_cost.longValue();
+        long chunkedCost = 0;
+        long consumed = 0;
+        for (int batch = Math.max(firstBatch, 1); consumed < needed; batch = Math.min(batch * 2, maxBatch)) {
+            consumed += batch;
+            chunkedCost += roundTrip + batch * (docCost + 1);
+        }
+        long joined = Math.min(wanted, (long) Math.ceil(luceneHits * selectivity));
+        long bitmapCost = roundTrip + luceneHits + dbRows + joined * docCost;
+        return bitmapCost < chunkedCost;
+    }
+
+    /**
+     * For testing, whether this operation chose to run as a bitmap join.
+     */
+    boolean isBitmapJoin() {
+        return executeMode == QueryExecuteMode.BITMAP_JOIN;
+    }
+
     private void noLuceneGetNextChunk(SortBy sort) throws ServiceException {
         dbSearch(dbHits, sort, hitsOffset, hitsPerChunk);
 
@@ -795,6 +886,50 @@ public class DBQueryOperation extends QueryOperation {
         } while (dbHits.size() == 0 && !endOfHits);
     }
 
+    private void bitmapJoinGetNextChunk(SortBy sort) throws ServiceException {
+        if (joinedHits == null) {
+            long start = System.currentTimeMillis();
+            // (1) the index IDs of all the Lucene hits, without loading their documents
+            BitSet luceneIds = luceneOp.getAllIndexIds();
+
+            // (2) all the indexed DB hits, in sort order. No LIMIT, and only IDs and sort keys unless the caller
+            // asked for more.
+            DbSearchConstraints.Leaf sc = getTopLeafConstraint();
+            sc.indexIds.clear();
+            sc.hasIndexId = Boolean.TRUE;
+            List<DbSearch.Result> dbResults = new ArrayList<DbSearch.Result>();
+            dbSearch(dbResults, sort, -1, -1);
+
+            // (3) intersect, keeping the DB order
+            joinedHits = new ArrayList<DbSearch.Result>();
+            for (DbSearch.Result sr : dbResults) {
+                if (sr.getIndexId() >= 0 && luceneIds.get(sr.getIndexId())) {
+                    joinedHits.add(sr);
+                }
+            }
+            ZimbraLog.search.debug("BitmapJoin lucene=%d,db=%d,joined=%d,elapsed=%d", luceneIds.cardinality(),
+                    dbResults.size(), joinedHits.size(), System.currentTimeMillis() - start);
+        }
+
+        // (4) hand out the joined hits a chunk at a time, loading the Lucene documents of just that chunk
+        int end = Math.min(joinedHits.size(), joinedOffset + hitsPerChunk);
+        Set<Integer> indexIds = new HashSet<Integer>();
+        for (DbSearch.Result sr : joinedHits.subList(joinedOffset, end)) {
+            dbHits.add(sr);
+            indexIds.add(sr.getIndexId());
+        }
+        luceneChunk = luceneOp.getResultsChunk(indexIds);
+        joinedOffset = end;
+        if (joinedOffset >= joinedHits.size()) {
+            endOfHits = true;
+        }
+
+        hitsPerChunk *= 2;
+        if (hitsPerChunk > MAX_HITS_PER_CHUNK) {
+            hitsPerChunk = MAX_HITS_PER_CHUNK;
+        }
+    }
+
     /**
      * Use all the search parameters (including the embedded {@link LuceneQueryOperation}) to get a chunk of search
      * results and put them into dbHits
@@ -838,6 +973,9 @@ public class DBQueryOperation extends QueryOperation {
                 case LUCENE_FIRST:
                     luceneFirstGetNextChunk(sort);
                     break;
+                case BITMAP_JOIN:
+                    bitmapJoinGetNextChunk(sort);
+                    break;
             }
 
             if (dbHits.size() == 0) {
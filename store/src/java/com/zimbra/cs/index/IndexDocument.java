@@ -182,6 +182,15 @@ public final class IndexDocument {
         document.removeFields(LuceneFields.L_MAILBOX_BLOB_ID);
     }
 
+    public void addMailboxId(int value) {
+        document.add(new Field(LuceneFields.L_MAILBOX_ID, String.valueOf(value),
+                Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+    }
+
+    public void removeMailboxId() {
+        document.removeFields(LuceneFields.L_MAILBOX_ID);
+    }
+
     public void addSortDate(long value) {
         document.add(new Field(LuceneFields.L_SORT_DATE,
                 DateTools.timeToString(value, DateTools.Resolution.MILLISECOND),
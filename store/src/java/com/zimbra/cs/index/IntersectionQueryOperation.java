@@ -706,9 +706,12 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
         context = new QueryContext(ctx.getMailbox(), ctx.getResults(), ctx.getParams(), (ctx.getChunkSize() + 1) * 3);
         messageGrouper = new HitGrouper[operations.size()];
 
+        boolean parallel = beginParallel(ctx);
         for (int i = 0; i < operations.size(); i++) {
             QueryOperation op = operations.get(i);
-            op.begin(ctx);
+            if (!parallel) {
+                op.begin(ctx);
+            }
             messageGrouper[i] = new HitGrouper(op, context.getResults().getSortBy());
 
             if (!op.hasNext()) {
@@ -720,7 +723,8 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
                         i + 1, operations.size());
 
                 // first, we need to be DONE with all unused query operations..
-                for (int j = 0; j <= i; j++) {
+                int begun = parallel ? operations.size() : i + 1;
+                for (int j = 0; j < begun; j++) {
                     Closeables.closeQuietly(operations.get(j));
                 }
 
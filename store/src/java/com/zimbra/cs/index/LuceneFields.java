@@ -108,6 +108,13 @@ public final class LuceneFields {
      */
     public static final String L_MAILBOX_BLOB_ID = "l.mbox_blob_id";
 
+    /**
+     * ID of the mailbox the document belongs to. Only written to indexes shared by several mailboxes.
+     *
+     * @see ShardedLuceneIndex
+     */
+    public static final String L_MAILBOX_ID = "l.mbox_id";
+
 
     /**
      * unique set of all attachment content types, or "none" if no attachments.
@@ -22,7 +22,6 @@ import java.io.PrintStream;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -32,6 +31,8 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
 import org.apache.lucene.index.CheckIndex;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexReader;
@@ -67,6 +68,7 @@ import com.zimbra.cs.mailbox.Folder;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxIndex;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.volume.Volume;
 import com.zimbra.cs.volume.VolumeManager;
 
@@ -86,6 +88,8 @@ public final class LuceneIndex extends IndexStore {
     @SuppressWarnings("deprecation")
     public static final Version VERSION = Version.LUCENE_24;
 
+    /** Loads only the field needed to join index hits with DB results. */
+    static final FieldSelector MAILBOX_BLOB_ID_SELECTOR = new MapFieldSelector(LuceneFields.L_MAILBOX_BLOB_ID);
     private static final Semaphore READER_THROTTLE = new Semaphore(LC.zimbra_index_max_readers.intValue());
     private static final Semaphore WRITER_THROTTLE = new Semaphore(LC.zimbra_index_max_writers.intValue());
 
@@ -376,22 +380,28 @@ public final class LuceneIndex extends IndexStore {
      */
     @Override
     public synchronized ZimbraIndexSearcher openSearcher() throws IOException {
-        IndexSearcherImpl searcher = null;
-        if (mailbox.isGalSyncMailbox()) {
-            searcher = GAL_SEARCHER_CACHE.get(mailbox.getId());
-        } else {
-            searcher = SEARCHER_CACHE.getIfPresent(mailbox.getId());
-        }
+        IndexSearcherImpl searcher = getCachedSearcher();
         if (searcher != null) {
+            if (writerInfo.getWriterRef() != null &&
+                    searcher.getLastRefresh() + LC.zimbra_index_reader_max_staleness_ms.longValue() <=
+                    System.currentTimeMillis()) {
+                searcher = refreshSearcher(searcher);
+            }
             ZimbraLog.search.debug("CacheHitLuceneSearcher %s", searcher);
             searcher.inc();
+            ZimbraPerf.HISTOGRAM_IDX_SEARCHER_AGE.record(System.currentTimeMillis() - searcher.getOpenTime());
             return searcher;
         }
 
         READER_THROTTLE.acquireUninterruptibly();
         long start = System.currentTimeMillis();
         try {
-            searcher = new IndexSearcherImpl(openIndexReader(true));
+            IndexWriterRef ref = writerInfo.getWriterRef();
+            if (ref != null) {
+                searcher = new IndexSearcherImpl(IndexReader.open(ref.get(), true), true);
+            } else {
+                searcher = new IndexSearcherImpl(openIndexReader(true), false);
+            }
         } catch (IOException e) {
             // Handle the special case of trying to open a not-yet-created index, by opening for write and immediately
             // closing. Index directory should get initialized as a result.
@@ -400,7 +410,7 @@ public final class LuceneIndex extends IndexStore {
                 IndexWriter writer = new IndexWriter(luceneDirectory,
                         getWriterConfig().setOpenMode(IndexWriterConfig.OpenMode.CREATE));
                 Closeables.closeQuietly(writer);
-                searcher = new IndexSearcherImpl(openIndexReader(false));
+                searcher = new IndexSearcherImpl(openIndexReader(false), false);
             } else {
                 throw e;
             }
@@ -412,11 +422,66 @@ public final class LuceneIndex extends IndexStore {
 
         ZimbraLog.search.debug("OpenLuceneSearcher %s,elapsed=%d", searcher, System.currentTimeMillis() - start);
         searcher.inc();
+        ZimbraPerf.HISTOGRAM_IDX_SEARCHER_AGE.record(0L);
+        cacheSearcher(searcher);
+        return searcher;
+    }
+
+    private IndexSearcherImpl getCachedSearcher() {
         if (mailbox.isGalSyncMailbox()) {
+            return GAL_SEARCHER_CACHE.get(mailbox.getId());
+        } else {
+            return SEARCHER_CACHE.getIfPresent(mailbox.getId());
+        }
+    }
+
+    private void cacheSearcher(IndexSearcherImpl searcher) {
+        if (mailbox.isGalSyncMailbox()) {
+            //make sure that we close the previous value associated with the key
             Closeables.closeQuietly(GAL_SEARCHER_CACHE.put(mailbox.getId(), searcher));
         } else {
+            // Bug: 69870
+            // No need to close the previous value associated with the key here.
+            // CacheBuilder sends a callback using removalListener onRemoval(..)
+            // which eventually closes IndexSearcher
             SEARCHER_CACHE.asMap().put(mailbox.getId(), searcher);
         }
+    }
+
+    /**
+     * Brings the cached searcher up to date with the index. While a writer is open the new reader is derived from it,
+     * so documents it holds become searchable before they are committed, and segments that did not change are shared
+     * with both the writer and the previous reader. Searches still holding the previous searcher keep using it until
+     * they close it.
+     *
+     * @return the searcher now in the cache, which is {@code old} if nothing changed
+     */
+    private IndexSearcherImpl refreshSearcher(IndexSearcherImpl old) throws IOException {
+        assert(Thread.holdsLock(this));
+
+        IndexWriterRef ref = writerInfo.getWriterRef();
+        IndexReader oldReader = old.getLuceneReader();
+        long start = System.nanoTime();
+        IndexReader newReader;
+        if (ref != null) {
+            newReader = IndexReader.openIfChanged(oldReader, ref.get(), true);
+        } else if (old.isNearRealTime()) {
+            // the writer this reader came from is closed, and it committed everything before closing
+            newReader = IndexReader.getCurrentVersion(luceneDirectory) == oldReader.getVersion() ?
+                    null : openIndexReader(false);
+        } else {
+            newReader = IndexReader.openIfChanged(oldReader, true);
+        }
+        ZimbraPerf.HISTOGRAM_IDX_SEARCHER_REOPEN.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+
+        if (newReader == null) {
+            old.setLastRefresh(System.currentTimeMillis());
+            return old;
+        }
+        IndexSearcherImpl searcher = new IndexSearcherImpl(newReader, ref != null);
+        old.transferPermit(searcher);
+        ZimbraLog.search.debug("ReopenLuceneSearcher %s,nrt=%b", this, ref != null);
+        cacheSearcher(searcher);
         return searcher;
     }
 
@@ -520,8 +585,6 @@ public final class LuceneIndex extends IndexStore {
             }
             mailbox.index.submit(task); // merge must run in background
             success = true;
-        } catch (RejectedExecutionException e) {
-            ZimbraLog.index.warn("Skipping merge because all index threads are busy");
         } finally {
             if (!success) {
                 writerInfo.getWriterRef().dec();
@@ -674,6 +737,11 @@ public final class LuceneIndex extends IndexStore {
                 ref.dec();
             }
         }
+
+        @Override
+        protected void cancel() {
+            ref.dec();
+        }
     }
 
     private IndexWriterConfig getWriterConfig() {
@@ -681,6 +749,8 @@ public final class LuceneIndex extends IndexStore {
         config.setMergeScheduler(new MergeScheduler());
         config.setMaxBufferedDocs(LC.zimbra_index_lucene_max_buffered_docs.intValue());
         config.setRAMBufferSizeMB(LC.zimbra_index_lucene_ram_buffer_size_kb.intValue() / 1024.0);
+        // near-real-time readers come from the writer, so they need the divisor that IndexReader.open() is given
+        config.setReaderTermsIndexDivisor(LC.zimbra_index_lucene_term_index_divisor.intValue());
         if (LC.zimbra_index_lucene_merge_policy.booleanValue()) {
             LogDocMergePolicy policy = new LogDocMergePolicy();
             config.setMergePolicy(policy);
@@ -798,29 +868,12 @@ public final class LuceneIndex extends IndexStore {
 
         @Override
         public void close() throws IOException {
-            writer.index.commitWriter();
-            ZimbraIndexSearcher searcher = null;
-            if (writer.getIndex().mailbox.isGalSyncMailbox()) {
-                searcher = GAL_SEARCHER_CACHE.get(writer.getIndex().mailbox.getId());
-            } else {
-                searcher = SEARCHER_CACHE.getIfPresent(writer.getIndex().mailbox.getId());
-            }
-            if (searcher != null) {
-                ZimbraLuceneIndexReader ndxReader = (ZimbraLuceneIndexReader)searcher.getIndexReader();
-                IndexReader newReader = IndexReader.openIfChanged(ndxReader.getLuceneReader(), true);
-                if (newReader != null) {
-                    if (writer.getIndex().mailbox.isGalSyncMailbox()) {
-                        //make sure that we close the previous value associated with the key
-                        Closeables.closeQuietly(GAL_SEARCHER_CACHE.put(writer.getIndex().mailbox.getId(),
-                                new IndexSearcherImpl(newReader)));
-                    } else {
-                        // Bug: 69870
-                        // No need to close the previous value associated with the key here.
-                        // CacheBuilder sends a callback using removalListener onRemoval(..)
-                        // which eventually closes IndexSearcher
-                        SEARCHER_CACHE.asMap().put(writer.getIndex().mailbox.getId(),
-                            new IndexSearcherImpl(newReader));
-                    }
+            LuceneIndex index = writer.getIndex();
+            index.commitWriter();
+            synchronized (index) {
+                IndexSearcherImpl searcher = index.getCachedSearcher();
+                if (searcher != null) {
+                    index.refreshSearcher(searcher);
                 }
             }
         }
@@ -943,18 +996,57 @@ public final class LuceneIndex extends IndexStore {
      */
     private static final class IndexSearcherImpl implements ZimbraIndexSearcher {
         private final AtomicInteger count = new AtomicInteger(1);
+        private final AtomicBoolean permit = new AtomicBoolean(true);
         private final IndexSearcher luceneSearcher;
-        private final ZimbraIndexReader luceneReader;
+        private final ZimbraLuceneIndexReader luceneReader;
+        private final boolean nearRealTime;
+        private final long openTime = System.currentTimeMillis();
+        private volatile long lastRefresh = openTime;
 
-        IndexSearcherImpl(IndexReader reader) {
+        /**
+         * @param nrt true if the reader was obtained from an {@link IndexWriter}
+         */
+        IndexSearcherImpl(IndexReader reader, boolean nrt) {
             luceneSearcher = new IndexSearcher(reader);
             luceneReader = new ZimbraLuceneIndexReader(luceneSearcher.getIndexReader());
+            nearRealTime = nrt;
         }
 
         void inc() {
             count.incrementAndGet();
         }
 
+        IndexReader getLuceneReader() {
+            return luceneReader.getLuceneReader();
+        }
+
+        boolean isNearRealTime() {
+            return nearRealTime;
+        }
+
+        long getOpenTime() {
+            return openTime;
+        }
+
+        /**
+         * @return when this searcher was opened or last found to be up to date with the index
+         */
+        long getLastRefresh() {
+            return lastRefresh;
+        }
+
+        void setLastRefresh(long time) {
+            lastRefresh = time;
+        }
+
+        /**
+         * Hands the {@link #READER_THROTTLE} permit held by this searcher to the searcher that replaces it in the cache,
+         * so that closing this one no longer releases it.
+         */
+        void transferPermit(IndexSearcherImpl replacement) {
+            replacement.permit.set(permit.getAndSet(false));
+        }
+
         @Override
         public void close() throws IOException {
             if (count.decrementAndGet() == 0) {
@@ -963,7 +1055,9 @@ public final class LuceneIndex extends IndexStore {
                     Closeables.closeQuietly(luceneSearcher);
                 } finally {
                     Closeables.closeQuietly(getIndexReader());
-                    READER_THROTTLE.release();
+                    if (permit.getAndSet(false)) {
+                        READER_THROTTLE.release();
+                    }
                 }
             }
         }
@@ -977,6 +1071,16 @@ public final class LuceneIndex extends IndexStore {
             throw new IllegalArgumentException("Expected a ZimbraLuceneDocumentID");
         }
 
+        @Override
+        public String getMailboxBlobId(ZimbraIndexDocumentID docID) throws IOException {
+            if (docID instanceof ZimbraLuceneDocumentID) {
+                ZimbraLuceneDocumentID zlDocID = (ZimbraLuceneDocumentID)docID;
+                return luceneSearcher.doc(zlDocID.getLuceneDocID(), MAILBOX_BLOB_ID_SELECTOR)
+                        .get(LuceneFields.L_MAILBOX_BLOB_ID);
+            }
+            throw new IllegalArgumentException("Expected a ZimbraLuceneDocumentID");
+        }
+
         @Override
         public int docFreq(Term term) throws IOException {
             return luceneSearcher.docFreq(term);
@@ -19,6 +19,7 @@ package com.zimbra.cs.index;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.List;
 import java.util.ListIterator;
@@ -90,6 +91,7 @@ public final class LuceneQueryOperation extends QueryOperation {
     private int topDocsChunkSize = 2000; // how many hits to fetch per step in Lucene
     private ZimbraIndexSearcher searcher;
     private Sort sort;
+    private int[] hitIndexIds; // index ID of each hit, or -1, as read by getAllIndexIds()
 
     /**
      * Adds the specified text clause at the top level.
@@ -507,15 +509,85 @@ public final class LuceneQueryOperation extends QueryOperation {
         return toRet;
     }
 
+    /**
+     * Returns the index IDs of all the hits, reading nothing but their {@link LuceneFields#L_MAILBOX_BLOB_ID} field.
+     * The documents of the hits that are wanted can be loaded afterwards with {@link #getResultsChunk(Set)}.
+     */
+    BitSet getAllIndexIds() {
+        BitSet result = new BitSet();
+        if (!haveRunSearch) {
+            fetchFirstResults(1000);
+        }
+        if (hits != null && topDocsLen < hits.getTotalHits()) {
+            topDocsLen = hits.getTotalHits();
+            runSearch();
+        }
+        if (hits == null) {
+            hitIndexIds = new int[0];
+            return result;
+        }
+
+        long start = System.currentTimeMillis();
+        hitIndexIds = new int[hits.getScoreDocs().size()];
+        for (int i = 0; i < hitIndexIds.length; i++) {
+            hitIndexIds[i] = -1;
+            String mbid;
+            try {
+                mbid = searcher.getMailboxBlobId(hits.getScoreDoc(i).getDocumentID());
+            } catch (Exception e) {
+                ZimbraLog.search.error("Failed to retrieve Lucene document: %s",
+                        hits.getScoreDoc(i).getDocumentID().toString(), e);
+                continue;
+            }
+            if (mbid != null) {
+                try {
+                    hitIndexIds[i] = Integer.parseInt(mbid);
+                    result.set(hitIndexIds[i]);
+                } catch (NumberFormatException e) {
+                    ZimbraLog.search.error("Invalid MAILBOX_BLOB_ID: " + mbid, e);
+                }
+            }
+        }
+        ZimbraLog.search.debug("LuceneFetchIds n=%d,elapsed=%d", hitIndexIds.length,
+                System.currentTimeMillis() - start);
+        return result;
+    }
+
+    /**
+     * Loads the documents of the hits with the given index IDs.  Must be called after {@link #getAllIndexIds()}.
+     */
+    LuceneResultsChunk getResultsChunk(Set<Integer> indexIds) {
+        LuceneResultsChunk result = new LuceneResultsChunk();
+        for (int i = 0; i < hitIndexIds.length; i++) {
+            if (hitIndexIds[i] < 0 || !indexIds.contains(hitIndexIds[i])) {
+                continue;
+            }
+            try {
+                result.addHit(hitIndexIds[i], searcher.doc(hits.getScoreDoc(i).getDocumentID()));
+            } catch (Exception e) {
+                ZimbraLog.search.error("Failed to retrieve Lucene document: %s",
+                        hits.getScoreDoc(i).getDocumentID().toString(), e);
+            }
+        }
+        return result;
+    }
+
     /**
      * Must be called AFTER the first results chunk is fetched.
      *
      * @return number of hits in this search
      */
-    private long getTotalHitCount() {
+    long getTotalHitCount() {
         return hits != null ? hits.getTotalHits() : 0;
     }
 
+    /**
+     * @return number of documents in the index this search runs against, or 0 if it could not be opened
+     */
+    int getIndexDocCount() {
+        return searcher != null ? searcher.getIndexReader().numDocs() : 0;
+    }
+
     @Override
     public long getCursorOffset() {
         return -1;
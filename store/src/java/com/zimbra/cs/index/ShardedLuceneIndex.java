@@ -0,0 +1,665 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.BitSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.CheckIndex;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TotalHitCountCollector;
+
+import com.google.common.base.Objects;
+import com.google.common.io.Closeables;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.volume.Volume;
+import com.zimbra.cs.volume.VolumeManager;
+
+/**
+ * {@link IndexStore} that packs mailboxes into a fixed number of Lucene indexes per index volume instead of giving
+ * each mailbox its own index directory. Every document carries the ID of its mailbox in
+ * {@link LuceneFields#L_MAILBOX_ID}, and every search, count, term enumeration and delete is restricted to it.
+ * <p>
+ * A mailbox lives in shard {@code mailboxId % zimbra_index_shard_count}, so the shard count must not be changed once
+ * shards hold data. Once a mailbox has more than {@code zimbra_index_shard_max_docs} documents it is moved to a
+ * dedicated {@link LuceneIndex} by a full re-index, which deletes its documents from the shard and indexes everything
+ * again into the new directory. Mailboxes that already have a dedicated index, and GAL sync mailboxes, always use
+ * {@link LuceneIndex}.
+ */
+public final class ShardedLuceneIndex extends IndexStore {
+
+    private static final ConcurrentMap<File, Shard> SHARDS = new ConcurrentHashMap<File, Shard>();
+
+    private final Mailbox mailbox;
+    private final Shard shard;
+    private final Factory factory;
+    private final Term mailboxTerm;
+    private final Filter mailboxFilter;
+    private final AtomicBoolean pendingDelete = new AtomicBoolean(false);
+    private final AtomicBoolean migrating = new AtomicBoolean(false);
+    private volatile IndexStore dedicated;
+
+    private ShardedLuceneIndex(Mailbox mbox, Shard shard, Factory factory) {
+        this.mailbox = mbox;
+        this.shard = shard;
+        this.factory = factory;
+        mailboxTerm = new Term(LuceneFields.L_MAILBOX_ID, String.valueOf(mbox.getId()));
+        mailboxFilter = new QueryWrapperFilter(new TermQuery(mailboxTerm));
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).add("mbox", mailbox.getId()).add("shard", shard.path).toString();
+    }
+
+    @Override
+    public Indexer openIndexer() throws IOException {
+        IndexStore index = dedicated;
+        if (index != null) {
+            return index.openIndexer();
+        }
+        if (isPendingDelete()) {
+            throw new IndexPendingDeleteException();
+        }
+        return new ShardIndexer(shard.getWriter());
+    }
+
+    @Override
+    public ZimbraIndexSearcher openSearcher() throws IOException {
+        IndexStore index = dedicated;
+        if (index != null) {
+            return index.openSearcher();
+        }
+        return new MailboxSearcher(shard.acquireReader(false));
+    }
+
+    @Override
+    public void warmup() {
+        IndexStore index = dedicated;
+        if (index != null) {
+            index.warmup();
+            return;
+        }
+        try {
+            shard.acquireReader(false).decRef();
+        } catch (IOException e) {
+            ZimbraLog.search.warn("Failed to warm up", e);
+        }
+    }
+
+    /**
+     * Shard readers are shared with the other mailboxes in the shard, so only a dedicated index has anything to evict.
+     */
+    @Override
+    public void evict() {
+        IndexStore index = dedicated;
+        if (index != null) {
+            index.evict();
+        }
+    }
+
+    /**
+     * Deletes the documents of this mailbox from the shard. If the mailbox is being moved to a dedicated index, this
+     * is the point where it switches over, since the re-index that moves it starts by deleting the index.
+     */
+    @Override
+    public void deleteIndex() throws IOException {
+        IndexStore index = dedicated;
+        if (index != null) {
+            index.deleteIndex();
+            return;
+        }
+        pendingDelete.set(true);
+        try {
+            ZimbraLog.index.debug("Deleting documents of %s", this);
+            shard.getWriter().deleteDocuments(mailboxTerm);
+            shard.commit();
+        } finally {
+            pendingDelete.set(false);
+        }
+        if (migrating.get()) {
+            try {
+                dedicated = factory.dedicated.getIndexStore(mailbox);
+            } catch (ServiceException e) {
+                throw new IOException("Failed to create dedicated index for " + this, e);
+            }
+            ZimbraLog.index.info("Moved mailbox %d out of shared index %s", mailbox.getId(), shard.path);
+        }
+    }
+
+    @Override
+    public boolean isPendingDelete() {
+        IndexStore index = dedicated;
+        return index != null ? index.isPendingDelete() : pendingDelete.get();
+    }
+
+    @Override
+    public void setPendingDelete(boolean pendingDelete) {
+        IndexStore index = dedicated;
+        if (index != null) {
+            index.setPendingDelete(pendingDelete);
+        } else {
+            this.pendingDelete.set(pendingDelete);
+        }
+    }
+
+    @Override
+    public void optimize() {
+        IndexStore index = dedicated;
+        if (index != null) {
+            index.optimize();
+        }
+    }
+
+    /**
+     * Checks the whole shard, as the last commit of the shard is the smallest unit Lucene can verify.
+     */
+    @Override
+    public boolean verify(PrintStream out) throws IOException {
+        IndexStore index = dedicated;
+        if (index != null) {
+            return index.verify(out);
+        }
+        CheckIndex check = new CheckIndex(shard.getDirectory());
+        if (out != null) {
+            check.setInfoStream(out);
+        }
+        return check.checkIndex().clean;
+    }
+
+    /**
+     * @return the number of live documents of this mailbox that {@code searcher} sees
+     */
+    private int count(IndexSearcher searcher) throws IOException {
+        TotalHitCountCollector collector = new TotalHitCountCollector();
+        searcher.search(new TermQuery(mailboxTerm), collector);
+        return collector.getTotalHits();
+    }
+
+    private Query getItemQuery(int id) {
+        BooleanQuery query = new BooleanQuery();
+        query.add(new TermQuery(mailboxTerm), BooleanClause.Occur.MUST);
+        query.add(new TermQuery(new Term(LuceneFields.L_MAILBOX_BLOB_ID, String.valueOf(id))),
+                BooleanClause.Occur.MUST);
+        return query;
+    }
+
+    /**
+     * Starts moving this mailbox to a dedicated index once it has outgrown the shard.
+     */
+    private void checkSize() throws IOException {
+        if (migrating.get()) {
+            return;
+        }
+        IndexReader reader = shard.acquireReader(false);
+        int count;
+        IndexSearcher searcher = new IndexSearcher(reader);
+        try {
+            count = count(searcher);
+        } finally {
+            Closeables.closeQuietly(searcher);
+            reader.decRef();
+        }
+        if (count <= LC.zimbra_index_shard_max_docs.intValue() || !migrating.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            mailbox.index.startReIndex();
+            ZimbraLog.index.info("Moving mailbox %d with %d documents out of shared index %s",
+                    mailbox.getId(), count, shard.path);
+        } catch (ServiceException e) {
+            migrating.set(false);
+            ZimbraLog.index.debug("Deferred move of mailbox %d out of shared index", mailbox.getId(), e);
+        }
+    }
+
+    /**
+     * One shared index. The writer stays open until {@link Factory#destroy()}; readers come from the writer and are
+     * reference counted, so searches keep the reader they started with while the shard moves on.
+     */
+    private static final class Shard {
+        private final File path;
+        private LuceneDirectory directory;
+        private IndexWriter writer;
+        private IndexReader reader;
+        private long openTime;
+        private long lastRefresh;
+
+        Shard(File path) {
+            this.path = path;
+        }
+
+        synchronized LuceneDirectory getDirectory() throws IOException {
+            if (directory == null) {
+                path.mkdirs();
+                directory = LuceneDirectory.open(path);
+            }
+            return directory;
+        }
+
+        synchronized IndexWriter getWriter() throws IOException {
+            if (writer == null) {
+                IndexWriterConfig config = new IndexWriterConfig(LuceneIndex.VERSION, ZimbraAnalyzer.getInstance());
+                config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+                config.setRAMBufferSizeMB(LC.zimbra_index_lucene_ram_buffer_size_kb.intValue() / 1024.0);
+                config.setReaderTermsIndexDivisor(LC.zimbra_index_lucene_term_index_divisor.intValue());
+                writer = new IndexWriter(getDirectory(), config);
+                ZimbraLog.index.debug("Opened shared index writer %s", path);
+            }
+            return writer;
+        }
+
+        /**
+         * Returns a reader with a reference held for the caller, who must release it with
+         * {@link IndexReader#decRef()}.
+         *
+         * @param fresh true to include everything written so far, otherwise the reader may be up to
+         *  {@code zimbra_index_reader_max_staleness_ms} behind the writer
+         */
+        synchronized IndexReader acquireReader(boolean fresh) throws IOException {
+            long now = System.currentTimeMillis();
+            if (reader == null) {
+                reader = IndexReader.open(getWriter(), true);
+                openTime = lastRefresh = now;
+            } else if (fresh || lastRefresh + LC.zimbra_index_reader_max_staleness_ms.longValue() <= now) {
+                refresh();
+            }
+            reader.incRef();
+            ZimbraPerf.HISTOGRAM_IDX_SEARCHER_AGE.record(now - openTime);
+            return reader;
+        }
+
+        private void refresh() throws IOException {
+            assert(Thread.holdsLock(this));
+            if (reader == null) {
+                return;
+            }
+            long start = System.nanoTime();
+            IndexReader newReader = IndexReader.openIfChanged(reader, getWriter(), true);
+            ZimbraPerf.HISTOGRAM_IDX_SEARCHER_REOPEN.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            lastRefresh = System.currentTimeMillis();
+            if (newReader != null) {
+                reader.decRef();
+                reader = newReader;
+                openTime = lastRefresh;
+            }
+        }
+
+        /**
+         * Commits outside the shard lock, so that searches are not held up while the commit syncs.
+         */
+        void commit() throws IOException {
+            getWriter().commit();
+            synchronized (this) {
+                refresh();
+            }
+        }
+
+        synchronized void close() {
+            if (reader != null) {
+                try {
+                    reader.decRef();
+                } catch (IOException e) {
+                    ZimbraLog.index.warn("Failed to close shared index reader %s", path, e);
+                }
+                reader = null;
+            }
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    ZimbraLog.index.error("Failed to close shared index writer %s", path, e);
+                }
+                writer = null;
+            }
+        }
+    }
+
+    private final class ShardIndexer implements Indexer {
+        private final IndexWriter writer;
+
+        ShardIndexer(IndexWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void close() throws IOException {
+            shard.commit();
+            checkSize();
+        }
+
+        /**
+         * Deletes are expunged by the merges of the whole shard.
+         */
+        @Override
+        public void compact() {
+        }
+
+        @Override
+        public int maxDocs() {
+            try {
+                IndexReader reader = shard.acquireReader(true);
+                IndexSearcher searcher = new IndexSearcher(reader);
+                try {
+                    return count(searcher);
+                } finally {
+                    Closeables.closeQuietly(searcher);
+                    reader.decRef();
+                }
+            } catch (IOException e) {
+                ZimbraLog.index.warn("Failed to count documents of %s", ShardedLuceneIndex.this, e);
+                return 0;
+            }
+        }
+
+        /**
+         * @see LuceneIndex
+         */
+        @Override
+        public void addDocument(Folder folder, MailItem item, List<IndexDocument> docs) throws IOException {
+            if (docs == null || docs.isEmpty()) {
+                return;
+            }
+
+            switch (item.getIndexStatus()) {
+                case STALE:
+                case DONE: // for partial re-index
+                    writer.deleteDocuments(getItemQuery(item.getId()));
+                    break;
+                case DEFERRED:
+                    break;
+                default:
+                    assert false : item.getIndexId();
+            }
+
+            Analyzer analyzer = mailbox.index.getAnalyzer();
+            for (IndexDocument doc : docs) {
+                // doc can be shared by multiple threads if multiple mailboxes are referenced in a single email
+                synchronized (doc) {
+                    setFields(item, doc);
+                    doc.removeMailboxId();
+                    doc.addMailboxId(mailbox.getId());
+                    writer.addDocument(doc.toDocument(), analyzer);
+                }
+            }
+        }
+
+        @Override
+        public void deleteDocument(List<Integer> ids) throws IOException {
+            for (Integer id : ids) {
+                writer.deleteDocuments(getItemQuery(id));
+                ZimbraLog.index.debug("Deleted documents id=%d", id);
+            }
+        }
+    }
+
+    /**
+     * Searcher and reader over the documents of this mailbox in a shard reader.
+     */
+    private final class MailboxSearcher implements ZimbraIndexSearcher, ZimbraIndexReader {
+        private final IndexReader reader;
+        private final IndexSearcher searcher;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        MailboxSearcher(IndexReader reader) {
+            this.reader = reader;
+            this.searcher = new IndexSearcher(reader);
+        }
+
+        private Query restrict(Query query) {
+            return new FilteredQuery(query, mailboxFilter);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed.compareAndSet(false, true)) {
+                try {
+                    Closeables.closeQuietly(searcher);
+                } finally {
+                    reader.decRef();
+                }
+            }
+        }
+
+        @Override
+        public Document doc(ZimbraIndexDocumentID docID) throws IOException {
+            if (docID instanceof ZimbraLuceneDocumentID) {
+                return searcher.doc(((ZimbraLuceneDocumentID) docID).getLuceneDocID());
+            }
+            throw new IllegalArgumentException("Expected a ZimbraLuceneDocumentID");
+        }
+
+        @Override
+        public String getMailboxBlobId(ZimbraIndexDocumentID docID) throws IOException {
+            if (docID instanceof ZimbraLuceneDocumentID) {
+                return searcher.doc(((ZimbraLuceneDocumentID) docID).getLuceneDocID(),
+                        LuceneIndex.MAILBOX_BLOB_ID_SELECTOR).get(LuceneFields.L_MAILBOX_BLOB_ID);
+            }
+            throw new IllegalArgumentException("Expected a ZimbraLuceneDocumentID");
+        }
+
+        @Override
+        public int docFreq(Term term) throws IOException {
+            TotalHitCountCollector collector = new TotalHitCountCollector();
+            searcher.search(restrict(new TermQuery(term)), collector);
+            return collector.getTotalHits();
+        }
+
+        @Override
+        public ZimbraIndexReader getIndexReader() {
+            return this;
+        }
+
+        @Override
+        public ZimbraTopDocs search(Query query, int n) throws IOException {
+            return ZimbraTopDocs.create(searcher.search(restrict(query), n));
+        }
+
+        @Override
+        public ZimbraTopDocs search(Query query, ZimbraTermsFilter filter, int n) throws IOException {
+            TermsFilter luceneFilter = (filter == null) ? null : new TermsFilter(filter.getTerms());
+            return ZimbraTopDocs.create(searcher.search(restrict(query), luceneFilter, n));
+        }
+
+        @Override
+        public ZimbraTopFieldDocs search(Query query, ZimbraTermsFilter filter, int n, Sort sort) throws IOException {
+            TermsFilter luceneFilter = (filter == null) ? null : new TermsFilter(filter.getTerms());
+            return ZimbraTopFieldDocs.create(searcher.search(restrict(query), luceneFilter, n, sort));
+        }
+
+        @Override
+        public int numDocs() {
+            try {
+                return count(searcher);
+            } catch (IOException e) {
+                ZimbraLog.search.warn("Failed to count documents of %s", ShardedLuceneIndex.this, e);
+                return 0;
+            }
+        }
+
+        /**
+         * Deleted documents are only known for the shard as a whole.
+         */
+        @Override
+        public int numDeletedDocs() {
+            return 0;
+        }
+
+        @Override
+        public TermFieldEnumeration getTermsForField(String field, String firstTermValue) throws IOException {
+            return new MailboxTermEnumeration(reader, field, firstTermValue);
+        }
+    }
+
+    /**
+     * Terms of a field that occur in documents of this mailbox, with frequencies counted over those documents only.
+     */
+    private final class MailboxTermEnumeration implements ZimbraIndexReader.TermFieldEnumeration {
+        private final IndexReader reader;
+        private final String field;
+        private final BitSet docs = new BitSet();
+        private TermEnum terms;
+        private BrowseTerm next;
+
+        MailboxTermEnumeration(IndexReader reader, String field, String firstTermValue) throws IOException {
+            this.reader = reader;
+            this.field = field;
+            TermDocs termDocs = reader.termDocs(mailboxTerm);
+            try {
+                while (termDocs.next()) {
+                    docs.set(termDocs.doc());
+                }
+            } finally {
+                termDocs.close();
+            }
+            terms = reader.terms(new Term(field, firstTermValue));
+            advance();
+        }
+
+        private void advance() throws IOException {
+            next = null;
+            while (next == null && terms != null) {
+                Term term = terms.term();
+                if (term == null || !field.equals(term.field())) {
+                    close();
+                    break;
+                }
+                int freq = 0;
+                TermDocs termDocs = reader.termDocs(term);
+                try {
+                    while (termDocs.next()) {
+                        if (docs.get(termDocs.doc())) {
+                            freq++;
+                        }
+                    }
+                } finally {
+                    termDocs.close();
+                }
+                if (freq > 0) {
+                    next = new BrowseTerm(term.text(), freq);
+                }
+                if (!terms.next()) {
+                    close();
+                }
+            }
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return next != null;
+        }
+
+        @Override
+        public BrowseTerm nextElement() {
+            if (next == null) {
+                throw new NoSuchElementException("No more values");
+            }
+            BrowseTerm result = next;
+            try {
+                advance();
+            } catch (IOException e) {
+                close();
+                next = null;
+            }
+            return result;
+        }
+
+        @Override
+        public void close() {
+            if (terms != null) {
+                Closeables.closeQuietly(terms);
+                terms = null;
+            }
+        }
+    }
+
+    public static final class Factory implements IndexStore.Factory {
+        private final LuceneIndex.Factory dedicated = new LuceneIndex.Factory();
+
+        @Override
+        public IndexStore getIndexStore(Mailbox mbox) throws ServiceException {
+            Volume vol = VolumeManager.getInstance().getVolume(mbox.getIndexVolume());
+            if (mbox.isGalSyncMailbox() || hasDedicatedIndex(vol, mbox)) {
+                return dedicated.getIndexStore(mbox);
+            }
+            File path = new File(vol.getRootPath() + File.separator + "shards" + File.separator +
+                    mbox.getId() % LC.zimbra_index_shard_count.intValue());
+            Shard shard = SHARDS.get(path);
+            if (shard == null) {
+                Shard existing = SHARDS.putIfAbsent(path, shard = new Shard(path));
+                if (existing != null) {
+                    shard = existing;
+                }
+            }
+            return new ShardedLuceneIndex(mbox, shard, this);
+        }
+
+        /**
+         * A mailbox has a dedicated index if the directory {@link LuceneIndex} would use holds a segments file.
+         */
+        private boolean hasDedicatedIndex(Volume vol, Mailbox mbox) throws ServiceException {
+            File dir = new File(vol.getMailboxDir(mbox.getId(), Volume.TYPE_INDEX) + File.separatorChar + '0');
+            String[] files = dir.list();
+            if (files != null) {
+                for (String file : files) {
+                    if (file.startsWith("segments")) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void destroy() {
+            for (Shard shard : SHARDS.values()) {
+                shard.close();
+            }
+            dedicated.destroy();
+        }
+    }
+}
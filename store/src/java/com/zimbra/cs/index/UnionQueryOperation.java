@@ -323,10 +323,14 @@ public final class UnionQueryOperation extends CombiningQueryOperation {
     protected void begin(QueryContext ctx) throws ServiceException {
         assert(context == null);
         context = ctx;
-        for (QueryOperation op : operations) {
-            ZimbraLog.search.debug("Executing: %s", op);
-            // add 1 to chunk size b/c we buffer
-            op.begin(new QueryContext(ctx.getMailbox(), ctx.getResults(), ctx.getParams(), ctx.getChunkSize() + 1));
+        // add 1 to chunk size b/c we buffer
+        QueryContext opContext = new QueryContext(ctx.getMailbox(), ctx.getResults(), ctx.getParams(),
+                ctx.getChunkSize() + 1);
+        if (!beginParallel(opContext)) {
+            for (QueryOperation op : operations) {
+                ZimbraLog.search.debug("Executing: %s", op);
+                op.begin(opContext);
+            }
         }
         internalGetNext();
     }
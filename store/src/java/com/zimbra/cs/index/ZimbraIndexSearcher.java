@@ -34,6 +34,15 @@ public interface ZimbraIndexSearcher extends Closeable {
      */
     Document doc(ZimbraIndexDocumentID docID) throws IOException;
 
+    /**
+     * Returns the {@link LuceneFields#L_MAILBOX_BLOB_ID} stored field of document {@code docID}, without loading
+     * its other stored fields where the index store allows it.
+     */
+    default String getMailboxBlobId(ZimbraIndexDocumentID docID) throws IOException {
+        Document doc = doc(docID);
+        return doc != null ? doc.get(LuceneFields.L_MAILBOX_BLOB_ID) : null;
+    }
+
     /**
      * Sometimes used to decide whether we think a query is best evaluated DB-FIRST or INDEX-FIRST.
      * @return the number of documents containing the term {@code term}. 
@@ -321,6 +321,17 @@ public final class ZimbraQuery {
         }
     }
 
+    private static final class FindBitmapJoin implements QueryOperation.RecurseCallback {
+        boolean found = false;
+
+        @Override
+        public void recurseCallback(QueryOperation op) {
+            if (op instanceof DBQueryOperation && ((DBQueryOperation) op).isBitmapJoin()) {
+                found = true;
+            }
+        }
+    }
+
     /**
      * Returns true if this query has at least one text query, false if it's entirely DB query.
      */
@@ -357,6 +368,18 @@ public final class ZimbraQuery {
         return count.num;
     }
 
+    /**
+     * @return true if one of the DB operations of this query ran as a bitmap join
+     */
+    boolean hasBitmapJoin() {
+        if (operation == null) {
+            return false;
+        }
+        FindBitmapJoin find = new FindBitmapJoin();
+        operation.depthFirstRecurse(find);
+        return find.found;
+    }
+
     /**
      * Parse the query string.
      */
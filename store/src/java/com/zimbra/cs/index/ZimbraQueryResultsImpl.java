@@ -63,6 +63,7 @@ abstract class ZimbraQueryResultsImpl implements ZimbraQueryResults {
     private static final int MAX_LRU_ENTRIES = 2048;
     private static final int INITIAL_TABLE_SIZE = 100;
 
+    // guarded by this; sub-operations of a query may create hits on several search threads at once
     private Map<Integer, ConversationHit> conversationHits;
     private Map<Integer, MessageHit> messageHits;
     private Map<String, MessagePartHit> partHits;
@@ -108,7 +109,7 @@ abstract class ZimbraQueryResultsImpl implements ZimbraQueryResults {
         return fetch;
     }
 
-    protected ConversationHit getConversationHit(Mailbox mbx, int id, Object sortValue) {
+    protected synchronized ConversationHit getConversationHit(Mailbox mbx, int id, Object sortValue) {
         ConversationHit hit = conversationHits.get(id);
         if (hit == null) {
             hit = new ConversationHit(this, mbx, id, sortValue);
@@ -117,7 +118,7 @@ abstract class ZimbraQueryResultsImpl implements ZimbraQueryResults {
         return hit;
     }
 
-    protected ContactHit getContactHit(Mailbox mbx, int id, Contact contact, Object sortValue) {
+    protected synchronized ContactHit getContactHit(Mailbox mbx, int id, Contact contact, Object sortValue) {
         ContactHit hit = contactHits.get(id);
         if (hit == null) {
             hit = new ContactHit(this, mbx, id, contact, sortValue);
@@ -126,7 +127,7 @@ abstract class ZimbraQueryResultsImpl implements ZimbraQueryResults {
         return hit;
     }
 
-    protected NoteHit getNoteHit(Mailbox mbx, int id, Note note, Object sortValue) {
+    protected synchronized NoteHit getNoteHit(Mailbox mbx, int id, Note note, Object sortValue) {
         NoteHit hit = noteHits.get(id);
         if (hit == null) {
             hit = new NoteHit(this, mbx, id, note, sortValue);
@@ -135,7 +136,7 @@ abstract class ZimbraQueryResultsImpl implements ZimbraQueryResults {
         return hit;
     }
 
-    protected CalendarItemHit getAppointmentHit(Mailbox mbx, int id, CalendarItem cal, Object sortValue) {
+    protected synchronized CalendarItemHit getAppointmentHit(Mailbox mbx, int id, CalendarItem cal, Object sortValue) {
         CalendarItemHit hit = calItemHits.get(id);
         if (hit == null) {
             hit = new CalendarItemHit(this, mbx, id, cal, sortValue);
@@ -144,7 +145,7 @@ abstract class ZimbraQueryResultsImpl implements ZimbraQueryResults {
         return hit;
     }
 
-    protected CalendarItemHit getTaskHit(Mailbox mbx, int id, Task task, Object sortValue) {
+    protected synchronized CalendarItemHit getTaskHit(Mailbox mbx, int id, Task task, Object sortValue) {
         CalendarItemHit hit = calItemHits.get(id);
         if (hit == null) {
             hit = new TaskHit(this, mbx, id, task, sortValue);
@@ -153,7 +154,7 @@ abstract class ZimbraQueryResultsImpl implements ZimbraQueryResults {
         return hit;
     }
 
-    protected MessageHit getMessageHit(Mailbox mbx, int id, Message msg, Document doc, Object sortValue) {
+    protected synchronized MessageHit getMessageHit(Mailbox mbx, int id, Message msg, Document doc, Object sortValue) {
         MessageHit hit = messageHits.get(id);
         if (hit == null) {
             hit = new MessageHit(this, mbx, id, msg, doc, sortValue);
@@ -162,7 +163,7 @@ abstract class ZimbraQueryResultsImpl implements ZimbraQueryResults {
         return hit;
     }
 
-    protected MessagePartHit getMessagePartHit(Mailbox mbx, int id, Message msg, Document doc, Object sortValue) {
+    protected synchronized MessagePartHit getMessagePartHit(Mailbox mbx, int id, Message msg, Document doc, Object sortValue) {
         String key = Integer.toString(id) + "-" + doc.get(LuceneFields.L_PARTNAME);
         MessagePartHit hit = partHits.get(key);
         if (hit == null) {
@@ -26,9 +26,18 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.mail.MessagingException;
@@ -39,6 +48,8 @@ import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.MapMaker;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.zimbra.common.account.Key.AccountBy;
 import com.zimbra.common.lmtp.LmtpClient;
 import com.zimbra.common.lmtp.LmtpProtocolException;
@@ -74,6 +85,7 @@ import com.zimbra.cs.mailbox.QuotaWarning;
 import com.zimbra.cs.mime.ParsedMessage;
 import com.zimbra.cs.mime.ParsedMessageOptions;
 import com.zimbra.cs.service.util.ItemId;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.store.Blob;
 import com.zimbra.cs.store.BlobInputStream;
 import com.zimbra.cs.store.MailboxBlob;
@@ -85,6 +97,8 @@ public class ZimbraLmtpBackend implements LmtpBackend {
     private static List<LmtpCallback> callbacks = new CopyOnWriteArrayList<LmtpCallback>();
     private static Map<String, Set<Integer>> receivedMessageIDs;
     private static final Map<Integer, ReentrantLock> mailboxDeliveryLocks = createMailboxDeliveryLocks();
+    private static final AtomicInteger pendingRecipients = new AtomicInteger();
+    private static ThreadPoolExecutor deliveryExecutor;
 
     private final LmtpConfig config;
 
@@ -530,177 +544,24 @@ public class ZimbraLmtpBackend implements LmtpBackend {
             sharedDeliveryCtxt.setIncomingBlob(blob);
 
             // We now know which addresses are valid and which ParsedMessage
-            // version each recipient needs.  Deliver!
-            for (LmtpAddress recipient : recipients) {
-                String rcptEmail = recipient.getEmailAddress();
-                LmtpReply reply = LmtpReply.TEMPORARY_FAILURE;
-                RecipientDetail rd = rcptMap.get(recipient);
-                if (rd == null) {
-                    // Account or mailbox not found.
-                    ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: account or mailbox not found",
-                            envSender, rcptEmail);
-                    recipient.setDeliveryStatus(LmtpReply.PERMANENT_FAILURE);
-                    continue;
-                }
-                if (rd.account != null) {
-                    ZimbraLog.addAccountNameToContext(rd.account.getName());
-                }
-                if (rd.mbox != null) {
-                    ZimbraLog.addMboxToContext(rd.mbox.getId());
-                }
-
-                boolean success = false;
-                try {
-                    switch (rd.action) {
-                    case discard:
-                        ZimbraLog.lmtp.info("accepted and discarded message from=%s,to=%s: local delivery is disabled",
-                                envSender, rcptEmail);
-                        if (rd.account.getPrefMailForwardingAddress() != null) {
-                            // mail forwarding is set up
-                            for (LmtpCallback callback : callbacks) {
-                                ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
-                                callback.forwardWithoutDelivery(rd.account, rd.mbox, envSender, rcptEmail, rd.pm);
-                            }
-                        }
-                        reply = LmtpReply.DELIVERY_OK;
-                        break;
-                    case deliver:
-                        Account account = rd.account;
-                        Mailbox mbox = rd.mbox;
-                        ParsedMessage pm = rd.pm;
-                        List<ItemId> addedMessageIds = null;
-                        ReentrantLock lock = mailboxDeliveryLocks.get(mbox.getId());
-                        boolean acquiredLock;
-                        try {
-                            // Wait for the lock, up to the timeout
-                            acquiredLock = lock.tryLock(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
-                        } catch (InterruptedException e) {
-                            acquiredLock = false;
-                        }
-                        if (!acquiredLock) {
-                            ZimbraLog.lmtp.info("try again for message from=%s,to=%s: another mail delivery in progress.",
-                                    envSender, rcptEmail);
-                            reply = LmtpReply.TEMPORARY_FAILURE;
-                            break;
-                        }
-                        try {
-                            if (dedupe(pm, mbox)) {
-                                // message was already delivered to this mailbox
-                                ZimbraLog.lmtp.info("Not delivering message with duplicate Message-ID %s", pm.getMessageID());
-                            } else if (mbox.dedupeForSelfMsg(pm)) {
-                                ZimbraLog.mailbox.info("not delivering message, because it is a duplicate of sent message %s",
-                                        pm.getMessageID());
-
-                            } else if (recipient.getSkipFilters()) {
-                                msgId = pm.getMessageID();
-                                int folderId = Mailbox.ID_FOLDER_INBOX;
-                                if (recipient.getFolder() != null) {
-                                    try {
-                                        Folder folder = mbox.getFolderByPath(null, recipient.getFolder());
-                                        folderId = folder.getId();
-                                    } catch (ServiceException se) {
-                                        if (se.getCode().equals(MailServiceException.NO_SUCH_FOLDER)) {
-                                            Folder folder = mbox.createFolder(null, recipient.getFolder(),
-                                                    new Folder.FolderOptions().setDefaultView(MailItem.Type.MESSAGE));
-                                            folderId = folder.getId();
-                                        } else {
-                                            throw se;
-                                        }
-                                    }
-                                }
-                                int flags = Flag.BITMASK_UNREAD;
-                                if (recipient.getFlags() != null) {
-                                    flags = Flag.toBitmask(recipient.getFlags());
-                                }
-                                DeliveryOptions dopt = new DeliveryOptions().setFolderId(folderId);
-                                dopt.setFlags(flags).setTags(recipient.getTags()).setRecipientEmail(rcptEmail);
-                                Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
-                                addedMessageIds = Lists.newArrayList(new ItemId(msg));
-                            } else if (!DebugConfig.disableIncomingFilter) {
-                                // Get msgid first, to avoid having to reopen and reparse the blob
-                                // file if Mailbox.addMessageInternal() closes it.
-                                pm.getMessageID();
-                                addedMessageIds = RuleManager.applyRulesToIncomingMessage(
-                                        null, mbox, pm, (int) blob.getRawSize(), rcptEmail, env, sharedDeliveryCtxt,
-                                        Mailbox.ID_FOLDER_INBOX, false, true);
-                            } else {
-                                pm.getMessageID();
-                                DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
-                                dopt.setFlags(Flag.BITMASK_UNREAD).setRecipientEmail(rcptEmail);
-                                Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
-                                addedMessageIds = Lists.newArrayList(new ItemId(msg));
-                            }
-                            success = true;
-                            if (addedMessageIds != null && addedMessageIds.size() > 0) {
-                                addToDedupeCache(pm, mbox);
-                            }
-                        } finally {
-                            lock.unlock();
-                        }
-
-                        if (addedMessageIds != null && addedMessageIds.size() > 0) {
-                            // Execute callbacks
-                            for (LmtpCallback callback : callbacks) {
-                                for (ItemId id : addedMessageIds) {
-                                    if (id.belongsTo(mbox)) {
-                                        // Message was added to the local mailbox, as opposed to a mountpoint.
-                                        ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
-                                        try {
-                                            Message msg = mbox.getMessageById(null, id.getId());
-                                            callback.afterDelivery(account, mbox, envSender, rcptEmail, msg);
-                                        } catch (OutOfMemoryError oome) {
-                                            Zimbra.halt("LMTP callback failed", oome);
-                                        } catch (Throwable t) {
-                                            ZimbraLog.lmtp.warn("LMTP callback threw an exception", t);
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                        reply = LmtpReply.DELIVERY_OK;
-                        break;
-                    case defer:
-                        // Delivery to mailbox skipped.  Let MTA retry again later.
-                        // This case happens for shared delivery to a mailbox in
-                        // backup mode.
-                        ZimbraLog.lmtp.info("try again for message from=%s,to=%s: mailbox skipped",
-                                envSender, rcptEmail);
-                        reply = LmtpReply.TEMPORARY_FAILURE;
-                        break;
-                    }
-                } catch (DeliveryServiceException e) {
-                    ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: sieve filter rule", envSender, rcptEmail);
-                    reply = LmtpReply.PERMANENT_MESSAGE_REFUSED;
-                } catch (ServiceException e) {
-                    if (e.getCode().equals(MailServiceException.QUOTA_EXCEEDED)) {
-                        ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: overquota", envSender, rcptEmail);
-                        if (config.isPermanentFailureWhenOverQuota()) {
-                            reply = LmtpReply.PERMANENT_FAILURE_OVER_QUOTA;
-                        } else {
-                            reply = LmtpReply.TEMPORARY_FAILURE_OVER_QUOTA;
-                        }
-                    } else if (e.isReceiversFault()) {
-                        ZimbraLog.lmtp.info("try again for message from=%s,to=%s", envSender, rcptEmail, e);
-                        reply = LmtpReply.TEMPORARY_FAILURE;
-                    } else {
-                        ZimbraLog.lmtp.info("rejecting message from=%s,to=%s", envSender, rcptEmail, e);
-                        reply = LmtpReply.PERMANENT_FAILURE;
-                    }
-                } catch (Exception e) {
-                    reply = LmtpReply.TEMPORARY_FAILURE;
-                    ZimbraLog.lmtp.warn("try again for message from=%s,to=%s", envSender, rcptEmail, e);
-                } finally {
-                    if (rd.action == DeliveryAction.deliver && !success) {
-                        // Message was not delivered.  Remove it from the dedupe
-                        // cache so we don't dedupe it on LMTP retry.
-                        removeFromDedupeCache(msgId, rd.mbox);
-                    }
-                    recipient.setDeliveryStatus(reply);
-                    if (shared && rd != null && rd.esd) {
-                        rd.mbox.endSharedDelivery();
-                        rd.esd = false;
-                    }
-                }
+            // version each recipient needs.  Deliver serially until the blob
+            // has been stored and logged by the first mailbox; the remaining
+            // mailboxes only link to it, so they can be delivered concurrently.
+            long start = System.currentTimeMillis();
+            Queue<LmtpAddress> pending = new ConcurrentLinkedQueue<LmtpAddress>(recipients);
+            DeliveryLane lane = new DeliveryLane(pending, rcptMap, env, blob, data, sharedDeliveryCtxt, msgId, false);
+            LmtpAddress next;
+            while (sharedDeliveryCtxt.isFirst() && (next = lane.next()) != null) {
+                lane.deliver(next);
+            }
+            if (pending.size() > 1) {
+                deliverConcurrently(lane, pending, rcptMap, env, blob, data, sharedDeliveryCtxt, msgId);
+            } else {
+                lane.drain();
+            }
+            if (recipients.size() > 1) {
+                long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+                ZimbraPerf.HISTOGRAM_LMTP_DLVR_RCPT_RATE.record(recipients.size() * 1000L / elapsed);
             }
 
             // If this message is being streamed from disk, cache it
@@ -735,6 +596,333 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         }
     }
 
+    private static synchronized ThreadPoolExecutor getDeliveryExecutor() {
+        int threads = LC.zimbra_lmtp_delivery_threads.intValue();
+        if (threads <= 0) {
+            return null;
+        }
+        if (deliveryExecutor == null) {
+            deliveryExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(LC.zimbra_lmtp_delivery_queue_size.intValue(), 1)),
+                    new ThreadFactoryBuilder().setNameFormat("LmtpDelivery-%d").setDaemon(true).build());
+            deliveryExecutor.allowCoreThreadTimeOut(true);
+        }
+        return deliveryExecutor;
+    }
+
+    /**
+     * Returns the number of recipients of messages currently being delivered
+     * concurrently that have not been picked up by a delivery lane yet.
+     */
+    public static int getPendingRecipients() {
+        return pendingRecipients.get();
+    }
+
+    /**
+     * Spreads the remaining recipients over the calling thread and up to
+     * <tt>zimbra_lmtp_delivery_threads</tt> delivery threads.  Returns once
+     * every recipient has a delivery status.  If the delivery executor is
+     * saturated, the calling thread delivers to the recipients itself.
+     */
+    private void deliverConcurrently(DeliveryLane callerLane, Queue<LmtpAddress> pending,
+            Map<LmtpAddress, RecipientDetail> rcptMap, LmtpEnvelope env, Blob blob, byte[] data,
+            DeliveryContext dctxt, String msgId) {
+        ThreadPoolExecutor executor = getDeliveryExecutor();
+        int perLane = Math.max(LC.zimbra_lmtp_delivery_recipients_per_lane.intValue(), 1);
+        int numLanes = (pending.size() + perLane - 1) / perLane;
+        if (executor != null) {
+            numLanes = Math.min(numLanes, executor.getMaximumPoolSize() + 1);
+        }
+
+        pendingRecipients.addAndGet(pending.size());
+        callerLane.countPending = true;
+        List<DeliveryLane> lanes = new ArrayList<DeliveryLane>(numLanes - 1);
+        List<Future<?>> futures = new ArrayList<Future<?>>(numLanes - 1);
+        try {
+            for (int i = 1; i < numLanes && executor != null; i++) {
+                DeliveryLane lane = new DeliveryLane(pending, rcptMap, env, blob, data, dctxt, msgId, true);
+                lane.countPending = true;
+                try {
+                    futures.add(executor.submit(lane));
+                    lanes.add(lane);
+                } catch (RejectedExecutionException e) {
+                    ZimbraLog.lmtp.debug("LMTP delivery queue is full; delivering remaining recipients serially");
+                    break;
+                }
+            }
+            callerLane.drain();
+
+            for (int i = 0; i < lanes.size(); i++) {
+                if (lanes.get(i).started.compareAndSet(false, true)) {
+                    // never got a thread; the caller has already done its work
+                    executor.remove((Runnable) futures.get(i));
+                    continue;
+                }
+                try {
+                    Uninterruptibles.getUninterruptibly(futures.get(i));
+                } catch (ExecutionException e) {
+                    ZimbraLog.lmtp.warn("LMTP delivery lane failed", e.getCause());
+                }
+            }
+            // a lane that failed leaves its remaining recipients behind
+            callerLane.drain();
+        } finally {
+            callerLane.countPending = false;
+        }
+    }
+
+    /**
+     * Delivers to recipients taken from a queue shared with other lanes.  A
+     * lane running on a delivery thread parses its own copy of the message,
+     * because {@link ParsedMessage} caches analysis results lazily and is not
+     * safe to share between threads.  The blob has already been stored by
+     * then, so the copies link to the same mailbox blob.
+     */
+    private final class DeliveryLane implements Runnable {
+        private final Queue<LmtpAddress> pending;
+        private final Map<LmtpAddress, RecipientDetail> rcptMap;
+        private final LmtpEnvelope env;
+        private final String envSender;
+        private final Blob blob;
+        private final byte[] data;
+        private final DeliveryContext dctxt;
+        private final String msgId;
+        private final boolean ownCopy;
+        final AtomicBoolean started = new AtomicBoolean();
+        volatile boolean countPending;
+        private ParsedMessage pmAttachIndex;
+        private ParsedMessage pmNoAttachIndex;
+
+        DeliveryLane(Queue<LmtpAddress> pending, Map<LmtpAddress, RecipientDetail> rcptMap, LmtpEnvelope env,
+                Blob blob, byte[] data, DeliveryContext dctxt, String msgId, boolean ownCopy) {
+            this.pending = pending;
+            this.rcptMap = rcptMap;
+            this.env = env;
+            this.envSender = env.getSender().getEmailAddress();
+            this.blob = blob;
+            this.data = data;
+            this.dctxt = dctxt;
+            this.msgId = msgId;
+            this.ownCopy = ownCopy;
+        }
+
+        @Override
+        public void run() {
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                drain();
+            } finally {
+                ZimbraLog.clearContext();
+            }
+        }
+
+        LmtpAddress next() {
+            LmtpAddress recipient = pending.poll();
+            if (recipient != null && countPending) {
+                pendingRecipients.decrementAndGet();
+            }
+            return recipient;
+        }
+
+        void drain() {
+            for (LmtpAddress recipient = next(); recipient != null; recipient = next()) {
+                deliver(recipient);
+            }
+        }
+
+        private ParsedMessage parsedMessage(RecipientDetail rd) throws ServiceException, IOException {
+            if (!ownCopy) {
+                return rd.pm;
+            }
+            boolean attachmentIndexing = rd.pm.isAttachmentIndexingEnabled();
+            ParsedMessage pm = attachmentIndexing ? pmAttachIndex : pmNoAttachIndex;
+            if (pm == null) {
+                pm = new ParsedMessage(new ParsedMessageOptions(blob, data, rd.pm.getReceivedDate(), attachmentIndexing));
+                if (attachmentIndexing) {
+                    pmAttachIndex = pm;
+                } else {
+                    pmNoAttachIndex = pm;
+                }
+            }
+            return pm;
+        }
+
+        void deliver(LmtpAddress recipient) {
+            String rcptEmail = recipient.getEmailAddress();
+            LmtpReply reply = LmtpReply.TEMPORARY_FAILURE;
+            RecipientDetail rd = rcptMap.get(recipient);
+            if (rd == null) {
+                // Account or mailbox not found.
+                ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: account or mailbox not found",
+                        envSender, rcptEmail);
+                recipient.setDeliveryStatus(LmtpReply.PERMANENT_FAILURE);
+                return;
+            }
+            if (rd.account != null) {
+                ZimbraLog.addAccountNameToContext(rd.account.getName());
+            }
+            if (rd.mbox != null) {
+                ZimbraLog.addMboxToContext(rd.mbox.getId());
+            }
+
+            ParsedMessage pm = null;
+            boolean success = false;
+            try {
+                switch (rd.action) {
+                case discard:
+                    ZimbraLog.lmtp.info("accepted and discarded message from=%s,to=%s: local delivery is disabled",
+                            envSender, rcptEmail);
+                    if (rd.account.getPrefMailForwardingAddress() != null) {
+                        // mail forwarding is set up
+                        pm = parsedMessage(rd);
+                        for (LmtpCallback callback : callbacks) {
+                            ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
+                            callback.forwardWithoutDelivery(rd.account, rd.mbox, envSender, rcptEmail, pm);
+                        }
+                    }
+                    reply = LmtpReply.DELIVERY_OK;
+                    break;
+                case deliver:
+                    Account account = rd.account;
+                    Mailbox mbox = rd.mbox;
+                    pm = parsedMessage(rd);
+                    List<ItemId> addedMessageIds = null;
+                    ReentrantLock lock = mailboxDeliveryLocks.get(mbox.getId());
+                    boolean acquiredLock;
+                    try {
+                        // Wait for the lock, up to the timeout
+                        acquiredLock = lock.tryLock(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        acquiredLock = false;
+                    }
+                    if (!acquiredLock) {
+                        ZimbraLog.lmtp.info("try again for message from=%s,to=%s: another mail delivery in progress.",
+                                envSender, rcptEmail);
+                        reply = LmtpReply.TEMPORARY_FAILURE;
+                        break;
+                    }
+                    try {
+                        if (dedupe(pm, mbox)) {
+                            // message was already delivered to this mailbox
+                            ZimbraLog.lmtp.info("Not delivering message with duplicate Message-ID %s", pm.getMessageID());
+                        } else if (mbox.dedupeForSelfMsg(pm)) {
+                            ZimbraLog.mailbox.info("not delivering message, because it is a duplicate of sent message %s",
+                                    pm.getMessageID());
+
+                        } else if (recipient.getSkipFilters()) {
+                            int folderId = Mailbox.ID_FOLDER_INBOX;
+                            if (recipient.getFolder() != null) {
+                                try {
+                                    Folder folder = mbox.getFolderByPath(null, recipient.getFolder());
+                                    folderId = folder.getId();
+                                } catch (ServiceException se) {
+                                    if (se.getCode().equals(MailServiceException.NO_SUCH_FOLDER)) {
+                                        Folder folder = mbox.createFolder(null, recipient.getFolder(),
+                                                new Folder.FolderOptions().setDefaultView(MailItem.Type.MESSAGE));
+                                        folderId = folder.getId();
+                                    } else {
+                                        throw se;
+                                    }
+                                }
+                            }
+                            int flags = Flag.BITMASK_UNREAD;
+                            if (recipient.getFlags() != null) {
+                                flags = Flag.toBitmask(recipient.getFlags());
+                            }
+                            DeliveryOptions dopt = new DeliveryOptions().setFolderId(folderId);
+                            dopt.setFlags(flags).setTags(recipient.getTags()).setRecipientEmail(rcptEmail);
+                            Message msg = mbox.addMessage(null, pm, dopt, dctxt);
+                            addedMessageIds = Lists.newArrayList(new ItemId(msg));
+                        } else if (!DebugConfig.disableIncomingFilter) {
+                            // Get msgid first, to avoid having to reopen and reparse the blob
+                            // file if Mailbox.addMessageInternal() closes it.
+                            pm.getMessageID();
+                            addedMessageIds = RuleManager.applyRulesToIncomingMessage(
+                                    null, mbox, pm, (int) blob.getRawSize(), rcptEmail, env, dctxt,
+                                    Mailbox.ID_FOLDER_INBOX, false, true);
+                        } else {
+                            pm.getMessageID();
+                            DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+                            dopt.setFlags(Flag.BITMASK_UNREAD).setRecipientEmail(rcptEmail);
+                            Message msg = mbox.addMessage(null, pm, dopt, dctxt);
+                            addedMessageIds = Lists.newArrayList(new ItemId(msg));
+                        }
+                        success = true;
+                        if (addedMessageIds != null && addedMessageIds.size() > 0) {
+                            addToDedupeCache(pm, mbox);
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+
+                    if (addedMessageIds != null && addedMessageIds.size() > 0) {
+                        // Execute callbacks
+                        for (LmtpCallback callback : callbacks) {
+                            for (ItemId id : addedMessageIds) {
+                                if (id.belongsTo(mbox)) {
+                                    // Message was added to the local mailbox, as opposed to a mountpoint.
+                                    ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
+                                    try {
+                                        Message msg = mbox.getMessageById(null, id.getId());
+                                        callback.afterDelivery(account, mbox, envSender, rcptEmail, msg);
+                                    } catch (OutOfMemoryError oome) {
+                                        Zimbra.halt("LMTP callback failed", oome);
+                                    } catch (Throwable t) {
+                                        ZimbraLog.lmtp.warn("LMTP callback threw an exception", t);
+                                    }
+                                }
+                            }
+                        }
+                    }
+                    reply = LmtpReply.DELIVERY_OK;
+                    break;
+                case defer:
+                    // Delivery to mailbox skipped.  Let MTA retry again later.
+                    // This case happens for shared delivery to a mailbox in
+                    // backup mode.
+                    ZimbraLog.lmtp.info("try again for message from=%s,to=%s: mailbox skipped",
+                            envSender, rcptEmail);
+                    reply = LmtpReply.TEMPORARY_FAILURE;
+                    break;
+                }
+            } catch (DeliveryServiceException e) {
+                ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: sieve filter rule", envSender, rcptEmail);
+                reply = LmtpReply.PERMANENT_MESSAGE_REFUSED;
+            } catch (ServiceException e) {
+                if (e.getCode().equals(MailServiceException.QUOTA_EXCEEDED)) {
+                    ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: overquota", envSender, rcptEmail);
+                    if (config.isPermanentFailureWhenOverQuota()) {
+                        reply = LmtpReply.PERMANENT_FAILURE_OVER_QUOTA;
+                    } else {
+                        reply = LmtpReply.TEMPORARY_FAILURE_OVER_QUOTA;
+                    }
+                } else if (e.isReceiversFault()) {
+                    ZimbraLog.lmtp.info("try again for message from=%s,to=%s", envSender, rcptEmail, e);
+                    reply = LmtpReply.TEMPORARY_FAILURE;
+                } else {
+                    ZimbraLog.lmtp.info("rejecting message from=%s,to=%s", envSender, rcptEmail, e);
+                    reply = LmtpReply.PERMANENT_FAILURE;
+                }
+            } catch (Exception e) {
+                reply = LmtpReply.TEMPORARY_FAILURE;
+                ZimbraLog.lmtp.warn("try again for message from=%s,to=%s", envSender, rcptEmail, e);
+            } finally {
+                if (rd.action == DeliveryAction.deliver && !success) {
+                    // Message was not delivered.  Remove it from the dedupe
+                    // cache so we don't dedupe it on LMTP retry.
+                    removeFromDedupeCache(msgId, rd.mbox);
+                }
+                recipient.setDeliveryStatus(reply);
+                if (dctxt.getShared() && rd.esd) {
+                    rd.mbox.endSharedDelivery();
+                    rd.esd = false;
+                }
+            }
+        }
+    }
+
     private void deliverMessageToRemoteMailboxes(Blob blob, byte[] data, LmtpEnvelope env) {
         Multimap<String, LmtpAddress> serverToRecipientsMap = env.getRemoteServerToRecipientsMap();
         for (String server : serverToRecipientsMap.keySet()) {
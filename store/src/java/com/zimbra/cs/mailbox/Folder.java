@@ -363,6 +363,14 @@ public class Folder extends MailItem implements FolderStore {
         return imapRECENT;
     }
 
+    /** Returns the number of \Recent items if it's known without going to the database, otherwise -1. */
+    int getCachedImapRECENT() {
+        if (getSize() == 0 || writableImapSessionActive()) {
+            return 0;
+        }
+        return imapRECENT;
+    }
+
     /** Returns one higher than the IMAP ID of the last item added to the
      *  folder.  This is used as the UIDNEXT value when returning the folder
      *  via IMAP. */
@@ -0,0 +1,368 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.stats.RealtimeStatsCallback;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.db.DbMailbox;
+import com.zimbra.cs.db.DbPool;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Indexing work shared by all mailboxes.
+ * <p>
+ * Work is queued per mailbox in one of the {@link Priority} classes. Requests to index a mailbox's deferred items
+ * coalesce into a single entry until an index thread picks it up, so a busy mailbox is indexed in batches rather than
+ * once per commit. A turn indexes at most {@code batchItems} items, after which the mailbox goes to the back of the
+ * backlog class; one large backlog can't keep an index thread away from everybody else. The classes are served by
+ * weighted round-robin, so delivery goes first but backlog and re-index still make progress under load.
+ * <p>
+ * Re-index runs on its own threads and only asks the queue for a turn before each chunk it tokenizes.
+ * <p>
+ * Mailboxes with a backlog are recorded in the {@code mailbox} table, and {@link #recover()} queues them again after
+ * a restart.
+ *
+ * @see MailboxIndex
+ */
+final class IndexQueue implements RealtimeStatsCallback {
+
+    enum Priority {
+        /** Items added by recent mailbox transactions. */
+        DELIVERY(8),
+        /** Items left from an earlier turn, a failure or before a restart, and index maintenance. */
+        BACKLOG(2),
+        /** Chunks of a bulk re-index. */
+        REINDEX(1);
+
+        final int weight;
+
+        private Priority(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    private final int threads;
+    private final int batchItems;
+    private final Map<Priority, LinkedHashMap<Integer, Entry>> queued =
+            new EnumMap<Priority, LinkedHashMap<Integer, Entry>>(Priority.class);
+    private final Map<Priority, Integer> credits = new EnumMap<Priority, Integer>(Priority.class);
+    // mailboxes an index thread is working on; their queued entries wait until it is done
+    private final Set<Integer> running = new HashSet<Integer>();
+    private int workers = 0;
+    private int generation = 0;
+    private boolean started = false;
+
+    IndexQueue(int threads, int batchItems) {
+        this.threads = Math.max(threads, 1);
+        this.batchItems = Math.max(batchItems, 1);
+        for (Priority priority : Priority.values()) {
+            queued.put(priority, new LinkedHashMap<Integer, Entry>());
+            credits.put(priority, priority.weight);
+        }
+    }
+
+    private static final class Entry {
+        final int mailboxId;
+        final Priority priority;
+        final long enqueued = System.currentTimeMillis();
+        // null for a mailbox recovered at startup until its turn comes
+        MailboxIndex index;
+        boolean deferred = false;
+        final List<Runnable> tasks = new ArrayList<Runnable>(0);
+        boolean granted = false;
+
+        Entry(int mailboxId, Priority priority) {
+            this.mailboxId = mailboxId;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * Starts the index threads and registers the queue stats.
+     *
+     * @return false if the queue was already started
+     */
+    synchronized boolean startup() {
+        if (started) {
+            return false;
+        }
+        started = true;
+        start();
+        ZimbraPerf.addStatsCallback(this);
+        return true;
+    }
+
+    private void start() {
+        while (workers < threads) {
+            final int gen = generation;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(gen);
+                }
+            }, "Index-" + workers);
+            thread.setDaemon(true);
+            thread.start();
+            workers++;
+        }
+    }
+
+    /**
+     * Stops the index threads and forgets queued work. Turns that are running finish first. Mailboxes whose deferred
+     * items were still queued are recorded so that {@link #recover()} finds them again, and queued
+     * {@link MailboxIndex.IndexTask}s are cancelled so that they release what they hold.
+     */
+    void shutdown() {
+        List<MailboxIndex> pending = new ArrayList<MailboxIndex>();
+        List<Runnable> dropped = new ArrayList<Runnable>();
+        synchronized (this) {
+            for (Map<Integer, Entry> entries : queued.values()) {
+                for (Entry entry : entries.values()) {
+                    if (entry.deferred && entry.index != null) {
+                        pending.add(entry.index);
+                    }
+                    dropped.addAll(entry.tasks);
+                }
+                entries.clear();
+            }
+            workers = 0;
+            generation++;
+            notifyAll();
+        }
+        for (MailboxIndex index : pending) {
+            index.recordBacklog();
+        }
+        for (Runnable task : dropped) {
+            if (task instanceof MailboxIndex.IndexTask) {
+                ((MailboxIndex.IndexTask) task).cancel();
+            }
+        }
+    }
+
+    /**
+     * Queues the mailboxes recorded as having a backlog.
+     */
+    void recover() {
+        Set<Integer> ids;
+        DbConnection conn = null;
+        try {
+            conn = DbPool.getConnection();
+            ids = DbMailbox.listIndexDeferredMailboxes(conn);
+        } catch (ServiceException e) {
+            ZimbraLog.index.warn("Failed to look up mailboxes with deferred items", e);
+            return;
+        } finally {
+            DbPool.quietClose(conn);
+        }
+        if (!ids.isEmpty()) {
+            ZimbraLog.index.info("Queueing %d mailboxes with deferred items", ids.size());
+        }
+        for (int id : ids) {
+            enqueue(id, null, Priority.BACKLOG);
+        }
+    }
+
+    /**
+     * Queues a turn to index the mailbox's deferred items. If the mailbox is already queued for one, the requests
+     * coalesce.
+     */
+    synchronized void enqueue(int mailboxId, MailboxIndex index, Priority priority) {
+        Entry entry = queued.get(Priority.DELIVERY).get(mailboxId);
+        if (entry == null) {
+            entry = queued.get(Priority.BACKLOG).get(mailboxId);
+        }
+        if (entry == null) {
+            entry = add(mailboxId, priority);
+        }
+        if (entry.index == null) {
+            entry.index = index;
+        }
+        entry.deferred = true;
+        notifyAll();
+    }
+
+    /**
+     * Queues a task to run on an index thread. Tasks for the same mailbox and priority run in one turn.
+     */
+    synchronized void submit(int mailboxId, Priority priority, Runnable task) {
+        Entry entry = queued.get(priority).get(mailboxId);
+        if (entry == null) {
+            entry = add(mailboxId, priority);
+        }
+        entry.tasks.add(task);
+        notifyAll();
+    }
+
+    private Entry add(int mailboxId, Priority priority) {
+        if (workers == 0) {
+            start();
+        }
+        Entry entry = new Entry(mailboxId, priority);
+        queued.get(priority).put(mailboxId, entry);
+        return entry;
+    }
+
+    /**
+     * Blocks the calling re-index thread until the queue gives the mailbox a {@link Priority#REINDEX} turn.
+     */
+    void awaitTurn(int mailboxId) {
+        synchronized (this) {
+            int gen = generation;
+            Entry entry = queued.get(Priority.REINDEX).get(mailboxId);
+            if (entry == null) {
+                entry = add(mailboxId, Priority.REINDEX);
+                notifyAll();
+            }
+            long start = System.currentTimeMillis();
+            try {
+                while (!entry.granted && gen == generation) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            ZimbraPerf.HISTOGRAM_IDX_QUEUE_WAIT.record(System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Picks the next entry by weighted round-robin over the priority classes, skipping mailboxes that are being worked
+     * on. The caller must hold the monitor.
+     */
+    private Entry next() {
+        for (int round = 0; round < 2; round++) {
+            for (Priority priority : Priority.values()) {
+                int credit = credits.get(priority);
+                if (credit > 0) {
+                    Entry entry = poll(priority);
+                    if (entry != null) {
+                        credits.put(priority, credit - 1);
+                        return entry;
+                    }
+                }
+            }
+            // no class with credit left has work: start a new round
+            for (Priority priority : Priority.values()) {
+                credits.put(priority, priority.weight);
+            }
+        }
+        return null;
+    }
+
+    private Entry poll(Priority priority) {
+        Iterator<Entry> itr = queued.get(priority).values().iterator();
+        while (itr.hasNext()) {
+            Entry entry = itr.next();
+            if (priority == Priority.REINDEX || !running.contains(entry.mailboxId)) {
+                itr.remove();
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private void work(int gen) {
+        while (true) {
+            Entry entry = null;
+            synchronized (this) {
+                try {
+                    while (gen == generation && (entry = next()) == null) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (gen != generation) {
+                    return;
+                }
+                if (entry.priority == Priority.REINDEX) {
+                    entry.granted = true;
+                    notifyAll();
+                    continue;
+                }
+                running.add(entry.mailboxId);
+            }
+            ZimbraPerf.HISTOGRAM_IDX_QUEUE_WAIT.record(System.currentTimeMillis() - entry.enqueued);
+            boolean more = false;
+            try {
+                more = run(entry);
+            } catch (RuntimeException e) {
+                ZimbraLog.index.error("Index turn failed for mailbox %d", entry.mailboxId, e);
+            } finally {
+                synchronized (this) {
+                    running.remove(entry.mailboxId);
+                    if (more && gen == generation) {
+                        enqueue(entry.mailboxId, entry.index, Priority.BACKLOG);
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs one turn for the mailbox.
+     *
+     * @return true if the mailbox has more deferred items and should be queued again
+     */
+    private boolean run(Entry entry) {
+        for (Runnable task : entry.tasks) {
+            task.run();
+        }
+        if (!entry.deferred) {
+            return false;
+        }
+        if (entry.index == null) {
+            try {
+                entry.index = MailboxManager.getInstance().getMailboxById(entry.mailboxId).index;
+            } catch (ServiceException e) {
+                ZimbraLog.index.warn("Failed to load mailbox %d to index deferred items", entry.mailboxId, e);
+                return false;
+            }
+            entry.index.markBacklogRecorded();
+        }
+        return entry.index.indexQueuedItems(batchItems);
+    }
+
+    @VisibleForTesting
+    synchronized int getQueuedCount(Priority priority) {
+        return queued.get(priority).size();
+    }
+
+    @Override
+    public synchronized Map<String, Object> getStatData() {
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put(ZimbraPerf.RTS_IDX_QUEUE_DELIVERY, queued.get(Priority.DELIVERY).size());
+        data.put(ZimbraPerf.RTS_IDX_QUEUE_BACKLOG, queued.get(Priority.BACKLOG).size());
+        data.put(ZimbraPerf.RTS_IDX_QUEUE_REINDEX, queued.get(Priority.REINDEX).size());
+        return data;
+    }
+}
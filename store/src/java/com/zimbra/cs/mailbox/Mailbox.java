@@ -52,6 +52,7 @@ import com.google.common.base.CharMatcher;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -110,6 +111,7 @@ import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
 import com.zimbra.cs.account.ShareLocator;
 import com.zimbra.cs.datasource.DataSourceManager;
+import com.zimbra.cs.db.Db;
 import com.zimbra.cs.db.DbDataSource;
 import com.zimbra.cs.db.DbMailItem;
 import com.zimbra.cs.db.DbMailItem.QueryParams;
@@ -178,6 +180,7 @@ import com.zimbra.cs.redolog.op.CreateInvite;
 import com.zimbra.cs.redolog.op.CreateLink;
 import com.zimbra.cs.redolog.op.CreateMailbox;
 import com.zimbra.cs.redolog.op.CreateMessage;
+import com.zimbra.cs.redolog.op.CreateMessages;
 import com.zimbra.cs.redolog.op.CreateMountpoint;
 import com.zimbra.cs.redolog.op.CreateNote;
 import com.zimbra.cs.redolog.op.CreateSavedSearch;
@@ -372,6 +375,8 @@ public class Mailbox implements MailboxStore {
         int depth = 0;
         boolean active;
         DbConnection conn = null;
+        boolean batchInserts = false;
+        DbMailItem.InsertBatch insertBatch = null;
         RedoableOp recorder = null;
         List<IndexItemEntry> indexItems = new ArrayList<IndexItemEntry>();
         ItemCache itemCache = null;
@@ -448,6 +453,17 @@ public class Mailbox implements MailboxStore {
             return conn;
         }
 
+        /**
+         * Writes any rows queued by {@link DbMailItem#create} during a bulk
+         * insert.  Anything else that touches the database must call this
+         * first, or it won't see the new items.
+         */
+        void flushInsertBatch() throws ServiceException {
+            if (insertBatch != null && !insertBatch.isEmpty()) {
+                insertBatch.flush();
+            }
+        }
+
         RedoableOp getRedoPlayer() {
             return (octxt == null ? null : octxt.getPlayer());
         }
@@ -485,9 +501,14 @@ public class Mailbox implements MailboxStore {
         }
 
         void reset() {
+            if (insertBatch != null) {
+                insertBatch.close();
+            }
             DbPool.quietClose(conn);
             this.active = false;
             this.conn = null;
+            this.batchInserts = false;
+            this.insertBatch = null;
             this.octxt = null;
             this.tcon = null;
             this.imap = null;
@@ -540,13 +561,20 @@ public class Mailbox implements MailboxStore {
     private static class FolderCache {
         private final Map<Integer, Folder> mapById;
         private final Map<String, Folder> mapByUuid;
+        private volatile FolderCache published; // null while the cache has changed since it was last published
 
         public FolderCache() {
             mapById = new ConcurrentHashMap<Integer, Folder>();
             mapByUuid = new ConcurrentHashMap<String, Folder>();
         }
 
+        private FolderCache(Map<Integer, Folder> mapById, Map<String, Folder> mapByUuid) {
+            this.mapById = mapById;
+            this.mapByUuid = mapByUuid;
+        }
+
         public void put(Folder folder) {
+            published = null;
             mapById.put(folder.getId(), folder);
             if (folder.getUuid() != null) {
                 mapByUuid.put(folder.getUuid(), folder);
@@ -562,6 +590,7 @@ public class Mailbox implements MailboxStore {
         }
 
         public void remove(Folder folder) {
+            published = null;
             Folder removed = mapById.remove(folder.getId());
             if (removed != null) {
                 String uuid = removed.getUuid();
@@ -579,6 +608,21 @@ public class Mailbox implements MailboxStore {
             return mapById.size();
         }
 
+        /**
+         * Publishes an immutable copy of the maps, sharing the cached folders themselves, for readers that don't take
+         * the mailbox lock.  Called at the end of a transaction, under the lock, so the maps can't be changing.
+         */
+        void publish() {
+            if (published == null) {
+                published = new FolderCache(ImmutableMap.copyOf(mapById), ImmutableMap.copyOf(mapByUuid));
+            }
+        }
+
+        /** Returns the copy last published, or null if a folder has been added or removed since. */
+        FolderCache getPublished() {
+            return published;
+        }
+
         public FolderCache makeCopy() throws ServiceException {
             FolderCache copy = new FolderCache();
             for (Folder folder : values()) {
@@ -753,6 +797,8 @@ public class Mailbox implements MailboxStore {
     private volatile boolean open = false;
     private boolean galSyncMailbox = false;
     private volatile boolean requiresWriteLock = true;
+    /** Distributed lock lease the folder and tag caches were loaded under, in always on mode. */
+    private volatile long folderTagCacheEpoch = 0;
 
     protected Mailbox(MailboxData data) {
         mId = data.id;
@@ -788,9 +834,20 @@ public class Mailbox implements MailboxStore {
     boolean requiresWriteLock() {
         //mailbox currently forced to use write lock due to one of the following
         //1. pending tag/flag reload; i.e. cache flush or initial mailbox load
-        //2. this is an always on node (distributed lock does not support read/write currently)
-        //3. read/write disabled by LC for debugging
-        return requiresWriteLock || Zimbra.isAlwaysOn() || !LC.zimbra_mailbox_lock_readwrite.booleanValue();
+        //2. this is an always on node and the distributed lock is not read/write
+        //3. this is an always on node and the tag/flag caches were not loaded under the current distributed lease
+        //4. read/write disabled by LC for debugging
+        return requiresWriteLock || (Zimbra.isAlwaysOn() && (!LC.zimbra_mailbox_dlock_readwrite.booleanValue()
+                || isFolderTagCacheStale())) || !LC.zimbra_mailbox_lock_readwrite.booleanValue();
+    }
+
+    /**
+     * In always on mode the folder and tag caches are only known to be current while this node has held the
+     * distributed lock without interruption since they were loaded.  Otherwise another node may have changed them.
+     */
+    private boolean isFolderTagCacheStale() {
+        long epoch = lock.getLeaseEpoch();
+        return epoch == 0 || epoch != folderTagCacheEpoch;
     }
 
     /**
@@ -1377,6 +1434,29 @@ public class Mailbox implements MailboxStore {
         return false;
     }
 
+    /**
+     * Returns whether a read on behalf of the given context may be served straight from the folder and tag caches
+     * under {@link MailboxLock#optimisticRead}, skipping the read transaction: the caller is the owner, so no folder
+     * ACLs apply, and isn't in a transaction already.  Not in always-on mode, where the caches may be stale until a
+     * transaction reloads them.
+     */
+    private boolean isOptimisticCacheRead(OperationContext octxt) {
+        Account authuser = octxt != null ? octxt.getAuthenticatedUser() : null;
+        return (authuser == null || getAccountId().equals(authuser.getId())) && !currentChange().isActive()
+                && !Zimbra.isAlwaysOn();
+    }
+
+    /**
+     * Returns the folders as of the last committed transaction, for reads under {@link MailboxLock#optimisticRead}.
+     * These are the live cached folders, as the transactional reads return; only the maps are a snapshot.
+     *
+     * @return null if the folder cache isn't loaded, or has changed since it was last published
+     */
+    private FolderCache getPublishedFolders() {
+        FolderCache folders = mFolderCache;
+        return folders == null ? null : folders.getPublished();
+    }
+
     /** Returns whether the authenticated user in the given op context has full access to this
      *  <tt>Mailbox</tt>.   The following users have full access:<ul>
      *    <li>the mailbox's owner
@@ -1445,18 +1525,22 @@ public class Mailbox implements MailboxStore {
      *
      * @see #recordLastSoapAccessTime(long) */
     public long getLastSoapAccessTime() {
-        lock.lock(false);
         try {
-            long lastAccess = (currentChange().accessed == MailboxChange.NO_CHANGE ? mData.lastWriteDate
-                            : currentChange().accessed) * 1000L;
-            for (Session s : mListeners) {
-                if (s instanceof SoapSession) {
-                    lastAccess = Math.max(lastAccess, ((SoapSession) s).getLastWriteAccessTime());
+            return lock.optimisticRead(new MailboxLock.OptimisticRead<Long>() {
+                @Override
+                public Long read() {
+                    long lastAccess = (currentChange().accessed == MailboxChange.NO_CHANGE ? mData.lastWriteDate
+                                    : currentChange().accessed) * 1000L;
+                    for (Session s : mListeners) {
+                        if (s instanceof SoapSession) {
+                            lastAccess = Math.max(lastAccess, ((SoapSession) s).getLastWriteAccessTime());
+                        }
+                    }
+                    return lastAccess;
                 }
-            }
-            return lastAccess;
-        } finally {
-            lock.release();
+            });
+        } catch (ServiceException e) {
+            throw new IllegalStateException(e);  // not thrown by the reader
         }
     }
 
@@ -1653,7 +1737,27 @@ public class Mailbox implements MailboxStore {
         if (!currentChange().isActive()) {
             throw ServiceException.FAILURE("cannot fetch Connection outside transaction", new Exception());
         }
-        return currentChange().getConnection();
+        DbConnection conn = currentChange().getConnection();
+        currentChange().flushInsertBatch();
+        return conn;
+    }
+
+    /**
+     * Returns the batch that new rows are queued in when the current
+     * transaction is a bulk insert, or <tt>null</tt> if they should be
+     * written immediately.
+     *
+     * @see #addMessages(OperationContext, List, List)
+     */
+    public DbMailItem.InsertBatch getInsertBatch() throws ServiceException {
+        MailboxChange change = currentChange();
+        if (!change.isActive() || !change.batchInserts) {
+            return null;
+        }
+        if (change.insertBatch == null) {
+            change.insertBatch = new DbMailItem.InsertBatch(this, change.getConnection());
+        }
+        return change.insertBatch;
     }
 
     private void setOperationConnection(DbConnection conn) throws ServiceException {
@@ -2237,8 +2341,8 @@ public class Mailbox implements MailboxStore {
     private void loadFoldersAndTags() throws ServiceException {
         // if the persisted mailbox sizes aren't available, we *must* recalculate
         boolean initial = mData.contacts < 0 || mData.size < 0;
-        if (!Zimbra.isAlwaysOn() || lock.getHoldCount() > 1) {
-            if (mFolderCache != null && mTagCache != null && !initial) {
+        if (mFolderCache != null && mTagCache != null && !initial) {
+            if (!Zimbra.isAlwaysOn() || lock.getHoldCount() > 1 || !isFolderTagCacheStale()) {
                 return;
             }
         }
@@ -2337,6 +2441,9 @@ public class Mailbox implements MailboxStore {
             if (!loadedFromMemcached && !DebugConfig.disableFoldersTagsCache) {
                 cacheFoldersTagsToMemcached();
             }
+            if (Zimbra.isAlwaysOn()) {
+                folderTagCacheEpoch = lock.getLeaseEpoch();
+            }
             if (requiresWriteLock) {
                 requiresWriteLock = false;
                 ZimbraLog.mailbox.debug("consuming forceWriteMode");
@@ -3194,6 +3301,36 @@ public class Mailbox implements MailboxStore {
         return items;
     }
 
+    /**
+     * Loads the given items into the item cache with as few IN-list queries as
+     * possible, so that a caller about to walk a large set of items one at a
+     * time doesn't pay a database round trip per item.  Items that are already
+     * cached are skipped and ids that no longer exist are silently ignored; no
+     * access checks are done here, since nothing is returned to the caller.
+     */
+    public void prefetchItems(OperationContext octxt, Collection<Integer> ids) throws ServiceException {
+        if (ids == null || ids.isEmpty()) {
+            return;
+        }
+        boolean success = false;
+        try {
+            beginReadTransaction("prefetchItems", octxt);
+            ItemCache cache = getItemCache();
+            List<Integer> uncached = new ArrayList<Integer>(ids.size());
+            for (Integer id : ids) {
+                if (id != null && id >= FIRST_USER_ID && cache.get(id) == null) {
+                    uncached.add(id);
+                }
+            }
+            for (List<Integer> chunk : Lists.partition(uncached, Db.getINClauseBatchSize())) {
+                ZimbraPerf.HISTOGRAM_MBOX_PREFETCH_ROWS.record(MailItem.getById(this, chunk, MailItem.Type.UNKNOWN).size());
+            }
+            success = true;
+        } finally {
+            endTransaction(success);
+        }
+    }
+
     /** retrieve an item from the Mailbox's caches; return null if no item found */
     MailItem getCachedItem(Integer key) throws ServiceException {
         MailItem item = null;
@@ -3638,7 +3775,20 @@ public class Mailbox implements MailboxStore {
         }
     }
 
-    public int getImapRecent(OperationContext octxt, int folderId) throws ServiceException {
+    public int getImapRecent(OperationContext octxt, final int folderId) throws ServiceException {
+        if (isOptimisticCacheRead(octxt)) {
+            int recent = lock.optimisticRead(new MailboxLock.OptimisticRead<Integer>() {
+                @Override
+                public Integer read() {
+                    FolderCache folders = getPublishedFolders();
+                    Folder folder = folders == null ? null : folders.get(folderId);
+                    return folder == null ? -1 : folder.getCachedImapRECENT();
+                }
+            });
+            if (recent >= 0) {
+                return recent;
+            }
+        }
         boolean success = false;
         try {
             beginTransaction("getImapRecent", octxt);
@@ -4059,6 +4209,27 @@ public class Mailbox implements MailboxStore {
     }
 
     public List<Tag> getTagList(OperationContext octxt) throws ServiceException {
+        if (isOptimisticCacheRead(octxt)) {
+            List<Tag> tags = lock.optimisticRead(new MailboxLock.OptimisticRead<List<Tag>>() {
+                @Override
+                public List<Tag> read() {
+                    Map<Object, Tag> cache = mTagCache;
+                    if (cache == null) {
+                        return null;
+                    }
+                    List<Tag> listed = new ArrayList<Tag>(cache.size() / 2);
+                    for (Map.Entry<Object, Tag> entry : cache.entrySet()) {
+                        if (entry.getKey() instanceof String && entry.getValue().isListed()) {
+                            listed.add(entry.getValue());
+                        }
+                    }
+                    return listed;
+                }
+            });
+            if (tags != null) {
+                return tags;
+            }
+        }
         List<Tag> tags = new ArrayList<Tag>();
         for (MailItem item : getItemList(octxt, MailItem.Type.TAG)) {
             tags.add((Tag) item);
@@ -4105,7 +4276,19 @@ public class Mailbox implements MailboxStore {
 
     /** Returns the folder with the specified id.
      * @throws NoSuchItemException if the folder does not exist */
-    public Folder getFolderById(OperationContext octxt, int id) throws ServiceException {
+    public Folder getFolderById(OperationContext octxt, final int id) throws ServiceException {
+        if (isOptimisticCacheRead(octxt)) {
+            Folder folder = lock.optimisticRead(new MailboxLock.OptimisticRead<Folder>() {
+                @Override
+                public Folder read() {
+                    FolderCache folders = getPublishedFolders();
+                    return folders == null ? null : folders.get(id);
+                }
+            });
+            if (folder != null) {
+                return folder;
+            }
+        }
         return (Folder) getItemById(octxt, id, MailItem.Type.FOLDER);
     }
 
@@ -4182,6 +4365,28 @@ public class Mailbox implements MailboxStore {
             path = path.substring(0, path.length() - 1); // strip off the optional trailing "/"
         }
 
+        if (isOptimisticCacheRead(octxt)) {
+            final String relative = path;
+            Folder folder = lock.optimisticRead(new MailboxLock.OptimisticRead<Folder>() {
+                @Override
+                public Folder read() throws ServiceException {
+                    FolderCache folders = getPublishedFolders();
+                    Folder folder = folders == null ? null : folders.get(ID_FOLDER_USER_ROOT);
+                    if (folder != null && !relative.isEmpty()) {
+                        for (String segment : relative.split("/")) {
+                            if ((folder = folder.findSubfolder(segment)) == null) {
+                                throw MailServiceException.NO_SUCH_FOLDER("/" + relative);
+                            }
+                        }
+                    }
+                    return folder;
+                }
+            });
+            if (folder != null) {
+                return folder;
+            }
+        }
+
         Folder folder = getFolderById(null, ID_FOLDER_USER_ROOT);
 
         boolean success = false;
@@ -4296,10 +4501,14 @@ public class Mailbox implements MailboxStore {
 
     public FolderNode getFolderTree(OperationContext octxt, ItemId iid, boolean returnAllVisibleFolders)
                     throws ServiceException {
+        int folderId = iid != null ? iid.getId() : Mailbox.ID_FOLDER_USER_ROOT;
+        FolderNode tree = getFolderTreeOptimistic(octxt, folderId, null, returnAllVisibleFolders);
+        if (tree != null) {
+            return tree;
+        }
         lock.lock(false);
         try {
             // get the root node...
-            int folderId = iid != null ? iid.getId() : Mailbox.ID_FOLDER_USER_ROOT;
             Folder folder = getFolderById(returnAllVisibleFolders ? null : octxt, folderId);
             // for each subNode...
             Set<Folder> visibleFolders = getVisibleFolders(octxt);
@@ -4311,6 +4520,10 @@ public class Mailbox implements MailboxStore {
 
     public FolderNode getFolderTreeByUuid(OperationContext octxt, String uuid, boolean returnAllVisibleFolders)
                     throws ServiceException {
+        FolderNode tree = getFolderTreeOptimistic(octxt, Mailbox.ID_FOLDER_USER_ROOT, uuid, returnAllVisibleFolders);
+        if (tree != null) {
+            return tree;
+        }
         lock.lock(false);
         try {
             Folder folder;
@@ -4327,6 +4540,27 @@ public class Mailbox implements MailboxStore {
         }
     }
 
+    /**
+     * Builds the folder tree from a snapshot of the folder cache without taking the mailbox lock.  Only the owner
+     * qualifies, as everything is visible to them.
+     *
+     * @return null if the tree has to be built in a read transaction instead
+     */
+    private FolderNode getFolderTreeOptimistic(OperationContext octxt, final int folderId, final String uuid,
+            final boolean returnAllVisibleFolders) throws ServiceException {
+        if (!isOptimisticCacheRead(octxt)) {
+            return null;
+        }
+        return lock.optimisticRead(new MailboxLock.OptimisticRead<FolderNode>() {
+            @Override
+            public FolderNode read() throws ServiceException {
+                FolderCache folders = getPublishedFolders();
+                Folder folder = folders == null ? null : uuid != null ? folders.get(uuid) : folders.get(folderId);
+                return folder == null ? null : handleFolder(folder, null, returnAllVisibleFolders);
+            }
+        });
+    }
+
     private FolderNode handleFolder(Folder folder, Set<Folder> visible, boolean returnAllVisibleFolders)
                     throws ServiceException {
         boolean isVisible = visible == null || visible.remove(folder);
@@ -6029,18 +6263,7 @@ public class Mailbox implements MailboxStore {
         // just REPLY's.
         //
         if (!noICal) {
-            try {
-                CalendarPartInfo cpi = pm.getCalendarPartInfo();
-                if (cpi != null && CalendarItem.isAcceptableInvite(getAccount(), cpi)) {
-                    if (ICalTok.REPLY.equals(cpi.method)) {
-                        processICalReplies(octxt, cpi.cal, null);
-                    } else if (ICalTok.COUNTER.equals(cpi.method)) {
-                        processICalReplies(octxt, cpi.cal, pm.getSender());
-                    }
-                }
-            } catch (Exception e) {
-                ZimbraLog.calendar.warn("Error during calendar processing.  Continuing with message add", e);
-            }
+            processICalReplies(octxt, pm);
         }
 
         // Store the incoming blob if necessary.
@@ -6109,6 +6332,170 @@ public class Mailbox implements MailboxStore {
         }
     }
 
+    private void processICalReplies(OperationContext octxt, ParsedMessage pm) {
+        try {
+            CalendarPartInfo cpi = pm.getCalendarPartInfo();
+            if (cpi != null && CalendarItem.isAcceptableInvite(getAccount(), cpi)) {
+                if (ICalTok.REPLY.equals(cpi.method)) {
+                    processICalReplies(octxt, cpi.cal, null);
+                } else if (ICalTok.COUNTER.equals(cpi.method)) {
+                    processICalReplies(octxt, cpi.cal, pm.getSender());
+                }
+            }
+        } catch (Exception e) {
+            ZimbraLog.calendar.warn("Error during calendar processing.  Continuing with message add", e);
+        }
+    }
+
+    /**
+     * Adds all the messages with the same {@link DeliveryOptions}.
+     *
+     * @see #addMessages(OperationContext, List, List)
+     */
+    public List<Message> addMessages(OperationContext octxt, List<ParsedMessage> pms, DeliveryOptions dopt)
+    throws IOException, ServiceException {
+        return addMessages(octxt, pms, Collections.nCopies(pms.size(), dopt));
+    }
+
+    /**
+     * Adds a batch of messages to the mailbox.  Each group of up to
+     * <tt>zimbra_mailbox_add_messages_batch_size</tt> messages is added in a
+     * single transaction: the new rows are written with JDBC batch inserts,
+     * folder and tag counts are persisted once, and the group is logged as a
+     * single {@link CreateMessages} redo op with one fsync.  If any message in
+     * a group fails, none of that group's messages are added, but earlier
+     * groups stay committed.
+     * <p>
+     * Messages are delivered as if each were passed to
+     * {@link #addMessage(OperationContext, ParsedMessage, DeliveryOptions, DeliveryContext)}
+     * in turn, except that no {@link DeliveryContext} is shared between them.
+     *
+     * @param dopts delivery options for each message in <tt>pms</tt>
+     * @return the new messages, in the same order as <tt>pms</tt>
+     */
+    public List<Message> addMessages(OperationContext octxt, List<ParsedMessage> pms, List<DeliveryOptions> dopts)
+    throws IOException, ServiceException {
+        return addMessages(octxt, pms, dopts, null);
+    }
+
+    /**
+     * Adds a batch of messages to the mailbox, as
+     * {@link #addMessages(OperationContext, List, List)} does.  A message's
+     * {@link DeliveryContext} may carry an incoming blob that already holds
+     * its content, in which case the content isn't copied again.  Those
+     * blobs still belong to the caller.
+     *
+     * @param dctxts delivery context for each message in <tt>pms</tt>, or
+     *               <tt>null</tt> for none
+     */
+    public List<Message> addMessages(OperationContext octxt, List<ParsedMessage> pms, List<DeliveryOptions> dopts,
+            List<DeliveryContext> dctxts)
+    throws IOException, ServiceException {
+        if (pms.size() != dopts.size()) {
+            throw ServiceException.INVALID_REQUEST("need delivery options for each of " + pms.size() + " messages", null);
+        } else if (dctxts == null) {
+            dctxts = Collections.nCopies(pms.size(), null);
+        } else if (pms.size() != dctxts.size()) {
+            throw ServiceException.INVALID_REQUEST("need delivery context for each of " + pms.size() + " messages", null);
+        }
+        List<Message> msgs = new ArrayList<Message>(pms.size());
+        // replay and single messages get nothing out of batching
+        if (pms.size() == 1 || (octxt != null && octxt.getPlayer() != null)) {
+            for (int i = 0; i < pms.size(); i++) {
+                msgs.add(addMessage(octxt, pms.get(i), dopts.get(i), dctxts.get(i)));
+            }
+            return msgs;
+        }
+
+        int batchSize = Math.max(LC.zimbra_mailbox_add_messages_batch_size.intValue(), 1);
+        for (int i = 0; i < pms.size(); i += batchSize) {
+            int end = Math.min(i + batchSize, pms.size());
+            msgs.addAll(addMessageBatch(octxt, pms.subList(i, end), dopts.subList(i, end), dctxts.subList(i, end)));
+        }
+        return msgs;
+    }
+
+    private List<Message> addMessageBatch(OperationContext octxt, List<ParsedMessage> pms, List<DeliveryOptions> dopts,
+            List<DeliveryContext> callerContexts)
+    throws IOException, ServiceException {
+        long start = ZimbraPerf.STOPWATCH_MBOX_ADD_MSG.start();
+
+        // as in addMessage(), calendar replies are processed before the mailbox is locked
+        for (int i = 0; i < pms.size(); i++) {
+            if (!dopts.get(i).getNoICal()) {
+                processICalReplies(octxt, pms.get(i));
+            }
+        }
+
+        Account account = getAccount();
+        boolean localMsgMarkedRead = account.getPrefMailForwardingAddress() != null &&
+            account.isFeatureMailForwardingEnabled() && account.isFeatureMarkMailForwardedAsRead();
+
+        StoreManager sm = StoreManager.getInstance();
+        List<DeliveryContext> dctxts = new ArrayList<DeliveryContext>(pms.size());
+        List<Blob> incoming = new ArrayList<Blob>(pms.size());
+        List<StagedBlob> staged = new ArrayList<StagedBlob>(pms.size());
+        try {
+            for (int i = 0; i < pms.size(); i++) {
+                DeliveryContext dctxt = callerContexts.get(i) != null ? callerContexts.get(i) : new DeliveryContext();
+                Blob blob = dctxt.getIncomingBlob();
+                if (blob == null) {
+                    InputStream in = null;
+                    try {
+                        in = pms.get(i).getRawInputStream();
+                        blob = sm.storeIncoming(in);
+                    } finally {
+                        ByteUtil.closeStream(in);
+                    }
+                    dctxt.setIncomingBlob(blob);
+                    incoming.add(blob);
+                }
+                dctxts.add(dctxt);
+                staged.add(sm.stage(blob, this));
+            }
+
+            List<Message> msgs = new ArrayList<Message>(pms.size());
+            lock.lock();
+            try {
+                boolean success = false;
+                try {
+                    beginTransaction("addMessages", octxt, new CreateMessages(mId));
+                    currentChange().batchInserts = true;
+                    for (int i = 0; i < pms.size(); i++) {
+                        DeliveryOptions dopt = dopts.get(i);
+                        int flags = dopt.getFlags();
+                        if (localMsgMarkedRead) {
+                            flags &= ~Flag.BITMASK_UNREAD;
+                        }
+                        msgs.add(addMessageInternal(octxt, pms.get(i), dopt.getFolderId(), dopt.getNoICal(), flags,
+                                dopt.getTags(), dopt.getConversationId(), dopt.getRecipientEmail(), null,
+                                dopt.getCustomMetadata(), dctxts.get(i), staged.get(i)));
+                    }
+                    success = true;
+                } finally {
+                    endTransaction(success);
+                }
+            } finally {
+                lock.release();
+            }
+
+            if (localMsgMarkedRead && account.getPrefMailSendReadReceipts().isAlways()) {
+                for (Message msg : msgs) {
+                    SendDeliveryReport.sendReport(account, msg, true, null, null);
+                }
+            }
+            return msgs;
+        } finally {
+            for (Blob blob : incoming) {
+                sm.quietDelete(blob);
+            }
+            for (StagedBlob sblob : staged) {
+                sm.quietDelete(sblob);
+            }
+            ZimbraPerf.STOPWATCH_MBOX_ADD_MSG.stop(start);
+        }
+    }
+
     private Message addMessageInternal(OperationContext octxt, ParsedMessage pm, int folderId, boolean noICal,
             int flags, String[] tags, int conversationId, String rcptEmail, Message.DraftInfo dinfo,
             CustomMetadata customData, DeliveryContext dctxt, StagedBlob staged)
@@ -6209,8 +6596,21 @@ public class Mailbox implements MailboxStore {
         Threader threader = pm.getThreader(this);
         String subject = pm.getNormalizedSubject();
 
+        // inside addMessages(), this message is logged as part of the batch's redo op
+        CreateMessages batchRecorder = null;
+        if (currentChange().isActive() && currentChange().recorder instanceof CreateMessages) {
+            batchRecorder = (CreateMessages) currentChange().recorder;
+        }
+
         try {
-            beginTransaction("addMessage", octxt, redoRecorder);
+            beginTransaction("addMessage", octxt, batchRecorder == null ? redoRecorder : null);
+            if (batchRecorder != null) {
+                if (needRedo) {
+                    redoRecorder.start(getOperationTimestampMillis());
+                    redoRecorder.setChangeId(getOperationChangeID());
+                }
+                batchRecorder.addMessage(redoRecorder);
+            }
             if (isRedo) {
                 rcptEmail = redoPlayer.getRcptEmail();
             }
@@ -9519,6 +9919,16 @@ public class Mailbox implements MailboxStore {
             }
             ServiceException exception = null;
 
+            if (success) {
+                // write any items still queued by a bulk insert
+                try {
+                    currentChange().flushInsertBatch();
+                } catch (ServiceException e) {
+                    exception = e;
+                    success = false;
+                }
+            }
+
             if (success) {
                 List<IndexItemEntry> indexItems = currentChange().indexItems;
                 if (!indexItems.isEmpty()) {
@@ -9679,6 +10089,29 @@ public class Mailbox implements MailboxStore {
     // if the incoming message has one of these flags, don't up our "new messages" counter
     public static final int NON_DELIVERY_FLAGS = Flag.BITMASK_DRAFT | Flag.BITMASK_FROM_ME | Flag.BITMASK_COPIED | Flag.BITMASK_DELETED;
 
+    private boolean isNewMessage(CreateMessage cm, OperationContext octxt) throws ServiceException {
+        if (cm.getFolderId() == ID_FOLDER_SPAM || cm.getFolderId() == ID_FOLDER_TRASH) {
+            return false;
+        } else if ((cm.getFlags() & NON_DELIVERY_FLAGS) != 0) {
+            return false;
+        } else if (octxt != null && octxt.getSession() != null && !octxt.isDelegatedRequest(this)) {
+            return false;
+        }
+
+        String folderList = getAccount().getPrefMailFoldersCheckedForNewMsgIndicator();
+        if (folderList != null) {
+            String[] folderIds = folderList.split(",");
+
+            for (int i = 0; i < folderIds.length; i++) {
+                if (cm.getFolderId() == Integer.parseInt(folderIds[i])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
     void snapshotCounts() throws ServiceException {
         // for write ops, update the "new messages" count in the DB appropriately
         OperationContext octxt = currentChange().octxt;
@@ -9687,36 +10120,19 @@ public class Mailbox implements MailboxStore {
 
         if (recorder != null && (player == null || (octxt != null && !octxt.isRedo()))) {
             assert(currentChange().writeChange);
-            boolean isNewMessage = recorder.getOperation() == MailboxOperation.CreateMessage;
-            if (isNewMessage) {
-                CreateMessage cm = (CreateMessage) recorder;
-                if (cm.getFolderId() == ID_FOLDER_SPAM || cm.getFolderId() == ID_FOLDER_TRASH) {
-                    isNewMessage = false;
-                } else if ((cm.getFlags() & NON_DELIVERY_FLAGS) != 0) {
-                    isNewMessage = false;
-                } else if (octxt != null && octxt.getSession() != null && !octxt.isDelegatedRequest(this)) {
-                    isNewMessage = false;
-                }
-
-                if (isNewMessage) {
-                    String folderList = getAccount().getPrefMailFoldersCheckedForNewMsgIndicator();
-
-                    if (folderList != null) {
-                        String[] folderIds = folderList.split(",");
-
-                        isNewMessage = false;
-                        for (int i = 0; i < folderIds.length; i++) {
-                            if (cm.getFolderId() == Integer.parseInt(folderIds[i])) {
-                                isNewMessage = true;
-                                break;
-                            }
-                        }
+            int newMessages = 0;
+            if (recorder.getOperation() == MailboxOperation.CreateMessage) {
+                newMessages = isNewMessage((CreateMessage) recorder, octxt) ? 1 : 0;
+            } else if (recorder.getOperation() == MailboxOperation.CreateMessages) {
+                for (CreateMessage cm : ((CreateMessages) recorder).getMessages()) {
+                    if (isNewMessage(cm, octxt)) {
+                        newMessages++;
                     }
                 }
             }
 
-            if (isNewMessage) {
-                currentChange().recent = mData.recentMessages + 1;
+            if (newMessages > 0) {
+                currentChange().recent = mData.recentMessages + newMessages;
             } else if (octxt != null && mData.recentMessages != 0) {
                 Session s = octxt.getSession();
                 if (s instanceof SoapSession
@@ -9898,6 +10314,11 @@ public class Mailbox implements MailboxStore {
         } finally {
             // keep our MailItem cache at a reasonable size
             trimItemCache();
+            // let lock-free readers see the folders as of this transaction
+            FolderCache folders = mFolderCache;
+            if (folders != null) {
+                folders.publish();
+            }
             // make sure we're ready for the next change
             change.reset();
         }
@@ -39,7 +39,9 @@ import org.apache.lucene.analysis.Analyzer;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimaps;
 import com.google.common.collect.SetMultimap;
 import com.google.common.io.Closeables;
@@ -52,6 +54,7 @@ import com.zimbra.common.util.AccessBoundedRegex;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.db.DbMailItem;
+import com.zimbra.cs.db.DbMailbox;
 import com.zimbra.cs.db.DbPool;
 import com.zimbra.cs.db.DbPool.DbConnection;
 import com.zimbra.cs.db.DbSearch;
@@ -88,10 +91,9 @@ public final class MailboxIndex {
     private static final int MAX_TX_ITEMS = LC.zimbra_index_max_transaction_items.intValue();
     private static final long FAILURE_DELAY = LC.zimbra_index_deferred_items_failure_delay.intValue() * 1000;
 
-    private static final ThreadPoolExecutor INDEX_EXECUTOR = new ThreadPoolExecutor(
-            LC.zimbra_index_threads.intValue(), LC.zimbra_index_threads.intValue(),
-            Long.MAX_VALUE, TimeUnit.NANOSECONDS, new SynchronousQueue<Runnable>(),
-            new ThreadFactoryBuilder().setNameFormat("Index-%d").setDaemon(true).build());
+    private static final int QUEUE_BATCH_ITEMS = LC.zimbra_index_queue_batch_items.intValue();
+
+    private static final IndexQueue QUEUE = new IndexQueue(LC.zimbra_index_threads.intValue(), QUEUE_BATCH_ITEMS);
     // Re-index threads are created on demand basis. The number of threads are capped.
     private static final ExecutorService REINDEX_EXECUTOR = new ThreadPoolExecutor(
             0, LC.zimbra_reindex_threads.intValue(), 0L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
@@ -108,6 +110,8 @@ public final class MailboxIndex {
     // current compact-indexing operation for this mailbox, or NULL if a compact-index is not in progress.
     private volatile CompactIndexTask compactIndex;
     private volatile SetMultimap<MailItem.Type, Integer> deferredIds; // guarded by IndexHelper
+    // whether the backlog of deferred items is recorded in the mailbox table
+    private volatile boolean backlogRecorded = false;
     boolean indexingSuspended = false;
     int numMaybeIndexDeferredItemsCalls = 0;
 
@@ -123,13 +127,16 @@ public final class MailboxIndex {
     }
 
     /**
-     * Starts all index threads.
+     * Starts all index threads, and queues the mailboxes that had a backlog of deferred items at the last shutdown.
      */
     public static void startup() {
-        INDEX_EXECUTOR.prestartAllCoreThreads();
+        if (QUEUE.startup()) {
+            QUEUE.recover();
+        }
     }
 
     public static void shutdown() {
+        QUEUE.shutdown();
         IndexStore.getFactory().destroy();
     }
 
@@ -322,13 +329,12 @@ public final class MailboxIndex {
     }
 
     /**
-     * Submits a task to {@link #INDEX_EXECUTOR}.
+     * Queues an index maintenance task to run on an index thread, at backlog priority.
      *
      * @param task index task
-     * @throws RejectedExecutionException if all index threads are busy
      */
     public void submit(IndexTask task) {
-        INDEX_EXECUTOR.submit(task);
+        QUEUE.submit(mailbox.getId(), IndexQueue.Priority.BACKLOG, task);
     }
 
     void setIndexingSuspended( boolean suspended) {
@@ -359,16 +365,58 @@ public final class MailboxIndex {
         }
 
         // If there was a failure, we trigger indexing even if the deferred count is still low.
-        if ((lastFailedTime >= 0 && System.currentTimeMillis() - lastFailedTime > FAILURE_DELAY) ||
-                getDeferredCount(EnumSet.noneOf(MailItem.Type.class)) >= getBatchThreshold()) {
-            try {
-                INDEX_EXECUTOR.submit(new BatchIndexTask());
-            } catch (RejectedExecutionException e) {
-                ZimbraLog.index.warn("Skipping batch index because all index threads are busy");
+        boolean retry = lastFailedTime >= 0 && System.currentTimeMillis() - lastFailedTime > FAILURE_DELAY;
+        int count = getDeferredCount(EnumSet.noneOf(MailItem.Type.class));
+        if (retry || (count > 0 && count >= getBatchThreshold())) {
+            // more than a turn's worth is a backlog, not a delivery
+            if (retry || count > QUEUE_BATCH_ITEMS) {
+                if (!backlogRecorded) {
+                    recordBacklog(count);
+                }
+                QUEUE.enqueue(mailbox.getId(), this, IndexQueue.Priority.BACKLOG);
+            } else {
+                QUEUE.enqueue(mailbox.getId(), this, IndexQueue.Priority.DELIVERY);
             }
         }
     }
 
+    /**
+     * Runs one turn of the index queue: indexes up to {@code limit} deferred items.
+     *
+     * @return true if deferred items remain and the mailbox should be queued again
+     */
+    boolean indexQueuedItems(int limit) {
+        BatchIndexTask task = new BatchIndexTask(limit);
+        task.run();
+        return task.more;
+    }
+
+    /**
+     * Records the current deferred count in the mailbox table, so that the index queue picks the mailbox up again
+     * after a restart.
+     */
+    void recordBacklog() {
+        recordBacklog(getDeferredCount(EnumSet.noneOf(MailItem.Type.class)));
+    }
+
+    private void recordBacklog(int count) {
+        DbConnection conn = null;
+        try {
+            conn = DbPool.getConnection(mailbox);
+            DbMailbox.updateIndexDeferredCount(conn, mailbox, count);
+            conn.commit();
+            backlogRecorded = count > 0;
+        } catch (ServiceException e) {
+            ZimbraLog.index.warn("Failed to record index deferred count=%d", count, e);
+        } finally {
+            DbPool.quietClose(conn);
+        }
+    }
+
+    void markBacklogRecorded() {
+        backlogRecorded = true;
+    }
+
     void resumeIndexing() {
         setIndexingSuspended(false);
     }
@@ -389,28 +437,42 @@ public final class MailboxIndex {
      */
     private void indexDeferredItems(Set<MailItem.Type> types, BatchStatus status, boolean wait)
             throws ServiceException {
+        indexDeferredItems(types, status, wait, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Index deferred items, at most {@code limit} of them.
+     *
+     * @return false if indexing was skipped
+     */
+    private boolean indexDeferredItems(Set<MailItem.Type> types, BatchStatus status, boolean wait, int limit)
+            throws ServiceException {
         assert(mailbox.lock.isUnlocked());
         if ((indexStore != null) && indexStore.isPendingDelete()) {
             ZimbraLog.index.debug("index delete is in progress by other thread, skipping");
-            return;  // No point in indexing if we are going to delete the index
+            return false;  // No point in indexing if we are going to delete the index
         }
 
         if (wait) {
             indexLock.acquireUninterruptibly();
         } else if (!indexLock.tryAcquire()) {
             ZimbraLog.index.debug("index is in progress by other thread, skipping");
-            return;
+            return false;
         }
         lastFailedTime = -1; // reset
         try {
             long start = System.currentTimeMillis();
             Collection<Integer> ids = getDeferredIds(types);
+            if (ids.size() > limit) {
+                ids = ImmutableList.copyOf(Iterables.limit(ids, limit));
+            }
             indexItemList(ids, status);
 
             long elapsed = System.currentTimeMillis() - start;
             ZimbraLog.index.info("Batch complete processed=%d,failed=%d,elapsed=%d (%.2f items/sec)",
                     status.getProcessed(), status.getFailed(), elapsed,
                     1000.0 * (status.getProcessed() - status.getFailed()) / elapsed);
+            return true;
         } finally {
             indexLock.release();
         }
@@ -733,6 +795,9 @@ public final class MailboxIndex {
         int i = 0;
         for (int id : ids) {
             i++;
+            if (chunk.isEmpty() && status.isBulk()) {
+                QUEUE.awaitTurn(mailbox.getId()); // let delivery and backlog indexing go first
+            }
             status.addProcessed(1);
 
             // Fetch the item and generate the list of Lucene documents to index. Do this without holding the Mailbox
@@ -1341,6 +1406,13 @@ public final class MailboxIndex {
             return false;
         }
 
+        /**
+         * Returns true if this is a bulk operation that should only index when the index queue gives it a turn.
+         */
+        boolean isBulk() {
+            return false;
+        }
+
         @Override
         public String toString() {
             return Objects.toStringHelper(this)
@@ -1404,6 +1476,11 @@ public final class MailboxIndex {
         boolean isCancelled() {
             return cancel;
         }
+
+        @Override
+        boolean isBulk() {
+            return true;
+        }
     }
 
     public static abstract class IndexTask implements Runnable {
@@ -1429,17 +1506,39 @@ public final class MailboxIndex {
         }
 
         protected abstract void exec() throws Exception;
+
+        /**
+         * Called instead of {@link #run()} when the task is dropped from the index queue, e.g. at shutdown. Tasks
+         * that hold resources until they run release them here.
+         */
+        protected void cancel() {
+        }
     }
 
     private final class BatchIndexTask extends IndexTask {
+        private final int limit;
+        private boolean more = false;
 
-        BatchIndexTask() {
+        BatchIndexTask(int limit) {
             super(mailbox);
+            this.limit = limit;
         }
 
         @Override
         protected void exec() throws Exception {
-            indexDeferredItems(EnumSet.noneOf(MailItem.Type.class), new BatchStatus(), false);
+            Set<MailItem.Type> all = EnumSet.noneOf(MailItem.Type.class);
+            if (!indexDeferredItems(all, new BatchStatus(), false, limit)) {
+                return; // another thread is indexing this mailbox, or the index is going away
+            }
+            int remaining = getDeferredCount(all);
+            if (remaining == 0) {
+                if (backlogRecorded) {
+                    recordBacklog(0);
+                }
+            } else {
+                // after a failure, leave the rest to the retry in maybeIndexDeferredItems()
+                more = lastFailedTime < 0;
+            }
         }
 
     }
@@ -19,18 +19,20 @@ package com.zimbra.cs.mailbox;
 import java.util.EmptyStackException;
 import java.util.Stack;
 import java.util.concurrent.TimeUnit;
-
-import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.zimbra.common.localconfig.DebugConfig;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.lock.CuratorLockBackend;
 import com.zimbra.cs.mailbox.lock.DebugZLock;
+import com.zimbra.cs.mailbox.lock.DistributedLockBackend;
+import com.zimbra.cs.mailbox.lock.LeasedDistributedLock;
 import com.zimbra.cs.mailbox.lock.ZLock;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.Zimbra;
-import com.zimbra.cs.zookeeper.CuratorManager;
 
 /**
  * {@link MailboxLock} is a replacement of the implicit monitor lock using {@code synchronized} methods or statements on
@@ -39,18 +41,36 @@ import com.zimbra.cs.zookeeper.CuratorManager;
  * thrown. {@code Mailbox.beginTransaction()}) internally acquires the mailbox lock and it's released by
  * {@code Mailbox.endTransaction()}, so that you don't have to explicitly call {@link #lock()} and {@link #release()}
  * wrapping a mailbox transaction.
- *
+ * <p>
+ * Short read-only operations on in-memory mailbox state can use {@link #optimisticRead} instead of a read lock. The
+ * lock keeps a version number that changes whenever the write lock is acquired or released, and an optimistic read
+ * is retried (and eventually run under the read lock) if a writer got in while it ran.
  */
 public final class MailboxLock {
+    /** Number of times an optimistic read is attempted before falling back to the read lock. */
+    private static final int OPTIMISTIC_READ_ATTEMPTS = 2;
+
     private final ZLock zLock = DebugConfig.debugMailboxLock ? new DebugZLock() : new ZLock();
-    private InterProcessSemaphoreMutex dLock = null;
+    private LeasedDistributedLock dLock = null;
     private final Stack<Boolean> lockStack = new Stack<Boolean>();
     private Mailbox mbox;
+    /** Write version for optimistic reads.  Odd while a thread holds the write lock; never 0. */
+    private final AtomicLong version = new AtomicLong(2);
+    /** Number of lock acquisitions that had to wait, and the total time they waited. */
+    private final AtomicLong contendedCount = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    private static DistributedLockBackend dLockBackend = null;
 
     public MailboxLock(String id, Mailbox mbox) {
-        if (Zimbra.isAlwaysOn()) {
+        this(id, mbox, Zimbra.isAlwaysOn() ? getDistributedLockBackend() : null);
+    }
+
+    @VisibleForTesting
+    MailboxLock(String id, Mailbox mbox, DistributedLockBackend backend) {
+        if (backend != null) {
             try {
-                dLock = CuratorManager.getInstance().createLock(id);
+                dLock = new LeasedDistributedLock(id, backend.getLock(id), LC.zimbra_mailbox_dlock_lease_ms.longValue());
             } catch (ServiceException se) {
                 ZimbraLog.mailbox.error("could not initialize distributed lock", se);
             }
@@ -58,11 +78,25 @@ public final class MailboxLock {
         this.mbox = mbox;
     }
 
+    /**
+     * Sets the coordination service used for distributed mailbox locks in always-on mode.  Affects mailbox locks
+     * created afterwards.  Defaults to {@link CuratorLockBackend}.
+     */
+    public static synchronized void setDistributedLockBackend(DistributedLockBackend backend) {
+        dLockBackend = backend;
+    }
+
+    private static synchronized DistributedLockBackend getDistributedLockBackend() {
+        if (dLockBackend == null) {
+            dLockBackend = new CuratorLockBackend();
+        }
+        return dLockBackend;
+    }
+
     private void acquireDistributedLock(boolean write) throws ServiceException {
-        //TODO: consider read/write distributed lock
         if (dLock != null && getHoldCount() == 1) {
             try {
-                dLock.acquire(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
+                dLock.acquire(write, LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
             } catch (Exception e) {
                 throw new LockFailedException("could not acquire distributed lock", e);
             }
@@ -70,13 +104,98 @@ public final class MailboxLock {
     }
 
     private void releaseDistributedLock(boolean write) {
-        //TODO: consider read/write distributed lock
         if (dLock != null && getHoldCount() == 1) {
-            try {
-                dLock.release();
-            } catch (Exception e) {
-                ZimbraLog.mailbox.warn("error while releasing distributed lock", e);
+            dLock.release();
+        }
+    }
+
+    /**
+     * Returns the epoch of the distributed lock lease held by this node, or <tt>0</tt> if there is none.
+     *
+     * @see LeasedDistributedLock#getLeaseEpoch()
+     */
+    long getLeaseEpoch() {
+        return dLock == null ? 0 : dLock.getLeaseEpoch();
+    }
+
+    /**
+     * Returns a stamp for an optimistic read, or <tt>0</tt> if the write lock is held.  Reads of mailbox state made
+     * after this call are consistent if {@link #validate} returns <tt>true</tt> for the stamp afterwards.
+     */
+    public long tryOptimisticRead() {
+        long stamp = version.get();
+        return (stamp & 1) == 0 ? stamp : 0;
+    }
+
+    /**
+     * Returns whether the write lock has been acquired since the given stamp was issued by
+     * {@link #tryOptimisticRead}.
+     */
+    public boolean validate(long stamp) {
+        // The compare-and-set is a full fence, so it can't be reordered with the reads it's validating.
+        return stamp != 0 && version.compareAndSet(stamp, stamp);
+    }
+
+    /**
+     * A read-only operation on mailbox state that is safe to run without the mailbox lock, i.e. it only reads
+     * in-memory state, has no side effects, and may observe a concurrent write in progress (in which case its result
+     * is thrown away).
+     */
+    public interface OptimisticRead<T> {
+        T read() throws ServiceException;
+    }
+
+    /**
+     * Runs the given read-only operation without taking the lock, retrying it if a writer acquired the lock while it
+     * ran.  After {@link #OPTIMISTIC_READ_ATTEMPTS} failures, or when the lock is write-locked, it's run under the
+     * read lock.  Exceptions thrown during a read that turns out to be inconsistent are discarded.
+     */
+    public <T> T optimisticRead(OptimisticRead<T> reader) throws ServiceException {
+        // threads that already hold the lock, and distributed locking, need the regular path
+        if (getHoldCount() == 0 && dLock == null && !mbox.requiresWriteLock()) {
+            for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+                long stamp = tryOptimisticRead();
+                if (stamp == 0) {
+                    break;
+                }
+                T result;
+                try {
+                    result = reader.read();
+                } catch (ServiceException | RuntimeException e) {
+                    if (validate(stamp)) {
+                        throw e;
+                    }
+                    continue;
+                }
+                if (validate(stamp)) {
+                    ZimbraPerf.COUNTER_MBOX_LOCK_OPTIMISTIC.increment(100);
+                    return result;
+                }
             }
+            ZimbraPerf.COUNTER_MBOX_LOCK_OPTIMISTIC.increment(0);
+        }
+        lock(false);
+        try {
+            return reader.read();
+        } finally {
+            release();
+        }
+    }
+
+    /** Returns the number of times a thread had to wait for this lock. */
+    public long getContendedCount() {
+        return contendedCount.get();
+    }
+
+    /** Returns the total time in milliseconds that threads have waited for this lock. */
+    public long getWaitTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    private void lockAcquired(boolean write) {
+        lockStack.push(write);
+        if (write && zLock.getWriteHoldCount() == 1) {
+            version.incrementAndGet();
         }
     }
 
@@ -168,7 +287,7 @@ public final class MailboxLock {
                     promote();
                     return;
                 }
-                lockStack.push(write);
+                lockAcquired(write);
                 try {
                     acquireDistributedLock(write);
                 } catch (ServiceException e) {
@@ -177,6 +296,11 @@ public final class MailboxLock {
                     lfe.logStackTrace();
                     throw lfe;
                 }
+                if (!write && mbox.requiresWriteLock()) {
+                    //took a new distributed lease, so the folder/tag caches have to be reloaded under the write lock
+                    release();
+                    lock(true);
+                }
                 return;
             }
             int queueLength = zLock.getQueueLength();
@@ -191,13 +315,17 @@ public final class MailboxLock {
                 throw e;
             }
             // Wait for the lock up to the timeout.
-            if (tryLockWithTimeout(write)) {
+            Thread holder = zLock.getWriteOwner();
+            long start = System.nanoTime();
+            boolean locked = tryLockWithTimeout(write);
+            recordWait(System.nanoTime() - start, queueLength, holder);
+            if (locked) {
                 if (mbox.requiresWriteLock() && !isWriteLockedByCurrentThread()) {
                     //writer finished a purge while we waited
                     promote();
                     return;
                 }
-                lockStack.push(write);
+                lockAcquired(write);
                 try {
                     acquireDistributedLock(write);
                 } catch (ServiceException e) {
@@ -206,6 +334,11 @@ public final class MailboxLock {
                     lfe.logStackTrace();
                     throw lfe;
                 }
+                if (!write && mbox.requiresWriteLock()) {
+                    //took a new distributed lease, so the folder/tag caches have to be reloaded under the write lock
+                    release();
+                    lock(true);
+                }
                 return;
             }
             LockFailedException e = new LockFailedException("timeout");
@@ -236,6 +369,9 @@ public final class MailboxLock {
         releaseDistributedLock(write);
         if (write) {
             assert(zLock.getWriteHoldCount() > 0);
+            if (zLock.getWriteHoldCount() == 1) {
+                version.incrementAndGet();
+            }
             zLock.writeLock().unlock();
         } else {
             zLock.readLock().unlock();
@@ -243,6 +379,18 @@ public final class MailboxLock {
         }
     }
 
+    private void recordWait(long nanos, int queueLength, Thread holder) {
+        contendedCount.incrementAndGet();
+        waitNanos.addAndGet(nanos);
+        ZimbraPerf.HISTOGRAM_MBOX_LOCK_WAIT.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        ZimbraPerf.HISTOGRAM_MBOX_LOCK_QUEUE.record(queueLength);
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        if (millis >= LC.zimbra_mailbox_lock_slow_wait_ms.longValue()) {
+            ZimbraLog.mailbox.info("waited %dms for lock on mailbox %d; %d threads queued, write lock held by %s",
+                    millis, mbox.getId(), queueLength, holder == null ? "none" : holder.getName());
+        }
+    }
+
     private void promote() {
         assert(getHoldCount() == zLock.getReadHoldCount());
         int count = zLock.getReadHoldCount();
@@ -0,0 +1,99 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.stats.RealtimeStatsCallback;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Samples the per-mailbox lock contention counters of all loaded mailboxes once per stats interval.
+ * <p>
+ * The number of contended mailboxes and the worst per-mailbox wait go to the realtime stats, and the most contended
+ * mailboxes whose total wait in the interval reaches {@code zimbra_mailbox_lock_slow_wait_ms} are logged to the
+ * {@code zimbra.perf} logger.
+ */
+final class MailboxLockStats implements RealtimeStatsCallback {
+    /** Number of mailboxes logged per interval. */
+    private static final int TOP_MAILBOXES = 5;
+
+    /** Contention counters as of the last sample, by mailbox id. */
+    private Map<Integer, Sample> last = new HashMap<Integer, Sample>();
+
+    private static final class Sample {
+        final int mailboxId;
+        final long contended;
+        final long waitMillis;
+
+        Sample(int mailboxId, long contended, long waitMillis) {
+            this.mailboxId = mailboxId;
+            this.contended = contended;
+            this.waitMillis = waitMillis;
+        }
+
+        /** Returns the contention since {@code prev}; the counters start over when a mailbox is reloaded. */
+        Sample since(Sample prev) {
+            if (prev == null || prev.contended > contended || prev.waitMillis > waitMillis) {
+                return this;
+            }
+            return new Sample(mailboxId, contended - prev.contended, waitMillis - prev.waitMillis);
+        }
+    }
+
+    @Override
+    public synchronized Map<String, Object> getStatData() {
+        Map<String, Object> data = new HashMap<String, Object>();
+        Map<Integer, Sample> current = new HashMap<Integer, Sample>();
+        List<Sample> contended = new ArrayList<Sample>();
+        for (Mailbox mbox : MailboxManager.getInstance().getAllLoadedMailboxes()) {
+            Sample sample = new Sample(mbox.getId(), mbox.lock.getContendedCount(), mbox.lock.getWaitTimeMillis());
+            current.put(sample.mailboxId, sample);
+            Sample delta = sample.since(last.get(sample.mailboxId));
+            if (delta.contended > 0) {
+                contended.add(delta);
+            }
+        }
+        last = current;
+
+        Collections.sort(contended, new Comparator<Sample>() {
+            @Override
+            public int compare(Sample s1, Sample s2) {
+                return Long.compare(s2.waitMillis, s1.waitMillis);
+            }
+        });
+        data.put(ZimbraPerf.RTS_MBOX_LOCK_CONTENDED_MBOXES, contended.size());
+        data.put(ZimbraPerf.RTS_MBOX_LOCK_MAX_WAIT_MS, contended.isEmpty() ? 0L : contended.get(0).waitMillis);
+
+        long threshold = LC.zimbra_mailbox_lock_slow_wait_ms.longValue();
+        for (Sample sample : contended.subList(0, Math.min(TOP_MAILBOXES, contended.size()))) {
+            if (sample.waitMillis < threshold) {
+                break;
+            }
+            ZimbraLog.perf.info("mailbox %d lock contended %d times, %dms total wait",
+                    sample.mailboxId, sample.contended, sample.waitMillis);
+        }
+        return data;
+    }
+}
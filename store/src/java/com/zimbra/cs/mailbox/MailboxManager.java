@@ -200,6 +200,7 @@ public class MailboxManager {
 
     public void startup() {
         MailboxIndex.startup();
+        ZimbraPerf.addStatsCallback(new MailboxLockStats());
     }
 
     public void shutdown() {}
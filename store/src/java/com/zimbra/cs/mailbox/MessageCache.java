@@ -18,14 +18,17 @@ package com.zimbra.cs.mailbox;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.MimeConstants;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
@@ -42,6 +45,18 @@ import com.zimbra.cs.store.MailboxBlob;
 import com.zimbra.cs.store.StoreManager;
 import com.zimbra.cs.util.JMSession;
 
+/**
+ * Cache of parsed <tt>MimeMessage</tt>s keyed by blob digest.
+ * <p>
+ * The cache is split into a fixed number of stripes, each an access-ordered
+ * LRU map guarded by its own monitor, so that lookups for different messages
+ * don't contend with each other.  Each stripe is bounded both by a share of
+ * <tt>zimbraMessageCacheSize</tt> and by a share of
+ * <tt>zimbra_message_cache_max_bytes</tt>, where a message is weighted by
+ * its size in bytes (twice that if the expanded message differs from the
+ * original).  Eviction is LRU within a stripe, so the total number of cached
+ * messages may exceed the configured maximum by less than the number of stripes.
+ */
 public class MessageCache {
 
     private static final Log sLog = LogFactory.getLog(MessageCache.class);
@@ -50,19 +65,105 @@ public class MessageCache {
         CacheNode()  { }
         MimeMessage message;
         MimeMessage expanded;
-        Map<Integer, String> smimeAccessInfo = new HashMap<Integer, String>();
+        /** Decryption error by mailbox ID, where <tt>null</tt> means the message was decrypted.  Synchronized, since
+         *  it's read and written outside the stripe lock, e.g. by {@link MessageCache#getDecryptionError}. */
+        final Map<Integer, String> smimeAccessInfo = Collections.synchronizedMap(new HashMap<Integer, String>());
+        /** Bytes of message data held in memory; see {@link MessageCache#getDataSize()}. */
         long size = 0;
+        /** Bytes charged against the cache's byte limit. */
+        long weight = 0;
     }
 
+    /** One LRU partition of the cache.  All access to the map and the
+     *  running totals is synchronized on the stripe. */
+    private static final class Stripe {
+        private final LinkedHashMap<String, CacheNode> map = new LinkedHashMap<String, CacheNode>(16, (float) 0.75, true);
+        private long weight = 0;
+
+        synchronized CacheNode get(String digest) {
+            return map.get(digest);
+        }
+
+        synchronized boolean contains(String digest) {
+            return map.containsKey(digest);
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+
+        synchronized CacheNode remove(String digest) {
+            CacheNode node = map.remove(digest);
+            if (node != null) {
+                release(node);
+            }
+            return node;
+        }
+
+        synchronized void put(String digest, CacheNode node) {
+            CacheNode old = map.put(digest, node);
+            if (old == node) {
+                return;
+            }
+            if (old != null) {
+                release(old);
+            }
+            weight += node.weight;
+            sDataSize.addAndGet(node.size);
+            trim();
+        }
+
+        /** Adds to the size of a node after it has been loaded or expanded.
+         *  The running totals are only adjusted if the node is still cached. */
+        synchronized void grow(String digest, CacheNode node, long size, long nodeWeight) {
+            node.size += size;
+            node.weight += nodeWeight;
+            if (map.get(digest) == node) {
+                weight += nodeWeight;
+                sDataSize.addAndGet(size);
+                trim();
+            }
+        }
+
+        private void trim() {
+            int maxCount = sMaxStripeCount;
+            long maxWeight = sMaxStripeWeight;
+            if (map.size() <= maxCount && (maxWeight <= 0 || weight <= maxWeight)) {
+                return;
+            }
+            // the most recently used entry is kept even if it's over the byte limit by itself
+            Iterator<Map.Entry<String, CacheNode>> it = map.entrySet().iterator();
+            while (it.hasNext() && (map.size() > maxCount || (maxWeight > 0 && weight > maxWeight && map.size() > 1))) {
+                Map.Entry<String, CacheNode> entry = it.next();
+                sLog.debug("Pruning digest %s from the cache.", entry.getKey());
+                it.remove();
+                release(entry.getValue());
+                ZimbraPerf.COUNTER_MBOX_MSG_CACHE_EVICTION.increment();
+            }
+        }
+
+        private void release(CacheNode node) {
+            weight -= node.weight;
+            sDataSize.addAndGet(-node.size);
+        }
+    }
+
+    private static final int NUM_STRIPES = Integer.highestOneBit(Math.max(1, LC.zimbra_message_cache_stripes.intValue()));
+
     /** Cache mapping message digest to the corresponding message structure. */
-    private static Map<String, CacheNode> sCache = new LinkedHashMap<String, CacheNode>(150, (float) 0.75, true);
-    /** Maximum number of items in {@link #sCache}. */
-    private static int sMaxCacheSize;
+    private static final Stripe[] sStripes = new Stripe[NUM_STRIPES];
+    /** Maximum number of items in one stripe. */
+    private static volatile int sMaxStripeCount;
+    /** Maximum total weight of the items in one stripe, or <tt>0</tt> for no limit. */
+    private static volatile long sMaxStripeWeight;
     /** Number of bytes of message data stored in the cache.  This value includes only
      * messages that are read into memory, not streamed from disk. */
-    private volatile static long sDataSize = 0;
+    private static final AtomicLong sDataSize = new AtomicLong();
 
     static {
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            sStripes[i] = new Stripe();
+        }
         try {
             loadSettings();
         } catch (ServiceException e) {
@@ -71,25 +172,34 @@ public class MessageCache {
     }
 
     public static void loadSettings() throws ServiceException {
-        sMaxCacheSize = Provisioning.getInstance().getLocalServer().getMessageCacheSize();
-        ZimbraLog.cache.info("setting message cache size to " + sMaxCacheSize);
+        int maxCacheSize = Provisioning.getInstance().getLocalServer().getMessageCacheSize();
+        long maxBytes = LC.zimbra_message_cache_max_bytes.longValue();
+        sMaxStripeCount = (maxCacheSize + NUM_STRIPES - 1) / NUM_STRIPES;
+        sMaxStripeWeight = maxBytes > 0 ? Math.max(1, maxBytes / NUM_STRIPES) : 0;
+        ZimbraLog.cache.info("setting message cache size to " + maxCacheSize + ", max bytes to " + maxBytes);
+    }
+
+    private static Stripe getStripe(String digest) {
+        int h = digest.hashCode();
+        h ^= (h >>> 16);
+        return sStripes[h & (NUM_STRIPES - 1)];
     }
 
     /** Returns the number of messages in the cache. */
     public static int getSize() {
-        synchronized (sCache) {
-            return sCache.size();
+        int size = 0;
+        for (Stripe stripe : sStripes) {
+            size += stripe.size();
         }
+        return size;
     }
 
     public static boolean contains(String digest) {
-        synchronized (sCache) {
-            return sCache.containsKey(digest);
-        }
+        return digest != null && getStripe(digest).contains(digest);
     }
 
     public static long getDataSize() {
-        return sDataSize;
+        return sDataSize.get();
     }
 
     /** Uncaches any data associated with the given item.  This must be done
@@ -124,12 +234,9 @@ public class MessageCache {
      *  stale data. */
     public static void purge(String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.remove(digest);
-                if (node != null) {
-                    sLog.debug("Purged digest %s from the message cache.", digest);
-                    sDataSize -= node.size;
-                }
+            CacheNode node = getStripe(digest).remove(digest);
+            if (node != null) {
+                sLog.debug("Purged digest %s from the message cache.", digest);
             }
         }
     }
@@ -156,13 +263,14 @@ public class MessageCache {
         InputStream in = null;
         int mboxId = item.getMailboxId();
         boolean isEncrypted = false;
-
-        synchronized (sCache) {
-            cnode = sCache.get(digest);
-            if (cnode == null) {
-                newNode = true;
-                cnode = new CacheNode();
-            }
+        long addedSize = 0;
+        long addedWeight = 0;
+
+        Stripe stripe = getStripe(digest);
+        cnode = stripe.get(digest);
+        if (cnode == null) {
+            newNode = true;
+            cnode = new CacheNode();
         }
 
         try {
@@ -173,12 +281,9 @@ public class MessageCache {
                     in = fetchFromStore(item);
                     cnode.message = new Mime.FixedMimeMessage(JMSession.getSession(), in);
                     if (item.getSize() < MESSAGE_CACHE_DISK_STREAMING_THRESHOLD) {
-                        cnode.size = item.getSize();
-                        // Not the best place to increment the data size, but cacheItem()
-                        // won't get called if we're expanding a message for an existing
-                        // node.
-                        sDataSize += cnode.size;
+                        addedSize = item.getSize();
                     }
+                    addedWeight = item.getSize();
                 } finally {
                     ByteUtil.closeStream(in);
                 }
@@ -209,7 +314,13 @@ public class MessageCache {
                     //expand if the message has not yet been expanded or if the message is decrypted successfully
                     if (cnode.expanded == null || (decryptedMimeMessage != null && cnode.expanded != decryptedMimeMessage)) {
                         cacheHit = false;
+                        boolean wasExpanded = cnode.expanded != null && cnode.expanded != cnode.message;
                         expandMessage(item, cnode, decryptedMimeMessage);
+                        if (!wasExpanded && cnode.expanded != cnode.message) {
+                            // the expanded copy takes as much space as the original
+                            addedSize += cnode.size + addedSize;
+                            addedWeight += cnode.weight + addedWeight;
+                        }
                     }
                 } catch (Exception e) {
                     // if the conversion bombs for any reason, revert to the original
@@ -219,7 +330,11 @@ public class MessageCache {
             }
 
             if (newNode) {
+                cnode.size = addedSize;
+                cnode.weight = addedWeight;
                 cacheItem(digest, cnode);
+            } else if (addedSize != 0 || addedWeight != 0) {
+                stripe.grow(digest, cnode, addedSize, addedWeight);
             }
         } catch (IOException e) {
             throw ServiceException.FAILURE("IOException while retrieving content for item " + item.getId(), e);
@@ -232,9 +347,11 @@ public class MessageCache {
         if (cacheHit) {
             sLog.debug("Cache hit for item %d: digest=%s, expand=%b.", item.getId(), item.getDigest(), expand);
             ZimbraPerf.COUNTER_MBOX_MSG_CACHE.increment(100);
+            ZimbraPerf.COUNTER_MBOX_MSG_CACHE_HIT.increment();
         } else {
             sLog.debug("Cache miss for item %d: digest=%s, expand=%b.", item.getId(), item.getDigest(), expand);
             ZimbraPerf.COUNTER_MBOX_MSG_CACHE.increment(0);
+            ZimbraPerf.COUNTER_MBOX_MSG_CACHE_MISS.increment();
         }
 
         if (expand) {
@@ -285,10 +402,6 @@ public class MessageCache {
             decodedMimeMessage != null ? decodedMimeMessage : mimeToExpand);
         expander.expand();
         cnode.expanded = expander.getExpanded();
-        if (cnode.expanded != cnode.message) {
-            sDataSize += cnode.size;
-            cnode.size *= 2;
-        }
     }
 
     private static MimeMessage doDecryption(MailItem item, CacheNode cnode, int mboxId) {
@@ -357,43 +470,39 @@ public class MessageCache {
         CacheNode cnode = new CacheNode();
         cnode.message = original;
         cnode.expanded = expanded;
+        if (original != null) {
+            try {
+                cnode.weight = Math.max(original.getSize(), 0);
+                if (expanded != null && expanded != original) {
+                    cnode.weight *= 2;
+                }
+            } catch (MessagingException e) {
+                sLog.debug("Unable to determine size of message with digest %s.", digest, e);
+            }
+        }
         cacheItem(digest, cnode);
     }
 
     private static void cacheItem(String digest, CacheNode cnode) {
         sLog.debug("Caching MimeMessage for digest %s.", digest);
-        synchronized (sCache) {
-            sCache.put(digest, cnode);
-            // Cache data size was incremented in getMimeMessage().
-
-            // trim the cache if needed
-            if (sCache.size() > sMaxCacheSize) {
-                Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-                while (sCache.size() > sMaxCacheSize && it.hasNext()) {
-                    Map.Entry<String, CacheNode> entry = it.next();
-                    sLog.debug("Pruning digest %s from the cache.", entry.getKey());
-                    it.remove();
-                    sDataSize -= entry.getValue().size;
-                }
-            }
-        }
+        getStripe(digest).put(digest, cnode);
     }
 
     public static void removeDecryptedMessages(int mboxId) {
         sLog.debug("Start removing decrypted messages for mboxId=%d", mboxId);
-        synchronized (sCache) {
-            Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<String, CacheNode> entry = it.next();
-                CacheNode cacheNode = entry.getValue();
-                try {
-                    if (Mime.isEncrypted(cacheNode.message.getContentType())
-                        && cacheNode.smimeAccessInfo.containsKey(mboxId)) {
-                        cacheNode.smimeAccessInfo.remove(mboxId);
+        for (Stripe stripe : sStripes) {
+            synchronized (stripe) {
+                for (Map.Entry<String, CacheNode> entry : stripe.map.entrySet()) {
+                    CacheNode cacheNode = entry.getValue();
+                    try {
+                        if (Mime.isEncrypted(cacheNode.message.getContentType())
+                            && cacheNode.smimeAccessInfo.containsKey(mboxId)) {
+                            cacheNode.smimeAccessInfo.remove(mboxId);
+                        }
+                    } catch (MessagingException e) {
+                        sLog.warn("MessagingException while checking content type for cache node with digest = %s",
+                            entry.getKey(), e);
                     }
-                } catch (MessagingException e) {
-                    sLog.warn("MessagingException while checking content type for cache node with digest = %s",
-                        entry.getKey(), e);
                 }
             }
         }
@@ -402,11 +511,9 @@ public class MessageCache {
 
     public static String getDecryptionError(int id, String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.get(digest);
-                if (node != null) {
-                    return node.smimeAccessInfo.get(id);
-                }
+            CacheNode node = getStripe(digest).get(digest);
+            if (node != null) {
+                return node.smimeAccessInfo.get(id);
             }
         }
         return null;
@@ -0,0 +1,139 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.lock;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreV2;
+import org.apache.curator.framework.recipes.locks.Lease;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.zookeeper.CuratorManager;
+
+/**
+ * ZooKeeper-based mailbox locks.
+ * <p>
+ * By default every lock is a {@link InterProcessSemaphoreMutex}, which is exclusive for readers and writers
+ * alike.  When <tt>zimbra_mailbox_dlock_readwrite</tt> is set, a lock is a semaphore with
+ * <tt>zimbra_mailbox_dlock_max_readers</tt> leases, where a reader takes one lease and a writer takes all of
+ * them.  Writers first take a separate mutex so that two writers never hold part of the leases each.  All nodes
+ * in a cluster must use the same mode.
+ */
+public class CuratorLockBackend implements DistributedLockBackend {
+
+    @Override
+    public DistributedReadWriteLock getLock(String id) throws ServiceException {
+        CuratorManager curator = CuratorManager.getInstance();
+        if (curator == null) {
+            throw ServiceException.FAILURE("ZooKeeper is not configured", null);
+        }
+        if (LC.zimbra_mailbox_dlock_readwrite.booleanValue()) {
+            int maxReaders = Math.max(1, LC.zimbra_mailbox_dlock_max_readers.intValue());
+            return new ReadWriteLock(curator.createLock(id + "/writer"), curator.createSemaphore(id + "/readers", maxReaders), maxReaders);
+        } else {
+            return new MutexLock(curator.createLock(id));
+        }
+    }
+
+    private static final class MutexLock implements DistributedReadWriteLock {
+        private final InterProcessSemaphoreMutex mutex;
+
+        MutexLock(InterProcessSemaphoreMutex mutex) {
+            this.mutex = mutex;
+        }
+
+        @Override
+        public boolean acquire(boolean write, long timeout, TimeUnit unit) throws Exception {
+            return mutex.acquire(timeout, unit);
+        }
+
+        @Override
+        public void release(boolean write) throws Exception {
+            mutex.release();
+        }
+    }
+
+    private static final class ReadWriteLock implements DistributedReadWriteLock {
+        private final InterProcessSemaphoreMutex writer;
+        private final InterProcessSemaphoreV2 readers;
+        private final int maxReaders;
+        private final Deque<Lease> leases = new ArrayDeque<Lease>();
+
+        ReadWriteLock(InterProcessSemaphoreMutex writer, InterProcessSemaphoreV2 readers, int maxReaders) {
+            this.writer = writer;
+            this.readers = readers;
+            this.maxReaders = maxReaders;
+        }
+
+        @Override
+        public boolean acquire(boolean write, long timeout, TimeUnit unit) throws Exception {
+            if (!write) {
+                Lease lease = readers.acquire(timeout, unit);
+                if (lease == null) {
+                    return false;
+                }
+                synchronized (leases) {
+                    leases.push(lease);
+                }
+                return true;
+            }
+
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            if (!writer.acquire(timeout, unit)) {
+                return false;
+            }
+            boolean success = false;
+            try {
+                Collection<Lease> all = readers.acquire(maxReaders, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (all == null) {
+                    return false;
+                }
+                synchronized (leases) {
+                    leases.addAll(all);
+                }
+                success = true;
+                return true;
+            } finally {
+                if (!success) {
+                    writer.release();
+                }
+            }
+        }
+
+        @Override
+        public void release(boolean write) throws Exception {
+            List<Lease> toReturn = new ArrayList<Lease>();
+            synchronized (leases) {
+                int count = write ? maxReaders : 1;
+                while (toReturn.size() < count && !leases.isEmpty()) {
+                    toReturn.add(leases.pop());
+                }
+            }
+            readers.returnAll(toReturn);
+            if (write) {
+                writer.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.lock;
+
+import java.util.concurrent.TimeUnit;
+
+import com.zimbra.common.service.ServiceException;
+
+/**
+ * Coordination service that provides the cluster-wide mailbox locks used in always-on mode.
+ */
+public interface DistributedLockBackend {
+
+    /**
+     * Returns the read/write lock with the given id.  Locks with the same id are the same lock cluster-wide.
+     */
+    DistributedReadWriteLock getLock(String id) throws ServiceException;
+
+    /**
+     * A read/write lock shared by all nodes.  Unlike {@link java.util.concurrent.locks.ReadWriteLock}, it is not
+     * owned by a thread: it may be released by a different thread than the one that acquired it, and a node
+     * acquires it at most once at a time.
+     */
+    interface DistributedReadWriteLock {
+        /**
+         * @return <tt>false</tt> if the lock could not be acquired within the timeout
+         */
+        boolean acquire(boolean write, long timeout, TimeUnit unit) throws Exception;
+
+        void release(boolean write) throws Exception;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.lock;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.lock.DistributedLockBackend.DistributedReadWriteLock;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Node-local view of a {@link DistributedReadWriteLock}.  The node takes a lease on the distributed lock on behalf
+ * of all local threads: while the node holds a lease in a compatible mode, threads acquire it without contacting
+ * the coordination service.  After the last local holder releases it, the lease is kept for a short time, so that
+ * the next operation on the mailbox can re-enter it for free.
+ * <p>
+ * A write lease satisfies readers too.  A read lease is upgraded by releasing it and acquiring a write lease,
+ * which is only possible when no local thread holds it; the local {@link ZLock} guarantees this, since the
+ * distributed lock is only acquired after it.
+ */
+public class LeasedDistributedLock {
+
+    private static final ScheduledExecutorService REAPER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("MailboxLeaseReaper").setDaemon(true).build());
+
+    private enum Mode { NONE, READ, WRITE }
+
+    private final String id;
+    private final DistributedReadWriteLock lock;
+    private final long leaseMillis;
+    private Mode mode = Mode.NONE;
+    private int holders = 0;
+    /**
+     * Set while a thread is talking to the coordination service on behalf of this node, which is never done while
+     * holding the monitor; {@link #mode} is {@link Mode#NONE} meanwhile, and threads that need a lease wait for it.
+     */
+    private boolean busy = false;
+    /** Incremented on every acquire and release, so that a scheduled expiry can tell the lease has been used since. */
+    private long generation = 0;
+    /** Incremented whenever a new lease is taken from the coordination service. */
+    private long leaseEpoch = 0;
+
+    /**
+     * @param leaseMillis how long to keep an idle lease before releasing it, or <tt>0</tt> to release it as soon
+     * as the last local holder is done
+     */
+    public LeasedDistributedLock(String id, DistributedReadWriteLock lock, long leaseMillis) {
+        this.id = id;
+        this.lock = lock;
+        this.leaseMillis = leaseMillis;
+    }
+
+    public void acquire(boolean write, long timeout, TimeUnit unit) throws ServiceException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Mode old;
+        synchronized (this) {
+            generation++;
+            while (busy) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw ServiceException.FAILURE("timed out acquiring distributed lock " + id, null);
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw ServiceException.FAILURE("interrupted acquiring distributed lock " + id, e);
+                }
+            }
+            if (mode == Mode.WRITE || (mode == Mode.READ && !write)) {
+                holders++;
+                ZimbraPerf.COUNTER_MBOX_DLOCK_LEASE_HIT.increment(100);
+                return;
+            }
+            ZimbraPerf.COUNTER_MBOX_DLOCK_LEASE_HIT.increment(0);
+            if (mode == Mode.READ && holders > 0) {
+                throw ServiceException.FAILURE("cannot upgrade distributed lock " + id + " held by " + holders +
+                        " local readers", null);
+            }
+            old = mode;
+            mode = Mode.NONE;
+            busy = true;
+        }
+
+        boolean acquired = false;
+        try {
+            if (old != Mode.NONE) {
+                releaseLease(old);
+            }
+            long start = System.nanoTime();
+            try {
+                acquired = lock.acquire(write, Math.max(deadline - start, 0), TimeUnit.NANOSECONDS);
+            } catch (Exception e) {
+                throw ServiceException.FAILURE("could not acquire distributed lock " + id, e);
+            } finally {
+                ZimbraPerf.HISTOGRAM_MBOX_DLOCK_ACQUIRE.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            }
+            if (!acquired) {
+                throw ServiceException.FAILURE("timed out acquiring distributed lock " + id, null);
+            }
+        } finally {
+            synchronized (this) {
+                if (acquired) {
+                    mode = write ? Mode.WRITE : Mode.READ;
+                    holders = 1;
+                    leaseEpoch++;
+                }
+                busy = false;
+                notifyAll();
+            }
+        }
+    }
+
+    public void release() {
+        Mode old;
+        synchronized (this) {
+            if (holders == 0) {
+                ZimbraLog.mailbox.warn("releasing distributed lock %s when not held", id);
+                return;
+            }
+            generation++;
+            if (--holders > 0) {
+                return;
+            }
+            if (leaseMillis > 0) {
+                final long expiring = generation;
+                REAPER.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        expire(expiring);
+                    }
+                }, leaseMillis, TimeUnit.MILLISECONDS);
+                return;
+            }
+            old = beginRelease();
+        }
+        finishRelease(old);
+    }
+
+    private void expire(long expiring) {
+        Mode old;
+        synchronized (this) {
+            if (holders > 0 || generation != expiring || mode == Mode.NONE) {
+                return;
+            }
+            old = beginRelease();
+        }
+        finishRelease(old);
+    }
+
+    /** Releases the lease now if no local thread holds it. */
+    public void releaseIdleLease() {
+        Mode old;
+        synchronized (this) {
+            if (holders > 0 || mode == Mode.NONE) {
+                return;
+            }
+            old = beginRelease();
+        }
+        finishRelease(old);
+    }
+
+    synchronized boolean isLeaseHeld() {
+        return mode != Mode.NONE;
+    }
+
+    /**
+     * Returns a number identifying the lease currently held, or <tt>0</tt> if none is.  While it stays the same the
+     * node has held the lock without interruption, so no other node can have modified the mailbox; in particular,
+     * state cached under the same lease is still current.
+     */
+    public synchronized long getLeaseEpoch() {
+        return mode == Mode.NONE ? 0 : leaseEpoch;
+    }
+
+    /** Gives up the idle lease; must be called holding the monitor, and followed by {@link #finishRelease}. */
+    private Mode beginRelease() {
+        Mode old = mode;
+        mode = Mode.NONE;
+        busy = true;
+        return old;
+    }
+
+    private void finishRelease(Mode old) {
+        try {
+            releaseLease(old);
+        } finally {
+            synchronized (this) {
+                busy = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private void releaseLease(Mode old) {
+        try {
+            lock.release(old == Mode.WRITE);
+        } catch (Exception e) {
+            ZimbraLog.mailbox.warn("error while releasing distributed lock %s", id, e);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.lock;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for a coordination service, for tests and single-node installs.  Each lock is a semaphore
+ * where a reader takes one permit and a writer takes all of them.
+ */
+public class LocalLockBackend implements DistributedLockBackend {
+
+    private static final int MAX_READERS = 1 << 16;
+
+    private final ConcurrentMap<String, LocalLock> locks = new ConcurrentHashMap<String, LocalLock>();
+    private final AtomicLong acquireCount = new AtomicLong();
+
+    @Override
+    public DistributedReadWriteLock getLock(String id) {
+        LocalLock lock = locks.get(id);
+        if (lock == null) {
+            LocalLock newLock = new LocalLock();
+            lock = locks.putIfAbsent(id, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    /** Returns the number of times any lock was acquired from this backend. */
+    public long getAcquireCount() {
+        return acquireCount.get();
+    }
+
+    private final class LocalLock implements DistributedReadWriteLock {
+        private final Semaphore permits = new Semaphore(MAX_READERS, true);
+
+        @Override
+        public boolean acquire(boolean write, long timeout, TimeUnit unit) throws InterruptedException {
+            acquireCount.incrementAndGet();
+            return permits.tryAcquire(write ? MAX_READERS : 1, timeout, unit);
+        }
+
+        @Override
+        public void release(boolean write) {
+            permits.release(write ? MAX_READERS : 1);
+        }
+    }
+}
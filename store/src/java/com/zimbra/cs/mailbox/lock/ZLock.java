@@ -31,6 +31,13 @@ public class ZLock extends ReentrantReadWriteLock {
         super();
     }
 
+    /**
+     * Returns the thread that currently holds the write lock, or <tt>null</tt>.
+     */
+    public Thread getWriteOwner() {
+        return getOwner();
+    }
+
     public void printStackTrace(StringBuilder out) {
         Thread owner = getOwner();
         if (owner != null) {
@@ -543,6 +543,10 @@ abstract class Pop3Handler {
         return true;
     }
 
+    public String getAccountId() {
+        return accountId;
+    }
+
     private boolean isAuthenticated() {
         return state != STATE_AUTHORIZATION && accountId != null;
     }
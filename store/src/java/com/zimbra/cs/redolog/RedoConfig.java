@@ -23,6 +23,7 @@
  */
 package com.zimbra.cs.redolog;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
@@ -82,6 +83,14 @@ public class RedoConfig {
         mRedoLogCrashRecoveryLookbackSec =
             config.getLongAttr(Provisioning.A_zimbraRedoLogCrashRecoveryLookbackSec,
                                D_REDOLOG_CRASH_RECOVERY_LOOKBACK_SEC);
+
+        mRedoLogGroupCommit = LC.zimbra_redolog_group_commit.booleanValue();
+        mRedoLogGroupCommitLatencyTargetMicros = LC.zimbra_redolog_group_commit_latency_target_us.longValue();
+        mRedoLogGroupCommitBatchSize = LC.zimbra_redolog_group_commit_batch_size.intValue();
+        mRedoLogWriter = LC.zimbra_redolog_writer.value();
+        mRedoLogSegmentSizeKB = LC.zimbra_redolog_segment_size_kb.longValue();
+        mRedoLogReplayThreads = LC.zimbra_redolog_replay_threads.intValue();
+        mRedoLogReplayQueueCapacity = LC.zimbra_redolog_replay_queue_capacity.intValue();
     }
 
 
@@ -213,4 +222,87 @@ public class RedoConfig {
     public static synchronized long redoLogCrashRecoveryLookbackSec() {
         return theInstance.mRedoLogCrashRecoveryLookbackSec;
     }
+
+    private boolean mRedoLogGroupCommit;
+    /**
+     * If true, synchronous log calls are committed by a dedicated flusher
+     * thread that fsyncs as soon as there is work pending instead of on a
+     * fixed interval.  The flusher may hold a batch open for a short while
+     * when it has seen concurrent committers, bounded by
+     * {@link #redoLogGroupCommitLatencyTargetMicros()} and
+     * {@link #redoLogGroupCommitBatchSize()}.  When false, the fsync thread
+     * runs every {@link #redoLogFsyncIntervalMS()} milliseconds.
+     * @return
+     */
+    public static synchronized boolean redoLogGroupCommit() {
+        return theInstance.mRedoLogGroupCommit;
+    }
+
+    private long mRedoLogGroupCommitLatencyTargetMicros;
+    /**
+     * Returns the commit latency the group commit flusher aims for when
+     * holding a batch open to gather more committers.
+     * @return latency target in microseconds
+     */
+    public static synchronized long redoLogGroupCommitLatencyTargetMicros() {
+        return theInstance.mRedoLogGroupCommitLatencyTargetMicros;
+    }
+
+    private int mRedoLogGroupCommitBatchSize;
+    /**
+     * Returns the number of pending committers at which the group commit
+     * flusher stops waiting and fsyncs immediately.
+     * @return
+     */
+    public static synchronized int redoLogGroupCommitBatchSize() {
+        return theInstance.mRedoLogGroupCommitBatchSize;
+    }
+
+    public static final String REDOLOG_WRITER_FILE = "file";
+    public static final String REDOLOG_WRITER_MAPPED = "mapped";
+
+    private String mRedoLogWriter;
+    /**
+     * Returns the redo log writer implementation.  "file" appends through a
+     * RandomAccessFile and grows the file with every entry.  "mapped" writes
+     * into preallocated, memory-mapped segments of
+     * {@link #redoLogSegmentSizeKB()} and recycles rolled segments.
+     * @return
+     */
+    public static synchronized String redoLogWriter() {
+        return theInstance.mRedoLogWriter;
+    }
+
+    private long mRedoLogSegmentSizeKB;
+    /**
+     * Returns the preallocated size of a redo log segment when the "mapped"
+     * writer is used.  Segments that fill up before rollover are extended by
+     * the same amount.
+     * @return segment size in kilobytes
+     */
+    public static synchronized long redoLogSegmentSizeKB() {
+        return theInstance.mRedoLogSegmentSizeKB;
+    }
+
+    private int mRedoLogReplayThreads;
+    /**
+     * Returns the number of threads used to redo uncommitted operations
+     * during crash recovery.  Operations are partitioned by mailbox, so
+     * operations on one mailbox are still redone in logged order.  A value
+     * of 1 redoes all operations serially in the startup thread.
+     * @return
+     */
+    public static synchronized int redoLogReplayThreads() {
+        return theInstance.mRedoLogReplayThreads;
+    }
+
+    private int mRedoLogReplayQueueCapacity;
+    /**
+     * Returns the number of operations that may be queued for each crash
+     * recovery thread.
+     * @return
+     */
+    public static synchronized int redoLogReplayQueueCapacity() {
+        return theInstance.mRedoLogReplayQueueCapacity;
+    }
 }
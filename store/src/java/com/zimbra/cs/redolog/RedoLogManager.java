@@ -39,10 +39,12 @@ import com.zimbra.cs.mailbox.MailServiceException;
 import com.zimbra.cs.redolog.logger.FileLogReader;
 import com.zimbra.cs.redolog.logger.FileLogWriter;
 import com.zimbra.cs.redolog.logger.LogWriter;
+import com.zimbra.cs.redolog.logger.MappedLogWriter;
 import com.zimbra.cs.redolog.op.AbortTxn;
 import com.zimbra.cs.redolog.op.Checkpoint;
 import com.zimbra.cs.redolog.op.CommitTxn;
 import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.redolog.util.ParallelRedoPlayer;
 import com.zimbra.cs.util.Zimbra;
 import com.zimbra.znative.IO;
 
@@ -166,7 +168,17 @@ public class RedoLogManager {
     public LogWriter createLogWriter(RedoLogManager redoMgr,
                                         File logfile,
                                         long fsyncIntervalMS) {
-        return new FileLogWriter(redoMgr, logfile, fsyncIntervalMS);
+        long groupCommitLatency = 0;
+        int groupCommitBatchSize = 0;
+        if (RedoConfig.redoLogGroupCommit()) {
+            groupCommitLatency = RedoConfig.redoLogGroupCommitLatencyTargetMicros();
+            groupCommitBatchSize = RedoConfig.redoLogGroupCommitBatchSize();
+        }
+        if (RedoConfig.REDOLOG_WRITER_MAPPED.equalsIgnoreCase(RedoConfig.redoLogWriter())) {
+            return new MappedLogWriter(redoMgr, logfile, fsyncIntervalMS, groupCommitLatency,
+                    groupCommitBatchSize, RedoConfig.redoLogSegmentSizeKB() * 1024);
+        }
+        return new FileLogWriter(redoMgr, logfile, fsyncIntervalMS, groupCommitLatency, groupCommitBatchSize);
     }
 
     private void setInCrashRecovery(boolean b) {
@@ -221,7 +233,14 @@ public class RedoLogManager {
             try {
                 mLogWriter.open();
                 mRolloverMgr.initSequence(mLogWriter.getSequence());
-                RedoPlayer redoPlayer = new RedoPlayer(true);
+                RedoPlayer redoPlayer;
+                int replayThreads = RedoConfig.redoLogReplayThreads();
+                if (replayThreads > 1) {
+                    redoPlayer = new ParallelRedoPlayer(true, false, false, false, replayThreads,
+                            RedoConfig.redoLogReplayQueueCapacity(), false);
+                } else {
+                    redoPlayer = new RedoPlayer(true);
+                }
                 try {
                     numRecoveredOps = redoPlayer.runCrashRecovery(this, postStartupRecoveryOps);
                 } finally {
@@ -38,6 +38,7 @@ import com.zimbra.cs.redolog.op.AbortTxn;
 import com.zimbra.cs.redolog.op.Checkpoint;
 import com.zimbra.cs.redolog.op.CommitTxn;
 import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.redolog.op.Rollover;
 import com.zimbra.cs.redolog.op.StoreIncomingBlob;
 
 /**
@@ -136,6 +137,7 @@ public class RedoPlayer {
 
                 processOp(op, redoCommitted, mboxIDsMap, startTime, endTime, ignoreCommitsAtOrAfter);
             }
+            waitForPendingOps();
         } catch (IOException e) {
             // The IOException could be a real I/O problem or it could mean
             // there was a server crash previously and there were half-written
@@ -180,6 +182,10 @@ public class RedoPlayer {
     throws ServiceException {
 
         if (op.isStartMarker()) {
+            if (op instanceof Rollover) {
+                // Ops logged before the rollover must be done before any op after it.
+                waitForPendingOps();
+            }
             synchronized (mOpsMapGuard) {
                 mOpsMap.put(op.getTransactionId(), op);
                 if (mHasOrphanOps) {
@@ -193,6 +199,7 @@ public class RedoPlayer {
             // When a checkpoint is encountered, discard all ops except
             // those listed in the checkpoint.
             if (op instanceof Checkpoint) {
+                waitForPendingOps();
                 Checkpoint ckpt = (Checkpoint) op;
                 Set txns = ckpt.getActiveTxns();
                 if (txns.size() > 0) {
@@ -344,6 +351,46 @@ public class RedoPlayer {
 
     protected boolean ignoreReplayErrors() { return mIgnoreReplayErrors; }
 
+    /**
+     * Waits until all ops handed to {@link #playOp} or {@link #recoverOp} so
+     * far have been executed.  Ops are executed synchronously by this class,
+     * so there is never anything to wait for; subclasses that execute ops
+     * asynchronously must override this.
+     * @throws ServiceException if an earlier op failed and errors are not ignored
+     */
+    protected void waitForPendingOps() throws ServiceException {
+    }
+
+    /**
+     * Redoes an uncommitted op during crash recovery, and logs a commit or
+     * abort record for it depending on the outcome.  Failures are logged and
+     * not rethrown.
+     * @param redoLogMgr
+     * @param op
+     */
+    protected void recoverOp(RedoLogManager redoLogMgr, RedoableOp op) {
+        if (ZimbraLog.redolog.isInfoEnabled())
+            ZimbraLog.redolog.info("REDOING: " + op);
+
+        boolean success = false;
+        try {
+            op.redo();
+            success = true;
+        } catch (Exception e) {
+            ZimbraLog.redolog.error("Redo failed for [" + op + "]." +
+                    "  Backend state of affected item is indeterminate." +
+                    "  Marking operation as aborted and moving on.", e);
+        } finally {
+            if (success) {
+                CommitTxn commit = new CommitTxn(op);
+                redoLogMgr.logOnly(commit, true);
+            } else {
+                AbortTxn abort = new AbortTxn(op);
+                redoLogMgr.logOnly(abort, true);
+            }
+        }
+    }
+
     /**
      * Actually execute the operation.
      * @param op
@@ -433,27 +480,9 @@ public class RedoPlayer {
                     continue;
                 }
 
-                if (ZimbraLog.redolog.isInfoEnabled())
-                    ZimbraLog.redolog.info("REDOING: " + op);
-
-                boolean success = false;
-                try {
-                    op.redo();
-                    success = true;
-                } catch (Exception e) {
-                    ZimbraLog.redolog.error("Redo failed for [" + op + "]." +
-                            "  Backend state of affected item is indeterminate." +
-                            "  Marking operation as aborted and moving on.", e);
-                } finally {
-                    if (success) {
-                        CommitTxn commit = new CommitTxn(op);
-                        redoLogMgr.logOnly(commit, true);
-                    } else {
-                        AbortTxn abort = new AbortTxn(op);
-                        redoLogMgr.logOnly(abort, true);
-                    }
-                }
+                recoverOp(redoLogMgr, op);
             }
+            waitForPendingOps();
             mOpsMap.clear();
         }
 
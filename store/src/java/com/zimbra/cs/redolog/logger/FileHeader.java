@@ -61,6 +61,11 @@ import com.zimbra.cs.redolog.Version;
  *   version        4 bytes; serialization version number
  *                  (2-byte major, 2-byte minor)
  *   createTime     4 bytes; time this log file was created
+ *   preallocated   1 byte (1 or 0)
+ *                  1 means the file was preallocated to a fixed size and
+ *                  filesize is the length of valid data; when open is also
+ *                  1, data ends at the first 0-value byte where a log entry
+ *                  should start
  *   padding        0-value bytes to bring total header size to 512
  */
 public class FileHeader {
@@ -77,6 +82,7 @@ public class FileHeader {
     private long mFirstOpTstamp;        // time of first op in log file
     private long mLastOpTstamp;         // time of last op in log file
     private long mCreateTime;           // create time of log file
+    private byte mPreallocated;         // file length is larger than data
 
     private Version mVersion;			// redo log version
 
@@ -92,6 +98,7 @@ public class FileHeader {
         mFirstOpTstamp = 0;
         mLastOpTstamp = 0;
         mCreateTime = 0;
+        mPreallocated = 0;
         mVersion = Version.latest();
     }
 
@@ -143,6 +150,10 @@ public class FileHeader {
         mCreateTime = t;
     }
 
+    void setPreallocated(boolean b) {
+        mPreallocated = b ? (byte) 1 : (byte) 0;
+    }
+
     public boolean getOpen() {
     	return mOpen != 0;
     }
@@ -171,6 +182,10 @@ public class FileHeader {
         return mCreateTime;
     }
 
+    public boolean getPreallocated() {
+        return mPreallocated != 0;
+    }
+
     @Override
     public boolean equals(Object o) {
       if (!(o instanceof FileHeader) || o == null) {
@@ -184,6 +199,7 @@ public class FileHeader {
           mFirstOpTstamp == oHdr.mFirstOpTstamp &&
           mLastOpTstamp == oHdr.mLastOpTstamp &&
           mCreateTime == oHdr.mCreateTime &&
+          mPreallocated == oHdr.mPreallocated &&
           mVersion.equals(oHdr.mVersion);
     }
 
@@ -246,6 +262,7 @@ public class FileHeader {
         out.writeLong(mLastOpTstamp);
         mVersion.serialize(out);
         out.writeLong(mCreateTime);
+        out.writeByte(mPreallocated);
 
         int currentLen = baos.size();
         if (currentLen < HEADER_LEN) {
@@ -300,6 +317,7 @@ public class FileHeader {
             	mVersion = new Version(1, 0);
 
             mCreateTime = in.readLong();
+            mPreallocated = in.readByte();
         } finally {
             bais.close();
         }
@@ -327,6 +345,8 @@ public class FileHeader {
 
         sb.append("\n");
         sb.append("version:  ").append(mVersion).append("\n");
+        if (mPreallocated != 0)
+            sb.append("preallocated\n");
     	return sb.toString();
     }
 }
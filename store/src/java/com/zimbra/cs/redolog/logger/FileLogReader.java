@@ -69,6 +69,8 @@ public class FileLogReader {
             mHeader.read(mRAF);
             mHeaderRead = true;
             mFileSizeAtOpen = mRAF.length();
+            if (mHeader.getPreallocated() && !mHeader.getOpen())
+                mFileSizeAtOpen = Math.min(mHeader.getFileSize(), mFileSizeAtOpen);
         } catch (IOException e) {
             throw new IOException("Error opening " + mFile.getAbsolutePath(), e);
         }
@@ -100,6 +102,11 @@ public class FileLogReader {
             // EOF reached.
             return null;
         }
+        if (mHeader.getPreallocated() && atEndOfData(pos)) {
+            // Rest of the preallocated file is unused.
+            mFileSizeAtOpen = pos;
+            return null;
+        }
 
         boolean first = true;
         long currPos = pos;
@@ -139,6 +146,8 @@ public class FileLogReader {
     }
 
     public synchronized long getSize() throws IOException {
+        if (mHeader.getPreallocated())
+            return mFileSizeAtOpen;
         return mRAF.length();
     }
 
@@ -157,7 +166,18 @@ public class FileLogReader {
      * @throws IOException
      */
     public synchronized void truncate(long size) throws IOException {
-        if (size < mRAF.length()) {
+        if (mHeader.getPreallocated()) {
+            // Keep the preallocated length; clear the junk instead, so the
+            // end of data is found again by the next reader.
+            if (size < mFileSizeAtOpen) {
+                MappedLogWriter.zeroFill(mRAF.getChannel(), size, mFileSizeAtOpen);
+                mFileSizeAtOpen = size;
+                FileHeader hdr = getHeader();
+                hdr.setFileSize(size);
+                hdr.write(mRAF);
+                mRAF.seek(size);
+            }
+        } else if (size < mRAF.length()) {
             mRAF.setLength(size);
             FileHeader hdr = getHeader();
             hdr.setFileSize(size);
@@ -166,6 +186,16 @@ public class FileLogReader {
         }
     }
 
+    /**
+     * Returns true if the byte at the given offset, where a log entry should
+     * start, is the 0 padding of a preallocated log.
+     */
+    private boolean atEndOfData(long pos) throws IOException {
+        int b = mRAF.read();
+        mRAF.seek(pos);
+        return b <= 0;
+    }
+
     /**
      * Search the pattern in mRAF, positioning the pointer at the beginning of the pattern.
      * @param pattern
@@ -35,6 +35,7 @@ import com.zimbra.cs.redolog.RedoLogManager;
 import com.zimbra.cs.redolog.RolloverManager;
 import com.zimbra.cs.redolog.op.CommitTxn;
 import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.Zimbra;
 
 import java.io.File;
@@ -45,6 +46,10 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * @author jhahm
@@ -87,6 +92,11 @@ public class FileLogWriter implements LogWriter {
 
     private FsyncThread mFsyncer;   // fsync thread
 
+    // group commit settings; group commit is disabled if latency target is 0
+    private final long mGroupCommitLatencyMicros;
+    private final int mGroupCommitBatchSize;
+    private volatile GroupCommitThread mGroupCommitter;
+
     private int mLogSeq;            // last item logged
     private int mFsyncSeq;          // last item fsynced
 
@@ -99,6 +109,24 @@ public class FileLogWriter implements LogWriter {
     public FileLogWriter(RedoLogManager redoLogMgr,
                          File logfile,
                          long fsyncIntervalMS) {
+        this(redoLogMgr, logfile, fsyncIntervalMS, 0, 0);
+    }
+
+    /**
+     * Creates a log writer in group commit mode.  Synchronous log calls are
+     * committed by a dedicated flusher thread instead of the fixed-interval
+     * fsync thread.
+     *
+     * @param groupCommitLatencyMicros how long the flusher may hold a batch
+     *        open to gather more committers; 0 disables group commit
+     * @param groupCommitBatchSize number of pending committers at which the
+     *        flusher fsyncs without further waiting
+     */
+    public FileLogWriter(RedoLogManager redoLogMgr,
+                         File logfile,
+                         long fsyncIntervalMS,
+                         long groupCommitLatencyMicros,
+                         int groupCommitBatchSize) {
         mRedoLogMgr = redoLogMgr;
 
         mHeader = new FileHeader(sServerId);
@@ -108,6 +136,8 @@ public class FileLogWriter implements LogWriter {
 
         mFsyncIntervalMS = fsyncIntervalMS;
         mFsyncDisabled = DebugConfig.disableRedoLogFsync;
+        mGroupCommitLatencyMicros = Math.max(groupCommitLatencyMicros, 0);
+        mGroupCommitBatchSize = Math.max(groupCommitBatchSize, 1);
 
         mFsyncCount = mLogCount = 0;
 
@@ -191,7 +221,7 @@ public class FileLogWriter implements LogWriter {
 
             mRAF = new RandomAccessFile(mFile, "rw");
 
-            if (mRAF.length() >= FileHeader.HEADER_LEN) {
+            if (!isNewLog(mRAF)) {
                 mHeader.read(mRAF);
                 mCreateTime = mHeader.getCreateTime();
                 if (mCreateTime == 0) {
@@ -205,18 +235,18 @@ public class FileLogWriter implements LogWriter {
                 mHeader.setCreateTime(mCreateTime);
                 mHeader.setSequence(mRedoLogMgr.getCurrentLogSequence());
             }
+            // find the end of existing data, so we can append
+            long len = openData(mFile, mRAF, mHeader);
             mHeader.setOpen(true);
             mHeader.write(mRAF);
 
-            // go to the end of file, so we can append
-            long len = mRAF.length();
             mRAF.seek(len);
             mFileSize = len;
 
             mLogSeq = mFsyncSeq = 0;
         }
 
-        if (mFsyncIntervalMS > 0)
+        if (mFsyncIntervalMS > 0 || mGroupCommitLatencyMicros > 0)
             startFsyncThread();
     }
 
@@ -231,7 +261,7 @@ public class FileLogWriter implements LogWriter {
                 if (mLastOpTstamp != 0)
                 	mHeader.setLastOpTstamp(mLastOpTstamp);
                 mHeader.setOpen(false);
-                mHeader.setFileSize(mRAF.length());
+                closeData(mRAF, mHeader, mFileSize);
                 mHeader.write(mRAF);
 
                 mRAF.getChannel().force(true);
@@ -268,8 +298,16 @@ public class FileLogWriter implements LogWriter {
      * Fsync is required, but the sleep interval for fsync thread is 0.  We
      * special case this condition to mean fsync should be done by the calling
      * thread.
+     *
+     * case 4: synchronous && group commit
+     * action: write(), then park until the group commit thread has fsynced
+     * The group commit thread fsyncs as soon as any logger thread is waiting,
+     * so commit latency is not tied to a timer.  When it has recently seen
+     * concurrent committers it holds the batch open until the batch size or
+     * latency target is reached, amortizing one fsync over many commits.
      */
     @Override public void log(RedoableOp op, InputStream data, boolean synchronous) throws IOException {
+        long startNanos = System.nanoTime();
         int seq;
         boolean sameMboxAsLastOp = false;
 
@@ -295,7 +333,7 @@ public class FileLogWriter implements LogWriter {
             int numRead;
             byte[] buf = new byte[1024];
             while ((numRead = data.read(buf)) >= 0) {
-                mRAF.write(buf, 0, numRead);
+                writeData(mRAF, mFileSize, buf, 0, numRead);
                 mFileSize += numRead;
             }
             data.close();
@@ -325,7 +363,14 @@ public class FileLogWriter implements LogWriter {
         if (!synchronous)
             return;
 
-        if (mFsyncIntervalMS > 0) {
+        if (mGroupCommitLatencyMicros > 0) {
+            // case 4
+            GroupCommitThread committer = mGroupCommitter;
+            if (committer != null)
+                committer.awaitCommit(seq);
+            else
+                fsync();
+        } else if (mFsyncIntervalMS > 0) {
             if (!sameMboxAsLastOp) {
                 // case 2
                 try {
@@ -352,6 +397,8 @@ public class FileLogWriter implements LogWriter {
             // case 3
             fsync();
         }
+        ZimbraPerf.HISTOGRAM_REDO_COMMIT_LATENCY.record(
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
     }
 
     private int mLastOpMboxId;
@@ -382,8 +429,7 @@ public class FileLogWriter implements LogWriter {
 
         // Open a temporary logger.
         File tempLogfile = new File(mFile.getParentFile(), romgr.getTempFilename(lastSeq + 1));
-        FileLogWriter tempLogger =
-            new FileLogWriter(mRedoLogMgr, tempLogfile, 0);
+        FileLogWriter tempLogger = createTempLogWriter(mFile, tempLogfile);
         tempLogger.open();
         tempLogger.noStat(true);
 
@@ -399,18 +445,7 @@ public class FileLogWriter implements LogWriter {
 
         // Rename the current log to rolled-over name.
         File rolloverFile = romgr.getRolloverFile(lastSeq);
-        if (RedoConfig.redoLogDeleteOnRollover()) {
-            // Delete the current log.  We don't need to hold on to the
-            // indexing-only log files after rollover.
-            if (!mFile.delete())
-                throw new IOException("Unable to delete current redo log " + mFile.getAbsolutePath());
-        } else {
-            File destDir = rolloverFile.getParentFile();
-            if (destDir != null && !destDir.exists())
-                destDir.mkdirs();
-            if (!mFile.renameTo(rolloverFile))
-                throw new IOException("Unable to rename current redo log to " + rolloverFile.getAbsolutePath());
-        }
+        disposeRolledLog(mFile, rolloverFile, RedoConfig.redoLogDeleteOnRollover());
 
         // Rename the temporary logger to current logfile name.
         String tempPath = tempLogfile.getAbsolutePath();
@@ -425,6 +460,72 @@ public class FileLogWriter implements LogWriter {
         return rolloverFile;
     }
 
+    /**
+     * Returns true if the log file has no header yet and must be initialized.
+     */
+    protected boolean isNewLog(RandomAccessFile raf) throws IOException {
+        return raf.length() < FileHeader.HEADER_LEN;
+    }
+
+    /**
+     * Prepares the log file for appending and returns the offset at which the
+     * next entry will be written.  Called with the header already read, or
+     * initialized for a new log, but not yet written.
+     */
+    protected long openData(File file, RandomAccessFile raf, FileHeader header) throws IOException {
+        return Math.max(raf.length(), FileHeader.HEADER_LEN);
+    }
+
+    /**
+     * Appends log data at the given offset, which is always the current end
+     * of data.
+     */
+    protected void writeData(RandomAccessFile raf, long pos, byte[] buf, int off, int len) throws IOException {
+        raf.write(buf, off, len);
+    }
+
+    /**
+     * Forces written log data to disk.
+     */
+    protected void forceData(RandomAccessFile raf) throws IOException {
+        raf.getChannel().force(false);
+    }
+
+    /**
+     * Called before the header is written for the last time on close.
+     * @param dataSize offset of the end of logged data
+     */
+    protected void closeData(RandomAccessFile raf, FileHeader header, long dataSize) throws IOException {
+        header.setFileSize(raf.length());
+    }
+
+    /**
+     * Creates the logger used to write the active operations into the log
+     * that replaces <tt>current</tt> on rollover.
+     */
+    protected FileLogWriter createTempLogWriter(File current, File tempLogfile) throws IOException {
+        return new FileLogWriter(mRedoLogMgr, tempLogfile, 0);
+    }
+
+    /**
+     * Gets rid of the current log after it has been closed for rollover,
+     * either by deleting it or by moving it to <tt>rolloverFile</tt>.
+     */
+    protected void disposeRolledLog(File current, File rolloverFile, boolean delete) throws IOException {
+        if (delete) {
+            // Delete the current log.  We don't need to hold on to the
+            // indexing-only log files after rollover.
+            if (!current.delete())
+                throw new IOException("Unable to delete current redo log " + current.getAbsolutePath());
+        } else {
+            File destDir = rolloverFile.getParentFile();
+            if (destDir != null && !destDir.exists())
+                destDir.mkdirs();
+            if (!current.renameTo(rolloverFile))
+                throw new IOException("Unable to rename current redo log to " + rolloverFile.getAbsolutePath());
+        }
+    }
+
     public synchronized void enableFsync() throws IOException {
         startFsyncThread();
         fsync();
@@ -436,7 +537,12 @@ public class FileLogWriter implements LogWriter {
     }
 
     private synchronized void startFsyncThread() {
-        if (mFsyncer == null && mFsyncIntervalMS > 0) {
+        if (mGroupCommitLatencyMicros > 0) {
+            if (mGroupCommitter == null) {
+                mGroupCommitter = new GroupCommitThread();
+                mGroupCommitter.start();
+            }
+        } else if (mFsyncer == null && mFsyncIntervalMS > 0) {
             mFsyncer = new FsyncThread(mFsyncIntervalMS);
             mFsyncer.start();
         }
@@ -447,18 +553,24 @@ public class FileLogWriter implements LogWriter {
             mFsyncer.stopThread();
             mFsyncer = null;
         }
+        if (mGroupCommitter != null) {
+            mGroupCommitter.stopThread();
+            mGroupCommitter = null;
+        }
     }
 
     // do fsync if there are items logged since last fsync
     private void fsync() throws IOException {
         boolean fsyncNeeded = false;
         int seq = 0;
+        int numOps = 0;
         synchronized (mLock) {
             if (mFsyncSeq < mLogSeq) {
                 if (mRAF == null)
                     throw new IOException("Redolog file closed");
                 fsyncNeeded = true;
                 seq = mLogSeq;
+                numOps = mLogSeq - mFsyncSeq;
                 if (!mFsyncDisabled)
                     mFsyncCount++;
             }
@@ -467,11 +579,12 @@ public class FileLogWriter implements LogWriter {
             if (!mFsyncDisabled) {
                 synchronized (mLock) {
                     if (mRAF != null)
-                        mRAF.getChannel().force(false);
+                        forceData(mRAF);
                     else
                         throw new IOException("Redolog file closed");
                     mCommitNotifyQueue.flush(false);
                 }
+                ZimbraPerf.HISTOGRAM_REDO_OPS_PER_FSYNC.record(numOps);
             }
             synchronized (mLock) {
                 mFsyncSeq = seq;
@@ -564,6 +677,154 @@ public class FileLogWriter implements LogWriter {
     }
 
 
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long LINGER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long COMMIT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    // Thread that fsyncs on behalf of waiting logger threads in group commit
+    // mode.  Logger threads append a waiter to a lock-free queue and park;
+    // this thread fsyncs whenever the queue is non-empty and unparks every
+    // waiter covered by the fsync.  If the previous batch contained more than
+    // one waiter, it first lingers until either the batch size is reached or
+    // the oldest waiter would miss the latency target, net of the expected
+    // fsync time.
+    private class GroupCommitThread extends Thread {
+        private final ConcurrentLinkedQueue<CommitWaiter> mWaiters = new ConcurrentLinkedQueue<CommitWaiter>();
+        private final AtomicInteger mNumWaiters = new AtomicInteger();
+        private final long mLatencyTargetNanos;
+        private volatile boolean mRunning = true;
+        private long mFsyncNanosEstimate;   // moving average of fsync time
+        private int mLastBatchSize;
+
+        GroupCommitThread() {
+            super("FileLogWriter.GroupCommitThread-" + System.currentTimeMillis());
+            setDaemon(true);
+            mLatencyTargetNanos = TimeUnit.MICROSECONDS.toNanos(mGroupCommitLatencyMicros);
+        }
+
+        // Called by logger threads.  Returns once the log entry with the given
+        // sequence has been fsynced.
+        void awaitCommit(int seq) throws IOException {
+            CommitWaiter waiter = new CommitWaiter(seq, Thread.currentThread());
+            mWaiters.add(waiter);
+            mNumWaiters.incrementAndGet();
+            if (!mRunning) {
+                // thread is stopping and may already have drained the queue
+                if (mWaiters.remove(waiter))
+                    mNumWaiters.decrementAndGet();
+                fsync();
+                return;
+            }
+            LockSupport.unpark(this);
+
+            long deadline = waiter.mEnqueueNanos + COMMIT_TIMEOUT_NANOS;
+            while (!waiter.mDone) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    break;
+                LockSupport.parkNanos(this, remaining);
+            }
+            if (!waiter.mDone) {
+                ZimbraLog.redolog.warn("Timed out waiting for group commit of redo log entry %d", seq);
+                boolean synced;
+                synchronized (mLock) {
+                    synced = seq <= mFsyncSeq;
+                }
+                // timed out, so fsync in this thread; fsync() takes the lock itself only where it must
+                if (!synced)
+                    fsync();
+            }
+        }
+
+        @Override public void run() {
+            ZimbraLog.redolog.info("Starting group commit thread with latency target %dus, batch size %d",
+                    mGroupCommitLatencyMicros, mGroupCommitBatchSize);
+            while (mRunning) {
+                if (mNumWaiters.get() == 0) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    continue;
+                }
+                linger();
+                commitBatch();
+            }
+            // release anyone who queued up while we were stopping
+            commitBatch();
+            ZimbraLog.redolog.info("group commit thread exiting");
+        }
+
+        private void linger() {
+            if (mLastBatchSize <= 1)
+                return;  // no concurrent committers recently; waiting would only add latency
+            CommitWaiter oldest = mWaiters.peek();
+            if (oldest == null)
+                return;
+            long deadline = oldest.mEnqueueNanos + mLatencyTargetNanos - mFsyncNanosEstimate;
+            while (mRunning && mNumWaiters.get() < mGroupCommitBatchSize) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    break;
+                LockSupport.parkNanos(this, Math.min(remaining, LINGER_PARK_NANOS));
+            }
+        }
+
+        private void commitBatch() {
+            long start = System.nanoTime();
+            try {
+                fsync();
+            } catch (IOException e) {
+                String message = "Error while fsyncing " + mFile.getAbsolutePath() + "; Aborting.";
+                Zimbra.halt(message, e);
+            }
+            mFsyncNanosEstimate = (3 * mFsyncNanosEstimate + System.nanoTime() - start) / 4;
+
+            int synced;
+            synchronized (mLock) {
+                synced = mFsyncSeq;
+            }
+            int released = 0;
+            for (Iterator<CommitWaiter> it = mWaiters.iterator(); it.hasNext(); ) {
+                CommitWaiter waiter = it.next();
+                if (waiter.mSeq <= synced) {
+                    it.remove();
+                    mNumWaiters.decrementAndGet();
+                    waiter.mDone = true;
+                    LockSupport.unpark(waiter.mThread);
+                    released++;
+                }
+            }
+            mLastBatchSize = released;
+        }
+
+        // Stop the group commit thread.  Wait until the thread really stops.
+        public void stopThread() {
+            mRunning = false;
+            LockSupport.unpark(this);
+            try {
+                while (isAlive()) {
+                    ZimbraLog.redolog.info("waiting for %s to finish.", getName());
+                    join(Constants.MILLIS_PER_MINUTE);
+                }
+                ZimbraLog.redolog.info("%s finished", getName());
+            } catch (InterruptedException e) {
+                ZimbraLog.redolog.warn("InterruptedException while stopping GroupCommitThread", e);
+            }
+        }
+    }
+
+    private static class CommitWaiter {
+        private final int mSeq;
+        private final Thread mThread;
+        private final long mEnqueueNanos;
+        private volatile boolean mDone;
+
+        CommitWaiter(int seq, Thread thread) {
+            mSeq = seq;
+            mThread = thread;
+            mEnqueueNanos = System.nanoTime();
+        }
+    }
+
+
     // Commit callback handling
 
     private static class Notif {
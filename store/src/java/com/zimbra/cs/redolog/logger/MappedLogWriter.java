@@ -0,0 +1,220 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.redolog.RedoLogManager;
+import com.zimbra.cs.redolog.op.RedoableOp;
+
+/**
+ * Redo log writer that appends to a preallocated, memory-mapped segment.
+ * <p>
+ * The log file is zero-filled to a fixed segment size when it is created, so
+ * appends never change the file's length and don't cause filesystem metadata
+ * updates.  Log entries are copied into a {@link MappedByteBuffer} and made
+ * durable with {@link MappedByteBuffer#force()}.  The header is marked as
+ * preallocated and records the length of valid data on close.  If the
+ * process dies with the log open, the end of data is the first 0-value byte
+ * where a log entry should start, because every entry begins with the
+ * non-zero {@link RedoableOp#REDO_MAGIC}.  {@link FileLogReader} understands
+ * both conventions.
+ * <p>
+ * When rolled logs are deleted rather than archived, the rolled segment is
+ * zeroed and kept as a spare, which becomes the next current log on the
+ * following rollover.  Archived logs are truncated to the length of their
+ * data first.  A segment that fills up is extended by another segment's worth
+ * of zeros.
+ */
+public class MappedLogWriter extends FileLogWriter {
+
+    private static final String SPARE_SUFFIX = ".spare";
+    private static final int ZERO_FILL_CHUNK = 64 * 1024;
+
+    private final long mSegmentSize;
+    private MappedByteBuffer mMapped;
+
+    public MappedLogWriter(RedoLogManager redoLogMgr, File logfile, long fsyncIntervalMS, long segmentSize) {
+        this(redoLogMgr, logfile, fsyncIntervalMS, 0, 0, segmentSize);
+    }
+
+    public MappedLogWriter(RedoLogManager redoLogMgr, File logfile, long fsyncIntervalMS,
+            long groupCommitLatencyMicros, int groupCommitBatchSize, long segmentSize) {
+        super(redoLogMgr, logfile, fsyncIntervalMS, groupCommitLatencyMicros, groupCommitBatchSize);
+        mSegmentSize = Math.max(segmentSize, FileHeader.HEADER_LEN * 2);
+    }
+
+    @Override
+    protected boolean isNewLog(RandomAccessFile raf) throws IOException {
+        if (raf.length() < FileHeader.HEADER_LEN)
+            return true;
+        // a recycled segment has a zeroed header
+        raf.seek(0);
+        return raf.read() <= 0;
+    }
+
+    @Override
+    protected long openData(File file, RandomAccessFile raf, FileHeader header) throws IOException {
+        long end;
+        if (raf.length() < FileHeader.HEADER_LEN || isNewLog(raf)) {
+            end = FileHeader.HEADER_LEN;
+        } else if (!header.getPreallocated()) {
+            // log written by FileLogWriter; keep appending to it
+            end = raf.length();
+        } else if (!header.getOpen()) {
+            end = header.getFileSize();
+        } else {
+            end = findDataEnd(file);
+            // Anything past the last good entry is a partially written entry
+            // from before the crash.  Clear it so it can't be mistaken for data
+            // once new entries are appended in front of it.
+            zeroFill(raf.getChannel(), end, raf.length());
+        }
+        header.setPreallocated(true);
+        map(raf, Math.max(raf.length(), Math.max(end, mSegmentSize)));
+        return end;
+    }
+
+    private long findDataEnd(File file) {
+        long end = FileHeader.HEADER_LEN;
+        FileLogReader reader = new FileLogReader(file);
+        try {
+            reader.open();
+            try {
+                while (reader.getNextOp() != null) {
+                    end = reader.position();
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            ZimbraLog.redolog.warn("Redo log %s ends with a partial entry; appending at offset %d",
+                    file.getAbsolutePath(), end, e);
+        }
+        return end;
+    }
+
+    private void map(RandomAccessFile raf, long size) throws IOException {
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Redo log segment size " + size + " exceeds maximum mappable size");
+        FileChannel channel = raf.getChannel();
+        // zero-fill any new space up front, so appends don't extend the file
+        zeroFill(channel, channel.size(), size);
+        channel.force(true);
+        if (mMapped != null)
+            mMapped.force();
+        mMapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    @Override
+    protected void writeData(RandomAccessFile raf, long pos, byte[] buf, int off, int len) throws IOException {
+        if (mMapped == null)
+            throw new IOException("Redolog file closed");
+        if (pos + len > mMapped.capacity()) {
+            long size = mMapped.capacity() + mSegmentSize;
+            while (size < pos + len) {
+                size += mSegmentSize;
+            }
+            ZimbraLog.redolog.info("Extending redo log segment to %d bytes", size);
+            map(raf, size);
+        }
+        mMapped.position((int) pos);
+        mMapped.put(buf, off, len);
+    }
+
+    @Override
+    protected void forceData(RandomAccessFile raf) throws IOException {
+        if (mMapped != null)
+            mMapped.force();
+    }
+
+    @Override
+    protected void closeData(RandomAccessFile raf, FileHeader header, long dataSize) throws IOException {
+        if (mMapped != null) {
+            mMapped.force();
+            mMapped = null;  // unmapped when garbage collected
+        }
+        header.setFileSize(dataSize);
+    }
+
+    @Override
+    protected FileLogWriter createTempLogWriter(File current, File tempLogfile) throws IOException {
+        File spare = getSpareFile(current);
+        if (spare.exists() && !spare.renameTo(tempLogfile))
+            ZimbraLog.redolog.warn("Unable to rename spare redo log segment %s", spare.getAbsolutePath());
+        return new MappedLogWriter(mRedoLogMgr, tempLogfile, 0, mSegmentSize);
+    }
+
+    @Override
+    protected void disposeRolledLog(File current, File rolloverFile, boolean delete) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(current, "rw");
+        long dataSize;
+        try {
+            FileHeader header = new FileHeader();
+            header.read(raf);
+            dataSize = header.getPreallocated() ? header.getFileSize() : raf.length();
+            if (delete) {
+                // Recycle the segment.  Only the part that was written needs
+                // clearing; the rest is still zero from preallocation.
+                if (!getSpareFile(current).exists()) {
+                    zeroFill(raf.getChannel(), 0, Math.min(dataSize, raf.length()));
+                    raf.getChannel().force(true);
+                }
+            } else if (dataSize < raf.length()) {
+                raf.setLength(dataSize);
+            }
+        } finally {
+            raf.close();
+        }
+
+        if (delete) {
+            File spare = getSpareFile(current);
+            if (!spare.exists() && current.renameTo(spare))
+                return;
+        }
+        super.disposeRolledLog(current, rolloverFile, delete);
+    }
+
+    private static File getSpareFile(File current) {
+        return new File(current.getParentFile(), current.getName() + SPARE_SUFFIX);
+    }
+
+    /**
+     * Writes 0-value bytes to the channel from offset <tt>from</tt> up to
+     * <tt>to</tt>, extending the file if necessary.
+     */
+    static void zeroFill(FileChannel channel, long from, long to) throws IOException {
+        if (from >= to)
+            return;
+        ByteBuffer zeros = ByteBuffer.allocateDirect((int) Math.min(ZERO_FILL_CHUNK, to - from));
+        long pos = from;
+        while (pos < to) {
+            zeros.clear();
+            if (to - pos < zeros.capacity())
+                zeros.limit((int) (to - pos));
+            while (zeros.hasRemaining()) {
+                pos += channel.write(zeros, pos);
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.op;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import com.zimbra.cs.mailbox.MailboxOperation;
+import com.zimbra.cs.redolog.RedoLogInput;
+import com.zimbra.cs.redolog.RedoLogOutput;
+
+/**
+ * Records a batch of messages added to a mailbox in a single transaction.
+ * <p>
+ * Each message is described by an ordinary {@link CreateMessage}, serialized
+ * in full (header, data and blob) after this op's own data.  Replaying the
+ * batch replays each message in order, so recovery doesn't need to know
+ * anything about the batch beyond where it starts and ends.
+ */
+public class CreateMessages extends RedoableOp {
+
+    private List<CreateMessage> mMessages = new ArrayList<CreateMessage>();
+
+    public CreateMessages() {
+        super(MailboxOperation.CreateMessages);
+    }
+
+    public CreateMessages(int mailboxId) {
+        this();
+        setMailboxId(mailboxId);
+    }
+
+    /**
+     * Adds a message to the batch.  The op must already have been started,
+     * since it's serialized with its own header.
+     */
+    public void addMessage(CreateMessage op) {
+        mMessages.add(op);
+    }
+
+    public List<CreateMessage> getMessages() {
+        return Collections.unmodifiableList(mMessages);
+    }
+
+    @Override public synchronized void commit() {
+        try {
+            super.commit();
+        } finally {
+            // the messages were logged as part of this op; just release their data
+            for (CreateMessage op : mMessages) {
+                op.commit();
+            }
+        }
+    }
+
+    @Override public synchronized void abort() {
+        try {
+            super.abort();
+        } finally {
+            for (CreateMessage op : mMessages) {
+                op.abort();
+            }
+        }
+    }
+
+    @Override protected String getPrintableData() {
+        StringBuilder sb = new StringBuilder("count=").append(mMessages.size());
+        sb.append(", ids=[");
+        for (int i = 0; i < mMessages.size(); i++) {
+            sb.append(i == 0 ? "" : ",").append(mMessages.get(i).getMessageId());
+        }
+        return sb.append("]").toString();
+    }
+
+    @Override protected void serializeData(RedoLogOutput out) throws IOException {
+        out.writeInt(mMessages.size());
+        // The messages themselves are written by getAdditionalDataStream(),
+        // because each one is followed by its blob.
+    }
+
+    @Override
+    public InputStream getAdditionalDataStream() throws IOException {
+        return mMessages.isEmpty() ? null : new ChainedInputStream(mMessages.iterator());
+    }
+
+    @Override protected void deserializeData(RedoLogInput in) throws IOException {
+        int count = in.readInt();
+        mMessages = new ArrayList<CreateMessage>(count);
+        for (int i = 0; i < count; i++) {
+            RedoableOp op = RedoableOp.deserializeOp(in);
+            if (!(op instanceof CreateMessage)) {
+                throw new IOException("Unexpected " + op.getOperation() + " in " + getOperation());
+            }
+            mMessages.add((CreateMessage) op);
+        }
+    }
+
+    @Override public void redo() throws Exception {
+        for (CreateMessage op : mMessages) {
+            op.redo();
+        }
+    }
+
+    /**
+     * Concatenates the serialized messages, opening each one's stream only
+     * when the previous one is used up so large batches don't hold every
+     * blob file open at once.
+     */
+    private static class ChainedInputStream extends InputStream {
+        private final Iterator<CreateMessage> mOps;
+        private InputStream mCurrent;
+
+        ChainedInputStream(Iterator<CreateMessage> ops) {
+            mOps = ops;
+        }
+
+        private boolean advance() throws IOException {
+            while (mCurrent == null) {
+                if (!mOps.hasNext())
+                    return false;
+                mCurrent = mOps.next().getInputStream();
+            }
+            return true;
+        }
+
+        @Override public int read() throws IOException {
+            while (advance()) {
+                int b = mCurrent.read();
+                if (b >= 0)
+                    return b;
+                mCurrent.close();
+                mCurrent = null;
+            }
+            return -1;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            while (advance()) {
+                int n = mCurrent.read(b, off, len);
+                if (n > 0)
+                    return n;
+                mCurrent.close();
+                mCurrent = null;
+            }
+            return -1;
+        }
+
+        @Override public void close() throws IOException {
+            if (mCurrent != null) {
+                mCurrent.close();
+                mCurrent = null;
+            }
+        }
+    }
+}
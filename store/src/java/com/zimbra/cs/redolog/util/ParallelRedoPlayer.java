@@ -19,17 +19,39 @@ package com.zimbra.cs.redolog.util;
 
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Constants;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.redolog.RedoLogManager;
 import com.zimbra.cs.redolog.RedoPlayer;
 import com.zimbra.cs.redolog.op.RedoableOp;
 import com.zimbra.cs.util.Zimbra;
 
+/**
+ * Redo player that partitions ops by mailbox ID across a fixed set of player
+ * threads, both when replaying committed ops and when redoing uncommitted ops
+ * during crash recovery.  Ops for one mailbox always go to the same thread, so
+ * they run in logged order.  Ops that aren't tied to a single mailbox, and
+ * checkpoint and rollover records, act as barriers: all previously queued ops
+ * finish first, and the op itself runs in the calling thread.
+ */
 public class ParallelRedoPlayer extends RedoPlayer {
 
+    private static final long PROGRESS_INTERVAL_MS = 10 * Constants.MILLIS_PER_SECOND;
+
     private PlayerThread[] mPlayerThreads;
 
+    // number of ops handed to player threads and not yet finished; guarded by mPendingLock
+    private final Object mPendingLock = new Object();
+    private long mNumPending;
+
+    private final AtomicLong mNumQueued = new AtomicLong();
+    private final AtomicLong mNumPlayed = new AtomicLong();
+    private final long mStartTime = System.currentTimeMillis();
+    private long mLastProgressTime = mStartTime;
+
     public ParallelRedoPlayer(boolean writable, boolean unloggedReplay,
                               boolean ignoreReplayErrors, boolean skipDeleteOps,
                               int numThreads, int queueCapacity, boolean handleMailboxConflict) {
@@ -55,32 +77,122 @@ public class ParallelRedoPlayer extends RedoPlayer {
                 mPlayerThreads[i].shutdown();
             }
         }
+        long played = mNumPlayed.get();
+        if (played > 0) {
+            long elapsed = Math.max(System.currentTimeMillis() - mStartTime, 1);
+            ZimbraLog.redolog.info("Played %d redo ops in %dms (%.1f ops/sec) using %d threads",
+                    played, elapsed, played * 1000.0 / elapsed, mPlayerThreads.length);
+        }
         ZimbraLog.redolog.debug("ParallelRedoPlayer shutdown complete");
     }
 
+    /**
+     * Returns the number of ops handed to player threads so far.
+     */
+    public long getNumOpsQueued() {
+        return mNumQueued.get();
+    }
+
+    /**
+     * Returns the number of queued ops that have been executed so far.
+     */
+    public long getNumOpsPlayed() {
+        return mNumPlayed.get();
+    }
+
     @Override protected void playOp(RedoableOp op) throws Exception {
         checkError();
-        int mboxId = op.getMailboxId();
-        if (mboxId == RedoableOp.MAILBOX_ID_ALL || mboxId == RedoableOp.UNKNOWN_ID) {
-            // Multi-mailbox ops are executed by the main thread to prevent later ops
-            // that depend on this op's result aren't run out of order.
+        if (isMultiMailboxOp(op)) {
+            // Multi-mailbox ops are executed by the main thread after all queued ops
+            // finish, so that neither earlier nor later ops run out of order with it.
+            waitForPendingOps();
             if (ZimbraLog.redolog.isDebugEnabled())
                 ZimbraLog.redolog.info("Executing: " + op.toString());
             op.redo();
         } else {
-            // Ops for the same mailbox must be played back in order.  To ensure that,
-            // all ops for the same mailbox are sent to the same player thread.  The
-            // ops are added to the thread's internal queue and played back in order.
-            // This assignment of ops to threads will result in uneven distribution.
-            int index = Math.abs(mboxId % mPlayerThreads.length);
-            PlayerThread player = mPlayerThreads[index];
-            RedoTask task = new RedoTask(op);
-            if (ZimbraLog.redolog.isDebugEnabled())
-                ZimbraLog.redolog.info("Enqueuing: " + op.toString());
+            enqueue(new RedoTask(op));
+        }
+    }
+
+    @Override protected void recoverOp(RedoLogManager redoLogMgr, RedoableOp op) {
+        if (isMultiMailboxOp(op)) {
             try {
-                player.enqueue(task);
-            } catch (InterruptedException e) {}
+                waitForPendingOps();
+            } catch (ServiceException e) {
+                // recovery tasks never raise errors, so we were interrupted; running the op now could put it ahead
+                // of queued ops, and the interrupt makes crash recovery fail at its final wait
+                ZimbraLog.redolog.warn("Interrupted while waiting for pending redo ops; not redoing %s", op, e);
+                return;
+            }
+            super.recoverOp(redoLogMgr, op);
+        } else {
+            enqueue(new RecoveryTask(redoLogMgr, op));
+        }
+    }
+
+    @Override protected void waitForPendingOps() throws ServiceException {
+        synchronized (mPendingLock) {
+            while (mNumPending > 0) {
+                try {
+                    mPendingLock.wait(PROGRESS_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw ServiceException.INTERRUPTED("waiting for pending redo ops");
+                }
+                logProgress();
+            }
+        }
+        checkError();
+    }
+
+    private static boolean isMultiMailboxOp(RedoableOp op) {
+        int mboxId = op.getMailboxId();
+        return mboxId == RedoableOp.MAILBOX_ID_ALL || mboxId == RedoableOp.UNKNOWN_ID;
+    }
+
+    private void enqueue(RedoTask task) {
+        // Ops for the same mailbox must be played back in order.  To ensure that,
+        // all ops for the same mailbox are sent to the same player thread.  The
+        // ops are added to the thread's internal queue and played back in order.
+        // This assignment of ops to threads will result in uneven distribution.
+        RedoableOp op = task.getOp();
+        int index = Math.abs(op.getMailboxId() % mPlayerThreads.length);
+        PlayerThread player = mPlayerThreads[index];
+        if (ZimbraLog.redolog.isDebugEnabled())
+            ZimbraLog.redolog.info("Enqueuing: " + op.toString());
+        synchronized (mPendingLock) {
+            mNumPending++;
+        }
+        mNumQueued.incrementAndGet();
+        try {
+            player.enqueue(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            taskDone(false);
         }
+        logProgress();
+    }
+
+    private void taskDone(boolean played) {
+        if (played)
+            mNumPlayed.incrementAndGet();
+        synchronized (mPendingLock) {
+            mNumPending--;
+            if (mNumPending == 0)
+                mPendingLock.notifyAll();
+        }
+    }
+
+    // Called only from the thread that reads the log.
+    private void logProgress() {
+        long now = System.currentTimeMillis();
+        if (now - mLastProgressTime < PROGRESS_INTERVAL_MS)
+            return;
+        mLastProgressTime = now;
+        long played = mNumPlayed.get();
+        long elapsed = Math.max(now - mStartTime, 1);
+        ZimbraLog.redolog.info("Redo playback progress: %d of %d queued ops played (%.1f ops/sec)",
+                played, mNumQueued.get(), played * 1000.0 / elapsed);
     }
 
     private Throwable mError = null;
@@ -106,17 +218,44 @@ public class ParallelRedoPlayer extends RedoPlayer {
         }
     }
 
-    private static class RedoTask {
+    private class RedoTask {
         private RedoableOp mOp;
         public RedoTask(RedoableOp op)  { mOp = op; }
         public RedoableOp getOp()       { return mOp; }
         public boolean isShutdownTask() { return false; }
+
+        public void execute() throws Exception {
+            if (ZimbraLog.redolog.isDebugEnabled()) {
+                ZimbraLog.redolog.info("Executing: " + mOp.toString());
+            }
+            if (handleMailboxConflict) {
+                redoOpWithMboxConflict(mOp);
+            } else {
+                mOp.redo();
+            }
+        }
+    }
+
+    /**
+     * Redoes an uncommitted op during crash recovery.
+     */
+    private class RecoveryTask extends RedoTask {
+        private RedoLogManager mRedoLogMgr;
+        public RecoveryTask(RedoLogManager redoLogMgr, RedoableOp op) {
+            super(op);
+            mRedoLogMgr = redoLogMgr;
+        }
+
+        @Override
+        public void execute() {
+            ParallelRedoPlayer.super.recoverOp(mRedoLogMgr, getOp());
+        }
     }
 
     /**
      * Special task to tell the queue drain thread to go away.
      */
-    private static class ShutdownTask extends RedoTask {
+    private class ShutdownTask extends RedoTask {
         public ShutdownTask() { super(null); }
         @Override
         public boolean isShutdownTask() { return true; }
@@ -162,25 +301,23 @@ public class ParallelRedoPlayer extends RedoPlayer {
                     // This thread must consume all tasks until shutdown task is received.  If this
                     // thread stopped consuming, the producer may not be able to enqueue the shutdown
                     // task.
+                    taskDone(false);
                     continue;
                 }
 
                 RedoableOp op = task.getOp();
+                boolean played = false;
                 try {
-                    if (ZimbraLog.redolog.isDebugEnabled()) {
-                        ZimbraLog.redolog.info("Executing: " + op.toString());
-                    }
-                    if (handleMailboxConflict) {
-                        redoOpWithMboxConflict(op);
-                    } else {
-                        op.redo();
-                    }
+                    task.execute();
+                    played = true;
                 } catch (OutOfMemoryError oome) {
                     Zimbra.halt("Out of memory while executing redo op", oome);
                 } catch (Throwable e) {
                     ZimbraLog.redolog.error("Unable to execute redo op: " + op.toString(), e);
                     if (!ignoreReplayErrors())
                         raiseError(e);
+                } finally {
+                    taskDone(played);
                 }
             }
         }
@@ -39,7 +39,8 @@ public final class NioConnection {
         this.session = session;
         remoteAddress = (InetSocketAddress) session.getRemoteAddress();
         out = new NioOutputStream(session, server.getConfig().getWriteChunkSize(),
-                        server.getConfig().getNioMaxWriteQueueSize(), server.getConfig().getNioMaxWriteQueueDelay());
+                        server.getConfig().getNioMaxWriteQueueSize(), server.getConfig().getNioMaxWriteQueueDelay(),
+                        server.getConfig().isNioZeroCopyEnabled() && !server.hasCustomFilters());
     }
 
     /**
@@ -0,0 +1,344 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.session.IoEvent;
+import org.apache.mina.core.session.IoEventType;
+import org.apache.mina.core.session.IoSession;
+
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Thread pool for the MINA {@code ExecutorFilter} that shares handler threads fairly between accounts.
+ * <p>
+ * I/O events are queued per session and run one at a time in order, as with MINA's {@code OrderedThreadPoolExecutor}.
+ * Sessions are grouped by the account they are authenticated as, or stand alone until then, and the groups are served
+ * by deficit round robin weighted by handler time: every turn a group gets a time quantum, and each event it runs is
+ * charged the time it actually took.  An account running expensive commands therefore waits its turn behind accounts
+ * running cheap ones instead of filling the pool, and no account may hold more than a fixed number of threads at once.
+ * <p>
+ * When an account has too many events queued, reads are suspended on the connection that is adding to them, and
+ * resumed once the queue has drained to half that depth.
+ */
+final class NioFairScheduler extends ThreadPoolExecutor {
+    private final long quantum;
+    private final int maxQueuedPerAccount;
+    private final int maxThreadsPerAccount;
+
+    private final Object lock = new Object();
+    private final Map<Object, Group> groups = new HashMap<Object, Group>(); // guarded by lock
+    private final ArrayDeque<Group> ring = new ArrayDeque<Group>(); // groups with ready sessions, guarded by lock
+    private int queued; // guarded by lock
+    private int deferred; // turns that found every account with work at its limit, guarded by lock
+    private long readSuspensions; // guarded by lock
+
+    private final Runnable turn = new Runnable() {
+        @Override
+        public void run() {
+            runNext();
+        }
+    };
+
+    /** Sessions of one account, or a single session that has not authenticated yet. */
+    private static final class Group {
+        final Object key;
+        final ArrayDeque<SessionQueue> ready = new ArrayDeque<SessionQueue>();
+        final Set<IoSession> suspended = new HashSet<IoSession>();
+        long deficit;
+        int queued;
+        int running;
+        boolean inRing;
+
+        Group(Object key) {
+            this.key = key;
+        }
+
+        boolean isIdle() {
+            return queued == 0 && running == 0;
+        }
+    }
+
+    /** Pending events of one session, in arrival order. */
+    private static final class SessionQueue {
+        final IoSession session;
+        final ArrayDeque<Runnable> events = new ArrayDeque<Runnable>();
+        Group group;
+        boolean running;
+
+        SessionQueue(IoSession session) {
+            this.session = session;
+        }
+    }
+
+    /**
+     * @param maxThreads maximum number of handler threads
+     * @param keepAlive seconds an idle handler thread is kept
+     * @param quantum handler time in milliseconds given to each account per round
+     * @param maxQueuedPerAccount queued events for one account above which reads are suspended
+     * @param maxThreadsPerAccount maximum number of threads running events for one account at a time
+     */
+    NioFairScheduler(int maxThreads, long keepAlive, ThreadFactory threadFactory, long quantum,
+            int maxQueuedPerAccount, int maxThreadsPerAccount) {
+        super(maxThreads, maxThreads, keepAlive, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+        allowCoreThreadTimeOut(true);
+        this.quantum = Math.max(TimeUnit.MILLISECONDS.toNanos(quantum), 1);
+        this.maxQueuedPerAccount = Math.max(maxQueuedPerAccount, 1);
+        this.maxThreadsPerAccount = Math.max(maxThreadsPerAccount, 1);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (!(task instanceof IoEvent)) {
+            super.execute(task);
+            return;
+        }
+        if (isShutdown()) {
+            getRejectedExecutionHandler().rejectedExecution(task, this);
+            return;
+        }
+        IoEvent event = (IoEvent) task;
+        IoSession session = event.getSession();
+        boolean submit = false;
+        synchronized (lock) {
+            SessionQueue sq = (SessionQueue) session.getAttribute(SessionQueue.class);
+            if (sq == null) {
+                sq = new SessionQueue(session);
+                session.setAttribute(SessionQueue.class, sq);
+            }
+            if (sq.group == null) { // idle session; it may have authenticated since it was last scheduled
+                sq.group = getGroup(getKey(session));
+            }
+            Group group = sq.group;
+            sq.events.add(task);
+            group.queued++;
+            queued++;
+            if (!sq.running && sq.events.size() == 1) {
+                makeReady(sq);
+                submit = true;
+            }
+            if (group.queued > maxQueuedPerAccount && event.getType() == IoEventType.MESSAGE_RECEIVED &&
+                    group.suspended.add(session)) {
+                readSuspensions++;
+                session.suspendRead();
+                ZimbraLog.nio.debug("suspending reads on %s: %d events queued for %s", session, group.queued,
+                        group.key);
+            }
+        }
+        if (submit) {
+            super.execute(turn);
+        }
+    }
+
+    private static Object getKey(IoSession session) {
+        NioHandler handler = NioHandlerDispatcher.getHandler(session);
+        String accountId = handler == null ? null : handler.getAccountId();
+        return accountId != null ? accountId : session;
+    }
+
+    private Group getGroup(Object key) {
+        Group group = groups.get(key);
+        if (group == null) {
+            group = new Group(key);
+            groups.put(key, group);
+        }
+        return group;
+    }
+
+    private void makeReady(SessionQueue sq) {
+        Group group = sq.group;
+        group.ready.add(sq);
+        if (!group.inRing) {
+            group.inRing = true;
+            ring.add(group);
+        }
+    }
+
+    /** Picks the next session to run an event for, or returns null if every account with work is at its limit. */
+    private SessionQueue next() {
+        Group chosen = null;
+        long shortfall = Long.MAX_VALUE;
+        for (Group group : ring) {
+            if (group.running >= maxThreadsPerAccount) {
+                continue;
+            }
+            if (group.deficit > 0) {
+                chosen = group;
+                break;
+            }
+            shortfall = Math.min(shortfall, 1 - group.deficit);
+        }
+        if (chosen == null) {
+            if (shortfall == Long.MAX_VALUE) {
+                return null;
+            }
+            // skip ahead the number of rounds it takes for the first account to be owed time again
+            long rounds = (shortfall + quantum - 1) / quantum;
+            for (Group group : ring) {
+                if (group.running < maxThreadsPerAccount) {
+                    group.deficit += rounds * quantum;
+                    if (chosen == null && group.deficit > 0) {
+                        chosen = group;
+                    }
+                }
+            }
+        }
+        SessionQueue sq = chosen.ready.poll();
+        chosen.running++;
+        // charge a quantum up front so that concurrent turns don't all pick the same account
+        chosen.deficit -= quantum;
+        if (chosen.ready.isEmpty() || chosen.deficit <= 0) {
+            ring.remove(chosen);
+            chosen.inRing = false;
+            if (!chosen.ready.isEmpty()) {
+                chosen.inRing = true;
+                ring.add(chosen);
+            }
+        }
+        sq.running = true;
+        return sq;
+    }
+
+    private void runNext() {
+        SessionQueue sq;
+        Runnable event;
+        List<IoSession> resume = null;
+        synchronized (lock) {
+            sq = next();
+            if (sq == null) {
+                deferred++; // given back by finish() once an account with ready sessions drops below its limit
+                return;
+            }
+            Group group = sq.group;
+            event = sq.events.poll();
+            group.queued--;
+            queued--;
+            if (!group.suspended.isEmpty() && group.queued <= maxQueuedPerAccount / 2) {
+                resume = new ArrayList<IoSession>(group.suspended);
+                group.suspended.clear();
+            }
+        }
+        if (resume != null) {
+            for (IoSession session : resume) {
+                session.resumeRead();
+            }
+        }
+
+        long start = System.nanoTime();
+        try {
+            event.run();
+        } finally {
+            finish(sq, System.nanoTime() - start);
+        }
+    }
+
+    private void finish(SessionQueue sq, long elapsed) {
+        int submit = 0;
+        synchronized (lock) {
+            Group group = sq.group;
+            group.running--;
+            group.deficit += quantum - elapsed;
+            sq.running = false;
+            // give back as many dropped turns as this account's other ready sessions can now use
+            int usable = Math.min(group.ready.size(), maxThreadsPerAccount - group.running);
+            if (usable > 0 && deferred > 0) {
+                int resubmit = Math.min(usable, deferred);
+                deferred -= resubmit;
+                submit += resubmit;
+            }
+            if (!sq.events.isEmpty()) {
+                makeReady(sq);
+                submit++;
+            } else {
+                sq.group = null;
+            }
+            if (group.isIdle() && !group.inRing) {
+                groups.remove(group.key);
+            }
+        }
+        for (; submit > 0 && !isShutdown(); submit--) {
+            super.execute(turn);
+        }
+    }
+
+    /** Returns the number of accounts (or unauthenticated connections) with events queued or running. */
+    int getActiveAccounts() {
+        synchronized (lock) {
+            return groups.size();
+        }
+    }
+
+    /** Returns the number of events waiting for a handler thread. */
+    int getQueuedEvents() {
+        synchronized (lock) {
+            return queued;
+        }
+    }
+
+    /** Returns the number of connections whose reads are currently suspended. */
+    int getSuspendedSessions() {
+        synchronized (lock) {
+            int count = 0;
+            for (Group group : groups.values()) {
+                count += group.suspended.size();
+            }
+            return count;
+        }
+    }
+
+    /** Returns the number of times reads have been suspended on a connection. */
+    long getReadSuspensions() {
+        synchronized (lock) {
+            return readSuspensions;
+        }
+    }
+
+    /** Returns the events queued for each authenticated account that has any. */
+    Map<String, Integer> getAccountQueueDepths() {
+        Map<String, Integer> depths = new HashMap<String, Integer>();
+        synchronized (lock) {
+            for (Group group : groups.values()) {
+                if (group.key instanceof String && group.queued > 0) {
+                    depths.put((String) group.key, group.queued);
+                }
+            }
+        }
+        return depths;
+    }
+
+    /** Returns the most events queued for any one account. */
+    int getMaxAccountQueueDepth() {
+        synchronized (lock) {
+            int max = 0;
+            for (Group group : groups.values()) {
+                max = Math.max(max, group.queued);
+            }
+            return max;
+        }
+    }
+}
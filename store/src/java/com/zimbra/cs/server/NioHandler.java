@@ -77,4 +77,12 @@ public interface NioHandler {
      * Set the current context (mid, ip, and etc) to the account logger.
      */
     void setLoggingContext();
+
+    /**
+     * Returns the ID of the account the connection is authenticated as, or null if it isn't. Requests are scheduled
+     * fairly between accounts.
+     */
+    default String getAccountId() {
+        return null;
+    }
 }
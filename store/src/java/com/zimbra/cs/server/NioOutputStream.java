@@ -19,25 +19,72 @@ package com.zimbra.cs.server;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.file.DefaultFileRegion;
+import org.apache.mina.core.filterchain.IoFilterChain;
+import org.apache.mina.core.future.IoFutureListener;
 import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.ssl.SslFilter;
 
 import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.security.sasl.SaslFilter;
 
 public final class NioOutputStream extends OutputStream {
     private final IoSession session;
     private IoBuffer buf;
     private int maxScheduledBytes;
     private int maxWritePause;
+    private final boolean zeroCopy;
 
     NioOutputStream(IoSession session, int chunkSize, int maxScheduleBytes, int maxWritePause) {
+        this(session, chunkSize, maxScheduleBytes, maxWritePause, false);
+    }
+
+    NioOutputStream(IoSession session, int chunkSize, int maxScheduleBytes, int maxWritePause, boolean zeroCopy) {
         this.session = session;
         this.buf = IoBuffer.allocate(chunkSize);
         this.maxScheduledBytes = maxScheduleBytes;
         this.maxWritePause = maxWritePause;
+        this.zeroCopy = zeroCopy;
+    }
+
+    /**
+     * Returns true if {@link #write(FileChannel, long, long)} may be used, i.e. zero-copy is enabled for this server
+     * and no filter that needs to see the plaintext (TLS, SASL security layer) has been added to the session.
+     */
+    public boolean isZeroCopyCapable() {
+        if (!zeroCopy) {
+            return false;
+        }
+        IoFilterChain chain = session.getFilterChain();
+        return !chain.contains(SslFilter.class) && !chain.contains(SaslFilter.class);
+    }
+
+    /**
+     * Sends {@code count} bytes of {@code channel} starting at {@code position} directly from the file to the socket
+     * with {@link FileChannel#transferTo}, after anything already buffered.  The stream takes ownership of the
+     * channel and closes it once the region has been written.
+     */
+    public synchronized void write(final FileChannel channel, long position, long count) throws IOException {
+        flush();
+        WriteFuture future;
+        try {
+            future = writeToSession(new DefaultFileRegion(channel, position, count));
+        } catch (IOException e) {
+            Closeables.closeQuietly(channel);
+            throw e;
+        }
+        future.addListener(new IoFutureListener<WriteFuture>() {
+            @Override
+            public void operationComplete(WriteFuture written) {
+                Closeables.closeQuietly(channel);
+            }
+        });
     }
 
     @Override
@@ -88,7 +135,7 @@ public final class NioOutputStream extends OutputStream {
         }
     }
 
-    private synchronized void writeToSession(Object output) throws IOException {
+    private synchronized WriteFuture writeToSession(Object output) throws IOException {
         long writeBytes = session.getScheduledWriteBytes();
         WriteFuture future = session.write(output);
         if (writeBytes > maxScheduledBytes) {
@@ -107,6 +154,7 @@ public final class NioOutputStream extends OutputStream {
                 ZimbraLog.nio.debug("now have %d scheduled bytes, %d messages; %d written bytes %d messages", session.getScheduledWriteBytes(), session.getScheduledWriteMessages(), session.getWrittenBytes(), session.getWrittenMessages());
             }
         }
+        return future;
     }
 
     @Override
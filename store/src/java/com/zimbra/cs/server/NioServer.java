@@ -27,6 +27,7 @@ import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -96,6 +97,13 @@ public abstract class NioServer implements Server {
         FILTERS.put(server, filter);
     }
 
+    /**
+     * Returns true if an extension has added a custom filter to this server, which may need to see every byte written.
+     */
+    boolean hasCustomFilters() {
+        return FILTERS.containsKey(getClass());
+    }
+
     private static synchronized SSLContext getSSLContext(ServerConfig config) {
         if (sslContext == null) {
             try {
@@ -206,11 +214,20 @@ public abstract class NioServer implements Server {
     protected NioServer(ServerConfig config) throws ServiceException {
         this.config = config;
         acceptor = new ZimbraSocketAcceptor(config.getServerSocketChannel(), IO_PROCESSOR_POOL);
-        executorFilter = new ExecutorFilter(1, config.getMaxThreads(),
-                config.getThreadKeepAliveTime(), TimeUnit.SECONDS,
-                new ThreadFactoryBuilder().setNameFormat(getName() + "-%d").build(), IoEventType.EXCEPTION_CAUGHT,
-                IoEventType.MESSAGE_RECEIVED, IoEventType.SESSION_CLOSED,
-                IoEventType.SESSION_IDLE, IoEventType.SESSION_OPENED);
+        ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat(getName() + "-%d").build();
+        if (LC.nio_fair_scheduler_enabled.booleanValue()) {
+            executorFilter = new ExecutorFilter(new NioFairScheduler(config.getMaxThreads(),
+                    config.getThreadKeepAliveTime(), threadFactory, LC.nio_fair_scheduler_quantum_ms.longValue(),
+                    LC.nio_fair_scheduler_max_queued_per_account.intValue(),
+                    LC.nio_fair_scheduler_max_threads_per_account.intValue()), IoEventType.EXCEPTION_CAUGHT,
+                    IoEventType.MESSAGE_RECEIVED, IoEventType.SESSION_CLOSED,
+                    IoEventType.SESSION_IDLE, IoEventType.SESSION_OPENED);
+        } else {
+            executorFilter = new ExecutorFilter(1, config.getMaxThreads(),
+                    config.getThreadKeepAliveTime(), TimeUnit.SECONDS, threadFactory, IoEventType.EXCEPTION_CAUGHT,
+                    IoEventType.MESSAGE_RECEIVED, IoEventType.SESSION_CLOSED,
+                    IoEventType.SESSION_IDLE, IoEventType.SESSION_OPENED);
+        }
 
     }
 
@@ -352,6 +369,14 @@ public abstract class NioServer implements Server {
         return ((ThreadPoolExecutor) ex).getPoolSize();
     }
 
+    /**
+     * Returns the fair scheduler running this server's handlers, or null if it is disabled.
+     */
+    NioFairScheduler getFairScheduler() {
+        Executor ex = executorFilter.getExecutor();
+        return ex instanceof NioFairScheduler ? (NioFairScheduler) ex : null;
+    }
+
     protected Set<String> getThrottleSafeHosts() throws ServiceException {
 
         Set<String> safeHosts = new HashSet<String>();
@@ -16,6 +16,9 @@
  */
 package com.zimbra.cs.server;
 
+import java.util.Collections;
+import java.util.Map;
+
 import org.apache.mina.core.service.IoAcceptor;
 import org.apache.mina.core.service.IoServiceStatistics;
 
@@ -27,10 +30,12 @@ import org.apache.mina.core.service.IoServiceStatistics;
 final class NioServerStats implements NioServerStatsMBean {
     private final IoAcceptor acceptor;
     private final IoServiceStatistics stats;
+    private final NioFairScheduler scheduler;
 
     NioServerStats(NioServer server) {
         acceptor = server.acceptor;
         stats = acceptor.getStatistics();
+        scheduler = server.getFairScheduler();
     }
 
     @Override
@@ -72,4 +77,34 @@ final class NioServerStats implements NioServerStatsMBean {
     public long getScheduledWriteMessages() {
         return stats.getScheduledWriteMessages();
     }
+
+    @Override
+    public long getActiveAccounts() {
+        return scheduler == null ? 0 : scheduler.getActiveAccounts();
+    }
+
+    @Override
+    public long getQueuedRequests() {
+        return scheduler == null ? 0 : scheduler.getQueuedEvents();
+    }
+
+    @Override
+    public long getMaxAccountQueueDepth() {
+        return scheduler == null ? 0 : scheduler.getMaxAccountQueueDepth();
+    }
+
+    @Override
+    public long getReadSuspendedSessions() {
+        return scheduler == null ? 0 : scheduler.getSuspendedSessions();
+    }
+
+    @Override
+    public long getReadSuspensions() {
+        return scheduler == null ? 0 : scheduler.getReadSuspensions();
+    }
+
+    @Override
+    public Map<String, Integer> getAccountQueueDepths() {
+        return scheduler == null ? Collections.<String, Integer>emptyMap() : scheduler.getAccountQueueDepths();
+    }
 }
@@ -16,6 +16,8 @@
  */
 package com.zimbra.cs.server;
 
+import java.util.Map;
+
 public interface NioServerStatsMBean {
     long getTotalSessions();
     long getActiveSessions();
@@ -25,4 +27,10 @@ public interface NioServerStatsMBean {
     long getWrittenMessages();
     long getScheduledWriteBytes();
     long getScheduledWriteMessages();
+    long getActiveAccounts();
+    long getQueuedRequests();
+    long getMaxAccountQueueDepth();
+    long getReadSuspendedSessions();
+    long getReadSuspensions();
+    Map<String, Integer> getAccountQueueDepths();
 }
@@ -171,6 +171,22 @@ public abstract class ServerConfig {
         return DEFAULT_MAX_WRITE_QUEUE_SIZE;
     }
 
+    /**
+     * Returns true if large file-backed responses may be handed to the NIO layer as a file region and sent with
+     * {@code FileChannel.transferTo} instead of being copied through heap buffers.
+     */
+    public boolean isNioZeroCopyEnabled() {
+        return false;
+    }
+
+    /**
+     * Returns true if a thread-per-connection server should run its handlers on virtual threads, where the JVM has
+     * them, instead of pooled platform threads.
+     */
+    public boolean isVirtualThreadsEnabled() {
+        return false;
+    }
+
 
     public ServerSocket getServerSocket() throws ServiceException {
         return isSslEnabled() ?
@@ -28,6 +28,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -69,11 +70,28 @@ public abstract class TcpServer implements Runnable, Server {
             maxThreads = 10;
         }
 
-        // Core pool size is 1, to limit the number of idle threads in thread dumps.
-        // Idle threads are aged out of the pool after X minutes.
-        int keepAlive = config != null ? config.getThreadKeepAliveTime() : 2 * 60;
-        pooledExecutor = new ThreadPoolExecutor(1, maxThreads, keepAlive, TimeUnit.SECONDS,
-                new SynchronousQueue<Runnable>(), new TcpThreadFactory(getName(), false, Thread.NORM_PRIORITY));
+        ThreadFactory virtualThreads = null;
+        if (config != null && config.isVirtualThreadsEnabled()) {
+            virtualThreads = VirtualThreads.newThreadFactory(getName());
+            if (virtualThreads == null) {
+                log.warn("virtual threads are not available in Java %s; using platform threads",
+                        System.getProperty("java.version"));
+            }
+        }
+        if (virtualThreads != null) {
+            // Virtual threads are not worth pooling, so each one exits with its connection.  The pool size only
+            // bounds the number of connections, which no longer has to be as low as the number of OS threads.
+            int maxConnections = Math.max(maxThreads, config.getMaxConnections());
+            pooledExecutor = new ThreadPoolExecutor(0, maxConnections, 0, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), virtualThreads);
+            VirtualThreads.startPinningMonitor();
+        } else {
+            // Core pool size is 1, to limit the number of idle threads in thread dumps.
+            // Idle threads are aged out of the pool after X minutes.
+            int keepAlive = config != null ? config.getThreadKeepAliveTime() : 2 * 60;
+            pooledExecutor = new ThreadPoolExecutor(1, maxThreads, keepAlive, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new TcpThreadFactory(getName(), false, Thread.NORM_PRIORITY));
+        }
 
         // TODO a linked list is probably the wrong datastructure here
         // TODO write tests with multiple concurrent client
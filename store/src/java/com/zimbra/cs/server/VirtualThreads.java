@@ -0,0 +1,136 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.server;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Access to virtual threads, which this code base is compiled without. Everything goes through reflection and
+ * degrades to "not supported" on JVMs older than 21.
+ * <p>
+ * A virtual thread that blocks inside a {@code synchronized} block or a native frame pins its carrier thread, and
+ * enough pinned threads stall every other virtual thread.  {@link #startPinningMonitor()} subscribes to the JFR
+ * {@code jdk.VirtualThreadPinned} event and logs each Zimbra code location where pinning happens, once at warn
+ * level and then at debug level with a running count.
+ */
+final class VirtualThreads {
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+    private static final ConcurrentMap<String, AtomicLong> PINNED = new ConcurrentHashMap<String, AtomicLong>();
+    private static boolean monitorStarted = false;
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Returns a factory for virtual threads named {@code prefix-1}, {@code prefix-2}, ..., or null if this JVM has no
+     * virtual threads.
+     */
+    static ThreadFactory newThreadFactory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix + "-", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts reporting virtual threads pinned for longer than {@code virtual_thread_pinned_threshold_ms}. Does nothing
+     * if already started or if the JVM has no JFR event streaming.
+     */
+    static synchronized void startPinningMonitor() {
+        if (monitorStarted) {
+            return;
+        }
+        monitorStarted = true;
+        try {
+            Class<?> streamClass = Class.forName("jdk.jfr.consumer.RecordingStream");
+            Object stream = streamClass.getConstructor().newInstance();
+            Class<?> settingsClass = Class.forName("jdk.jfr.EventSettings");
+            Object settings = streamClass.getMethod("enable", String.class).invoke(stream, PINNED_EVENT);
+            settingsClass.getMethod("withThreshold", Duration.class).invoke(settings,
+                    Duration.ofMillis(LC.virtual_thread_pinned_threshold_ms.longValue()));
+            settingsClass.getMethod("withStackTrace").invoke(settings);
+            streamClass.getMethod("onEvent", String.class, Consumer.class).invoke(stream, PINNED_EVENT,
+                    new Consumer<Object>() {
+                        @Override
+                        public void accept(Object event) {
+                            try {
+                                recordPinned(event);
+                            } catch (Exception e) {
+                                ZimbraLog.misc.debug("unable to decode %s event", PINNED_EVENT, e);
+                            }
+                        }
+                    });
+            streamClass.getMethod("setReuse", boolean.class).invoke(stream, false);
+            streamClass.getMethod("startAsync").invoke(stream);
+            ZimbraLog.misc.info("monitoring virtual thread pinning longer than %dms",
+                    LC.virtual_thread_pinned_threshold_ms.longValue());
+        } catch (Exception e) {
+            ZimbraLog.misc.info("virtual thread pinning will not be reported: %s", e.toString());
+        }
+    }
+
+    /** Attributes a pinned event to the innermost Zimbra frame on its stack. */
+    private static void recordPinned(Object event) throws Exception {
+        Object stackTrace = invoke(event, "getStackTrace");
+        String location = "<unknown>";
+        StringBuilder stack = new StringBuilder();
+        if (stackTrace != null) {
+            for (Object frame : (List<?>) invoke(stackTrace, "getFrames")) {
+                Object method = invoke(frame, "getMethod");
+                String name = invoke(invoke(method, "getType"), "getName") + "." + invoke(method, "getName");
+                Object line = invoke(frame, "getLineNumber");
+                stack.append("\n\tat ").append(name).append(':').append(line);
+                if ("<unknown>".equals(location) && name.startsWith("com.zimbra.")) {
+                    location = name + ":" + line;
+                }
+            }
+        }
+        AtomicLong count = PINNED.get(location);
+        if (count == null) {
+            AtomicLong existing = PINNED.putIfAbsent(location, count = new AtomicLong());
+            if (existing != null) {
+                count = existing;
+            }
+        }
+        long n = count.incrementAndGet();
+        Object duration = invoke(event, "getDuration");
+        if (n == 1) {
+            ZimbraLog.misc.warn("virtual thread pinned for %s at %s%s", duration, location, stack);
+        } else {
+            ZimbraLog.misc.debug("virtual thread pinned for %s at %s (%d times)", duration, location, n);
+        }
+    }
+
+    /** The recorded event, stack trace, frame, method and class types are all public classes in jdk.jfr.consumer. */
+    private static Object invoke(Object target, String method) throws Exception {
+        return target.getClass().getMethod(method).invoke(target);
+    }
+}
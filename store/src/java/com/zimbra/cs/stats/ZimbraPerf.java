@@ -40,6 +40,7 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.stats.Accumulator;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.stats.DeltaCalculator;
+import com.zimbra.common.stats.Histogram;
 import com.zimbra.common.stats.RealtimeStats;
 import com.zimbra.common.stats.RealtimeStatsCallback;
 import com.zimbra.common.stats.StatsDumper;
@@ -76,9 +77,21 @@ public class ZimbraPerf {
     @Description("Number of cleartext POP3 connections")
     public static final String RTS_POP_CONN = "pop_conn";
 
+    @Description("Number of recipients of multi-recipient LMTP messages waiting to be delivered")
+    public static final String RTS_LMTP_DLVR_QUEUE = "lmtp_dlvr_queue";
+
     @Description("Number of POP3 handler threads")
     public static final String RTS_POP_THREADS = "pop_threads";
 
+    @Description("Number of mailboxes queued for delivery indexing")
+    public static final String RTS_IDX_QUEUE_DELIVERY = "idx_queue_delivery";
+
+    @Description("Number of mailboxes queued for backlog indexing")
+    public static final String RTS_IDX_QUEUE_BACKLOG = "idx_queue_backlog";
+
+    @Description("Number of re-index threads waiting for their turn in the index queue")
+    public static final String RTS_IDX_QUEUE_REINDEX = "idx_queue_reindex";
+
     @Description("Number of SSL POP3 connections")
     public static final String RTS_POP_SSL_CONN = "pop_ssl_conn";
 
@@ -109,6 +122,12 @@ public class ZimbraPerf {
     @Description("Number of mailboxes cached in memory")
     public static final String RTS_MBOX_CACHE_SIZE = "mbox_cache_size";
 
+    @Description("Number of loaded mailboxes whose lock had to be waited for in the last interval")
+    public static final String RTS_MBOX_LOCK_CONTENDED_MBOXES = "mbox_lock_contended_mboxes";
+
+    @Description("Longest total time spent waiting for a single mailbox lock in the last interval, in milliseconds")
+    public static final String RTS_MBOX_LOCK_MAX_WAIT_MS = "mbox_lock_max_wait_ms";
+
     @Description("Number of message structures cached in memory")
     public static final String RTS_MSG_CACHE_SIZE = "msg_cache_size";
 
@@ -177,15 +196,28 @@ public class ZimbraPerf {
     public static final Counter COUNTER_LMTP_RCVD_RCPT = new Counter();
     public static final Counter COUNTER_LMTP_DLVD_MSGS = new Counter();
     public static final Counter COUNTER_LMTP_DLVD_BYTES = new Counter();
+    public static final Histogram HISTOGRAM_LMTP_DLVR_RCPT_RATE = new Histogram();  // recipients/sec
     public static final StopWatch STOPWATCH_DB_CONN = new StopWatch();
     public static final StopWatch STOPWATCH_LDAP_DC = new StopWatch();
     public static final StopWatch STOPWATCH_MBOX_ADD_MSG = new StopWatch();
     public static final StopWatch STOPWATCH_MBOX_GET = new StopWatch();         // Mailbox accessor response time
     public static final Counter COUNTER_MBOX_CACHE = new Counter();           // Mailbox cache hit rate
     public static final Counter COUNTER_MBOX_MSG_CACHE = new Counter();
+    public static final Counter COUNTER_MBOX_MSG_CACHE_HIT = new Counter();
+    public static final Counter COUNTER_MBOX_MSG_CACHE_MISS = new Counter();
+    public static final Counter COUNTER_MBOX_MSG_CACHE_EVICTION = new Counter();
     public static final Counter COUNTER_MBOX_ITEM_CACHE = new Counter();
+    public static final Histogram HISTOGRAM_MBOX_PREFETCH_ROWS = new Histogram();
+    public static final Counter COUNTER_MBOX_LOCK_OPTIMISTIC = new Counter();
+    public static final Histogram HISTOGRAM_MBOX_LOCK_WAIT = new Histogram();  // microseconds
+    public static final Histogram HISTOGRAM_MBOX_LOCK_QUEUE = new Histogram();
+    public static final Counter COUNTER_MBOX_DLOCK_LEASE_HIT = new Counter();
+    public static final Histogram HISTOGRAM_MBOX_DLOCK_ACQUIRE = new Histogram();  // microseconds
     public static final StopWatch STOPWATCH_SOAP = new StopWatch();
     public static final StopWatch STOPWATCH_IMAP = new StopWatch();
+    public static final Counter COUNTER_IMAP_STRUCTURE_CACHE = new Counter();
+    public static final Counter COUNTER_IMAP_ZERO_COPY_BYTES = new Counter();
+    public static final Counter COUNTER_IMAP_BUFFERED_BYTES = new Counter();
     public static final StopWatch STOPWATCH_POP = new StopWatch();
     public static final Counter COUNTER_IDX_WRT = new Counter();
     public static final Counter COUNTER_IDX_WRT_OPENED = new Counter();
@@ -195,9 +227,17 @@ public class ZimbraPerf {
     public static final Counter COUNTER_CALENDAR_CACHE_LRU_SIZE = new Counter();
     public static final Counter COUNTER_IDX_BYTES_WRITTEN = new Counter();
     public static final Counter COUNTER_IDX_BYTES_READ = new Counter();
+    public static final Histogram HISTOGRAM_IDX_SEARCHER_REOPEN = new Histogram();  // microseconds
+    public static final Histogram HISTOGRAM_IDX_SEARCHER_AGE = new Histogram();  // milliseconds
+    public static final Histogram HISTOGRAM_IDX_QUEUE_WAIT = new Histogram();  // milliseconds
     public static final Counter COUNTER_BLOB_INPUT_STREAM_READ = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_SEEK_RATE = new Counter();
+    public static final Counter COUNTER_FD_CACHE_OPEN = new Counter();
+    public static final Counter COUNTER_FD_CACHE_EVICTION = new Counter();
+    public static final Counter COUNTER_FD_CACHE_REOPEN = new Counter();
     public static final StopWatch STOPWATCH_EWS = new StopWatch();
+    public static final Histogram HISTOGRAM_REDO_COMMIT_LATENCY = new Histogram();  // microseconds
+    public static final Histogram HISTOGRAM_REDO_OPS_PER_FSYNC = new Histogram();
 
     public static final ActivityTracker SOAP_TRACKER = new ActivityTracker("soap.csv");
     public static final ActivityTracker IMAP_TRACKER = new ActivityTracker("imap.csv");
@@ -215,11 +255,13 @@ public class ZimbraPerf {
 
     private static String[] mboxRealtimeStatsNames = new String[] {
             RTS_DB_POOL_SIZE, RTS_INNODB_BP_HIT_RATE,
-            RTS_LMTP_CONN, RTS_LMTP_THREADS,
+            RTS_LMTP_CONN, RTS_LMTP_THREADS, RTS_LMTP_DLVR_QUEUE,
+            RTS_IDX_QUEUE_DELIVERY, RTS_IDX_QUEUE_BACKLOG, RTS_IDX_QUEUE_REINDEX,
             RTS_POP_CONN, RTS_POP_THREADS, RTS_POP_SSL_CONN, RTS_POP_SSL_THREADS,
             RTS_IMAP_CONN, RTS_IMAP_THREADS, RTS_IMAP_SSL_CONN, RTS_IMAP_SSL_THREADS,
             RTS_HTTP_IDLE_THREADS, RTS_HTTP_THREADS, RTS_SOAP_SESSIONS,
             RTS_MBOX_CACHE_SIZE, RTS_MSG_CACHE_SIZE,
+            RTS_MBOX_LOCK_CONTENDED_MBOXES, RTS_MBOX_LOCK_MAX_WAIT_MS,
             RTS_FD_CACHE_SIZE, RTS_FD_CACHE_HIT_RATE,
             RTS_ACL_CACHE_HIT_RATE,
             RTS_ACCOUNT_CACHE_SIZE, RTS_ACCOUNT_CACHE_HIT_RATE,
@@ -252,6 +294,12 @@ public class ZimbraPerf {
     @Description("Number of bytes of data delivered to mailboxes as a result of LMTP delivery")
     private static final String DC_LMTP_DLVD_BYTES = "lmtp_dlvd_bytes";
 
+    @Description("Median local delivery rate (recipients/sec) of multi-recipient LMTP messages")
+    private static final String DC_LMTP_DLVR_RCPT_RATE_P50 = "lmtp_dlvr_rcpt_per_sec_p50";
+
+    @Description("Maximum local delivery rate (recipients/sec) of multi-recipient LMTP messages")
+    private static final String DC_LMTP_DLVR_RCPT_RATE_MAX = "lmtp_dlvr_rcpt_per_sec_max";
+
     @Description("Number of times that the server got a database connection from the pool")
     private static final String DC_DB_CONN_COUNT = "db_conn_count";
 
@@ -282,9 +330,60 @@ public class ZimbraPerf {
     @Description("Message cache hit rate")
     private static final String DC_MBOX_MSG_CACHE = "mbox_msg_cache";
 
+    @Description("Number of message cache hits")
+    private static final String DC_MBOX_MSG_CACHE_HITS = "mbox_msg_cache_hits";
+
+    @Description("Number of message cache misses")
+    private static final String DC_MBOX_MSG_CACHE_MISSES = "mbox_msg_cache_misses";
+
+    @Description("Number of messages evicted from the message cache")
+    private static final String DC_MBOX_MSG_CACHE_EVICTIONS = "mbox_msg_cache_evictions";
+
     @Description("Item cache hit rate")
     private static final String DC_MBOX_ITEM_CACHE = "mbox_item_cache";
 
+    @Description("Percentage of optimistic mailbox reads that completed without taking the mailbox lock")
+    private static final String DC_MBOX_LOCK_OPTIMISTIC = "mbox_lock_optimistic";
+
+    @Description("Number of times a thread had to wait for a mailbox lock")
+    private static final String DC_MBOX_LOCK_CONTENDED_COUNT = "mbox_lock_contended_count";
+
+    @Description("Median time (us) spent waiting for a contended mailbox lock")
+    private static final String DC_MBOX_LOCK_WAIT_US_P50 = "mbox_lock_wait_us_p50";
+
+    @Description("99th percentile time (us) spent waiting for a contended mailbox lock")
+    private static final String DC_MBOX_LOCK_WAIT_US_P99 = "mbox_lock_wait_us_p99";
+
+    @Description("Maximum time (us) spent waiting for a contended mailbox lock")
+    private static final String DC_MBOX_LOCK_WAIT_US_MAX = "mbox_lock_wait_us_max";
+
+    @Description("99th percentile number of threads already queued when a thread waited for a mailbox lock")
+    private static final String DC_MBOX_LOCK_QUEUE_P99 = "mbox_lock_queue_p99";
+
+    @Description("Maximum number of threads already queued when a thread waited for a mailbox lock")
+    private static final String DC_MBOX_LOCK_QUEUE_MAX = "mbox_lock_queue_max";
+
+    @Description("Percentage of distributed mailbox lock acquisitions served by a lease the node already held")
+    private static final String DC_MBOX_DLOCK_LEASE_HIT = "mbox_dlock_lease_hit";
+
+    @Description("Number of distributed mailbox lock acquisitions that went to the coordination service")
+    private static final String DC_MBOX_DLOCK_ACQUIRE_COUNT = "mbox_dlock_acquire_count";
+
+    @Description("Median latency (us) of acquiring a distributed mailbox lock from the coordination service")
+    private static final String DC_MBOX_DLOCK_ACQUIRE_US_P50 = "mbox_dlock_acquire_us_p50";
+
+    @Description("99th percentile latency (us) of acquiring a distributed mailbox lock from the coordination service")
+    private static final String DC_MBOX_DLOCK_ACQUIRE_US_P99 = "mbox_dlock_acquire_us_p99";
+
+    @Description("Number of queries run to prefetch mail items into the item cache")
+    private static final String DC_MBOX_PREFETCH_COUNT = "mbox_prefetch_count";
+
+    @Description("Median number of rows returned by a mail item prefetch query")
+    private static final String DC_MBOX_PREFETCH_ROWS_P50 = "mbox_prefetch_rows_p50";
+
+    @Description("Maximum number of rows returned by a mail item prefetch query")
+    private static final String DC_MBOX_PREFETCH_ROWS_MAX = "mbox_prefetch_rows_max";
+
     @Description("Number of SOAP requests received")
     private static final String DC_SOAP_COUNT = "soap_count";
 
@@ -297,6 +396,15 @@ public class ZimbraPerf {
     @Description("Average processing time (ms) of IMAP requests")
     private static final String DC_IMAP_MS_AVG = "imap_ms_avg";
 
+    @Description("Hit rate of the IMAP ENVELOPE/BODYSTRUCTURE cache")
+    private static final String DC_IMAP_STRUCTURE_CACHE = "imap_structure_cache";
+
+    @Description("Bytes of IMAP message literals sent straight from blob files with zero-copy transfers")
+    private static final String DC_IMAP_ZERO_COPY_BYTES = "imap_zero_copy_bytes";
+
+    @Description("Bytes of IMAP message literals copied through heap buffers")
+    private static final String DC_IMAP_BUFFERED_BYTES = "imap_buffered_bytes";
+
     @Description("Number of POP3 requests received")
     private static final String DC_POP_COUNT = "pop_count";
 
@@ -330,6 +438,30 @@ public class ZimbraPerf {
     @Description("Average of idx_bytes_read")
     private static final String DC_IDX_BYTES_READ_AVG = "idx_bytes_read_avg";
 
+    @Description("Number of index searchers reopened incrementally")
+    private static final String DC_IDX_SEARCHER_REOPEN_COUNT = "idx_searcher_reopen_count";
+
+    @Description("Median time (us) of an incremental index searcher reopen")
+    private static final String DC_IDX_SEARCHER_REOPEN_US_P50 = "idx_searcher_reopen_us_p50";
+
+    @Description("99th percentile time (us) of an incremental index searcher reopen")
+    private static final String DC_IDX_SEARCHER_REOPEN_US_P99 = "idx_searcher_reopen_us_p99";
+
+    @Description("Median age (ms) of the index searcher handed to a search")
+    private static final String DC_IDX_SEARCHER_AGE_MS_P50 = "idx_searcher_age_ms_p50";
+
+    @Description("99th percentile age (ms) of the index searcher handed to a search")
+    private static final String DC_IDX_SEARCHER_AGE_MS_P99 = "idx_searcher_age_ms_p99";
+
+    @Description("Number of index queue turns run")
+    private static final String DC_IDX_QUEUE_COUNT = "idx_queue_count";
+
+    @Description("Median time (ms) a mailbox waited in the index queue before its turn")
+    private static final String DC_IDX_QUEUE_WAIT_MS_P50 = "idx_queue_wait_ms_p50";
+
+    @Description("99th percentile time (ms) a mailbox waited in the index queue before its turn")
+    private static final String DC_IDX_QUEUE_WAIT_MS_P99 = "idx_queue_wait_ms_p99";
+
     @Description("Hit rate of calendar summary cache, counting cache hit from both memory and file")
     private static final String DC_CALCACHE_HIT = "calcache_hit";
 
@@ -339,6 +471,33 @@ public class ZimbraPerf {
     @Description("Number of calendars (folders) in the calendar summary cache LRU in Java heap")
     private static final String DC_CALCACHE_LRU_SIZE = "calcache_lru_size";
 
+    @Description("Number of blob file descriptors opened by the file descriptor cache")
+    private static final String DC_FD_CACHE_OPENS = "fd_cache_opens";
+
+    @Description("Number of blob file descriptors evicted from the file descriptor cache")
+    private static final String DC_FD_CACHE_EVICTIONS = "fd_cache_evictions";
+
+    @Description("Number of blob file descriptors reopened soon after being evicted")
+    private static final String DC_FD_CACHE_REOPENS = "fd_cache_reopens";
+
+    @Description("Number of synchronous redo log commits")
+    private static final String DC_REDO_COMMIT_COUNT = "redo_commit_count";
+
+    @Description("Median latency (us) of a synchronous redo log commit")
+    private static final String DC_REDO_COMMIT_US_P50 = "redo_commit_us_p50";
+
+    @Description("99th percentile latency (us) of a synchronous redo log commit")
+    private static final String DC_REDO_COMMIT_US_P99 = "redo_commit_us_p99";
+
+    @Description("Number of redo log fsyncs")
+    private static final String DC_REDO_FSYNC_COUNT = "redo_fsync_count";
+
+    @Description("Median number of redo log entries made durable by one fsync")
+    private static final String DC_REDO_OPS_PER_FSYNC_P50 = "redo_ops_per_fsync_p50";
+
+    @Description("99th percentile number of redo log entries made durable by one fsync")
+    private static final String DC_REDO_OPS_PER_FSYNC_P99 = "redo_ops_per_fsync_p99";
+
     private static CopyOnWriteArrayList<Accumulator> sAccumulators = null;
 
     private static final long CSV_DUMP_FREQUENCY = Constants.MILLIS_PER_MINUTE;
@@ -469,6 +628,8 @@ public class ZimbraPerf {
                             new DeltaCalculator(COUNTER_LMTP_RCVD_RCPT).setTotalName(DC_LMTP_RCVD_RCPT),
                             new DeltaCalculator(COUNTER_LMTP_DLVD_MSGS).setTotalName(DC_LMTP_DLVD_MSGS),
                             new DeltaCalculator(COUNTER_LMTP_DLVD_BYTES).setTotalName(DC_LMTP_DLVD_BYTES),
+                            HISTOGRAM_LMTP_DLVR_RCPT_RATE.setMaxName(DC_LMTP_DLVR_RCPT_RATE_MAX)
+                                    .setPercentileName(50, DC_LMTP_DLVR_RCPT_RATE_P50),
                             new DeltaCalculator(STOPWATCH_DB_CONN).setCountName(DC_DB_CONN_COUNT)
                                     .setAverageName(DC_DB_CONN_MS_AVG),
                             new DeltaCalculator(STOPWATCH_LDAP_DC).setCountName(DC_LDAP_DC_COUNT)
@@ -479,11 +640,32 @@ public class ZimbraPerf {
                                     .setAverageName(DC_MBOX_GET_MS_AVG),
                             new DeltaCalculator(COUNTER_MBOX_CACHE).setAverageName(DC_MBOX_CACHE),
                             new DeltaCalculator(COUNTER_MBOX_MSG_CACHE).setAverageName(DC_MBOX_MSG_CACHE),
+                            new DeltaCalculator(COUNTER_MBOX_MSG_CACHE_HIT).setTotalName(DC_MBOX_MSG_CACHE_HITS),
+                            new DeltaCalculator(COUNTER_MBOX_MSG_CACHE_MISS).setTotalName(DC_MBOX_MSG_CACHE_MISSES),
+                            new DeltaCalculator(COUNTER_MBOX_MSG_CACHE_EVICTION)
+                                    .setTotalName(DC_MBOX_MSG_CACHE_EVICTIONS),
                             new DeltaCalculator(COUNTER_MBOX_ITEM_CACHE).setAverageName(DC_MBOX_ITEM_CACHE),
+                            HISTOGRAM_MBOX_PREFETCH_ROWS.setCountName(DC_MBOX_PREFETCH_COUNT)
+                                    .setMaxName(DC_MBOX_PREFETCH_ROWS_MAX)
+                                    .setPercentileName(50, DC_MBOX_PREFETCH_ROWS_P50),
+                            new DeltaCalculator(COUNTER_MBOX_LOCK_OPTIMISTIC).setAverageName(DC_MBOX_LOCK_OPTIMISTIC),
+                            HISTOGRAM_MBOX_LOCK_WAIT.setCountName(DC_MBOX_LOCK_CONTENDED_COUNT)
+                                    .setMaxName(DC_MBOX_LOCK_WAIT_US_MAX)
+                                    .setPercentileName(50, DC_MBOX_LOCK_WAIT_US_P50)
+                                    .setPercentileName(99, DC_MBOX_LOCK_WAIT_US_P99),
+                            HISTOGRAM_MBOX_LOCK_QUEUE.setMaxName(DC_MBOX_LOCK_QUEUE_MAX)
+                                    .setPercentileName(99, DC_MBOX_LOCK_QUEUE_P99),
+                            new DeltaCalculator(COUNTER_MBOX_DLOCK_LEASE_HIT).setAverageName(DC_MBOX_DLOCK_LEASE_HIT),
+                            HISTOGRAM_MBOX_DLOCK_ACQUIRE.setCountName(DC_MBOX_DLOCK_ACQUIRE_COUNT)
+                                    .setPercentileName(50, DC_MBOX_DLOCK_ACQUIRE_US_P50)
+                                    .setPercentileName(99, DC_MBOX_DLOCK_ACQUIRE_US_P99),
                             new DeltaCalculator(STOPWATCH_SOAP).setCountName(DC_SOAP_COUNT)
                                     .setAverageName(DC_SOAP_MS_AVG),
                             new DeltaCalculator(STOPWATCH_IMAP).setCountName(DC_IMAP_COUNT)
                                     .setAverageName(DC_IMAP_MS_AVG),
+                            new DeltaCalculator(COUNTER_IMAP_STRUCTURE_CACHE).setAverageName(DC_IMAP_STRUCTURE_CACHE),
+                            new DeltaCalculator(COUNTER_IMAP_ZERO_COPY_BYTES).setTotalName(DC_IMAP_ZERO_COPY_BYTES),
+                            new DeltaCalculator(COUNTER_IMAP_BUFFERED_BYTES).setTotalName(DC_IMAP_BUFFERED_BYTES),
                             new DeltaCalculator(STOPWATCH_POP).setCountName(DC_POP_COUNT)
                                     .setAverageName(DC_POP_MS_AVG),
                             new DeltaCalculator(COUNTER_IDX_WRT).setAverageName(DC_IDX_WRT_AVG),
@@ -500,9 +682,26 @@ public class ZimbraPerf {
                                     .setAverageName(DC_IDX_BYTES_WRITTTEN_AVG),
                             new DeltaCalculator(COUNTER_IDX_BYTES_READ)
                                     .setTotalName(DC_IDX_BYTES_READ).setAverageName(DC_IDX_BYTES_READ_AVG),
+                            HISTOGRAM_IDX_SEARCHER_REOPEN.setCountName(DC_IDX_SEARCHER_REOPEN_COUNT)
+                                    .setPercentileName(50, DC_IDX_SEARCHER_REOPEN_US_P50)
+                                    .setPercentileName(99, DC_IDX_SEARCHER_REOPEN_US_P99),
+                            HISTOGRAM_IDX_SEARCHER_AGE.setPercentileName(50, DC_IDX_SEARCHER_AGE_MS_P50)
+                                    .setPercentileName(99, DC_IDX_SEARCHER_AGE_MS_P99),
+                            HISTOGRAM_IDX_QUEUE_WAIT.setCountName(DC_IDX_QUEUE_COUNT)
+                                    .setPercentileName(50, DC_IDX_QUEUE_WAIT_MS_P50)
+                                    .setPercentileName(99, DC_IDX_QUEUE_WAIT_MS_P99),
                             new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_READ).setTotalName(DC_BIS_READ),
                             new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_SEEK_RATE)
                                     .setAverageName(DC_BIS_SEEK_RATE),
+                            new DeltaCalculator(COUNTER_FD_CACHE_OPEN).setTotalName(DC_FD_CACHE_OPENS),
+                            new DeltaCalculator(COUNTER_FD_CACHE_EVICTION).setTotalName(DC_FD_CACHE_EVICTIONS),
+                            new DeltaCalculator(COUNTER_FD_CACHE_REOPEN).setTotalName(DC_FD_CACHE_REOPENS),
+                            HISTOGRAM_REDO_COMMIT_LATENCY.setCountName(DC_REDO_COMMIT_COUNT)
+                                    .setPercentileName(50, DC_REDO_COMMIT_US_P50)
+                                    .setPercentileName(99, DC_REDO_COMMIT_US_P99),
+                            HISTOGRAM_REDO_OPS_PER_FSYNC.setCountName(DC_REDO_FSYNC_COUNT)
+                                    .setPercentileName(50, DC_REDO_OPS_PER_FSYNC_P50)
+                                    .setPercentileName(99, DC_REDO_OPS_PER_FSYNC_P99),
                             realtimeStats
                     }
                 );
@@ -513,6 +712,9 @@ public class ZimbraPerf {
                     new Accumulator[] {
                             new DeltaCalculator(STOPWATCH_IMAP)
                                     .setCountName(DC_IMAP_COUNT).setAverageName(DC_IMAP_MS_AVG),
+                            new DeltaCalculator(COUNTER_IMAP_STRUCTURE_CACHE).setAverageName(DC_IMAP_STRUCTURE_CACHE),
+                            new DeltaCalculator(COUNTER_IMAP_ZERO_COPY_BYTES).setTotalName(DC_IMAP_ZERO_COPY_BYTES),
+                            new DeltaCalculator(COUNTER_IMAP_BUFFERED_BYTES).setTotalName(DC_IMAP_BUFFERED_BYTES),
                             realtimeStats
                     }
                 );
@@ -22,72 +22,143 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.GZIPInputStream;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.util.FileCache;
 import com.zimbra.common.util.FileUtil;
 import com.zimbra.common.util.Log;
 import com.zimbra.common.util.LogFactory;
-import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.volume.Volume;
+import com.zimbra.cs.volume.VolumeManager;
 
 /**
  * Caches file descriptors to blobs in the mail store.  If the blob is compressed,
  * uses a {@link FileCache} to access the uncompressed data.  Cache entries
  * that reference uncompressed blobs keep the file descriptor open until {@link #remove}
  * is called or the cache entry is aged out.
+ * <p>
+ * Lookups don't take a cache-wide lock.  Each {@link SharedFile} counts its
+ * readers; an entry that is removed or evicted while it is being read is closed
+ * when its last reader is done.  Descriptors are closed by a background reaper
+ * thread, so readers never wait on <tt>close()</tt>.  Eviction is approximately
+ * LRU, and besides the overall limit, the number of descriptors open on each
+ * store volume can be capped with <tt>zimbra_blob_fd_cache_volume_max_size</tt>.
  */
 public class FileDescriptorCache
 {
     private static final Log sLog = LogFactory.getLog(FileDescriptorCache.class);
 
-    // Create the file cache with default LinkedHashMap values, but sorted by last access time.
-    private final LinkedHashMap<String, SharedFile> mCache = new LinkedHashMap<String, SharedFile>(16, 0.75f, true);
-    // Create a concurrent list for the SharedFies for which the mapping has been removed but is still in use by some threads.
-    private final List<SharedFileInfo> mInactiveCache = Collections.synchronizedList(new ArrayList<SharedFileInfo>());
-    private int mMaxSize = 1000;
+    private final ConcurrentMap<String, SharedFile> mCache = new ConcurrentHashMap<String, SharedFile>();
+    /** Number of cached descriptors on each volume, keyed by volume root path. */
+    private final ConcurrentMap<String, AtomicInteger> mVolumeCounts = new ConcurrentHashMap<String, AtomicInteger>();
+    /** Volume root paths, longest first. */
+    private volatile List<String> mVolumeRoots = Collections.emptyList();
+    private final AtomicLong mClock = new AtomicLong();
+    /** Only one thread prunes at a time.  Others skip pruning rather than wait. */
+    private final ReentrantLock mPruneLock = new ReentrantLock();
+    private volatile int mMaxSize = 1000;
+    private volatile int mMaxVolumeSize = 0;
+    /** Paths that were recently evicted, used to count reopens. */
+    private volatile Cache<String, Boolean> mEvicted = newEvictedCache(mMaxSize);
     private final FileCache<String> mUncompressedFileCache;
+    private final Executor mCloser;
     private final Counter mHitRate = new Counter();
 
-    private class SharedFileInfo {
-        public String path;
-        public SharedFile file;
-
-        public SharedFileInfo(String path, SharedFile file) {
-            this.path = path;
-            this.file = file;
-        }
+    public FileDescriptorCache(FileCache<String> uncompressedCache) {
+        this(uncompressedCache, Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("FileDescriptorCacheReaper").setDaemon(true).build()));
     }
 
-    public FileDescriptorCache(FileCache<String> uncompressedCache) {
+    /**
+     * @param closer runs the tasks that close evicted file descriptors
+     */
+    public FileDescriptorCache(FileCache<String> uncompressedCache, Executor closer) {
         mUncompressedFileCache = uncompressedCache;
+        mCloser = closer;
     }
 
-    public synchronized FileDescriptorCache setMaxSize(int maxSize) {
+    public FileDescriptorCache setMaxSize(int maxSize) {
         if (maxSize < 0)
             throw new IllegalArgumentException("maxSize value of " + maxSize + " is invalid (must be at least 0)");
 
         mMaxSize = maxSize;
+        mEvicted = newEvictedCache(maxSize);
         mHitRate.reset(); // Recalculate hit rate based on the new size.
         pruneIfNecessary();
         return this;
     }
 
+    /**
+     * Sets the maximum number of descriptors cached for files under any one
+     * volume root, or <tt>0</tt> for no per-volume limit.
+     */
+    public FileDescriptorCache setMaxVolumeSize(int maxVolumeSize) {
+        if (maxVolumeSize < 0)
+            throw new IllegalArgumentException("maxVolumeSize value of " + maxVolumeSize + " is invalid (must be at least 0)");
+
+        mMaxVolumeSize = maxVolumeSize;
+        pruneIfNecessary();
+        return this;
+    }
+
+    /**
+     * Sets the root paths of the volumes that are subject to the per-volume
+     * limit.  Files that are not under any of these paths only count against
+     * the overall limit.
+     */
+    public synchronized FileDescriptorCache setVolumeRoots(Collection<String> rootPaths) {
+        List<String> roots = new ArrayList<String>(rootPaths.size());
+        for (String root : rootPaths) {
+            roots.add(root.endsWith(File.separator) ? root : root + File.separator);
+        }
+        Collections.sort(roots, new Comparator<String>() {
+            @Override
+            public int compare(String r1, String r2) {
+                return r2.length() - r1.length();
+            }
+        });
+        mVolumeRoots = Collections.unmodifiableList(roots);
+        return this;
+    }
+
     public FileDescriptorCache loadSettings() throws ServiceException {
         Server server = Provisioning.getInstance().getLocalServer();
         int fileDescriptorCacheSize = server.getMailFileDescriptorCacheSize();
+        int volumeSize = LC.zimbra_blob_fd_cache_volume_max_size.intValue();
 
-        sLog.info("Loading settings: %s=%d.",
-            Provisioning.A_zimbraMailFileDescriptorCacheSize, fileDescriptorCacheSize);
+        sLog.info("Loading settings: %s=%d, %s=%d.",
+            Provisioning.A_zimbraMailFileDescriptorCacheSize, fileDescriptorCacheSize,
+            LC.zimbra_blob_fd_cache_volume_max_size.key(), volumeSize);
 
+        List<String> roots = new ArrayList<String>();
+        for (Volume volume : VolumeManager.getInstance().getAllVolumes()) {
+            roots.add(volume.getRootPath());
+        }
+        setVolumeRoots(roots);
+        setMaxVolumeSize(volumeSize);
         setMaxSize(fileDescriptorCacheSize);
 
         return this;
@@ -97,21 +168,21 @@ public class FileDescriptorCache
      * Closes all file descriptors, clears the cache, and removes any files from
      * the uncompressed cache.
      */
-    public synchronized void shutdown() {
-        Iterator<Map.Entry<String, SharedFile>> iEntries = mCache.entrySet().iterator();
-        while (iEntries.hasNext()) {
-            Map.Entry<String, SharedFile> entry = iEntries.next();
-            String path = entry.getKey();
-            SharedFile file = entry.getValue();
-            iEntries.remove();
-            try {
-                boolean success = close(file, path);
-                if (!success)
-                    sLog.warn("Unable to close %s. File is in use.", file);
-            } catch (IOException e) {
-                sLog.warn("Unable to close %s", file, e);
+    public void shutdown() {
+        for (String path : new ArrayList<String>(mCache.keySet())) {
+            SharedFile file = mCache.remove(path);
+            if (file == null)
+                continue;
+            release(file);
+            if (file.evict()) {
+                close(file, path);
+            } else {
+                sLog.warn("Unable to close %s. File is in use.", file);
             }
         }
+        if (mCloser instanceof ExecutorService) {
+            ((ExecutorService) mCloser).shutdown();
+        }
     }
 
     /**
@@ -127,8 +198,8 @@ public class FileDescriptorCache
             file = getSharedFile(path, rawSize);
             numRead = file.read(fileOffset, buf, bufferOffset, len);
         } finally {
-            if (file != null) {
-               file.doneReading();
+            if (file != null && file.doneReading()) {
+                scheduleClose(file, path);
             }
         }
 
@@ -136,9 +207,7 @@ public class FileDescriptorCache
     }
 
     boolean contains(String path) {
-        synchronized (this) {
-            return mCache.containsKey(path);
-        }
+        return mCache.containsKey(path);
     }
 
     /**
@@ -146,20 +215,48 @@ public class FileDescriptorCache
      * increments the number of readers for the <tt>SharedFile</tt>.
      */
     private SharedFile getSharedFile(String path, long rawSize) throws IOException {
-        SharedFile sharedFile = null;
+        while (true) {
+            SharedFile sharedFile = mCache.get(path);
+            if (sharedFile != null) {
+                if (sharedFile.aboutToRead()) {
+                    sLog.debug("Found existing file descriptor for %s, rawSize=%d.", path, rawSize);
+                    sharedFile.mLastAccess = mClock.incrementAndGet();
+                    mHitRate.increment(100);
+                    return sharedFile;
+                }
+                // evicted, but not yet removed from the map
+                mCache.remove(path, sharedFile);
+                continue;
+            }
 
-        synchronized (this) {
-            sharedFile = mCache.get(path);
-        }
-        if (sharedFile != null) {
-            sLog.debug("Found existing file descriptor for %s, rawSize=%d.", path, rawSize);
+            // Open a new file descriptor.
+            mHitRate.increment(0);
+            sharedFile = open(path, rawSize);
             sharedFile.aboutToRead();
-            mHitRate.increment(100);
+            sharedFile.mLastAccess = mClock.incrementAndGet();
+            sharedFile.mVolumeRoot = getVolumeRoot(path);
+
+            SharedFile existing = mCache.putIfAbsent(path, sharedFile);
+            if (existing != null) {
+                sLog.debug("Another thread just opened the same file.  Closing our copy and using the other one.");
+                sharedFile.close();
+                continue;
+            }
+            sLog.debug("Caching file descriptor: path=%s, sharedFile=%s", path, sharedFile);
+            ZimbraPerf.COUNTER_FD_CACHE_OPEN.increment();
+            if (mEvicted.getIfPresent(path) != null) {
+                mEvicted.invalidate(path);
+                ZimbraPerf.COUNTER_FD_CACHE_REOPEN.increment();
+            }
+            if (sharedFile.mVolumeRoot != null) {
+                getVolumeCount(sharedFile.mVolumeRoot).incrementAndGet();
+            }
+            pruneIfNecessary();
             return sharedFile;
         }
+    }
 
-        // Open a new file descriptor.
-        mHitRate.increment(0);
+    private SharedFile open(String path, long rawSize) throws IOException {
         File file = new File(path);
 
         if (file.length() != rawSize && FileUtil.isGzipped(file)) {
@@ -176,131 +273,176 @@ public class FileDescriptorCache
                     throw new IOException("Unable to get uncompressed file for " + path);
                 }
             }
-            sharedFile = new SharedFile(uncompressed.file);
+            return new SharedFile(uncompressed.file);
         } else {
             sLog.debug("Opening new file descriptor for %s.", path);
-            sharedFile = new SharedFile(file);
-        }
-
-        synchronized (this) {
-            if (mCache.containsKey(path)) {
-                sLog.debug("Another thread just opened the same file.  Closing our copy and returning the other one.");
-                sharedFile.close();
-                sharedFile = mCache.get(path);
-            } else {
-                sLog.debug("Caching file descriptor: path=%s, sharedFile=%s", path, sharedFile);
-                mCache.put(path, sharedFile);
-            }
+            return new SharedFile(file);
         }
-        sharedFile.aboutToRead();
-        pruneIfNecessary();
-
-        return sharedFile;
     }
 
     /**
      * Closes the file descriptor and removes it from the cache.  Does nothing if the file
-     * descriptor is not in the cache.
+     * descriptor is not in the cache.  If the file is being read, it is closed
+     * when the last reader is done.
      */
     public void remove(String path) throws IOException {
-        SharedFile file = null;
-
-        synchronized (this) {
-            file = mCache.remove(path);
-        }
-
+        SharedFile file = mCache.remove(path);
         if (file != null) {
-            boolean success = close(file, path);
-            if (!success)
-                mInactiveCache.add(new SharedFileInfo(path, file));
+            release(file);
+            if (file.evict()) {
+                scheduleClose(file, path);
+            }
         } else {
             sLog.debug("Attempted to remove %s but could not find it in the cache.", path);
         }
-
-        // Close if there are any SharedFiles in the inactive cache.
-        quietCloseInactiveCache();
     }
 
     /**
-     * Close the file if it is not in use.
-     * @return true if the file is closed, false otherwise.
-     * @throws IOException if there is an error closing the file.
+     * Hands the file to the reaper thread for closing.  Closes it on the
+     * calling thread if the reaper has been shut down.
      */
-    private boolean close(SharedFile file, String path) throws IOException {
-        if (file != null) {
-            sLog.debug("Closing file descriptor for %s, %s", path, file);
-
-            if (file.getNumReaders() == 0) {
-                file.close();
-                if (mUncompressedFileCache != null) {
-                    synchronized (this) {
-                        if (!mCache.containsKey(path)) {
-                            mUncompressedFileCache.remove(path);
-                        } else {
-                            sLog.debug("Not removing %s from the uncompressed cache.  Another thread reopened it.");
-                        }
-                    }
+    private void scheduleClose(final SharedFile file, final String path) {
+        try {
+            mCloser.execute(new Runnable() {
+                @Override
+                public void run() {
+                    close(file, path);
                 }
-                return true;
+            });
+        } catch (RejectedExecutionException e) {
+            close(file, path);
+        }
+    }
+
+    private void close(SharedFile file, String path) {
+        sLog.debug("Closing file descriptor for %s, %s", path, file);
+        try {
+            file.close();
+        } catch (IOException e) {
+            sLog.warn("Unable to close file descriptor for %s", path, e);
+        }
+        if (mUncompressedFileCache != null) {
+            if (!mCache.containsKey(path)) {
+                mUncompressedFileCache.remove(path);
+            } else {
+                sLog.debug("Not removing %s from the uncompressed cache.  Another thread reopened it.", path);
             }
-            return false;
         }
-        return true;
     }
 
-    private void quietCloseInactiveCache() {
-        synchronized (mInactiveCache) {
-            Iterator<SharedFileInfo> iter = mInactiveCache.iterator();
-            while (iter.hasNext()) {
-                SharedFileInfo info = iter.next();
-                try {
-                    boolean success = close(info.file, info.path);
-                    if (success)
-                        iter.remove();
-                } catch (IOException e) {
-                    ZimbraLog.store.warn("Unable to close file descriptor for " + info.path, e);
-                    iter.remove();
-                }
+    /** Updates the volume count for a file that was removed from the map. */
+    private void release(SharedFile file) {
+        if (file.mVolumeRoot != null) {
+            getVolumeCount(file.mVolumeRoot).decrementAndGet();
+        }
+    }
+
+    private String getVolumeRoot(String path) {
+        for (String root : mVolumeRoots) {
+            if (path.startsWith(root)) {
+                return root;
             }
         }
+        return null;
     }
 
-    public synchronized int getSize() {
+    private AtomicInteger getVolumeCount(String root) {
+        AtomicInteger count = mVolumeCounts.get(root);
+        if (count == null) {
+            AtomicInteger newCount = new AtomicInteger();
+            count = mVolumeCounts.putIfAbsent(root, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        return count;
+    }
+
+    private static Cache<String, Boolean> newEvictedCache(int maxSize) {
+        return CacheBuilder.newBuilder().maximumSize(Math.max(maxSize, 1)).build();
+    }
+
+    public int getSize() {
         return mCache.size();
     }
 
+    /** Returns the number of descriptors cached for files under the given volume root. */
+    int getVolumeSize(String rootPath) {
+        String root = rootPath.endsWith(File.separator) ? rootPath : rootPath + File.separator;
+        AtomicInteger count = mVolumeCounts.get(root);
+        return count == null ? 0 : count.get();
+    }
+
     public double getHitRate() {
         return mHitRate.getAverage();
     }
 
-    private void pruneIfNecessary() {
-         if (getSize() <= mMaxSize)
-            return;
+    private boolean isVolumeOverLimit() {
+        int maxVolumeSize = mMaxVolumeSize;
+        if (maxVolumeSize > 0) {
+            for (AtomicInteger count : mVolumeCounts.values()) {
+                if (count.get() > maxVolumeSize) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
-        List<Map.Entry<String, SharedFile>> removeList = new ArrayList<Map.Entry<String, SharedFile>>();
+    /** Snapshot of a cache entry, so that concurrent reads don't reorder it while sorting. */
+    private static final class Candidate implements Comparable<Candidate> {
+        final String path;
+        final SharedFile file;
+        final long lastAccess;
 
-        synchronized (this) {
-            Iterator<Map.Entry<String, SharedFile>> iEntries = mCache.entrySet().iterator();
-            while (iEntries.hasNext() && mCache.size() > mMaxSize) {
-                Map.Entry<String, SharedFile> mapEntry = iEntries.next();
-                iEntries.remove();
-                removeList.add(mapEntry);
-            }
+        Candidate(String path, SharedFile file) {
+            this.path = path;
+            this.file = file;
+            this.lastAccess = file.mLastAccess;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            return lastAccess < other.lastAccess ? -1 : (lastAccess == other.lastAccess ? 0 : 1);
         }
-        for (Map.Entry<String, SharedFile> mapEntry : removeList) {
-            String path = mapEntry.getKey();
-            SharedFile file = mapEntry.getValue();
-            try {
-                boolean success = close(file, path);
-                if (!success) {
-                    mInactiveCache.add(new SharedFileInfo(path, file));
+    }
+
+    private void pruneIfNecessary() {
+        if (mCache.size() <= mMaxSize && !isVolumeOverLimit())
+            return;
+        if (!mPruneLock.tryLock())
+            return;  // another thread is pruning
+        try {
+            List<Candidate> candidates = new ArrayList<Candidate>(mCache.size());
+            for (Map.Entry<String, SharedFile> entry : mCache.entrySet()) {
+                candidates.add(new Candidate(entry.getKey(), entry.getValue()));
+            }
+            Collections.sort(candidates);
+
+            // Once over the limit, evict down to a little under it, so that a
+            // full cache isn't sorted again on every miss.
+            int maxSize = mMaxSize;
+            int maxVolumeSize = mMaxVolumeSize;
+            int size = mCache.size();
+            int target = size > maxSize ? maxSize - maxSize / 16 : size;
+            for (Candidate candidate : candidates) {
+                boolean evict = size > target;
+                if (!evict && maxVolumeSize > 0 && candidate.file.mVolumeRoot != null) {
+                    evict = getVolumeCount(candidate.file.mVolumeRoot).get() > maxVolumeSize;
+                }
+                if (evict && mCache.remove(candidate.path, candidate.file)) {
+                    sLog.debug("Evicting file descriptor for %s.", candidate.path);
+                    size--;
+                    release(candidate.file);
+                    mEvicted.put(candidate.path, Boolean.TRUE);
+                    ZimbraPerf.COUNTER_FD_CACHE_EVICTION.increment();
+                    if (candidate.file.evict()) {
+                        scheduleClose(candidate.file, candidate.path);
+                    }
                 }
-            } catch (IOException e) {
-                ZimbraLog.store.warn("Unable to close file descriptor for " + path, e);
             }
+        } finally {
+            mPruneLock.unlock();
         }
-
-        // Close if there are any SharedFiles in the inactive cache.
-        quietCloseInactiveCache();
     }
 }
@@ -41,6 +41,18 @@ public class SharedFile {
      * Windows (bug 43497).
      */
     private int mNumReaders;
+
+    /**
+     * Set when the file has been removed from the {@link FileDescriptorCache}.
+     * An evicted file accepts no new readers and is closed once the last
+     * reader is done.
+     */
+    private boolean mEvicted;
+
+    /** Cache bookkeeping: the value of the cache's access clock at the last read. */
+    volatile long mLastAccess;
+    /** Cache bookkeeping: root path of the volume this file lives on, or <tt>null</tt>. */
+    String mVolumeRoot;
     
     /**
      * Remember the file's length, in case we have an open file descriptor and the
@@ -92,14 +104,42 @@ public class SharedFile {
         return numRead;
     }
     
-    synchronized void aboutToRead() {
+    /**
+     * Registers a reader.
+     * @return <tt>false</tt> if the file has been evicted and can no longer be read
+     */
+    synchronized boolean aboutToRead() {
+        if (mEvicted) {
+            return false;
+        }
         mNumReaders++;
+        return true;
     }
     
-    synchronized void doneReading() {
+    /**
+     * Unregisters a reader.
+     * @return <tt>true</tt> if the file has been evicted and this was the
+     * last reader, in which case the caller is responsible for closing it
+     */
+    synchronized boolean doneReading() {
         if (mNumReaders > 0) {
             mNumReaders--;
+            return mEvicted && mNumReaders == 0;
+        }
+        return false;
+    }
+
+    /**
+     * Marks the file as evicted, so that it accepts no new readers.
+     * @return <tt>true</tt> if there are no readers, in which case the
+     * caller is responsible for closing it
+     */
+    synchronized boolean evict() {
+        if (mEvicted) {
+            return false;
         }
+        mEvicted = true;
+        return mNumReaders == 0;
     }
     
     synchronized int getNumReaders() {
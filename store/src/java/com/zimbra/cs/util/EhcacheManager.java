@@ -53,6 +53,7 @@ public final class EhcacheManager {
     public static final String IMAP_ACTIVE_SESSION_CACHE = "imap-active-session-cache";
     public static final String IMAP_INACTIVE_SESSION_CACHE = "imap-inactive-session-cache";
     public static final String SYNC_STATE_ITEM_CACHE = "sync-state-item-cache";
+    public static final String IMAP_STRUCTURE_CACHE = "imap-structure-cache";
 
     private EhcacheManager(Service service) {
         cacheManager = CacheManagerBuilder.newCacheManagerBuilder()
@@ -60,6 +61,10 @@ public final class EhcacheManager {
                 .withCache(IMAP_ACTIVE_SESSION_CACHE, createImapActiveSessionCache())
                 .build(true);
 
+        if (LC.imap_structure_cache_enabled.booleanValue()) {
+            cacheManager.createCache(IMAP_STRUCTURE_CACHE, createImapStructureCache());
+        }
+
         if (MemcachedConnector.isConnected()) {
             ZimbraLog.imap.info("Using Memcached for inactive session cache");
         } else {
@@ -123,6 +128,16 @@ public final class EhcacheManager {
                 .build();
     }
 
+    private CacheConfiguration<String, byte[]> createImapStructureCache() {
+        long maxBytesOnLocalDisk = new MemoryUnitUtil().convertToBytes(LC.imap_structure_cache_max_disk_size.value());
+        return CacheConfigurationBuilder.newCacheConfigurationBuilder(String.class,
+                byte[].class,
+                ResourcePoolsBuilder.newResourcePoolsBuilder()
+                .heap(LC.imap_structure_cache_heap_entries.longValue(), EntryUnit.ENTRIES)
+                .disk(maxBytesOnLocalDisk, MemoryUnit.B, true)) // disk backed persistent store
+                .build();
+    }
+
     private CacheConfiguration<String, String> createActiveSyncStateItemCache() {
         long heapSize;
         long timeout;
@@ -159,6 +174,13 @@ public final class EhcacheManager {
         return cacheManager.getCache(cacheName, String.class, ImapFolder.class);
     }
 
+    /**
+     * @return the IMAP structure cache, or null if {@code imap_structure_cache_enabled} is false
+     */
+    public Cache<String, byte[]> getImapStructureEhcache() {
+        return cacheManager.getCache(IMAP_STRUCTURE_CACHE, String.class, byte[].class);
+    }
+
     public Cache<String, String> getSyncStateEhcache() {
         return cacheManager.getCache(SYNC_STATE_ITEM_CACHE, String.class, String.class);
     }
@@ -25,6 +25,7 @@ import java.util.Timer;
 import org.apache.mina.core.buffer.IoBuffer;
 import org.dom4j.DocumentException;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.zimbra.common.calendar.WellKnownTimeZones;
 import com.zimbra.common.lmtp.SmtpToLmtp;
 import com.zimbra.common.localconfig.ConfigException;
@@ -517,6 +518,11 @@ public final class Zimbra {
         return alwaysOnClusterId != null;
     }
 
+    @VisibleForTesting
+    public static void setAlwaysOnClusterId(String clusterId) {
+        alwaysOnClusterId = clusterId;
+    }
+
     private static void dbSessionCleanup() throws ServiceException {
         //DbSessions Cleanup
         DbConnection conn = null;
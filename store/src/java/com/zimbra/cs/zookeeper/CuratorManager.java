@@ -27,6 +27,7 @@ import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreV2;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.curator.x.discovery.ServiceCache;
 import org.apache.curator.x.discovery.ServiceCacheBuilder;
@@ -113,6 +114,10 @@ public class CuratorManager {
         return new InterProcessSemaphoreMutex(client, LOCKS + id);
     }
 
+    public InterProcessSemaphoreV2 createSemaphore(String id, int maxLeases) {
+        return new InterProcessSemaphoreV2(client, LOCKS + id, maxLeases);
+    }
+
     public void setData(String key, String value) throws Exception {
         byte[] data;
         try {